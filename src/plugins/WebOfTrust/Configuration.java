@@ -5,8 +5,10 @@ package plugins.WebOfTrust;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
+import plugins.WebOfTrust.util.LockProfiler;
 import freenet.support.CurrentTimeUTC;
 import freenet.support.codeshortification.IfNull;
 
@@ -26,7 +28,9 @@ import freenet.support.codeshortification.IfNull;
 public final class Configuration extends Persistent {
 
 	/**
-	 * At startup, we defragment the db4o database after this interval has expired.
+	 * {@link OnlineDefragmentation} defragments the db4o database after this interval has
+	 * expired. At startup, we only defragment it if
+	 * {@link #scheduleDefragmentationWithoutCommit()} was called.
 	 * TODO: Code quality: Make configurable.
 	 * 
 	 * ATTENTION: If it ever becomes possible to set this to "infinite", for example in a
@@ -40,6 +44,50 @@ public final class Configuration extends Persistent {
 	 * TODO: Code quality: Make configurable. */
 	public final static transient long DEFAULT_VERIFY_SCORES_INTERVAL = TimeUnit.DAYS.toMillis(28);
 
+	/**
+	 * Name of the Integer configuration parameter which specifies for how many days a
+	 * {@link Tombstone} is kept. See {@link #getTombstoneRetentionDays()}. */
+	public final static transient String TOMBSTONE_RETENTION_DAYS = "TombstoneRetentionDays";
+
+	/** Default value of {@link #TOMBSTONE_RETENTION_DAYS}. */
+	public final static transient int DEFAULT_TOMBSTONE_RETENTION_DAYS = 30;
+
+	/**
+	 * Name of the Integer configuration parameter which specifies for how many milliseconds the
+	 * {@link GroupCommit} may delay a commit. See {@link #getGroupCommitDelay()}. */
+	public final static transient String GROUP_COMMIT_DELAY = "GroupCommitDelay";
+
+	/** Default value of {@link #GROUP_COMMIT_DELAY}: Group commit is disabled. */
+	public final static transient int DEFAULT_GROUP_COMMIT_DELAY = 0;
+
+	/**
+	 * Name of the Integer configuration parameter which specifies every how many days the
+	 * {@link DatabaseBackup} backs up the database. See {@link #getBackupInterval()}. */
+	public final static transient String BACKUP_INTERVAL_DAYS = "BackupIntervalDays";
+
+	/** Default value of {@link #BACKUP_INTERVAL_DAYS}. */
+	public final static transient int DEFAULT_BACKUP_INTERVAL_DAYS = 7;
+
+	/**
+	 * Name of the Integer configuration parameter which specifies how many backups the
+	 * {@link DatabaseBackup} keeps. See {@link #getBackupCount()}. */
+	public final static transient String BACKUP_COUNT = "BackupCount";
+
+	/** Default value of {@link #BACKUP_COUNT}. */
+	public final static transient int DEFAULT_BACKUP_COUNT = 3;
+
+	/**
+	 * Name of the boolean configuration parameter which specifies whether the
+	 * {@link LockProfiler} is running. See {@link #isLockProfilerEnabled()}. */
+	public final static transient String LOCK_PROFILER_ENABLED = "LockProfilerEnabled";
+
+	/**
+	 * Name of the boolean configuration parameter which specifies whether the statistics of the
+	 * FCP messages include the lock wait time and the reply size. See
+	 * {@link #isFCPDetailedStatisticsEnabled()}. */
+	public final static transient String FCP_DETAILED_STATISTICS_ENABLED
+		= "FCPDetailedStatisticsEnabled";
+
 	/**
 	 * If this is true then batch processing delays of various subsystems will be set to low values.
 	 * ATTENTION: DO NOT use this for any significant program logic decisions! Unit tests should
@@ -72,6 +120,18 @@ public final class Configuration extends Persistent {
 	 */
 	private Date mLastVerificationOfScoresDate;
 
+	/**
+	 * Random UUID which identifies the numbering of {@link WebOfTrust#getCurrentChangeSequence()}.
+	 * Sent to clients of the FCP message "GetChangesSince" so they can detect that the change
+	 * sequence numbers they know are meaningless, for example because they belong to a different
+	 * database. */
+	private String mChangeSequenceEpoch;
+
+	/**
+	 * {@link Tombstone} objects with a change sequence number of up to this value may have been
+	 * deleted by {@link WebOfTrust#deleteExpiredTombstones()}. */
+	private long mChangeSequenceHorizon;
+
 	/**
 	 * The {@link HashMap} that contains all {@link String} configuration parameters
 	 */
@@ -106,6 +166,9 @@ public final class Configuration extends Persistent {
 		mLastDefragDate = CurrentTimeUTC.get();
 		mLastVerificationOfScoresDate = CurrentTimeUTC.get();
 		
+		mChangeSequenceEpoch = UUID.randomUUID().toString();
+		mChangeSequenceHorizon = 0;
+		
 		mStringParams = new HashMap<String, String>();
 		mIntParams = new HashMap<String, Integer>();
 		initializeTransient(myWebOfTrust);
@@ -275,6 +338,125 @@ public final class Configuration extends Persistent {
 		mLastVerificationOfScoresDate = CurrentTimeUTC.get();
 	}
 
+	/** @see #mChangeSequenceEpoch */
+	public String getChangeSequenceEpoch() {
+		checkedActivate(1); // String is a db4o primitive type so 1 is enough
+		return mChangeSequenceEpoch;
+	}
+
+	/**
+	 * Assigns a new random {@link #getChangeSequenceEpoch()}. You have to call storeAndCommit to
+	 * write it to disk. */
+	void renewChangeSequenceEpoch() {
+		// String is a db4o primitive type so activation depth of 1 is enough. We also don't need
+		// to delete because of that, db4o will do it automatically.
+		checkedActivate(1);
+		mChangeSequenceEpoch = UUID.randomUUID().toString();
+	}
+
+	/**
+	 * Copies the parameters, dates and change sequence values of the given Configuration of
+	 * another database into this one. Used by {@link OnlineDefragmentation} when a copy of the
+	 * database replaces the original one. You have to call storeAndCommit to write it to disk. */
+	synchronized void copyFrom(Configuration source) {
+		activateFully();
+		source.activateFully();
+		
+		if(source.mDatabaseFormatVersion != mDatabaseFormatVersion) {
+			throw new IllegalArgumentException("Database format version mismatch: "
+				+ source.mDatabaseFormatVersion + " vs. " + mDatabaseFormatVersion);
+		}
+		
+		mLastDefragDate = source.getLastDefragDate();
+		mLastVerificationOfScoresDate = source.getLastVerificationOfScoresDate();
+		mChangeSequenceEpoch = source.mChangeSequenceEpoch;
+		mChangeSequenceHorizon = source.mChangeSequenceHorizon;
+		
+		mStringParams.clear();
+		mStringParams.putAll(source.mStringParams);
+		mIntParams.clear();
+		mIntParams.putAll(source.mIntParams);
+	}
+
+	/** @see #mChangeSequenceHorizon */
+	public long getChangeSequenceHorizon() {
+		checkedActivate(1); // long is a db4o primitive type so 1 is enough
+		return mChangeSequenceHorizon;
+	}
+
+	/**
+	 * Raises the {@link #getChangeSequenceHorizon()} to the given value. Does nothing if it is
+	 * higher already. You have to call storeAndCommit to write it to disk. */
+	void raiseChangeSequenceHorizon(long changeSequence) {
+		checkedActivate(1); // long is a db4o primitive type so 1 is enough
+		if(changeSequence > mChangeSequenceHorizon)
+			mChangeSequenceHorizon = changeSequence;
+	}
+
+	/**
+	 * Returns for how many days a {@link Tombstone} is kept after the deletion of the object it
+	 * represents. Clients of the FCP message "GetChangesSince" which do not poll for changes
+	 * within this period have to resynchronize.
+	 * 
+	 * @see #TOMBSTONE_RETENTION_DAYS */
+	public synchronized int getTombstoneRetentionDays() {
+		return containsInt(TOMBSTONE_RETENTION_DAYS)
+			? getInt(TOMBSTONE_RETENTION_DAYS) : DEFAULT_TOMBSTONE_RETENTION_DAYS;
+	}
+
+	/**
+	 * Returns for how many milliseconds the {@link GroupCommit} may delay the commit of a
+	 * transaction to merge it with the commits of other transactions. 0 disables group commit,
+	 * which is the default as it trades the durability of recently committed transactions for
+	 * fewer disk syncs. Changes take effect after a restart.
+	 * 
+	 * @see #GROUP_COMMIT_DELAY */
+	public synchronized int getGroupCommitDelay() {
+		return containsInt(GROUP_COMMIT_DELAY)
+			? getInt(GROUP_COMMIT_DELAY) : DEFAULT_GROUP_COMMIT_DELAY;
+	}
+
+	/**
+	 * Returns the interval in milliseconds at which the {@link DatabaseBackup} backs up the
+	 * database while WoT is running. 0 disables the backups. Changes take effect after a restart.
+	 * 
+	 * @see #BACKUP_INTERVAL_DAYS */
+	public synchronized long getBackupInterval() {
+		final int days = containsInt(BACKUP_INTERVAL_DAYS)
+			? getInt(BACKUP_INTERVAL_DAYS) : DEFAULT_BACKUP_INTERVAL_DAYS;
+		return TimeUnit.DAYS.toMillis(Math.max(days, 0));
+	}
+
+	/**
+	 * Returns how many backups the {@link DatabaseBackup} keeps before it deletes the oldest one.
+	 * 
+	 * @see #BACKUP_COUNT */
+	public synchronized int getBackupCount() {
+		return Math.max(1, containsInt(BACKUP_COUNT) ? getInt(BACKUP_COUNT) : DEFAULT_BACKUP_COUNT);
+	}
+
+	/**
+	 * Returns whether the {@link LockProfiler} is started at startup. False by default as it is
+	 * only useful for diagnosing performance problems.
+	 * 
+	 * @see #LOCK_PROFILER_ENABLED
+	 * @see WebOfTrust#setLockProfilerEnabled(boolean) */
+	public synchronized boolean isLockProfilerEnabled() {
+		return containsString(LOCK_PROFILER_ENABLED) && getBoolean(LOCK_PROFILER_ENABLED);
+	}
+
+	/**
+	 * Returns whether the FCP interface measures the lock wait time and the reply size of each
+	 * message. False by default: Measuring the lock wait time enables thread contention
+	 * monitoring for the whole JVM, including the node, and measuring the reply size serializes
+	 * each reply an additional time. Applied at startup.
+	 * 
+	 * @see #FCP_DETAILED_STATISTICS_ENABLED */
+	public synchronized boolean isFCPDetailedStatisticsEnabled() {
+		return containsString(FCP_DETAILED_STATISTICS_ENABLED)
+			&& getBoolean(FCP_DETAILED_STATISTICS_ENABLED);
+	}
+
 	/**
 	 * Sets a String configuration parameter. You have to call storeAndCommit to write it to disk.
 	 * 
@@ -402,7 +584,14 @@ public final class Configuration extends Persistent {
 	 * @param overwrite If true, overwrite already set values with the default value.
 	 */
 	public synchronized void setDefaultValues(boolean overwrite) {
-
+		if(overwrite || !containsInt(TOMBSTONE_RETENTION_DAYS))
+			set(TOMBSTONE_RETENTION_DAYS, DEFAULT_TOMBSTONE_RETENTION_DAYS);
+		if(overwrite || !containsInt(GROUP_COMMIT_DELAY))
+			set(GROUP_COMMIT_DELAY, DEFAULT_GROUP_COMMIT_DELAY);
+		if(overwrite || !containsInt(BACKUP_INTERVAL_DAYS))
+			set(BACKUP_INTERVAL_DAYS, DEFAULT_BACKUP_INTERVAL_DAYS);
+		if(overwrite || !containsInt(BACKUP_COUNT))
+			set(BACKUP_COUNT, DEFAULT_BACKUP_COUNT);
 	}
 
 	@Override
@@ -427,6 +616,14 @@ public final class Configuration extends Persistent {
 			                               + mLastVerificationOfScoresDate);
 		}
 		
+		IfNull.thenThrow(mChangeSequenceEpoch, "mChangeSequenceEpoch");
+		UUID.fromString(mChangeSequenceEpoch); // Throws if invalid
+		
+		if(mChangeSequenceHorizon < 0) {
+			throw new IllegalStateException("mChangeSequenceHorizon is negative: "
+			                               + mChangeSequenceHorizon);
+		}
+		
 
 		if(mIntParams == null)
 			throw new NullPointerException("mIntParams==null");
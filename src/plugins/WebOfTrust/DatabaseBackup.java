@@ -0,0 +1,284 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+
+import plugins.WebOfTrust.IdentityFileQueue.IdentityFileQueueStatistics;
+import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
+import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
+import plugins.WebOfTrust.util.jobs.TickerDelayedBackgroundJob;
+
+import com.db4o.ext.ExtObjectContainer;
+
+import freenet.node.PrioRunnable;
+import freenet.support.CurrentTimeUTC;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.io.NativeThread;
+
+/**
+ * Backs up the database while WoT is running, every {@link Configuration#getBackupInterval()}.
+ * <br><br>
+ *
+ * The backup is done by db4o's hot backup, {@link ExtObjectContainer#backup(String)}: It copies
+ * the database file in small blocks while holding db4o's internal lock only for each block, and
+ * also writes changes which happen meanwhile to the copy. Thus the backup is consistent, and
+ * other threads can keep using the database while it is running. We throttle the backup by:<br>
+ * - Running it at {@link NativeThread#MIN_PRIORITY}.<br>
+ * - Postponing it by {@link #POSTPONE_DELAY} while {@link IdentityFile}s are waiting to be
+ *   imported, at most {@link #MAX_POSTPONEMENTS} times in a row, as imports are the most
+ *   disk-intensive work of WoT.<br><br>
+ *
+ * The backups are kept in a rotating set of {@link Configuration#getBackupCount()} files next to
+ * the database, see {@link #getBackupFile(int)}. A new backup is written to a temporary file first
+ * and only replaces the oldest one once it is complete and all backups were renamed into place, so
+ * a failure never leaves a gap in the set. To restore a backup, shut down WoT and replace the
+ * database file with the backup file.
+ */
+public final class DatabaseBackup implements PrioRunnable {
+
+	/** Delay after startup before the first backup if there is no backup yet. */
+	public static final long STARTUP_DELAY = MINUTES.toMillis(10);
+
+	/** @see DatabaseBackup */
+	public static final long POSTPONE_DELAY = MINUTES.toMillis(5);
+
+	/** @see DatabaseBackup */
+	public static final int MAX_POSTPONEMENTS = 12;
+
+	private final WebOfTrust mWoT;
+
+	private final ExtObjectContainer mDB;
+
+	private final File mDatabaseFile;
+
+	/** @see Configuration#getBackupInterval() */
+	private final long mInterval;
+
+	/** @see Configuration#getBackupCount() */
+	private final int mCount;
+
+	/** Until {@link #start(Ticker)} is called, a {@link MockDelayedBackgroundJob}. */
+	private volatile DelayedBackgroundJob mJob = MockDelayedBackgroundJob.DEFAULT;
+
+	/** Amount of times {@link #run()} postponed the backup in a row. Only used by run(). */
+	private int mPostponements = 0;
+
+	/* Statistics, protected by synchronized(this). */
+
+	private int mBackups = 0;
+
+	private int mFailures = 0;
+
+	private Date mLastBackupDate = null;
+
+	private long mLastDuration = 0;
+
+	private long mLastSize = 0;
+
+
+	/**
+	 * @param databaseFile The file of the database of the given WebOfTrust. The backups are
+	 *     stored in the same directory.
+	 * @param interval See {@link Configuration#getBackupInterval()}.
+	 * @param count See {@link Configuration#getBackupCount()}. */
+	DatabaseBackup(WebOfTrust wot, File databaseFile, long interval, int count) {
+		if(interval <= 0 || count < 1)
+			throw new IllegalArgumentException("Invalid interval or count: " + interval + ", "
+				+ count);
+
+		mWoT = wot;
+		mDB = wot.getDatabase();
+		mDatabaseFile = databaseFile;
+		mInterval = interval;
+		mCount = count;
+
+		final File newest = getBackupFile(1);
+		if(newest.exists()) {
+			mLastBackupDate = new Date(newest.lastModified());
+			mLastSize = newest.length();
+		}
+	}
+
+	/**
+	 * Schedules the first backup: {@link Configuration#getBackupInterval()} after the last one,
+	 * but not earlier than {@link #STARTUP_DELAY} after startup. */
+	synchronized void start(Ticker ticker) {
+		if(mJob != MockDelayedBackgroundJob.DEFAULT)
+			throw new IllegalStateException("start() was already called!");
+
+		long delay = STARTUP_DELAY;
+		if(mLastBackupDate != null) {
+			delay = Math.max(delay,
+				mLastBackupDate.getTime() + mInterval - CurrentTimeUTC.getInMillis());
+		}
+
+		mJob = new TickerDelayedBackgroundJob(this, "WoT DatabaseBackup", mInterval, ticker);
+		mJob.triggerExecution(delay);
+		Logger.normal(this, "Next backup in " + MINUTES.convert(delay, MILLISECONDS) + " minutes");
+	}
+
+	/** Aborts a scheduled backup and waits for a running one to finish. */
+	void stop() {
+		mJob.terminate();
+		try {
+			mJob.waitForTermination(Long.MAX_VALUE);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override public void run() {
+		if(Thread.interrupted())
+			return;
+
+		final IdentityFileQueueStatistics queue = mWoT.getIdentityFileQueue().getStatistics();
+		if(queue.mQueuedFiles + queue.mProcessingFiles > 0 && mPostponements < MAX_POSTPONEMENTS) {
+			++mPostponements;
+			Logger.normal(this, "Postponing backup while identity files are being imported");
+			mJob.triggerExecution(POSTPONE_DELAY);
+			return;
+		}
+		mPostponements = 0;
+
+		try {
+			backup();
+		} catch(IOException e) {
+			Logger.error(this, "Backup failed", e);
+		} catch(RuntimeException e) {
+			Logger.error(this, "Backup failed", e);
+		}
+
+		mJob.triggerExecution(mInterval);
+	}
+
+	/**
+	 * Does a backup now, on the calling thread. Can be called while the database is in use.
+	 *
+	 * @return The file of the new backup, i.e. {@link #getBackupFile(int)} with index 1. */
+	public File backup() throws IOException {
+		final File tempFile = new File(mDatabaseFile.getPath() + ".backup.tmp");
+		if(tempFile.exists() && !tempFile.delete())
+			throw new IOException("Cannot delete stale temporary file: " + tempFile);
+
+		// Only left over if WoT was terminated during the rotation. If it has not been replaced
+		// yet, it is still the oldest backup.
+		final File oldest = getBackupFile(mCount);
+		final File discarded = new File(mDatabaseFile.getPath() + ".backup.old");
+		if(discarded.exists()) {
+			if(!oldest.exists() ? !discarded.renameTo(oldest) : !discarded.delete())
+				throw new IOException("Cannot remove stale backup: " + discarded);
+		}
+
+		Logger.normal(this, "Backing up database to " + tempFile);
+		final long startTime = System.currentTimeMillis();
+		boolean success = false;
+		try {
+			mDB.backup(tempFile.getAbsolutePath());
+
+			// Rotate: backup<mCount> is moved aside, backup1 -> backup2 -> ... -> backup<mCount>,
+			// and the new backup becomes backup1. If a rename fails, the previous ones are
+			// reverted. The oldest backup is only deleted once everything is in place.
+			final File newest = getBackupFile(1);
+			final ArrayList<File[]> renamed = new ArrayList<File[]>(mCount + 1);
+			try {
+				if(oldest.exists())
+					rename(oldest, discarded, renamed);
+				for(int i = mCount - 1; i >= 1; --i) {
+					final File file = getBackupFile(i);
+					if(file.exists())
+						rename(file, getBackupFile(i + 1), renamed);
+				}
+				rename(tempFile, newest, renamed);
+			} catch(IOException e) {
+				for(int i = renamed.size() - 1; i >= 0; --i) {
+					final File from = renamed.get(i)[0];
+					if(!renamed.get(i)[1].renameTo(from))
+						Logger.error(this, "Cannot revert renaming of backup: " + from);
+				}
+				throw e;
+			}
+
+			if(discarded.exists() && !discarded.delete())
+				Logger.error(this, "Cannot delete oldest backup: " + discarded);
+
+			final long duration = System.currentTimeMillis() - startTime;
+			synchronized(this) {
+				++mBackups;
+				mLastBackupDate = CurrentTimeUTC.get();
+				mLastDuration = duration;
+				mLastSize = newest.length();
+			}
+			Logger.normal(this, "Backing up database finished, took " + duration + " ms, size: "
+				+ newest.length() + " bytes");
+
+			success = true;
+			return newest;
+		} finally {
+			if(!success) {
+				tempFile.delete();
+				synchronized(this) {
+					++mFailures;
+				}
+			}
+		}
+	}
+
+	/** Renames the given file and adds from/to to the given list of renamed files. */
+	private static void rename(File from, File to, ArrayList<File[]> renamed) throws IOException {
+		if(!from.renameTo(to))
+			throw new IOException("Cannot rename " + from + " to " + to);
+
+		renamed.add(new File[] { from, to });
+	}
+
+	/**
+	 * @param index 1 for the newest backup, up to {@link Configuration#getBackupCount()} for the
+	 *     oldest.
+	 * @return The database file name with ".backup" and the index appended. */
+	public File getBackupFile(int index) {
+		return new File(mDatabaseFile.getPath() + ".backup" + index);
+	}
+
+	@Override public int getPriority() {
+		return NativeThread.MIN_PRIORITY;
+	}
+
+	/** Amount of backups since startup. */
+	public synchronized int getBackupCount() {
+		return mBackups;
+	}
+
+	/** Amount of failed backups since startup. */
+	public synchronized int getFailureCount() {
+		return mFailures;
+	}
+
+	/** Date of the newest backup, or null if there is none. May be from a previous session. */
+	public synchronized Date getLastBackupDate() {
+		return mLastBackupDate != null ? (Date)mLastBackupDate.clone() : null;
+	}
+
+	/** Duration of the last backup in milliseconds, or 0 if there was none since startup. */
+	public synchronized long getLastDuration() {
+		return mLastDuration;
+	}
+
+	/** Size of the newest backup in bytes, or 0 if there is none. */
+	public synchronized long getLastSize() {
+		return mLastSize;
+	}
+
+	/** @see Configuration#getBackupInterval() */
+	public long getInterval() {
+		return mInterval;
+	}
+}
@@ -0,0 +1,346 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import plugins.WebOfTrust.ui.fcp.FCPInterface;
+
+import com.db4o.Db4o;
+import com.db4o.ObjectSet;
+import com.db4o.ext.ExtObjectContainer;
+import com.db4o.query.Query;
+
+import freenet.pluginmanager.PluginRespirator;
+import freenet.support.Logger;
+
+/**
+ * Calls {@link Persistent#startupDatabaseIntegrityTest()} upon all {@link Persistent} objects
+ * stored in a database, using multiple threads.<br><br>
+ *
+ * Only the db4o IDs of the objects are queried at once. The objects themselves are loaded in
+ * batches of {@link #getBatchSize()} by the worker threads, so they can be garbage collected once
+ * their batch was checked. db4o serializes the loading of objects internally, but the checks
+ * themselves, e.g. the parsing and validation of URIs and IDs, run concurrently.<br>
+ * The integrity tests only read the database, so it is safe to run them concurrently as long as
+ * nothing writes to it meanwhile. The caller must ensure that, either by holding the locks as
+ * {@link WebOfTrust#verifyDatabaseIntegrity()} does, or by using a database which no WoT is
+ * running upon, see {@link #verifyDatabaseFile(File, int, PrintStream)}.<br><br>
+ *
+ * Progress and throughput are logged every {@link #PROGRESS_INTERVAL}, and can be printed to a
+ * {@link PrintStream} for command line usage.
+ */
+public final class DatabaseIntegrityVerifier {
+
+	/** Default amount of objects which a worker thread loads and checks at once. */
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	/** Interval of logging the progress. */
+	public static final long PROGRESS_INTERVAL = SECONDS.toMillis(10);
+
+	private final WebOfTrustInterface mWebOfTrust;
+
+	private final ExtObjectContainer mDB;
+
+	private final int mThreads;
+
+	private final int mBatchSize;
+
+	/** Receives the progress reports in addition to the {@link Logger}. May be null. */
+	private final PrintStream mProgressOutput;
+
+	/* Statistics */
+
+	private volatile long mTotalObjects = 0;
+
+	private final AtomicLong mCheckedObjects = new AtomicLong(0);
+
+	private final AtomicLong mFailedObjects = new AtomicLong(0);
+
+	/** {@link System#currentTimeMillis()} when {@link #verify()} started. */
+	private volatile long mStartTime = 0;
+
+	/** {@link System#currentTimeMillis()} when {@link #verify()} finished, 0 while it runs. */
+	private volatile long mEndTime = 0;
+
+
+	/**
+	 * @param wot Its {@link WebOfTrustInterface#getDatabase()} is the database to verify.
+	 * @param threads Amount of worker threads, typically the amount of processors.
+	 * @param batchSize Amount of objects which a worker thread loads and checks at once.
+	 * @param progressOutput Receives the progress reports in addition to the {@link Logger}.
+	 *     May be null. */
+	DatabaseIntegrityVerifier(WebOfTrustInterface wot, int threads, int batchSize,
+			PrintStream progressOutput) {
+
+		if(threads < 1 || batchSize < 1)
+			throw new IllegalArgumentException("Invalid threads or batchSize: " + threads + ", "
+				+ batchSize);
+
+		mWebOfTrust = wot;
+		mDB = wot.getDatabase();
+		mThreads = threads;
+		mBatchSize = batchSize;
+		mProgressOutput = progressOutput;
+	}
+
+	/**
+	 * Verifies the given database file without modifying it: It is opened read-only using
+	 * {@link WebOfTrust#getNewDatabaseConfiguration(boolean)}. Thus it can be used upon a copy
+	 * of the database of a production node, e.g. by {@link plugins.WebOfTrust.ui.terminal.WOTUtil}.
+	 * <br>
+	 * ATTENTION: No WoT may be running upon the file while this is executing.
+	 *
+	 * @param threads See {@link #getThreadCount()}.
+	 * @param progressOutput Receives the progress reports. May be null.
+	 * @return The result of {@link #verify()}. */
+	public static boolean verifyDatabaseFile(File databaseFile, int threads,
+			PrintStream progressOutput) throws InterruptedException {
+
+		// The constructor without parameters does not do anything, it is used only for obtaining
+		// the configuration.
+		final ExtObjectContainer database = Db4o.openFile(
+			new WebOfTrust().getNewDatabaseConfiguration(true), databaseFile.getAbsolutePath())
+			.ext();
+
+		try {
+			return new DatabaseIntegrityVerifier(new ReadOnlyWebOfTrust(database), threads,
+				DEFAULT_BATCH_SIZE, progressOutput).verify();
+		} finally {
+			database.close();
+		}
+	}
+
+	/**
+	 * Checks all objects. Can only be called once.
+	 *
+	 * @return False if any of the objects' {@link Persistent#startupDatabaseIntegrityTest()}
+	 *     threw an exception.
+	 * @throws InterruptedException If the calling thread was interrupted. The worker threads are
+	 *     stopped then. */
+	public boolean verify() throws InterruptedException {
+		if(mStartTime != 0)
+			throw new IllegalStateException("verify() was already called!");
+
+		mStartTime = System.currentTimeMillis();
+
+		final Query query = mDB.query();
+		query.constrain(Persistent.class);
+		final ObjectSet<?> objects = query.execute();
+		final long[] ids = objects.ext().getIDs();
+		mTotalObjects = ids.length;
+
+		Logger.normal(this, "Testing integrity of " + ids.length + " objects with " + mThreads
+			+ " threads...");
+
+		final ExecutorService executor = Executors.newFixedThreadPool(mThreads,
+			new ThreadFactory() {
+				private final AtomicInteger mNumber = new AtomicInteger(0);
+
+				@Override public Thread newThread(Runnable r) {
+					final Thread thread = new Thread(r,
+						"WoT DatabaseIntegrityVerifier " + mNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+		boolean result = true;
+		try {
+			final CompletionService<Boolean> completion
+				= new ExecutorCompletionService<Boolean>(executor);
+
+			int batches = 0;
+			for(int offset = 0; offset < ids.length; offset += mBatchSize) {
+				final int from = offset;
+				final int to = Math.min(offset + mBatchSize, ids.length);
+
+				completion.submit(new Callable<Boolean>() {
+					@Override public Boolean call() {
+						return verifyBatch(ids, from, to);
+					}
+				});
+				++batches;
+			}
+
+			long nextReport = mStartTime + PROGRESS_INTERVAL;
+			for(int completed = 0; completed < batches; ) {
+				final Future<Boolean> batch = completion.poll(PROGRESS_INTERVAL, MILLISECONDS);
+
+				if(batch != null) {
+					++completed;
+					try {
+						if(!batch.get())
+							result = false;
+					} catch(ExecutionException e) {
+						Logger.error(this, "Integrity test of batch failed", e.getCause());
+						result = false;
+					}
+				}
+
+				if(System.currentTimeMillis() >= nextReport) {
+					reportProgress();
+					nextReport = System.currentTimeMillis() + PROGRESS_INTERVAL;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+			mEndTime = System.currentTimeMillis();
+		}
+
+		reportProgress();
+		return result;
+	}
+
+	/** Loads and checks the objects with the given IDs at ids[from] to ids[to - 1]. */
+	private boolean verifyBatch(long[] ids, int from, int to) {
+		boolean result = true;
+
+		for(int i = from; i < to; ++i) {
+			// Set by ExecutorService.shutdownNow() if verify() was interrupted
+			if(Thread.currentThread().isInterrupted())
+				return false;
+
+			final Persistent p = (Persistent)mDB.getByID(ids[i]);
+			if(p == null)
+				continue;
+
+			mDB.activate(p, Persistent.DEFAULT_ACTIVATION_DEPTH);
+			p.initializeTransient(mWebOfTrust, Persistent.DEFAULT_ACTIVATION_DEPTH);
+
+			try {
+				p.startupDatabaseIntegrityTest();
+			} catch(Exception e) {
+				result = false;
+				mFailedObjects.incrementAndGet();
+
+				try {
+					Logger.error(this, "Integrity test failed for " + p, e);
+				} catch(Exception e2) {
+					Logger.error(this, "Integrity test failed for Persistent of class " + p.getClass(), e);
+					Logger.error(this, "Exception thrown by toString() was:", e2);
+				}
+			}
+
+			mCheckedObjects.incrementAndGet();
+		}
+
+		return result;
+	}
+
+	private void reportProgress() {
+		final long checked = getCheckedObjects();
+		final long total = getTotalObjects();
+		final String progress = "Checked " + checked + " of " + total + " objects ("
+			+ (total > 0 ? checked * 100 / total : 100) + "%), "
+			+ getObjectsPerSecond() + " objects/s, failed: " + getFailedObjects();
+
+		Logger.normal(this, progress);
+		if(mProgressOutput != null)
+			mProgressOutput.println(progress);
+	}
+
+	public int getThreadCount() {
+		return mThreads;
+	}
+
+	public int getBatchSize() {
+		return mBatchSize;
+	}
+
+	/** Amount of objects in the database. 0 until {@link #verify()} has queried them. */
+	public long getTotalObjects() {
+		return mTotalObjects;
+	}
+
+	public long getCheckedObjects() {
+		return mCheckedObjects.get();
+	}
+
+	/** Amount of objects whose {@link Persistent#startupDatabaseIntegrityTest()} threw. */
+	public long getFailedObjects() {
+		return mFailedObjects.get();
+	}
+
+	/** Throughput of {@link #verify()}, while it is running or after it has finished. */
+	public long getObjectsPerSecond() {
+		if(mStartTime == 0)
+			return 0;
+
+		final long endTime = mEndTime != 0 ? mEndTime : System.currentTimeMillis();
+		return getCheckedObjects() * 1000 / Math.max(1, endTime - mStartTime);
+	}
+
+	/**
+	 * Provides a read-only database to the {@link Persistent} objects loaded from it, so
+	 * {@link Persistent#initializeTransient(WebOfTrustInterface)} makes them and the objects they
+	 * reference use it instead of the database of a running {@link WebOfTrust}.<br>
+	 * Everything besides the database is not implemented, similar to {@link MockWebOfTrust}. */
+	private static final class ReadOnlyWebOfTrust extends WebOfTrustInterface {
+
+		private final ExtObjectContainer mDatabase;
+
+		ReadOnlyWebOfTrust(ExtObjectContainer database) {
+			mDatabase = database;
+		}
+
+		@Override public List<Identity> getAllIdentities() {
+			throw new UnsupportedOperationException("Not implemented.");
+		}
+
+		@Override public List<Trust> getAllTrusts() {
+			throw new UnsupportedOperationException("Not implemented.");
+		}
+
+		@Override public List<Score> getAllScores() {
+			throw new UnsupportedOperationException("Not implemented.");
+		}
+
+		@Override protected PluginRespirator getPluginRespirator() {
+			throw new UnsupportedOperationException("Not implemented.");
+		}
+
+		@Override protected ExtObjectContainer getDatabase() {
+			return mDatabase;
+		}
+
+		@Override protected SubscriptionManager getSubscriptionManager() {
+			throw new UnsupportedOperationException("Not implemented.");
+		}
+
+		@Override protected FCPInterface getFCPInterface() {
+			throw new UnsupportedOperationException("Not implemented.");
+		}
+
+		/** Throws because the database is read-only. */
+		@Override protected long getNextChangeSequence() {
+			throw new UnsupportedOperationException("Read-only database.");
+		}
+
+		/** Returns null because the database is read-only, and thus nothing is changed. */
+		@Override protected SnapshotStore getSnapshotStore() {
+			return null;
+		}
+
+		/** Returns null because the objects are only loaded once, so caching is not useful. */
+		@Override protected ObjectCache getObjectCache() {
+			return null;
+		}
+	}
+}
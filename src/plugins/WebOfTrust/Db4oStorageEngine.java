@@ -0,0 +1,146 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.List;
+
+import plugins.WebOfTrust.exceptions.DuplicateScoreException;
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+import com.db4o.ObjectSet;
+import com.db4o.ext.ExtObjectContainer;
+import com.db4o.query.Query;
+
+import freenet.support.Logger.LogLevel;
+
+/**
+ * {@link StorageEngine} of the db4o database of a {@link WebOfTrust}.<br>
+ * The WebOfTrust executes its queries for {@link Trust}s and {@link Score}s through this class,
+ * see {@link WebOfTrust#getStorageEngine()}: {@link #getTrust(String)},
+ * {@link #getGivenTrusts(Identity)}, {@link #getReceivedTrusts(Identity)},
+ * {@link #getScore(String)}, {@link #getGivenScores(OwnIdentity)} and
+ * {@link #getScores(Identity)} contain the db4o queries. The other functions are delegated to
+ * the WebOfTrust.<br>
+ * It has the same locking requirements as the WebOfTrust: The caller must be synchronized on
+ * the WebOfTrust when querying and processing the returned lists, and on the
+ * {@link Persistent#transactionLock(ExtObjectContainer)} in addition when changing the
+ * database.<br>
+ * The lookups by ID do not use the {@link ObjectCache}, the WebOfTrust checks it before calling
+ * them.<br>
+ * The objects passed to {@link #storeWithoutCommit(Persistent)} and
+ * {@link #deleteWithoutCommit(Persistent)} must belong to the database of the WebOfTrust.
+ */
+public final class Db4oStorageEngine implements StorageEngine {
+
+	private final WebOfTrust mWebOfTrust;
+
+
+	/**
+	 * The database is obtained by {@link WebOfTrust#getDatabase()} for each query, so the
+	 * engine can be constructed before the database is opened, and follows it if it is reopened.
+	 */
+	public Db4oStorageEngine(WebOfTrust wot) {
+		mWebOfTrust = wot;
+	}
+
+	@Override public Identity getIdentityByID(String id) throws UnknownIdentityException {
+		return mWebOfTrust.getIdentityByID(id);
+	}
+
+	@Override public OwnIdentity getOwnIdentityByID(String id) throws UnknownIdentityException {
+		return mWebOfTrust.getOwnIdentityByID(id);
+	}
+
+	@Override public List<Identity> getAllIdentities() {
+		return mWebOfTrust.getAllIdentities();
+	}
+
+	@Override public List<OwnIdentity> getAllOwnIdentities() {
+		return mWebOfTrust.getAllOwnIdentities();
+	}
+
+	/** @throws DuplicateTrustException If the database contains multiple matching Trusts. */
+	@Override public Trust getTrust(String id) throws NotTrustedException {
+		final Query query = mWebOfTrust.getDatabase().query();
+		query.constrain(Trust.class);
+		query.descend("mID").constrain(id);
+		final ObjectSet<Trust> result
+			= new Persistent.InitializingObjectSet<Trust>(mWebOfTrust, query);
+
+		switch(result.size()) {
+			case 1: return result.next();
+			case 0: throw new NotTrustedException(id);
+			default: throw new DuplicateTrustException(id, result.size());
+		}
+	}
+
+	@Override public ObjectSet<Trust> getGivenTrusts(Identity truster) {
+		final Query query = mWebOfTrust.getDatabase().query();
+		query.constrain(Trust.class);
+		query.descend("mTruster").constrain(truster).identity();
+		return new Persistent.InitializingObjectSet<Trust>(mWebOfTrust, query);
+	}
+
+	@Override public ObjectSet<Trust> getReceivedTrusts(Identity trustee) {
+		final Query query = mWebOfTrust.getDatabase().query();
+		query.constrain(Trust.class);
+		query.descend("mTrustee").constrain(trustee).identity();
+		return new Persistent.InitializingObjectSet<Trust>(mWebOfTrust, query);
+	}
+
+	/** @throws DuplicateScoreException If the database contains multiple matching Scores. */
+	@Override public Score getScore(String id) throws NotInTrustTreeException {
+		final Query query = mWebOfTrust.getDatabase().query();
+		query.constrain(Score.class);
+		query.descend("mID").constrain(id);
+		final ObjectSet<Score> result
+			= new Persistent.InitializingObjectSet<Score>(mWebOfTrust, query);
+
+		switch(result.size()) {
+			case 1: return result.next();
+			case 0: throw new NotInTrustTreeException(id);
+			default: throw new DuplicateScoreException(id, result.size());
+		}
+	}
+
+	@Override public ObjectSet<Score> getGivenScores(OwnIdentity truster) {
+		final Query query = mWebOfTrust.getDatabase().query();
+		query.constrain(Score.class);
+		query.descend("mTruster").constrain(truster).identity();
+		return new Persistent.InitializingObjectSet<Score>(mWebOfTrust, query);
+	}
+
+	@Override public ObjectSet<Score> getScores(Identity trustee) {
+		final Query query = mWebOfTrust.getDatabase().query();
+		query.constrain(Score.class);
+		query.descend("mTrustee").constrain(trustee).identity();
+		return new Persistent.InitializingObjectSet<Score>(mWebOfTrust, query);
+	}
+
+	@Override public void storeWithoutCommit(Persistent object) {
+		checkType(object);
+		object.storeWithoutCommit();
+	}
+
+	@Override public void deleteWithoutCommit(Persistent object) {
+		checkType(object);
+		object.deleteWithoutCommit();
+	}
+
+	private static void checkType(Persistent object) {
+		if(!(object instanceof Identity || object instanceof Trust || object instanceof Score))
+			throw new IllegalArgumentException("Unsupported type: " + object);
+	}
+
+	@Override public void commit() {
+		Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+	}
+
+	@Override public void rollback() {
+		Persistent.checkedRollback(mWebOfTrust.getDatabase(), this, null, LogLevel.NORMAL);
+	}
+}
@@ -0,0 +1,120 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
+import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
+import plugins.WebOfTrust.util.jobs.TickerDelayedBackgroundJob;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.io.NativeThread;
+
+/**
+ * Runs the startup maintenance which is not necessary for the correctness of the database, such
+ * as {@link WebOfTrust#maybeVerifyAndCorrectStoredScores()}, once {@link #DELAY} after the
+ * user interfaces have been started, instead of during {@link WebOfTrust#runPlugin(
+ * freenet.pluginmanager.PluginRespirator)}. This makes WoT usable much earlier after a restart.
+ * <br><br>
+ *
+ * The steps are run one after another, not concurrently: Each of them holds the
+ * {@link WebOfTrust} lock for most of its runtime, so running them on multiple threads would
+ * only make them wait for each other. The duration of each step is recorded in the
+ * {@link StartupTimeline}.
+ */
+final class DeferredStartupMaintenance implements PrioRunnable {
+
+	/** Delay after the user interfaces were started before the first step is run. */
+	public static final long DELAY = MINUTES.toMillis(1);
+
+	private final StartupTimeline mTimeline;
+
+	/** The steps by their name, in the order of {@link #add(String, Runnable)}. */
+	private final LinkedHashMap<String, Runnable> mSteps = new LinkedHashMap<String, Runnable>();
+
+	/** Until {@link #start(Ticker)} is called, a {@link MockDelayedBackgroundJob}. */
+	private volatile DelayedBackgroundJob mJob = MockDelayedBackgroundJob.DEFAULT;
+
+	/** Amount of steps which were completed, protected by synchronized(this). */
+	private int mCompletedSteps = 0;
+
+
+	DeferredStartupMaintenance(StartupTimeline timeline) {
+		mTimeline = timeline;
+	}
+
+	/** Must be called before {@link #start(Ticker)}. */
+	synchronized void add(String name, Runnable step) {
+		if(mJob != MockDelayedBackgroundJob.DEFAULT)
+			throw new IllegalStateException("start() was already called!");
+		if(mSteps.put(name, step) != null)
+			throw new IllegalArgumentException("Duplicate step: " + name);
+	}
+
+	synchronized void start(Ticker ticker) {
+		if(mJob != MockDelayedBackgroundJob.DEFAULT)
+			throw new IllegalStateException("start() was already called!");
+
+		mJob = new TickerDelayedBackgroundJob(this, "WoT DeferredStartupMaintenance", DELAY,
+			ticker);
+		mJob.triggerExecution(DELAY);
+	}
+
+	/** Aborts the remaining steps and waits for the running one to finish. */
+	void stop() {
+		mJob.terminate();
+		try {
+			mJob.waitForTermination(Long.MAX_VALUE);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Runs all steps on the calling thread. A step which throws does not prevent the following
+	 * ones from being run. Stops early if the thread is interrupted, i.e. upon {@link #stop()}. */
+	@Override public void run() {
+		final Map<String, Runnable> steps;
+		synchronized(this) {
+			steps = new LinkedHashMap<String, Runnable>(mSteps);
+		}
+
+		for(Map.Entry<String, Runnable> step : steps.entrySet()) {
+			if(Thread.interrupted()) {
+				Logger.normal(this, "Interrupted, not running remaining steps");
+				return;
+			}
+
+			final long startTime = System.currentTimeMillis();
+			try {
+				step.getValue().run();
+			} catch(RuntimeException e) {
+				Logger.error(this, "Startup maintenance step failed: " + step.getKey(), e);
+			}
+			mTimeline.addBackgroundPhase(step.getKey(), startTime);
+
+			synchronized(this) {
+				++mCompletedSteps;
+			}
+		}
+	}
+
+	@Override public int getPriority() {
+		return NativeThread.LOW_PRIORITY;
+	}
+
+	public synchronized int getStepCount() {
+		return mSteps.size();
+	}
+
+	public synchronized int getCompletedStepCount() {
+		return mCompletedSteps;
+	}
+}
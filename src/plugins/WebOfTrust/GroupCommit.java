@@ -0,0 +1,294 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import plugins.WebOfTrust.Persistent.DurabilityCallback;
+
+import com.db4o.ext.ExtObjectContainer;
+
+import freenet.support.Logger;
+
+/**
+ * Merges the commits of short transactions which happen within a small time window into a
+ * single db4o commit, and thus a single disk sync.<br>
+ * Transactions opt in by committing with
+ * {@link Persistent#checkedCommit(ExtObjectContainer, Object, DurabilityCallback)} instead of
+ * {@link Persistent#checkedCommit(ExtObjectContainer, Object)}. If a GroupCommit is running for
+ * the database, their commit is deferred: Their changes stay in the open db4o transaction, and
+ * the transaction lock is released. The changes are committed by whichever comes first:<br>
+ * - A thread of this class after {@link #getDelay()} milliseconds have passed since the first
+ *   deferred commit.<br>
+ * - The {@link #MAX_DEFERRED_COMMITS}th deferred commit.<br>
+ * - A regular, non-deferred commit of any other transaction.<br><br>
+ *
+ * db4o only has a single transaction per database, so a deferred commit is NOT isolated from
+ * transactions which happen after it: If one of them is rolled back, the changes of the deferred
+ * commits are rolled back as well. Callers get to know the outcome by their
+ * {@link DurabilityCallback}. Therefore, only transactions whose loss is harmless should be
+ * deferred, i.e. ones which are repeated automatically if they are lost, such as the deletion of
+ * a deployed {@link SubscriptionManager.Notification}: The worst case is that it is deployed
+ * again, which the at-least-once delivery of the SubscriptionManager allows anyway. The same
+ * applies to shutdown or a crash within the time window.<br><br>
+ *
+ * Disabled by default, see {@link Configuration#getGroupCommitDelay()}.<br><br>
+ *
+ * Locking: The functions which are called as {@link Persistent.TransactionListener} or by
+ * {@link Persistent} are called while the {@link Persistent#transactionLock(ExtObjectContainer)}
+ * is held, and so are the {@link DurabilityCallback}s. The thread of this class only takes the
+ * transaction lock.
+ */
+public final class GroupCommit implements Persistent.TransactionListener, Runnable {
+
+	/**
+	 * Amount of deferred commits after which the transaction is committed even if
+	 * {@link #getDelay()} has not passed yet. Limits the amount of work which a rollback can
+	 * discard. */
+	public static final int MAX_DEFERRED_COMMITS = 256;
+
+	/** The running GroupCommit of each database. Must be synchronized upon when used. */
+	private static final Map<ExtObjectContainer, GroupCommit> mRunningGroupCommits
+		= new WeakHashMap<ExtObjectContainer, GroupCommit>();
+
+	private final ExtObjectContainer mDB;
+
+	/** @see #getDelay() */
+	private final long mDelay;
+
+	/**
+	 * Callbacks of the commits which were deferred since the last commit, to be notified of its
+	 * outcome. Protected by the transaction lock. */
+	private final ArrayList<DurabilityCallback> mCallbacks = new ArrayList<DurabilityCallback>();
+
+	/** Amount of commits which were deferred since the last commit. Protected by the transaction
+	 *  lock. */
+	private int mDeferredCommits = 0;
+
+	/**
+	 * When {@link #run()} shall commit, or 0 if no commit is pending. Protected by synchronized
+	 * on this GroupCommit, which is also used for waking up the thread. */
+	private long mCommitDeadline = 0;
+
+	/** Protected by synchronized on this GroupCommit. */
+	private Thread mThread = null;
+
+	/* Statistics, protected by the transaction lock. */
+
+	/** Amount of commits which were deferred in total. */
+	private long mTotalDeferredCommits = 0;
+
+	/** Amount of commits which included deferred commits. */
+	private long mMergedCommits = 0;
+
+	/** Amount of deferred commits which were discarded by a rollback. */
+	private long mRolledBackCommits = 0;
+
+
+	/**
+	 * @param delay See {@link #getDelay()}. Must be greater than 0.
+	 * @see #start() */
+	public GroupCommit(ExtObjectContainer db, long delay) {
+		if(delay <= 0)
+			throw new IllegalArgumentException("Invalid delay: " + delay);
+
+		mDB = db;
+		mDelay = delay;
+	}
+
+	/**
+	 * Registers this GroupCommit as the one of the database and starts its thread. From now on,
+	 * commits with {@link Persistent#checkedCommit(ExtObjectContainer, Object, DurabilityCallback)}
+	 * are deferred. */
+	public synchronized void start() {
+		if(mThread != null)
+			throw new IllegalStateException("Already started");
+
+		synchronized(mRunningGroupCommits) {
+			if(mRunningGroupCommits.containsKey(mDB))
+				throw new IllegalStateException("Another GroupCommit is running for the database");
+			mRunningGroupCommits.put(mDB, this);
+		}
+		Persistent.addTransactionListener(mDB, this);
+
+		mThread = new Thread(this, "WoT GroupCommit");
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Stops the thread and commits the deferred commits, if any. Afterwards, commits are not
+	 * deferred anymore.<br>
+	 * Must not be called while holding the transaction lock. */
+	public void stop() {
+		final Thread thread;
+		synchronized(this) {
+			thread = mThread;
+			if(thread == null)
+				return;
+			mThread = null;
+			notifyAll();
+		}
+
+		try {
+			thread.join();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized(Persistent.transactionLock(mDB)) {
+			synchronized(mRunningGroupCommits) {
+				mRunningGroupCommits.remove(mDB);
+			}
+			commitDeferred();
+			Persistent.removeTransactionListener(mDB, this);
+		}
+	}
+
+	/** @return The GroupCommit which was started for the database, or null if there is none. */
+	static GroupCommit get(ExtObjectContainer db) {
+		synchronized(mRunningGroupCommits) {
+			return mRunningGroupCommits.get(db);
+		}
+	}
+
+	/**
+	 * Called by {@link Persistent#checkedCommit(ExtObjectContainer, Object, DurabilityCallback)}
+	 * instead of committing.
+	 *
+	 * @param callback May be null. */
+	void defer(Object loggingObject, DurabilityCallback callback) {
+		if(callback != null)
+			mCallbacks.add(callback);
+		++mTotalDeferredCommits;
+
+		if(++mDeferredCommits >= MAX_DEFERRED_COMMITS) {
+			// Notifies us by onCommit()
+			Persistent.checkedCommit(mDB, loggingObject);
+			return;
+		}
+
+		if(mDeferredCommits == 1) {
+			synchronized(this) {
+				mCommitDeadline = System.currentTimeMillis() + mDelay;
+				notifyAll();
+			}
+		}
+	}
+
+	/** Must be called while holding the transaction lock. */
+	boolean hasDeferredCommits() {
+		return mDeferredCommits != 0;
+	}
+
+	/** Commits the deferred commits, if any. Must be called while holding the transaction lock. */
+	private void commitDeferred() {
+		if(mDeferredCommits == 0)
+			return;
+
+		try {
+			Persistent.checkedCommit(mDB, this);
+		} catch(RuntimeException e) {
+			Persistent.checkedRollback(mDB, this, e);
+		}
+	}
+
+	/** Waits for deferred commits and commits them once {@link #getDelay()} has passed. */
+	@Override public void run() {
+		while(true) {
+			synchronized(this) {
+				try {
+					while(mThread != null && mCommitDeadline == 0)
+						wait();
+
+					long remaining;
+					while(mThread != null
+							&& (remaining = mCommitDeadline - System.currentTimeMillis()) > 0)
+						wait(remaining);
+				} catch(InterruptedException e) {
+					return;
+				}
+
+				// stop() commits the remaining deferred commits.
+				if(mThread == null)
+					return;
+
+				// Must be reset before committing: A commit which is deferred while we are
+				// waiting for the transaction lock is included in our commit, one which is
+				// deferred after it sets a new deadline.
+				mCommitDeadline = 0;
+			}
+
+			synchronized(Persistent.transactionLock(mDB)) {
+				commitDeferred();
+			}
+		}
+	}
+
+	/** Notifies the callbacks of the deferred commits that their changes were committed. */
+	@Override public void onCommit() {
+		if(mDeferredCommits == 0)
+			return;
+
+		++mMergedCommits;
+		notifyCallbacks(true);
+	}
+
+	/** Notifies the callbacks of the deferred commits that their changes were discarded. */
+	@Override public void onRollback() {
+		if(mDeferredCommits == 0)
+			return;
+
+		mRolledBackCommits += mDeferredCommits;
+		Logger.warning(this, "Rollback discarded deferred commits: " + mDeferredCommits);
+		notifyCallbacks(false);
+	}
+
+	private void notifyCallbacks(boolean durable) {
+		final DurabilityCallback[] callbacks
+			= mCallbacks.toArray(new DurabilityCallback[mCallbacks.size()]);
+		mCallbacks.clear();
+		mDeferredCommits = 0;
+
+		for(DurabilityCallback callback : callbacks) {
+			try {
+				if(durable)
+					callback.onDurable();
+				else
+					callback.onRolledBack();
+			} catch(RuntimeException e) {
+				Logger.error(this, "DurabilityCallback failed: " + callback, e);
+			}
+		}
+	}
+
+	/** The maximal amount of milliseconds for which a commit is deferred. */
+	public long getDelay() {
+		return mDelay;
+	}
+
+	/** Amount of commits which were deferred in total. */
+	public long getTotalDeferredCommits() {
+		synchronized(Persistent.transactionLock(mDB)) {
+			return mTotalDeferredCommits;
+		}
+	}
+
+	/** Amount of db4o commits which included deferred commits, i.e. the amount of disk syncs which
+	 *  the deferred commits cost. */
+	public long getGroupCommits() {
+		synchronized(Persistent.transactionLock(mDB)) {
+			return mMergedCommits;
+		}
+	}
+
+	/** Amount of deferred commits whose changes were discarded by a rollback. */
+	public long getRolledBackCommits() {
+		synchronized(Persistent.transactionLock(mDB)) {
+			return mRolledBackCommits;
+		}
+	}
+}
@@ -0,0 +1,232 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import com.db4o.ext.ExtObjectContainer;
+import com.db4o.ext.InvalidIDException;
+import com.db4o.query.Query;
+
+/**
+ * Iterates over all {@link Identity}, {@link Trust} or {@link Score} objects in pages, sorted
+ * ascending by {@link Persistent#getID()}, while the database keeps being modified between the
+ * pages.<br><br>
+ *
+ * Querying each page with "ID greater than the cursor, ordered by ID" makes db4o collect and sort
+ * all remaining objects for every page, which costs O(N^2 / pageSize) for the whole iteration.
+ * Instead, the constructor pins the db4o IDs of all objects in ID order once. Each page then
+ * loads only the next pinned objects, plus the objects which were stored after the pinning,
+ * which are found by their {@link Persistent#getChangeSequence()}. Thus a page costs
+ * O(pageSize + changes since the pinning).<br><br>
+ *
+ * The result is the same as if each page was queried by the cursor:<br>
+ * - Each object is returned at its state at the time its page is read, not at the time of the
+ *   pinning.<br>
+ * - Objects which are deleted before their page is read are not returned.<br>
+ * - Objects which are created with an ID greater than the cursor are returned with their page.
+ *   Objects created with a smaller ID are not.<br>
+ * So the pages are NOT a snapshot of a single point in time. Users which need to know the full
+ * state must additionally track the changes to the objects up to the cursor, as the
+ * {@link SubscriptionManager} does.<br><br>
+ *
+ * <b>Thread safety:</b><br>
+ * The constructor and {@link #nextPage(int)} must be called while synchronized on the
+ * {@link WebOfTrust}: As explained at {@link WebOfTrust#getCurrentChangeSequence()}, this
+ * guarantees that all changes after the pinning get a higher change sequence number.<br>
+ * Instances are not thread-safe themselves.
+ */
+final class IDOrderedPager<T extends Persistent> {
+
+	private final WebOfTrust mWoT;
+
+	private final ExtObjectContainer mDB;
+
+	private final Class<? extends T> mClass;
+
+	/**
+	 * If non-null, only {@link Identity} objects which have this context are returned, see
+	 * {@link #IDOrderedPager(WebOfTrust, String, String)}. */
+	private final String mContext;
+
+	/** The db4o IDs of the pinned objects, sorted by their {@link Persistent#getID()}. */
+	private final long[] mPinnedIDs;
+
+	/** {@link WebOfTrust#getCurrentChangeSequence()} at the time of the pinning. */
+	private final long mPinnedChangeSequence;
+
+	/** Index of the first entry of {@link #mPinnedIDs} which has not been returned yet. */
+	private int mPosition = 0;
+
+	/** The {@link Persistent#getID()} of the last returned object, or the initial cursor. */
+	private String mCursor;
+
+
+	/**
+	 * Pins all objects of the given class whose ID is greater than the given cursor.
+	 *
+	 * @param clazz {@link Identity}, {@link Trust} or {@link Score}, or a subclass of them.
+	 * @param cursor "" to iterate over all objects. */
+	IDOrderedPager(WebOfTrust wot, Class<? extends T> clazz, String cursor) {
+		mWoT = wot;
+		mDB = wot.getDatabase();
+		mClass = clazz;
+		mContext = null;
+		mCursor = cursor;
+		mPinnedChangeSequence = wot.getCurrentChangeSequence();
+
+		final Query query = mDB.query();
+		query.constrain(clazz);
+		query.descend("mID").constrain(cursor).greater();
+		query.descend("mID").orderAscending();
+		// Only queries the IDs, the objects are not activated.
+		mPinnedIDs = query.execute().ext().getIDs();
+	}
+
+	/**
+	 * Pins all {@link Identity} objects which have the given context, see
+	 * {@link Identity#hasContext(String)}, and whose ID is greater than the given cursor.<br>
+	 * They are found by their {@link IdentityContext} objects, so identities without the context
+	 * are not touched.
+	 *
+	 * @param cursor "" to iterate over all identities which have the context. */
+	@SuppressWarnings("unchecked")
+	IDOrderedPager(WebOfTrust wot, String context, String cursor) {
+		mWoT = wot;
+		mDB = wot.getDatabase();
+		// Only allowed for T = Identity, which the constructor cannot express.
+		mClass = (Class<? extends T>)Identity.class;
+		mContext = context.trim();
+		mCursor = cursor;
+		mPinnedChangeSequence = wot.getCurrentChangeSequence();
+
+		final ArrayList<Long> ids = new ArrayList<Long>();
+		for(IdentityContext entry : wot.getIdentityContextsAfterID(mContext, cursor))
+			ids.add(mDB.getID(entry.getIdentity()));
+
+		mPinnedIDs = new long[ids.size()];
+		for(int i = 0; i < mPinnedIDs.length; ++i)
+			mPinnedIDs[i] = ids.get(i);
+	}
+
+	/**
+	 * Returns the next at most pageSize objects and advances the cursor. If less than pageSize
+	 * objects are returned, the iteration is finished.<br>
+	 * The objects are the ones stored in the database, not clones. */
+	List<T> nextPage(int pageSize) {
+		if(pageSize < 1)
+			throw new IllegalArgumentException("Invalid pageSize: " + pageSize);
+
+		// Sorted by ID so the pinned objects and the changed ones are merged in order.
+		final TreeMap<String, T> candidates = new TreeMap<String, T>();
+		// The pinned objects among the candidates and their index in mPinnedIDs, in ID order.
+		final ArrayList<String> pinnedCandidates = new ArrayList<String>(pageSize);
+		final ArrayList<Integer> pinnedPositions = new ArrayList<Integer>(pageSize);
+
+		int position = mPosition;
+		while(position < mPinnedIDs.length && pinnedCandidates.size() < pageSize) {
+			final T object = getPinnedObject(position++);
+			if(object == null)
+				continue;
+
+			candidates.put(object.getID(), object);
+			pinnedCandidates.add(object.getID());
+			pinnedPositions.add(position - 1);
+		}
+
+		// If pinned objects are left, the page cannot extend beyond the last candidate.
+		final String upperBound = position < mPinnedIDs.length && !pinnedCandidates.isEmpty()
+			? pinnedCandidates.get(pinnedCandidates.size() - 1) : null;
+
+		final Query query = mDB.query();
+		query.constrain(mClass);
+		query.descend("mChangeSequence").constrain(mPinnedChangeSequence).greater();
+		query.descend("mID").constrain(mCursor).greater();
+		if(upperBound != null)
+			query.descend("mID").constrain(upperBound).smaller().equal();
+
+		for(T object : new Persistent.InitializingObjectSet<T>(mWoT, query)) {
+			if(mContext == null || ((Identity)object).hasContext(mContext))
+				candidates.put(object.getID(), object);
+		}
+
+		final ArrayList<T> page = new ArrayList<T>(Math.min(pageSize, candidates.size()));
+		for(T object : candidates.values()) {
+			if(page.size() == pageSize)
+				break;
+			page.add(object);
+		}
+
+		if(!page.isEmpty())
+			mCursor = page.get(page.size() - 1).getID();
+
+		// Pinned candidates which did not fit into the page because changed objects were merged
+		// in before them must be returned with the next page.
+		mPosition = position;
+		for(int i = 0; i < pinnedCandidates.size(); ++i) {
+			if(pinnedCandidates.get(i).compareTo(mCursor) > 0) {
+				mPosition = pinnedPositions.get(i);
+				break;
+			}
+		}
+
+		return page;
+	}
+
+	/**
+	 * Returns true if the next call to {@link #nextPage(int)} would return any object.
+	 * Usually only loads a single object. */
+	boolean hasNextPage() {
+		for(int position = mPosition; position < mPinnedIDs.length; ++position) {
+			if(getPinnedObject(position) != null)
+				return true;
+		}
+
+		final Query query = mDB.query();
+		query.constrain(mClass);
+		query.descend("mChangeSequence").constrain(mPinnedChangeSequence).greater();
+		query.descend("mID").constrain(mCursor).greater();
+
+		for(T object : new Persistent.InitializingObjectSet<T>(mWoT, query)) {
+			if(mContext == null || ((Identity)object).hasContext(mContext))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Returns the pinned object at the given index of {@link #mPinnedIDs}, or null if it has been
+	 * deleted or changed since the pinning: Changed objects are returned by the query for the
+	 * changes in {@link #nextPage(int)} instead. This also covers db4o IDs which were reused for a
+	 * different object after a deletion, as that object is newer than the pinning. */
+	private T getPinnedObject(int position) {
+		final Object object;
+		try {
+			object = mDB.getByID(mPinnedIDs[position]);
+		} catch(InvalidIDException e) {
+			return null; // Deleted
+		}
+
+		// Deleted, or the ID was reused for an object of a different class
+		if(!mClass.isInstance(object) || !mDB.isStored(object))
+			return null;
+
+		final T result = mClass.cast(object);
+		result.initializeTransient(mWoT);
+
+		if(result.getChangeSequence() > mPinnedChangeSequence)
+			return null;
+
+		return result;
+	}
+
+	/** The {@link Persistent#getID()} of the last object which was returned by
+	 *  {@link #nextPage(int)}, or the cursor passed to the constructor. */
+	String getCursor() {
+		return mCursor;
+	}
+}
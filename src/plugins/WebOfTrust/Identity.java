@@ -11,6 +11,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.UUID;
@@ -18,6 +19,10 @@ import java.util.UUID;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.util.Base32;
 import plugins.WebOfTrust.util.ReallyCloneable;
+
+import com.db4o.ObjectSet;
+import com.db4o.query.Query;
+
 import freenet.keys.FreenetURI;
 import freenet.keys.USK;
 import freenet.support.Base64;
@@ -112,6 +117,20 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 	/** A list of contexts (eg. client apps) this Identity is used for */
 	protected ArrayList<String> mContexts;	
 
+	/**
+	 * Incremented whenever {@link #mContexts} is modified. Objects which were loaded from the
+	 * database start at 0, same as {@link #mContextIndexVersion}.
+	 */
+	private transient int mContextsVersion = 0;
+	
+	/**
+	 * The {@link #mContextsVersion} which the committed {@link IdentityContext} objects match.
+	 * Only updated once the transaction of {@link #storeContextIndexWithoutCommit()} was
+	 * committed: If it is rolled back, the objects are back at their previous state, and the next
+	 * {@link #storeWithoutCommit()} must make them match the contexts again.
+	 */
+	private transient int mContextIndexVersion = 0;
+
 	/** A list of this Identity's custom properties */
 	protected HashMap<String, String> mProperties;
 	
@@ -125,6 +144,39 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 	 *  Stored as String to reduce db4o maintenance overhead. */
 	private String mVersionID = null;
 
+	/**
+	 * Assigned from the global counter of the {@link WebOfTrust} by {@link #storeWithoutCommit()}.
+	 * Indexed so the FCP message "GetChangesSince" can query the identities which were changed
+	 * after a given value. See {@link WebOfTrust#getCurrentChangeSequence()}. */
+	@IndexedField
+	protected long mChangeSequence = 0;
+
+	/**
+	 * Amounts of {@link Trust} values which this Identity has received, split by whether the
+	 * value is greater than, equal to or smaller than 0.<br>
+	 * Maintained by {@link WebOfTrust#setTrustWithoutCommit(Identity, Identity, byte, String)}
+	 * and the other functions which create or delete Trust objects so the amount can be obtained
+	 * without querying the database. Corrected by
+	 * {@link WebOfTrust#verifyAndCorrectTrustCounts()} if they don't match the database.
+	 * @see #getReceivedTrustCount(int) */
+	protected int mReceivedTrustsPositive = 0;
+
+	/** @see #mReceivedTrustsPositive */
+	protected int mReceivedTrustsZero = 0;
+
+	/** @see #mReceivedTrustsPositive */
+	protected int mReceivedTrustsNegative = 0;
+
+	/** Same as {@link #mReceivedTrustsPositive} for the Trust values given by this Identity.
+	 *  @see #getGivenTrustCount(int) */
+	protected int mGivenTrustsPositive = 0;
+
+	/** @see #mGivenTrustsPositive */
+	protected int mGivenTrustsZero = 0;
+
+	/** @see #mGivenTrustsPositive */
+	protected int mGivenTrustsNegative = 0;
+
 	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
@@ -779,6 +831,7 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 			}
 			
 			mContexts.add(newContext);
+			++mContextsVersion;
 			updated();
 		}
 	}
@@ -795,6 +848,7 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 		checkedActivate(mContexts, 2);
 		
 		mContexts.clear();
+		++mContextsVersion;
 		
 		for (String context : newContexts) {
 			try {
@@ -821,6 +875,7 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 		
 		if (mContexts.contains(context)) {
 			mContexts.remove(context);
+			++mContextsVersion;
 			updated();
 		}
 	}
@@ -1103,6 +1158,8 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 			// Clone it because date is mutable. Set it *after* calling all setters since they would
 			// update it to the current time otherwise.
 	        clone.mLastChangedDate = (Date)mLastChangedDate.clone();
+	        clone.mChangeSequence = mChangeSequence;
+	        clone.copyTrustCountsFrom(this);
 	        
 			return clone;
 			
@@ -1128,6 +1185,8 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 		try {
 			activateFully();
 
+			mChangeSequence = mWebOfTrust.getNextChangeSequence();
+
 			// checkedStore(mID); /* Not stored because db4o considers it as a primitive and automatically stores it. */
 
             assert(mRequestURI == null)
@@ -1143,13 +1202,243 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 			// checkedStore(mDoesPublishTrustList); /* Not stored because db4o considers it as a primitive and automatically stores it. */
 			checkedStore(mProperties);
 			checkedStore(mContexts);
+			
+			// Objects which are new to the database, for example clones or objects copied by
+			// WebOfTrust.cloneDatabase(), have no IdentityContext objects yet.
+			final boolean isNew = !mDB.isStored(this);
+			checkedStore();
+			
+			if(isNew || mContextsVersion != mContextIndexVersion)
+				storeContextIndexWithoutCommit();
+			
+			final SnapshotStore snapshots = mWebOfTrust.getSnapshotStore();
+			if(snapshots != null)
+				snapshots.stageStore(this);
+		}
+		catch(final RuntimeException e) {
+			checkedRollbackAndThrow(e);
+		}
+	}
+
+	/**
+	 * Gets the {@link IdentityContext} objects of this Identity which are stored in the
+	 * database. Outside of transactions which modify this Identity, they match
+	 * {@link #getContexts()}. */
+	final ObjectSet<IdentityContext> getStoredContextIndex() {
+		final Query query = mDB.query();
+		query.constrain(IdentityContext.class);
+		query.descend("mIdentity").constrain(this).identity();
+		return new Persistent.InitializingObjectSet<IdentityContext>(mWebOfTrust, query);
+	}
+
+	/**
+	 * Creates and deletes {@link IdentityContext} objects so they match {@link #getContexts()}.
+	 * <br>Called by {@link #storeWithoutCommit()} if necessary. Not private for
+	 * {@link WebOfTrust#upgradeDatabaseFormatVersion9()}.<br>
+	 * You must synchronize on the WoT and then on the database when using this function! */
+	protected void storeContextIndexWithoutCommit() {
+		final HashSet<String> missing = new HashSet<String>(getContexts());
+		
+		for(IdentityContext entry : getStoredContextIndex()) {
+			if(!missing.remove(entry.getContext()))
+				entry.deleteWithoutCommit();
+		}
+		
+		for(String context : missing)
+			new IdentityContext(mWebOfTrust, this, context).storeWithoutCommit();
+		
+		final int version = mContextsVersion;
+		Persistent.addTransactionCallback(mDB, new TransactionListener() {
+			@Override public void onCommit() {
+				mContextIndexVersion = version;
+			}
+			
+			@Override public void onRollback() {}
+		});
+	}
+
+	/**
+	 * Stores only the counters of {@link #getReceivedTrustCount(int)} and
+	 * {@link #getGivenTrustCount(int)}. Other than {@link #storeWithoutCommit()} this does not
+	 * assign a new {@link #getChangeSequence()}: The counters are derived from the {@link Trust}
+	 * objects, which have their own change sequence numbers.<br>
+	 * You must synchronize on the WoT and then on the database when using this function! */
+	protected void storeTrustCountsWithoutCommit() {
+		try {
+			checkedActivate(1); // int is a db4o primitive type so 1 is enough
 			checkedStore();
+			
+			final SnapshotStore snapshots = mWebOfTrust.getSnapshotStore();
+			if(snapshots != null)
+				snapshots.stageStore(this);
 		}
 		catch(final RuntimeException e) {
 			checkedRollbackAndThrow(e);
 		}
 	}
 
+	/**
+	 * Gets the amount of {@link Trust} values which this Identity has received.<br>
+	 * O(1), it does not query the database.
+	 *
+	 * @param select Same semantics as at {@link WebOfTrust#getReceivedTrusts(Identity, int)}:
+	 *     Greater than zero counts all values >= 0, zero counts values equal to 0, negative counts
+	 *     values < 0. */
+	public final int getReceivedTrustCount(int select) {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		if(select > 0)
+			return mReceivedTrustsPositive + mReceivedTrustsZero;
+		else if(select < 0)
+			return mReceivedTrustsNegative;
+		else
+			return mReceivedTrustsZero;
+	}
+
+	/** Gets the amount of all {@link Trust} values which this Identity has received. O(1). */
+	public final int getReceivedTrustCount() {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		return mReceivedTrustsPositive + mReceivedTrustsZero + mReceivedTrustsNegative;
+	}
+
+	/**
+	 * Gets the amount of {@link Trust} values which this Identity has given.<br>
+	 * O(1), it does not query the database.
+	 *
+	 * @param select Same semantics as at {@link WebOfTrust#getGivenTrusts(Identity, int)}. */
+	public final int getGivenTrustCount(int select) {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		if(select > 0)
+			return mGivenTrustsPositive + mGivenTrustsZero;
+		else if(select < 0)
+			return mGivenTrustsNegative;
+		else
+			return mGivenTrustsZero;
+	}
+
+	/** Gets the amount of all {@link Trust} values which this Identity has given. O(1). */
+	public final int getGivenTrustCount() {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		return mGivenTrustsPositive + mGivenTrustsZero + mGivenTrustsNegative;
+	}
+
+	/**
+	 * Adjusts the counters of {@link #getReceivedTrustCount(int)} for a {@link Trust} received by
+	 * this Identity which changes its value from oldValue to newValue.<br>
+	 * Does not store anything, use {@link #storeTrustCountsWithoutCommit()} afterwards.
+	 *
+	 * @param oldValue Null if the Trust is being created.
+	 * @param newValue Null if the Trust is being deleted.
+	 * @return True if any counter was changed and thus must be stored. */
+	final boolean updateReceivedTrustCount(Byte oldValue, Byte newValue) {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		final int[] counts = { mReceivedTrustsPositive, mReceivedTrustsZero, mReceivedTrustsNegative };
+		if(!updateTrustCount(counts, oldValue, newValue))
+			return false;
+		mReceivedTrustsPositive = counts[0];
+		mReceivedTrustsZero = counts[1];
+		mReceivedTrustsNegative = counts[2];
+		return true;
+	}
+
+	/** Same as {@link #updateReceivedTrustCount(Byte, Byte)} for a {@link Trust} given by this
+	 *  Identity. */
+	final boolean updateGivenTrustCount(Byte oldValue, Byte newValue) {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		final int[] counts = { mGivenTrustsPositive, mGivenTrustsZero, mGivenTrustsNegative };
+		if(!updateTrustCount(counts, oldValue, newValue))
+			return false;
+		mGivenTrustsPositive = counts[0];
+		mGivenTrustsZero = counts[1];
+		mGivenTrustsNegative = counts[2];
+		return true;
+	}
+
+	private static boolean updateTrustCount(int[] counts, Byte oldValue, Byte newValue) {
+		final int oldIndex = oldValue != null ? getTrustCountIndex(oldValue) : -1;
+		final int newIndex = newValue != null ? getTrustCountIndex(newValue) : -1;
+		if(oldIndex == newIndex)
+			return false;
+		if(oldIndex != -1)
+			--counts[oldIndex];
+		if(newIndex != -1)
+			++counts[newIndex];
+		return true;
+	}
+
+	/**
+	 * Index of the counter for the given {@link Trust} value in the arrays of
+	 * {@link #getTrustCounts()}: 0 for positive, 1 for zero, 2 for negative values. Add 3 for
+	 * given instead of received trust values. */
+	static int getTrustCountIndex(byte trustValue) {
+		return trustValue > 0 ? 0 : (trustValue == 0 ? 1 : 2);
+	}
+
+	/**
+	 * Returns all counters, for {@link WebOfTrust#verifyAndCorrectTrustCounts()}.
+	 * @see #getTrustCountIndex(byte) */
+	final int[] getTrustCounts() {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		return new int[] {
+			mReceivedTrustsPositive, mReceivedTrustsZero, mReceivedTrustsNegative,
+			mGivenTrustsPositive, mGivenTrustsZero, mGivenTrustsNegative
+		};
+	}
+
+	/**
+	 * Inverse of {@link #getTrustCounts()}. Does not store anything, use
+	 * {@link #storeTrustCountsWithoutCommit()} afterwards. */
+	final void setTrustCounts(int[] counts) {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		mReceivedTrustsPositive = counts[0];
+		mReceivedTrustsZero = counts[1];
+		mReceivedTrustsNegative = counts[2];
+		mGivenTrustsPositive = counts[3];
+		mGivenTrustsZero = counts[4];
+		mGivenTrustsNegative = counts[5];
+	}
+
+	/** For {@link #clone()}. */
+	final void copyTrustCountsFrom(Identity original) {
+		setTrustCounts(original.getTrustCounts());
+	}
+
+	/**
+	 * Copies the values of the given Identity into this one. The given one must have the same
+	 * {@link #getID()} and class, but may be stored in another database.<br>
+	 * Other than replacing this object with a {@link #clone()} of the given one, this keeps the
+	 * {@link Trust} and {@link Score} objects which reference this one valid. Used by
+	 * {@link OnlineDefragmentation} for replaying changes to a copy of the database.<br>
+	 * Does not store anything, use {@link #storeWithoutCommit()} afterwards. */
+	void copyStateFrom(Identity source) {
+		if(!getID().equals(source.getID()) || getClass() != source.getClass())
+			throw new IllegalArgumentException("Not a version of " + this + ": " + source);
+		
+		activateFully();
+		source.activateFully();
+		
+		mRequestURIString = source.mRequestURIString;
+		mCurrentEditionFetchState = source.mCurrentEditionFetchState;
+		mLatestEditionHint = source.mLatestEditionHint;
+		mNickname = source.mNickname;
+		mDoesPublishTrustList = source.mDoesPublishTrustList;
+		
+		final ArrayList<String> contexts = source.getContexts();
+		if(!contexts.equals(getContexts()))
+			setContexts(contexts);
+		
+		final HashMap<String, String> properties = source.getProperties();
+		if(!properties.equals(getProperties()))
+			setProperties(properties);
+		
+		mVersionID = source.mVersionID;
+		copyTrustCountsFrom(source);
+		setCreationDate(source.getCreationDate());
+		// The getters clone the dates. Set them *after* calling the setters since they would
+		// update them to the current time otherwise.
+		mLastFetchedDate = source.getLastFetchedDate();
+		mLastChangedDate = source.getLastChangeDate();
+	}
+
     /** @see WebOfTrust#upgradeDatabaseFormatVersion5 */
     protected void upgradeDatabaseFormatVersion12345WithoutCommit() {
         checkedActivate(1);
@@ -1203,6 +1492,8 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 		try {
 			activateFully();
 			
+			new Tombstone(mWebOfTrust, this).storeWithoutCommit();
+			
 			// checkedDelete(mID); /* Not stored because db4o considers it as a primitive and automatically stores it. */
 
             assert(mRequestURI == null)
@@ -1219,6 +1510,14 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 			// checkedDelete(mDoesPublishTrustList); /* Not stored because db4o considers it as a primitive and automatically stores it. */
 			checkedDelete(mProperties);
 			checkedDelete(mContexts);
+			
+			for(IdentityContext entry : getStoredContextIndex())
+				entry.deleteWithoutCommit();
+			
+			final SnapshotStore snapshots = mWebOfTrust.getSnapshotStore();
+			if(snapshots != null)
+				snapshots.stageDelete(this);
+			
 			checkedDelete();
 		}
 		catch(RuntimeException e) {
@@ -1300,6 +1599,27 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 		
 		if(mProperties.size() > MAX_PROPERTY_AMOUNT)
 			throw new IllegalStateException("Too many properties: " + mProperties.size());
+		
+		if(mChangeSequence < 0)
+			throw new IllegalStateException("Invalid mChangeSequence: " + mChangeSequence);
+		
+		for(int count : getTrustCounts()) {
+			if(count < 0)
+				throw new IllegalStateException("Invalid trust counts: " + Arrays.toString(getTrustCounts()));
+		}
+		
+		// Clones and deserialized objects are not stored and thus have no IdentityContext objects
+		if(mDB.isStored(this)) {
+			final HashSet<String> indexedContexts = new HashSet<String>();
+			for(IdentityContext entry : getStoredContextIndex()) {
+				if(!indexedContexts.add(entry.getContext()))
+					throw new IllegalStateException("Duplicate IdentityContext: " + entry);
+			}
+			if(!indexedContexts.equals(new HashSet<String>(mContexts))) {
+				throw new IllegalStateException("IdentityContext objects do not match mContexts: "
+					+ indexedContexts);
+			}
+		}
 			
 		// TODO: Verify context/property names/values 
 	}
@@ -1310,6 +1630,79 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 		stream.defaultWriteObject();
 	}
 
+	/** @see PersistentCodec#canEncode(Persistent) */
+	boolean canEncodeCompact() {
+		checkedActivate(1);
+		return mRequestURI == null;
+	}
+
+	/**
+	 * Writes all non-transient member variables for {@link Persistent#serialize()}.<br>
+	 * ATTENTION: Must be kept in sync with {@link #Identity(PersistentCodec.Decoder)}.
+	 * 
+	 * @see PersistentCodec */
+	void writeCompact(PersistentCodec.Encoder out) {
+		activateFully();
+		out.writeString(mID);
+		out.writeString(mRequestURIString);
+		out.writeByte((byte)mCurrentEditionFetchState.ordinal());
+		out.writeLong(mLatestEditionHint);
+		out.writeDate(mLastFetchedDate);
+		out.writeDate(mLastChangedDate);
+		out.writeString(mNickname);
+		out.writeBoolean(mDoesPublishTrustList);
+		out.writeInt(mContexts.size());
+		for(String context : mContexts)
+			out.writeString(context);
+		out.writeInt(mProperties.size());
+		for(Entry<String, String> property : mProperties.entrySet()) {
+			out.writeString(property.getKey());
+			out.writeString(property.getValue());
+		}
+		out.writeString(mVersionID);
+		out.writeLong(mChangeSequence);
+		for(int count : getTrustCounts())
+			out.writeInt(count);
+	}
+
+	/**
+	 * Inverse of {@link #writeCompact(PersistentCodec.Encoder)}. Does not validate the values,
+	 * {@link Persistent#deserialize(WebOfTrustInterface, byte[], byte[])} does that by asserting
+	 * {@link #startupDatabaseIntegrityTestBoolean()}. */
+	Identity(PersistentCodec.Decoder in) throws IOException {
+		mID = in.readString();
+		mRequestURIString = in.readString();
+		byte fetchState = in.readByte();
+		if(fetchState < 0 || fetchState >= FetchState.values().length)
+			throw new IOException("Invalid FetchState: " + fetchState);
+		mCurrentEditionFetchState = FetchState.values()[fetchState];
+		mLatestEditionHint = in.readLong();
+		mLastFetchedDate = in.readDate();
+		mLastChangedDate = in.readDate();
+		mNickname = in.readString();
+		mDoesPublishTrustList = in.readBoolean();
+		int contextCount = in.readInt();
+		if(contextCount < 0)
+			throw new IOException("Invalid context count: " + contextCount);
+		mContexts = new ArrayList<String>(contextCount);
+		for(int i = 0; i < contextCount; ++i)
+			mContexts.add(in.readString());
+		int propertyCount = in.readInt();
+		if(propertyCount < 0)
+			throw new IOException("Invalid property count: " + propertyCount);
+		mProperties = new HashMap<String, String>(propertyCount * 2);
+		for(int i = 0; i < propertyCount; ++i)
+			mProperties.put(in.readString(), in.readString());
+		mVersionID = in.readString();
+		mChangeSequence = in.readLong();
+		mReceivedTrustsPositive = in.readInt();
+		mReceivedTrustsZero = in.readInt();
+		mReceivedTrustsNegative = in.readInt();
+		mGivenTrustsPositive = in.readInt();
+		mGivenTrustsZero = in.readInt();
+		mGivenTrustsNegative = in.readInt();
+	}
+
 	/** {@inheritDoc} */
     @Override public void setVersionID(UUID versionID) { 
         checkedActivate(1);
@@ -1323,4 +1716,10 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
         // FIXME: Validate whether this yields proper results using an event-notifications FCP dump
         return mVersionID != null ? UUID.fromString(mVersionID) : UUID.randomUUID();
     }
+
+    /** {@inheritDoc} */
+    @Override public long getChangeSequence() {
+        checkedActivate(1); // long is a db4o primitive type so 1 is enough
+        return mChangeSequence;
+    }
 }
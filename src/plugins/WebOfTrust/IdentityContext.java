@@ -0,0 +1,109 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.Serializable;
+
+/**
+ * Database index entry which records that an {@link Identity} has a certain context, see
+ * {@link Identity#getContexts()}.<br>
+ * One entry exists for each context of each Identity. They allow
+ * {@link WebOfTrust#getIdentityContexts(String)} to find the identities which have a context
+ * without activating the context lists of all identities.<br><br>
+ *
+ * The entries are created and deleted by {@link Identity#storeWithoutCommit()} and
+ * {@link Identity#deleteWithoutCommit()}. The list of contexts of the Identity is authoritative,
+ * the entries are merely a copy of it.
+ */
+public final class IdentityContext extends Persistent {
+
+	/** @see Serializable */
+	private static transient final long serialVersionUID = 1L;
+
+	/** The {@link Identity} which has the context. Indexed for finding its entries. */
+	@IndexedField
+	private final Identity mIdentity;
+
+	/** Same as {@link Identity#getID()} of {@link #mIdentity}. Indexed for sorting by it. */
+	@IndexedField
+	private final String mIdentityID;
+
+	/** The context, as in {@link Identity#getContexts()}. */
+	@IndexedField
+	private final String mContext;
+
+
+	IdentityContext(WebOfTrustInterface myWebOfTrust, Identity identity, String context) {
+		mIdentity = identity;
+		mIdentityID = identity.getID();
+		mContext = context;
+		initializeTransient(myWebOfTrust);
+	}
+
+	/** Returns "context@identityID", it is unique for every IdentityContext. */
+	@Override
+	public String getID() {
+		return getContext() + "@" + getIdentityID();
+	}
+
+	/** @see #mIdentity */
+	public Identity getIdentity() {
+		checkedActivate(1);
+		mIdentity.initializeTransient(mWebOfTrust);
+		return mIdentity;
+	}
+
+	/** @see #mIdentityID */
+	public String getIdentityID() {
+		checkedActivate(1); // String is a db4o primitive type so 1 is enough
+		return mIdentityID;
+	}
+
+	/** @see #mContext */
+	public String getContext() {
+		checkedActivate(1); // String is a db4o primitive type so 1 is enough
+		return mContext;
+	}
+
+	@Override
+	protected void storeWithoutCommit() {
+		try {
+			checkedActivate(1);
+			throwIfNotStored(mIdentity);
+			checkedStore();
+		}
+		catch(final RuntimeException e) {
+			checkedRollbackAndThrow(e);
+		}
+	}
+
+	@Override
+	public void startupDatabaseIntegrityTest() throws Exception {
+		checkedActivate(1);
+
+		if(mIdentity == null)
+			throw new NullPointerException("mIdentity==null");
+
+		if(mIdentityID == null)
+			throw new NullPointerException("mIdentityID==null");
+
+		if(mContext == null)
+			throw new NullPointerException("mContext==null");
+
+		if(!mIdentityID.equals(getIdentity().getID()))
+			throw new IllegalStateException("mIdentityID does not match: " + getIdentity());
+
+		if(!getIdentity().hasContext(mContext))
+			throw new IllegalStateException("Identity does not have the context: " + getIdentity());
+	}
+
+	@Override
+	public String toString() {
+		checkedActivate(1);
+		return "[" + super.toString()
+		     + "; mIdentityID: " + mIdentityID
+		     + "; mContext: " + mContext
+		     + "]";
+	}
+}
@@ -524,6 +524,7 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 	public void run() {
 	    final Thread thread = Thread.currentThread();
 
+		assert(mWoT.mayAcquireLock(mWoT));
 		synchronized(mWoT) { // Lock needed because we do getIdentityByID() in fetch()
 		synchronized(this) {
 		synchronized(Persistent.transactionLock(mDB)) {
@@ -573,7 +574,16 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 				
 				if(logDEBUG) Logger.debug(this, "Processing finished.");
 				
-				Persistent.checkedCommit(mDB, this);
+				// May be deferred by the GroupCommit. If it is rolled back, the deletion of the
+				// commands is undone, so we must schedule processing them again. Processing a
+				// command twice does no harm.
+				Persistent.checkedCommit(mDB, this, new Persistent.DurabilityCallback() {
+					@Override public void onDurable() {}
+					
+					@Override public void onRolledBack() {
+						scheduleCommandProcessing();
+					}
+				});
 			} catch(RuntimeException e) {
 				Persistent.checkedRollback(mDB, this, e);
 			}
@@ -725,6 +735,7 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 	protected void start() {
         Logger.normal(this, "start()...");
 
+        assert(mWoT.mayAcquireLock(mWoT));
         synchronized (mWoT) {
         synchronized (this) {
 
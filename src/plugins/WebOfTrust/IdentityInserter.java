@@ -207,6 +207,7 @@ public final class IdentityInserter extends TransferThread {
 		Logger.normal(this, "Successful insert of identity: " + state.getURI());
 		
 		try {
+			assert(mWoT.mayAcquireLock(mWoT));
 			synchronized(mWoT) {
 			synchronized(mSubscriptionManager) {
 			synchronized(Persistent.transactionLock(mDB)) {
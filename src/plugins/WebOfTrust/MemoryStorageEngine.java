@@ -0,0 +1,548 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.support.Logger;
+import freenet.support.io.Closer;
+
+/**
+ * {@link StorageEngine} which keeps all objects in hash tables in memory and persists them with a
+ * write-ahead log: Each transaction appends its changes to the log file, followed by a commit
+ * record, and {@link #commit()} syncs the file to disk. When opening the engine, the log is
+ * replayed. Changes without a commit record - i.e. of a transaction which was interrupted by a
+ * crash - are discarded and truncated from the log.<br>
+ * As the log grows with every change, {@link #checkpoint()} replaces it with a log which only
+ * contains the current objects.<br><br>
+ *
+ * Log format: A sequence of records which each start with a type byte:<br>
+ * - {@link #RECORD_STORE}: The length of the object as int, followed by the object as produced by
+ *   {@link Persistent#serialize()}.<br>
+ * - {@link #RECORD_DELETE}: A type byte of the object ({@link #TYPE_IDENTITY} etc.), followed by
+ *   the length of its ID as int and the UTF-8 encoding of the ID.<br>
+ * - {@link #RECORD_COMMIT}: No payload.<br>
+ * ATTENTION: As the objects are encoded by {@link PersistentCodec}, logs cannot be read anymore
+ * once its FORMAT_VERSION was changed. Checkpoints are therefore NOT a suitable long-term storage
+ * format yet.<br><br>
+ *
+ * The stored objects are copies of the ones which are passed to
+ * {@link #storeWithoutCommit(Persistent)}, and the query functions return copies of the stored
+ * ones, so modifying a returned object does not change the stored one. The copies are detached
+ * from any db4o database, and the {@link Identity} objects which a {@link Trust} or
+ * {@link Score} references are copies as well, so they must be compared by their IDs.<br><br>
+ *
+ * Thread safety: All functions are synchronized on this object. There is only one transaction,
+ * the one of all threads, as with db4o.
+ */
+public final class MemoryStorageEngine implements StorageEngine {
+
+	static final byte RECORD_STORE = 1;
+
+	static final byte RECORD_DELETE = 2;
+
+	static final byte RECORD_COMMIT = 3;
+
+	static final byte TYPE_IDENTITY = 1;
+
+	static final byte TYPE_TRUST = 2;
+
+	static final byte TYPE_SCORE = 3;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Used for decoding the objects of the log. */
+	private final WebOfTrustInterface mWebOfTrust;
+
+	private final File mLogFile;
+
+	/** Appends to {@link #mLogFile}. Null after {@link #close()}. */
+	private FileOutputStream mLog;
+
+	/** The records of the current transaction, written to {@link #mLog} by {@link #commit()}. */
+	private final ByteArrayOutputStream mTransactionBuffer = new ByteArrayOutputStream();
+
+	private final DataOutputStream mTransaction = new DataOutputStream(mTransactionBuffer);
+
+	/**
+	 * For each change of the current transaction, the object which was replaced or deleted by it,
+	 * or the type and ID of the object which it added. Used by {@link #rollback()}. */
+	private final ArrayList<Undo> mUndo = new ArrayList<Undo>();
+
+	private final HashMap<String, Identity> mIdentities = new HashMap<String, Identity>();
+
+	private final HashMap<String, Trust> mTrusts = new HashMap<String, Trust>();
+
+	private final HashMap<String, Score> mScores = new HashMap<String, Score>();
+
+	/** Key = ID of the truster, value = its given {@link Trust}s by their ID. */
+	private final HashMap<String, HashMap<String, Trust>> mGivenTrusts
+		= new HashMap<String, HashMap<String, Trust>>();
+
+	/** Key = ID of the trustee, value = its received {@link Trust}s by their ID. */
+	private final HashMap<String, HashMap<String, Trust>> mReceivedTrusts
+		= new HashMap<String, HashMap<String, Trust>>();
+
+	/** Key = ID of the truster, value = the {@link Score}s of its trust tree by their ID. */
+	private final HashMap<String, HashMap<String, Score>> mGivenScores
+		= new HashMap<String, HashMap<String, Score>>();
+
+	/** Key = ID of the trustee, value = its received {@link Score}s by their ID. */
+	private final HashMap<String, HashMap<String, Score>> mReceivedScores
+		= new HashMap<String, HashMap<String, Score>>();
+
+	/** Amount of committed transactions which were replayed from the log when opening it. */
+	private int mReplayedTransactions = 0;
+
+
+	/** Undo information of a single change, see {@link MemoryStorageEngine#mUndo}. */
+	private static final class Undo {
+		final byte mType;
+
+		final String mID;
+
+		/** The object before the change, or null if the change added it. */
+		final Persistent mPrevious;
+
+		Undo(byte type, String id, Persistent previous) {
+			mType = type;
+			mID = id;
+			mPrevious = previous;
+		}
+	}
+
+	/**
+	 * Opens the engine upon the given log file and replays it. The file is created if it does
+	 * not exist.
+	 *
+	 * @param wot Used for decoding the objects, they will return it by
+	 *     {@link Persistent#getWebOfTrust()}. */
+	public MemoryStorageEngine(WebOfTrustInterface wot, File logFile) throws IOException {
+		mWebOfTrust = wot;
+		mLogFile = logFile;
+
+		final long validLength = replay();
+		if(validLength < mLogFile.length()) {
+			Logger.warning(this, "Truncating uncommitted changes from log: " + mLogFile
+				+ "; valid length: " + validLength + "; file length: " + mLogFile.length());
+			truncate(validLength);
+		}
+
+		mLog = new FileOutputStream(mLogFile, true);
+	}
+
+	/** @return The length of the log up to the last commit record. */
+	private long replay() throws IOException {
+		if(!mLogFile.exists())
+			return 0;
+
+		final DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(mLogFile)));
+		final long fileLength = mLogFile.length();
+		long position = 0;
+		long validLength = 0;
+		try {
+			final ArrayList<Object> pending = new ArrayList<Object>();
+			while(true) {
+				final byte record;
+				try {
+					record = in.readByte();
+				} catch(EOFException e) {
+					break;
+				}
+
+				try {
+					++position;
+					switch(record) {
+						case RECORD_STORE:
+							final byte[] data = new byte[readLength(in, fileLength - position)];
+							in.readFully(data);
+							position += 4 + data.length;
+							pending.add(Persistent.deserialize(mWebOfTrust, data));
+							break;
+						case RECORD_DELETE:
+							final byte type = in.readByte();
+							final byte[] id = new byte[readLength(in, fileLength - position - 1)];
+							in.readFully(id);
+							position += 1 + 4 + id.length;
+							pending.add(new Undo(type, new String(id, UTF8), null));
+							break;
+						case RECORD_COMMIT:
+							for(Object change : pending) {
+								if(change instanceof Undo)
+									remove(((Undo)change).mType, ((Undo)change).mID);
+								else
+									put((Persistent)change);
+							}
+							pending.clear();
+							validLength = position;
+							++mReplayedTransactions;
+							break;
+						default:
+							throw new IOException("Invalid record type: " + record);
+					}
+				} catch(EOFException e) {
+					// Torn write of the last transaction.
+					break;
+				} catch(RuntimeException e) {
+					// Persistent.deserialize() wraps decoding errors of a torn record
+					Logger.warning(this, "Invalid record in log at position " + position, e);
+					break;
+				} catch(IOException e) {
+					Logger.warning(this, "Invalid record in log at position " + position, e);
+					break;
+				}
+			}
+		} finally {
+			Closer.close(in);
+		}
+		return validLength;
+	}
+
+	/**
+	 * Reads a length field and validates it against the amount of bytes which remain in the file,
+	 * so a garbled length of a torn record does not cause a huge allocation. */
+	private static int readLength(DataInputStream in, long remaining) throws IOException {
+		final int length = in.readInt();
+		if(length < 0 || length > remaining - 4)
+			throw new EOFException("Invalid length: " + length);
+		return length;
+	}
+
+	private void truncate(long length) throws IOException {
+		final RandomAccessFile file = new RandomAccessFile(mLogFile, "rw");
+		try {
+			file.setLength(length);
+			file.getFD().sync();
+		} finally {
+			Closer.close(file);
+		}
+	}
+
+	private static byte getType(Persistent object) {
+		if(object instanceof Identity)
+			return TYPE_IDENTITY;
+		else if(object instanceof Trust)
+			return TYPE_TRUST;
+		else if(object instanceof Score)
+			return TYPE_SCORE;
+		else
+			throw new IllegalArgumentException("Unsupported type: " + object);
+	}
+
+	private Persistent get(byte type, String id) {
+		switch(type) {
+			case TYPE_IDENTITY: return mIdentities.get(id);
+			case TYPE_TRUST: return mTrusts.get(id);
+			case TYPE_SCORE: return mScores.get(id);
+			default: throw new IllegalArgumentException("Invalid type: " + type);
+		}
+	}
+
+	/** Adds the object to the tables, replacing the one with the same ID. */
+	private void put(Persistent object) {
+		final String id = object.getID();
+		remove(getType(object), id);
+
+		if(object instanceof Identity) {
+			mIdentities.put(id, (Identity)object);
+		} else if(object instanceof Trust) {
+			final Trust trust = (Trust)object;
+			mTrusts.put(id, trust);
+			index(mGivenTrusts, trust.getTruster().getID(), id, trust);
+			index(mReceivedTrusts, trust.getTrustee().getID(), id, trust);
+		} else {
+			final Score score = (Score)object;
+			mScores.put(id, score);
+			index(mGivenScores, score.getTruster().getID(), id, score);
+			index(mReceivedScores, score.getTrustee().getID(), id, score);
+		}
+	}
+
+	/** Removes the object of the given type and ID from the tables, if it exists. */
+	private void remove(byte type, String id) {
+		switch(type) {
+			case TYPE_IDENTITY:
+				mIdentities.remove(id);
+				break;
+			case TYPE_TRUST:
+				final Trust trust = mTrusts.remove(id);
+				if(trust != null) {
+					unindex(mGivenTrusts, trust.getTruster().getID(), id);
+					unindex(mReceivedTrusts, trust.getTrustee().getID(), id);
+				}
+				break;
+			case TYPE_SCORE:
+				final Score score = mScores.remove(id);
+				if(score != null) {
+					unindex(mGivenScores, score.getTruster().getID(), id);
+					unindex(mReceivedScores, score.getTrustee().getID(), id);
+				}
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid type: " + type);
+		}
+	}
+
+	private static <T> void index(HashMap<String, HashMap<String, T>> index, String key,
+			String id, T object) {
+
+		HashMap<String, T> objects = index.get(key);
+		if(objects == null) {
+			objects = new HashMap<String, T>();
+			index.put(key, objects);
+		}
+		objects.put(id, object);
+	}
+
+	private static <T> void unindex(HashMap<String, HashMap<String, T>> index, String key,
+			String id) {
+
+		final HashMap<String, T> objects = index.get(key);
+		if(objects != null) {
+			objects.remove(id);
+			if(objects.isEmpty())
+				index.remove(key);
+		}
+	}
+
+	/** @return A copy of the given stored object, see {@link MemoryStorageEngine}. */
+	@SuppressWarnings("unchecked")
+	private <T extends Persistent> T copy(T object) {
+		return (T)Persistent.deserialize(mWebOfTrust, object.serialize());
+	}
+
+	private <T extends Persistent> List<T> copyAll(Collection<T> objects) {
+		final ArrayList<T> result = new ArrayList<T>(objects.size());
+		for(T object : objects)
+			result.add(copy(object));
+		return result;
+	}
+
+	private <T extends Persistent> List<T> lookup(HashMap<String, HashMap<String, T>> index,
+			String key) {
+
+		final HashMap<String, T> objects = index.get(key);
+		return objects != null ? copyAll(objects.values()) : new ArrayList<T>(0);
+	}
+
+	@Override public synchronized Identity getIdentityByID(String id)
+			throws UnknownIdentityException {
+
+		final Identity identity = mIdentities.get(id);
+		if(identity == null)
+			throw new UnknownIdentityException(id);
+		return copy(identity);
+	}
+
+	@Override public synchronized OwnIdentity getOwnIdentityByID(String id)
+			throws UnknownIdentityException {
+
+		final Identity identity = mIdentities.get(id);
+		if(!(identity instanceof OwnIdentity))
+			throw new UnknownIdentityException(id);
+		return copy((OwnIdentity)identity);
+	}
+
+	@Override public synchronized List<Identity> getAllIdentities() {
+		return copyAll(mIdentities.values());
+	}
+
+	@Override public synchronized List<OwnIdentity> getAllOwnIdentities() {
+		final ArrayList<OwnIdentity> result = new ArrayList<OwnIdentity>();
+		for(Identity identity : mIdentities.values()) {
+			if(identity instanceof OwnIdentity)
+				result.add(copy((OwnIdentity)identity));
+		}
+		return result;
+	}
+
+	@Override public synchronized Trust getTrust(String id) throws NotTrustedException {
+		final Trust trust = mTrusts.get(id);
+		if(trust == null)
+			throw new NotTrustedException(id);
+		return copy(trust);
+	}
+
+	@Override public synchronized List<Trust> getGivenTrusts(Identity truster) {
+		return lookup(mGivenTrusts, truster.getID());
+	}
+
+	@Override public synchronized List<Trust> getReceivedTrusts(Identity trustee) {
+		return lookup(mReceivedTrusts, trustee.getID());
+	}
+
+	@Override public synchronized Score getScore(String id) throws NotInTrustTreeException {
+		final Score score = mScores.get(id);
+		if(score == null)
+			throw new NotInTrustTreeException(id);
+		return copy(score);
+	}
+
+	@Override public synchronized List<Score> getGivenScores(OwnIdentity truster) {
+		return lookup(mGivenScores, truster.getID());
+	}
+
+	@Override public synchronized List<Score> getScores(Identity trustee) {
+		return lookup(mReceivedScores, trustee.getID());
+	}
+
+	/** Stores a copy of the object, see {@link MemoryStorageEngine}. */
+	@Override public synchronized void storeWithoutCommit(Persistent object) {
+		final byte type = getType(object);
+		final byte[] data = object.serialize();
+		final Persistent copy = Persistent.deserialize(mWebOfTrust, data);
+
+		try {
+			mTransaction.writeByte(RECORD_STORE);
+			mTransaction.writeInt(data.length);
+			mTransaction.write(data);
+		} catch(IOException e) {
+			throw new RuntimeException(e); // ByteArrayOutputStream does not throw
+		}
+
+		mUndo.add(new Undo(type, copy.getID(), get(type, copy.getID())));
+		put(copy);
+	}
+
+	@Override public synchronized void deleteWithoutCommit(Persistent object) {
+		final byte type = getType(object);
+		final String id = object.getID();
+		final Persistent previous = get(type, id);
+		if(previous == null)
+			return;
+
+		try {
+			mTransaction.writeByte(RECORD_DELETE);
+			mTransaction.writeByte(type);
+			final byte[] idBytes = id.getBytes(UTF8);
+			mTransaction.writeInt(idBytes.length);
+			mTransaction.write(idBytes);
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		mUndo.add(new Undo(type, id, previous));
+		remove(type, id);
+	}
+
+	/**
+	 * Appends the changes of the transaction and a commit record to the log and syncs it to
+	 * disk. Does nothing if there were no changes.
+	 *
+	 * @throws RuntimeException If writing the log fails. The transaction stays open then, so it
+	 *     can be rolled back. */
+	@Override public synchronized void commit() {
+		if(mUndo.isEmpty())
+			return;
+
+		try {
+			mTransaction.writeByte(RECORD_COMMIT);
+			mTransaction.flush();
+			mTransactionBuffer.writeTo(mLog);
+			mLog.getFD().sync();
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		mTransactionBuffer.reset();
+		mUndo.clear();
+	}
+
+	@Override public synchronized void rollback() {
+		for(int i = mUndo.size() - 1; i >= 0; --i) {
+			final Undo undo = mUndo.get(i);
+			if(undo.mPrevious != null)
+				put(undo.mPrevious);
+			else
+				remove(undo.mType, undo.mID);
+		}
+
+		mTransactionBuffer.reset();
+		mUndo.clear();
+	}
+
+	/**
+	 * Replaces the log with one which only contains the current objects, which makes it shorter
+	 * and faster to replay. The new log is written to a temporary file which is then renamed, so
+	 * a crash during the checkpoint keeps the old log.<br>
+	 * Must not be called with uncommitted changes. */
+	public synchronized void checkpoint() throws IOException {
+		if(!mUndo.isEmpty())
+			throw new IllegalStateException("Transaction is pending");
+
+		final File tempFile = new File(mLogFile.getPath() + ".tmp");
+		final FileOutputStream out = new FileOutputStream(tempFile);
+		try {
+			final DataOutputStream data
+				= new DataOutputStream(new BufferedOutputStream(out));
+			// Identities first: Trusts and Scores contain their own copies of their Identitys, so
+			// the order only matters for readability of the log.
+			writeObjects(data, mIdentities);
+			writeObjects(data, mTrusts);
+			writeObjects(data, mScores);
+			data.writeByte(RECORD_COMMIT);
+			data.flush();
+			out.getFD().sync();
+		} finally {
+			Closer.close(out);
+		}
+
+		Closer.close(mLog);
+		mLog = null;
+		if(!tempFile.renameTo(mLogFile)) {
+			// Windows does not allow renaming to an existing file
+			if(!mLogFile.delete() || !tempFile.renameTo(mLogFile))
+				throw new IOException("Cannot rename " + tempFile + " to " + mLogFile);
+		}
+		mLog = new FileOutputStream(mLogFile, true);
+	}
+
+	private static void writeObjects(DataOutputStream out,
+			Map<String, ? extends Persistent> objects) throws IOException {
+
+		for(Persistent object : objects.values()) {
+			final byte[] data = object.serialize();
+			out.writeByte(RECORD_STORE);
+			out.writeInt(data.length);
+			out.write(data);
+		}
+	}
+
+	/** Rolls back uncommitted changes and closes the log. */
+	public synchronized void close() {
+		rollback();
+		Closer.close(mLog);
+		mLog = null;
+	}
+
+	/** Amount of committed transactions which were replayed from the log when opening it. */
+	public synchronized int getReplayedTransactions() {
+		return mReplayedTransactions;
+	}
+
+	/** @return The size of the log file in bytes. */
+	public synchronized long getLogSize() {
+		return mLogFile.length();
+	}
+}
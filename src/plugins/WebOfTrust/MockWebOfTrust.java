@@ -87,6 +87,24 @@ public final class MockWebOfTrust extends WebOfTrustInterface {
 		throw new UnsupportedOperationException("Not implemented.");
 	}
 
+	/** Returns 0 because nothing is stored, and thus nothing is changed. */
+	@Override
+	protected long getNextChangeSequence() {
+		return 0;
+	}
+
+	/** Returns null because nothing is stored, and thus there is nothing to read. */
+	@Override
+	protected SnapshotStore getSnapshotStore() {
+		return null;
+	}
+
+	/** Returns null because nothing is stored, and thus there is nothing to cache. */
+	@Override
+	protected ObjectCache getObjectCache() {
+		return null;
+	}
+
 	/**
 	 * The main goal of this fake {@link ExtObjectContainer} is to allow {@link Identity}/{@link Trust}/{@link Score} objects to
 	 * work. I've implemented all functions which are necessary for this.
@@ -0,0 +1,254 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.db4o.ext.ExtObjectContainer;
+
+/**
+ * Bounded cache of the objects which were returned by {@link WebOfTrust#getIdentityByID(String)},
+ * {@link WebOfTrust#getTrust(String)} and {@link WebOfTrust#getScore(String)} and their
+ * variants, keyed by their ID: The Score computation calls them millions of times, and each call
+ * would otherwise construct and execute a db4o {@link com.db4o.query.Query}.<br><br>
+ *
+ * Caching the object references is possible because db4o returns the same Java object for a
+ * stored object as long as the database is open, so a cached object is the one which a query
+ * would return. The cache must only be kept free of objects which are not stored anymore:<br>
+ * - {@link Persistent#checkedDelete(Object)}, which all deletions go through, removes the deleted
+ *   object.<br>
+ * - As a {@link Persistent.TransactionListener}, the cache is cleared when a transaction is rolled
+ *   back by {@link Persistent#checkedRollback(ExtObjectContainer, Object, Throwable)}: Objects
+ *   which were stored by the transaction would not exist anymore. Rollbacks are rare, so clearing
+ *   everything is cheaper than tracking what the transaction stored.<br><br>
+ *
+ * Each type of object has its own table with the least recently used entries being evicted
+ * first.<br><br>
+ *
+ * Additionally, the results of {@link WebOfTrust#getIdentityIDsByContext(String)} are cached for
+ * the {@link WebOfTrust#getCurrentChangeSequence()} at which they were computed: The
+ * {@link IdentityContext} objects are only changed along with their {@link Identity}, which gets
+ * a new change sequence number then. A rollback clears them as well since the change sequence
+ * number is not reset by it.<br><br>
+ *
+ * Thread safety: All functions are synchronized on this object. Lookups happen while
+ * synchronized on the {@link WebOfTrust}, but rollbacks may happen without that lock.
+ */
+public final class ObjectCache implements Persistent.TransactionListener {
+
+	/** Maximal amount of cached {@link Identity} objects, including {@link OwnIdentity}s. */
+	public static final int IDENTITY_CAPACITY = 16 * 1024;
+
+	/** Maximal amount of cached {@link Trust} objects. */
+	public static final int TRUST_CAPACITY = 64 * 1024;
+
+	/** Maximal amount of cached {@link Score} objects. */
+	public static final int SCORE_CAPACITY = 64 * 1024;
+
+	/** Maximal amount of contexts whose {@link #mIdentityIDsByContext} are cached. */
+	public static final int CONTEXT_CAPACITY = 16;
+
+	private final ExtObjectContainer mDB;
+
+	private final Table<Identity> mIdentities = new Table<Identity>(IDENTITY_CAPACITY);
+
+	private final Table<Trust> mTrusts = new Table<Trust>(TRUST_CAPACITY);
+
+	private final Table<Score> mScores = new Table<Score>(SCORE_CAPACITY);
+
+	/**
+	 * Results of {@link WebOfTrust#getIdentityIDsByContext(String)}, key = context. Only valid
+	 * while {@link WebOfTrust#getCurrentChangeSequence()} equals
+	 * {@link #mIdentityIDsByContextChangeSequence}. */
+	private final HashMap<String, Set<String>> mIdentityIDsByContext
+		= new HashMap<String, Set<String>>();
+
+	private long mIdentityIDsByContextChangeSequence = -1;
+
+	/** Amount of times the cache was cleared due to a rollback. */
+	private long mClears = 0;
+
+
+	/** Access-ordered map which removes its least recently used entry when it is full. */
+	@SuppressWarnings("serial")
+	private static final class Table<T extends Persistent> extends LinkedHashMap<String, T> {
+		private final int mCapacity;
+
+		long mHits = 0;
+
+		long mMisses = 0;
+
+		Table(int capacity) {
+			super(16, 0.75f, true);
+			mCapacity = capacity;
+		}
+
+		@Override protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+			return size() > mCapacity;
+		}
+
+		/** Same as {@link #get(Object)} but counts hits and misses. */
+		T lookup(String id) {
+			final T result = get(id);
+			if(result != null)
+				++mHits;
+			else
+				++mMisses;
+			return result;
+		}
+
+		CacheStatistics getStatistics() {
+			return new CacheStatistics(size(), mCapacity, mHits, mMisses);
+		}
+	}
+
+	/**
+	 * Creates the cache and registers it as {@link Persistent.TransactionListener} of the
+	 * database of the given {@link WebOfTrust}. */
+	ObjectCache(WebOfTrust wot) {
+		mDB = wot.getDatabase();
+		Persistent.addTransactionListener(mDB, this);
+	}
+
+	/** Removes this cache from the {@link Persistent.TransactionListener}s of the database. */
+	void stop() {
+		Persistent.removeTransactionListener(mDB, this);
+	}
+
+	/**
+	 * @return The cached {@link Identity} or {@link OwnIdentity} with the given ID, or null if it
+	 *     is not cached. */
+	synchronized Identity getIdentity(String id) {
+		return mIdentities.lookup(id);
+	}
+
+	/** @return The cached {@link Trust} with the given {@link Trust#getID()}, or null. */
+	synchronized Trust getTrust(String id) {
+		return mTrusts.lookup(id);
+	}
+
+	/** @return The cached {@link Score} with the given {@link Score#getID()}, or null. */
+	synchronized Score getScore(String id) {
+		return mScores.lookup(id);
+	}
+
+	/** Must only be called with objects which were returned by a database query. */
+	synchronized void put(Identity identity) {
+		mIdentities.put(identity.getID(), identity);
+	}
+
+	/** @see #put(Identity) */
+	synchronized void put(Trust trust) {
+		mTrusts.put(trust.getID(), trust);
+	}
+
+	/** @see #put(Identity) */
+	synchronized void put(Score score) {
+		mScores.put(score.getID(), score);
+	}
+
+	/**
+	 * @return The cached result of {@link WebOfTrust#getIdentityIDsByContext(String)} if it was
+	 *     computed at the given change sequence number, or null. */
+	synchronized Set<String> getIdentityIDsByContext(String context, long changeSequence) {
+		if(changeSequence != mIdentityIDsByContextChangeSequence)
+			return null;
+
+		return mIdentityIDsByContext.get(context);
+	}
+
+	/**
+	 * Must only be called with the result of a database query which was executed at the given
+	 * change sequence number while synchronized on the {@link WebOfTrust}.
+	 * @param identityIDs Must not be modified afterwards. */
+	synchronized void putIdentityIDsByContext(String context, long changeSequence,
+			Set<String> identityIDs) {
+
+		if(changeSequence != mIdentityIDsByContextChangeSequence
+				|| mIdentityIDsByContext.size() >= CONTEXT_CAPACITY) {
+			mIdentityIDsByContext.clear();
+			mIdentityIDsByContextChangeSequence = changeSequence;
+		}
+
+		mIdentityIDsByContext.put(context, identityIDs);
+	}
+
+	/**
+	 * Called by {@link Persistent#checkedDelete(Object)} before the object is deleted. Objects
+	 * of other types than the cached ones are ignored. */
+	synchronized void remove(Object object) {
+		if(object instanceof Identity)
+			mIdentities.remove(((Identity)object).getID());
+		else if(object instanceof Trust)
+			mTrusts.remove(((Trust)object).getID());
+		else if(object instanceof Score)
+			mScores.remove(((Score)object).getID());
+	}
+
+	/** Empties the cache, the hit and miss counters are kept. */
+	synchronized void clear() {
+		mIdentities.clear();
+		mTrusts.clear();
+		mScores.clear();
+		mIdentityIDsByContext.clear();
+		++mClears;
+	}
+
+	@Override public void onCommit() {}
+
+	/** Clears the cache as objects which the transaction stored do not exist anymore. */
+	@Override public void onRollback() {
+		clear();
+	}
+
+	public synchronized CacheStatistics getIdentityStatistics() {
+		return mIdentities.getStatistics();
+	}
+
+	public synchronized CacheStatistics getTrustStatistics() {
+		return mTrusts.getStatistics();
+	}
+
+	public synchronized CacheStatistics getScoreStatistics() {
+		return mScores.getStatistics();
+	}
+
+	/** Amount of times the cache was cleared due to a rollback. */
+	public synchronized long getClearCount() {
+		return mClears;
+	}
+
+	/** Snapshot of the statistics of one of the tables of the cache. */
+	public static final class CacheStatistics {
+		public final int mEntries;
+
+		public final int mCapacity;
+
+		/** Amount of lookups which were answered from the cache. */
+		public final long mHits;
+
+		/** Amount of lookups which required a database query. */
+		public final long mMisses;
+
+		CacheStatistics(int entries, int capacity, long hits, long misses) {
+			mEntries = entries;
+			mCapacity = capacity;
+			mHits = hits;
+			mMisses = misses;
+		}
+
+		/** Returns the percentage of lookups which were answered from the cache. */
+		public double getHitRatePercent() {
+			return mHits + mMisses == 0 ? 0 : 100d * mHits / (mHits + mMisses);
+		}
+
+		@Override public String toString() {
+			return mEntries + " of " + mCapacity + " entries, " + mHits + " hits, " + mMisses
+				+ " misses (" + String.format("%.1f", getHitRatePercent()) + "% hit rate)";
+		}
+	}
+}
@@ -0,0 +1,734 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashSet;
+
+import plugins.WebOfTrust.IdentityFileQueue.IdentityFileQueueStatistics;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
+import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
+import plugins.WebOfTrust.util.jobs.TickerDelayedBackgroundJob;
+
+import com.db4o.defragment.Defragment;
+import com.db4o.defragment.DefragmentConfig;
+import com.db4o.ext.ExtObjectContainer;
+
+import freenet.node.PrioRunnable;
+import freenet.support.CurrentTimeUTC;
+import freenet.support.Logger;
+import freenet.support.SizeUtil;
+import freenet.support.Ticker;
+import freenet.support.io.FileUtil;
+import freenet.support.io.NativeThread;
+
+/**
+ * Defragments the database while WoT is running, every
+ * {@link Configuration#DEFAULT_DEFRAG_INTERVAL}. Other than the defragmentation which
+ * {@link WebOfTrust} does before opening the database at startup, this does not delay startup,
+ * and is not skipped if the database format version changed: The running database has been
+ * upgraded already.<br><br>
+ *
+ * It works in {@link Phase}s:<br>
+ * 1. {@link Phase#Copying}: The database is copied by db4o's hot backup, see
+ *    {@link DatabaseBackup}. WoT keeps using the database meanwhile.<br>
+ * 2. {@link Phase#Defragmenting}: The copy is defragmented by db4o's {@link Defragment}. This
+ *    does not touch the database of WoT.<br>
+ * 3. {@link Phase#Replaying}: The copy is opened as a second {@link WebOfTrust}, and the
+ *    {@link Identity}, {@link Trust} and {@link Score} objects which were stored or deleted since
+ *    the copy was made are written to it. They are found by their change sequence number and by
+ *    the {@link Tombstone}s, see {@link WebOfTrust#getCurrentChangeSequence()}. This is done in
+ *    batches of at most {@link #REPLAY_BATCH_SIZE} changes so the lock of the WebOfTrust is only
+ *    held briefly.<br>
+ * 4. {@link Phase#Staged}: The copy is kept up to date by replaying every
+ *    {@link #CATCH_UP_DELAY}. When WoT is terminated, {@link #prepareSwap()} replays the last
+ *    changes and copies the {@link Configuration} and the
+ *    {@link plugins.WebOfTrust.introduction.IntroductionPuzzle}s while all subsystems are stopped
+ *    already, and
+ *    {@link #swap()} replaces the database file with the copy once it is closed. The database
+ *    cannot be swapped while WoT is running because all subsystems and all loaded objects
+ *    reference its ObjectContainer.<br><br>
+ *
+ * The puzzles are not replayed while WoT is running as they do not have change sequence numbers.
+ * Instead, {@link #prepareSwap()} replaces all of them, so the {@link
+ * plugins.WebOfTrust.introduction.OwnIntroductionPuzzle}s which were created since the copy was
+ * made are not lost: Their solutions could not be matched anymore, and their indexes would be
+ * used again. Like {@link WebOfTrust#cloneDatabase(File, File)}, this does not copy the
+ * IdentityFetcher commands and the subscriptions: They are not persistent across restarts anyway.
+ * The replayed objects get new change sequence numbers in the
+ * copy, so the swapped database gets a new {@link Configuration#getChangeSequenceEpoch()}, and
+ * clients of the FCP message "GetChangesSince" resynchronize once.<br><br>
+ *
+ * If WoT is not terminated properly, the copy is deleted at the next startup. If it crashes
+ * while swapping, the defragmentation at startup restores the database from the backup file
+ * which it uses itself.
+ */
+public final class OnlineDefragmentation implements PrioRunnable {
+
+	public static enum Phase {
+		/** Waiting for {@link Configuration#DEFAULT_DEFRAG_INTERVAL} to expire. */
+		Waiting,
+		Copying,
+		Defragmenting,
+		Replaying,
+		/** The copy is up to date, except for the last {@link #CATCH_UP_DELAY}. */
+		Staged
+	}
+
+	/** Delay after startup before the first defragmentation. */
+	public static final long STARTUP_DELAY = MINUTES.toMillis(30);
+
+	/** @see DatabaseBackup#POSTPONE_DELAY */
+	public static final long POSTPONE_DELAY = MINUTES.toMillis(5);
+
+	/** @see DatabaseBackup#MAX_POSTPONEMENTS */
+	public static final int MAX_POSTPONEMENTS = 12;
+
+	/** Delay between replaying the changes to the copy in {@link Phase#Staged}. */
+	public static final long CATCH_UP_DELAY = MINUTES.toMillis(10);
+
+	/** Delay before trying again after a failure. */
+	public static final long RETRY_DELAY = DAYS.toMillis(1);
+
+	/** Maximal amount of changes which are replayed while holding the lock of the WebOfTrust. */
+	public static final int REPLAY_BATCH_SIZE = 1000;
+
+	private final WebOfTrust mWoT;
+
+	private final File mDatabaseFile;
+
+	/** Until {@link #start(Ticker)} is called, a {@link MockDelayedBackgroundJob}. */
+	private volatile DelayedBackgroundJob mJob = MockDelayedBackgroundJob.DEFAULT;
+
+	/** Amount of times {@link #run()} postponed the defragmentation in a row. Only used by run(). */
+	private int mPostponements = 0;
+
+	/**
+	 * The copy, opened in {@link Phase#Replaying}. Only used by the thread of {@link #run()},
+	 * and by {@link #prepareSwap()} after the job was stopped. */
+	private WebOfTrust mCopy = null;
+
+	/** The database of {@link #mCopy}. */
+	private ExtObjectContainer mCopyDB = null;
+
+	/**
+	 * All changes of the database up to this change sequence number were replayed to
+	 * {@link #mCopy}. Written while holding the lock of the WebOfTrust. */
+	private volatile long mReplayedChangeSequence = 0;
+
+	/**
+	 * IDs of the {@link Identity}s whose trust counters must be copied at the end of the current
+	 * batch, see {@link #replayBatch()}. */
+	private final HashSet<String> mChangedTrustCounts = new HashSet<String>();
+
+	/* Statistics, protected by synchronized(this). */
+
+	private Phase mPhase = Phase.Waiting;
+
+	private Date mPhaseStartDate = CurrentTimeUTC.get();
+
+	private long mReplayedChanges = 0;
+
+	private int mFailures = 0;
+
+
+	/**
+	 * @param databaseFile The file of the database of the given WebOfTrust. The copy is stored in
+	 *     the same directory. A copy of a previous session which was not swapped is deleted. */
+	OnlineDefragmentation(WebOfTrust wot, File databaseFile) {
+		mWoT = wot;
+		mDatabaseFile = databaseFile;
+
+		if(getCopyFile().exists() || getTempFile().exists()) {
+			Logger.warning(this, "Deleting defragmented database of previous session, it was not "
+				+ "swapped: " + getCopyFile());
+			deleteFiles();
+		}
+	}
+
+	/**
+	 * Schedules the defragmentation {@link Configuration#DEFAULT_DEFRAG_INTERVAL} after the last
+	 * one, but not earlier than {@link #STARTUP_DELAY} after startup. */
+	synchronized void start(Ticker ticker) {
+		if(mJob != MockDelayedBackgroundJob.DEFAULT)
+			throw new IllegalStateException("start() was already called!");
+
+		final Date lastDefragDate;
+		synchronized(mWoT) {
+			lastDefragDate = mWoT.getConfig().getLastDefragDate();
+		}
+		final long delay = Math.max(STARTUP_DELAY, lastDefragDate.getTime()
+			+ Configuration.DEFAULT_DEFRAG_INTERVAL - CurrentTimeUTC.getInMillis());
+
+		mJob = new TickerDelayedBackgroundJob(this, "WoT OnlineDefragmentation", CATCH_UP_DELAY,
+			ticker);
+		mJob.triggerExecution(delay);
+		Logger.normal(this, "Next defragmentation in " + MINUTES.convert(delay, MILLISECONDS)
+			+ " minutes");
+	}
+
+	/** Aborts a scheduled execution and waits for a running one to finish. */
+	void stop() {
+		mJob.terminate();
+		try {
+			mJob.waitForTermination(Long.MAX_VALUE);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override public void run() {
+		if(Thread.interrupted())
+			return;
+
+		try {
+			if(getPhase() == Phase.Staged) {
+				replay();
+			} else {
+				final IdentityFileQueueStatistics queue
+					= mWoT.getIdentityFileQueue().getStatistics();
+				if(queue.mQueuedFiles + queue.mProcessingFiles > 0
+						&& mPostponements < MAX_POSTPONEMENTS) {
+					++mPostponements;
+					Logger.normal(this, "Postponing defragmentation while identity files are "
+						+ "being imported");
+					mJob.triggerExecution(POSTPONE_DELAY);
+					return;
+				}
+				mPostponements = 0;
+
+				prepare();
+			}
+		} catch(IOException e) {
+			onFailure(e);
+			mJob.triggerExecution(RETRY_DELAY);
+			return;
+		} catch(RuntimeException e) {
+			onFailure(e);
+			mJob.triggerExecution(RETRY_DELAY);
+			return;
+		}
+
+		mJob.triggerExecution(CATCH_UP_DELAY);
+	}
+
+	/**
+	 * Does the {@link Phase#Copying}, {@link Phase#Defragmenting} and {@link Phase#Replaying} on
+	 * the calling thread. Can be called while the database is in use.<br>
+	 * Leaves the phase at Replaying if the thread is interrupted while replaying. */
+	void prepare() throws IOException {
+		deleteFiles();
+		if(getCopyFile().exists() || getTempFile().exists())
+			throw new IOException("Cannot delete stale files: " + getCopyFile());
+
+		final long startTime = System.currentTimeMillis();
+		final long originalSize = mDatabaseFile.length();
+
+		// Changes after this number may or may not be contained in the copy. Replaying them
+		// again does not matter, the objects are just overwritten with the same values.
+		final long changeSequence;
+		synchronized(mWoT) {
+			changeSequence = mWoT.getCurrentChangeSequence();
+		}
+
+		Logger.normal(this, "Copying database to " + getCopyFile());
+		setPhase(Phase.Copying);
+		mWoT.getDatabase().backup(getCopyFile().getAbsolutePath());
+
+		Logger.normal(this, "Defragmenting copy of database...");
+		setPhase(Phase.Defragmenting);
+		// Same configuration as WebOfTrust.defragmentDatabase(), see there for why.
+		// Defragment moves the copy to the temporary file and writes the result to the copy file.
+		final DefragmentConfig config = new DefragmentConfig(getCopyFile().getAbsolutePath(),
+			getTempFile().getAbsolutePath());
+		config.db4oConfig(mWoT.getNewDatabaseConfiguration());
+		Defragment.defrag(config);
+		FileUtil.secureDelete(getTempFile());
+
+		if(getCopyFile().length() <= 0)
+			throw new IOException("Defragmentation produced an empty file: " + getCopyFile());
+
+		Logger.normal(this, "Replaying changes to defragmented database...");
+		setPhase(Phase.Replaying);
+		mCopy = new WebOfTrust(getCopyFile().getAbsolutePath());
+		mCopyDB = mCopy.getDatabase();
+		mReplayedChangeSequence = changeSequence;
+		replay();
+
+		if(Thread.currentThread().isInterrupted())
+			return;
+
+		setPhase(Phase.Staged);
+		Logger.normal(this, "Defragmented database is staged, took "
+			+ (System.currentTimeMillis() - startTime) + " ms, size: "
+			+ SizeUtil.formatSize(originalSize) + " -> "
+			+ SizeUtil.formatSize(getCopyFile().length()));
+	}
+
+	/**
+	 * Replays the changes to the copy in batches until it is up to date. Returns early if the
+	 * thread is interrupted. */
+	void replay() {
+		boolean upToDate = false;
+		while(!upToDate && !Thread.currentThread().isInterrupted()) {
+			assert(mWoT.mayAcquireLock(mWoT));
+			synchronized(mWoT) {
+				upToDate = replayBatch();
+			}
+		}
+	}
+
+	/**
+	 * Replays the changes with a change sequence number after {@link #mReplayedChangeSequence},
+	 * but at most {@link #REPLAY_BATCH_SIZE} ones, in a single transaction of the copy.<br>
+	 * Only the current version of each object is written. Thus the order of the changes does not
+	 * matter, except for an object which was deleted and stored again. So Tombstones are ignored
+	 * if the object exists in the database.<br><br>
+	 *
+	 * You must synchronize on the WebOfTrust when calling this function.
+	 *
+	 * @return True if the copy is up to date. */
+	private boolean replayBatch() {
+		final long current = mWoT.getCurrentChangeSequence();
+		final long since = mReplayedChangeSequence;
+		if(since >= current)
+			return true;
+
+		// Every number is handed out once, without gaps, so there are at most that many changes.
+		final long until = Math.min(current, since + REPLAY_BATCH_SIZE);
+		long changes = 0;
+
+		synchronized(mCopy) {
+		synchronized(mCopy.getIntroductionPuzzleStore()) {
+		synchronized(Persistent.transactionLock(mCopyDB)) {
+			try {
+				mChangedTrustCounts.clear();
+
+				for(Identity identity : mWoT.getAllIdentitiesChangedSince(since)) {
+					if(identity.getChangeSequence() > until)
+						break;
+					replayStore(identity);
+					++changes;
+				}
+
+				for(Trust trust : mWoT.getAllTrustsChangedSince(since)) {
+					if(trust.getChangeSequence() > until)
+						break;
+					replayStore(trust);
+					++changes;
+				}
+
+				for(Score score : mWoT.getAllScoresChangedSince(since)) {
+					if(score.getChangeSequence() > until)
+						break;
+					replayStore(score);
+					++changes;
+				}
+
+				// Identities last so their Trusts and Scores are deleted already.
+				final String[] types = new String[] {
+					Tombstone.TYPE_TRUST, Tombstone.TYPE_SCORE, Tombstone.TYPE_IDENTITY
+				};
+				for(String type : types) {
+					for(Tombstone tombstone : mWoT.getTombstonesChangedSince(type, since)) {
+						if(tombstone.getChangeSequence() > until)
+							break;
+						replayDeletion(tombstone);
+						++changes;
+					}
+				}
+
+				// The counters are changed without assigning a new change sequence number to the
+				// Identity, see Identity.storeTrustCountsWithoutCommit().
+				for(String id : mChangedTrustCounts) {
+					final Identity copy = getCopyIdentity(id);
+					if(copy == null)
+						continue;
+					try {
+						copy.copyTrustCountsFrom(mWoT.getIdentityByID(id));
+						copy.storeTrustCountsWithoutCommit();
+					} catch(UnknownIdentityException e) {
+						// Deleted in a later batch
+					}
+				}
+
+				Persistent.checkedCommit(mCopyDB, this);
+			} catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(mCopyDB, this, e);
+			} finally {
+				mChangedTrustCounts.clear();
+			}
+		}
+		}
+		}
+
+		mReplayedChangeSequence = until;
+		synchronized(this) {
+			mReplayedChanges += changes;
+		}
+		return until == current;
+	}
+
+	/** @return The {@link Identity} with the given ID in the copy, or null if there is none. */
+	private Identity getCopyIdentity(String id) {
+		try {
+			return mCopy.getIdentityByID(id);
+		} catch(UnknownIdentityException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return The {@link Identity} of the copy which has the same ID and class as the given one
+	 *     of the database. Replays the given one if there is none. */
+	private Identity getOrReplayIdentity(Identity identity) {
+		final Identity copy = getCopyIdentity(identity.getID());
+		if(copy != null && copy.getClass() == identity.getClass())
+			return copy;
+
+		return replayStore(identity);
+	}
+
+	/** @return The version of the given {@link Identity} in the copy. */
+	private Identity replayStore(Identity identity) {
+		final Identity existing = getCopyIdentity(identity.getID());
+		if(existing != null && existing.getClass() == identity.getClass()) {
+			existing.copyStateFrom(identity);
+			existing.storeWithoutCommit();
+			return existing;
+		}
+
+		// It was converted from Identity to OwnIdentity or vice versa. As db4o cannot change the
+		// class of an object, WoT has replaced it, so we must replace it as well.
+		if(existing != null)
+			deleteCopyIdentity(existing);
+
+		final Identity copy = identity.clone();
+		copy.initializeTransient(mCopy);
+		copy.copyStateFrom(identity); // clone() does not copy all dates
+		copy.storeWithoutCommit();
+
+		if(existing != null) {
+			// Deleting the replaced object has deleted its Trusts and Scores.
+			for(Trust trust : mWoT.getGivenTrusts(identity))
+				replayStore(trust);
+			for(Trust trust : mWoT.getReceivedTrusts(identity))
+				replayStore(trust);
+			for(Score score : mWoT.getScores(identity))
+				replayStore(score);
+			if(identity instanceof OwnIdentity) {
+				for(Score score : mWoT.getGivenScores((OwnIdentity)identity))
+					replayStore(score);
+			}
+		}
+
+		return copy;
+	}
+
+	private void replayStore(Trust trust) {
+		final Identity truster = getOrReplayIdentity(trust.getTruster());
+		final Identity trustee = getOrReplayIdentity(trust.getTrustee());
+
+		Trust copy;
+		try {
+			copy = mCopy.getTrust(trust.getID());
+		} catch(NotTrustedException e) {
+			try {
+				copy = new Trust(mCopy, truster, trustee, trust.getValue(), trust.getComment());
+			} catch(InvalidParameterException e2) {
+				throw new RuntimeException(e2); // The Trust of the database is valid.
+			}
+		}
+
+		copy.copyStateFrom(trust);
+		copy.storeWithoutCommit();
+		mChangedTrustCounts.add(truster.getID());
+		mChangedTrustCounts.add(trustee.getID());
+	}
+
+	private void replayStore(Score score) {
+		final OwnIdentity truster = (OwnIdentity)getOrReplayIdentity(score.getTruster());
+		final Identity trustee = getOrReplayIdentity(score.getTrustee());
+
+		Score copy;
+		try {
+			copy = mCopy.getScore(score.getID());
+		} catch(NotInTrustTreeException e) {
+			copy = new Score(mCopy, truster, trustee, score.getScore(), score.getRank(),
+				score.getCapacity());
+		}
+
+		copy.copyStateFrom(score);
+		copy.storeWithoutCommit();
+	}
+
+	private void replayDeletion(Tombstone tombstone) {
+		final String type = tombstone.getType();
+		final String id = tombstone.getObjectID();
+
+		if(Tombstone.TYPE_TRUST.equals(type)) {
+			try {
+				mWoT.getTrust(id);
+				return; // Stored again after the deletion
+			} catch(NotTrustedException e) {}
+
+			try {
+				final Trust copy = mCopy.getTrust(id);
+				mChangedTrustCounts.add(copy.getTruster().getID());
+				mChangedTrustCounts.add(copy.getTrustee().getID());
+				copy.deleteWithoutCommit();
+			} catch(NotTrustedException e) {
+				// Stored and deleted after the copy was made
+			}
+		} else if(Tombstone.TYPE_SCORE.equals(type)) {
+			try {
+				mWoT.getScore(id);
+				return;
+			} catch(NotInTrustTreeException e) {}
+
+			try {
+				mCopy.getScore(id).deleteWithoutCommit();
+			} catch(NotInTrustTreeException e) {}
+		} else {
+			try {
+				mWoT.getIdentityByID(id);
+				return;
+			} catch(UnknownIdentityException e) {}
+
+			final Identity copy = getCopyIdentity(id);
+			if(copy != null)
+				deleteCopyIdentity(copy);
+		}
+	}
+
+	/**
+	 * Deletes the given {@link Identity} of the copy and the objects which reference it.<br>
+	 * Other than {@link WebOfTrust#deleteWithoutCommit(Identity)} this does not recompute the
+	 * Scores: The ones of the database are replayed instead. */
+	private void deleteCopyIdentity(Identity identity) {
+		for(Score score : mCopy.getScores(identity))
+			score.deleteWithoutCommit();
+
+		if(identity instanceof OwnIdentity) {
+			for(Score score : mCopy.getGivenScores((OwnIdentity)identity))
+				score.deleteWithoutCommit();
+		}
+
+		for(Trust trust : mCopy.getReceivedTrusts(identity)) {
+			mChangedTrustCounts.add(trust.getTruster().getID());
+			trust.deleteWithoutCommit();
+		}
+
+		for(Trust trust : mCopy.getGivenTrusts(identity)) {
+			mChangedTrustCounts.add(trust.getTrustee().getID());
+			trust.deleteWithoutCommit();
+		}
+
+		mCopy.getIntroductionPuzzleStore().onIdentityDeletion(identity);
+		identity.deleteWithoutCommit();
+	}
+
+	/**
+	 * Replays the last changes and copies the {@link Configuration} and the
+	 * {@link plugins.WebOfTrust.introduction.IntroductionPuzzle}s to the copy, then closes it.
+	 * <br>Must be called by {@link WebOfTrust#terminate()} after everything which can change the
+	 * database was stopped, including this job, and before the database is closed.
+	 *
+	 * @return True if {@link #swap()} shall be called after the database was closed. False if
+	 *     the copy is not ready yet or failed, it is deleted then. */
+	boolean prepareSwap() {
+		final Phase phase = getPhase();
+		if(mCopy == null || (phase != Phase.Replaying && phase != Phase.Staged)) {
+			discard();
+			return false;
+		}
+
+		try {
+			Logger.normal(this, "Replaying last changes to defragmented database...");
+			final long startTime = System.currentTimeMillis();
+			replay();
+			if(Thread.currentThread().isInterrupted())
+				throw new RuntimeException("Interrupted while replaying");
+
+			final Configuration config = mCopy.getConfig();
+			synchronized(mWoT) {
+			synchronized(mWoT.getIntroductionPuzzleStore()) {
+			synchronized(mCopy) {
+			synchronized(mCopy.getIntroductionPuzzleStore()) {
+				synchronized(Persistent.transactionLock(mCopyDB)) {
+					try {
+						mCopy.getIntroductionPuzzleStore().replaceAllPuzzlesWithoutCommit(
+							mWoT.getIntroductionPuzzleStore());
+						Persistent.checkedCommit(mCopyDB, this);
+					} catch(RuntimeException e) {
+						Persistent.checkedRollbackAndThrow(mCopyDB, this, e);
+					}
+				}
+				
+				config.copyFrom(mWoT.getConfig());
+				config.updateLastDefragDate();
+				// The replayed objects have other change sequence numbers than in the database.
+				config.renewChangeSequenceEpoch();
+				config.storeAndCommit();
+
+				if(mCopy.getAllIdentities().size() != mWoT.getAllIdentities().size()
+						|| mCopy.getAllTrusts().size() != mWoT.getAllTrusts().size()
+						|| mCopy.getAllScores().size() != mWoT.getAllScores().size())
+					throw new RuntimeException("Defragmented database does not match database!");
+			}
+			}
+			}
+			}
+
+			mCopy.terminate();
+			if(!mCopy.isTerminated())
+				throw new RuntimeException("Terminating defragmented database failed!");
+			mCopy = null;
+			mCopyDB = null;
+
+			Logger.normal(this, "Replaying last changes to defragmented database finished, took "
+				+ (System.currentTimeMillis() - startTime) + " ms");
+			return true;
+		} catch(RuntimeException e) {
+			onFailure(e);
+			return false;
+		}
+	}
+
+	/**
+	 * Replaces the database file with the defragmented copy. Must be called after
+	 * {@link #prepareSwap()} returned true and the database was closed.<br>
+	 * The database is renamed to the backup file of {@link WebOfTrust#defragmentDatabase(File)}
+	 * first: If the copy cannot be renamed, it restores the database at the next startup. */
+	void swap() throws IOException {
+		final File backupFile = new File(mDatabaseFile.getAbsolutePath() + ".backup");
+		if(backupFile.exists())
+			throw new IOException("Not swapping database, backup file exists: " + backupFile);
+
+		if(!mDatabaseFile.renameTo(backupFile)) {
+			discard();
+			throw new IOException("Cannot rename " + mDatabaseFile + " to " + backupFile);
+		}
+
+		if(!getCopyFile().renameTo(mDatabaseFile)) {
+			if(!backupFile.renameTo(mDatabaseFile)) {
+				throw new IOException("Cannot rename defragmented database and cannot rename "
+					+ backupFile + " back, it will be restored at the next startup");
+			}
+			discard();
+			throw new IOException("Cannot rename " + getCopyFile() + " to " + mDatabaseFile);
+		}
+
+		final long oldSize = backupFile.length();
+		final long newSize = mDatabaseFile.length();
+		FileUtil.secureDelete(backupFile);
+		Logger.normal(this, "Swapped database with defragmented one: "
+			+ SizeUtil.formatSize(oldSize) + " -> " + SizeUtil.formatSize(newSize));
+	}
+
+	private void onFailure(Exception e) {
+		Logger.error(this, "Online defragmentation failed", e);
+		discard();
+		synchronized(this) {
+			++mFailures;
+		}
+	}
+
+	/** Closes and deletes the copy, and goes back to {@link Phase#Waiting}. */
+	void discard() {
+		if(mCopy != null) {
+			try {
+				mCopy.terminate();
+			} catch(RuntimeException e) {
+				Logger.error(this, "Terminating defragmented database failed", e);
+			}
+			mCopy = null;
+			mCopyDB = null;
+		}
+		deleteFiles();
+		setPhase(Phase.Waiting);
+	}
+
+	private void deleteFiles() {
+		try {
+			FileUtil.secureDelete(getCopyFile());
+			FileUtil.secureDelete(getTempFile());
+		} catch(IOException e) {
+			Logger.error(this, "Deleting defragmented database failed", e);
+		}
+	}
+
+	/** The database file name with ".defragmented" appended. */
+	File getCopyFile() {
+		return new File(mDatabaseFile.getPath() + ".defragmented");
+	}
+
+	/** Used by {@link Defragment}, see {@link #prepare()}. */
+	private File getTempFile() {
+		return new File(getCopyFile().getPath() + ".tmp");
+	}
+
+	/** For unit tests, null if the copy is not opened. */
+	WebOfTrust getCopy() {
+		return mCopy;
+	}
+
+	@Override public int getPriority() {
+		return NativeThread.MIN_PRIORITY;
+	}
+
+	private synchronized void setPhase(Phase phase) {
+		mPhase = phase;
+		mPhaseStartDate = CurrentTimeUTC.get();
+	}
+
+	public synchronized Phase getPhase() {
+		return mPhase;
+	}
+
+	/** Date when the current {@link #getPhase()} started. */
+	public synchronized Date getPhaseStartDate() {
+		return (Date)mPhaseStartDate.clone();
+	}
+
+	/** Size of the copy in bytes. Grows while copying and defragmenting. */
+	public long getCopySize() {
+		return getCopyFile().length();
+	}
+
+	/** Size of the database in bytes. */
+	public long getDatabaseSize() {
+		return mDatabaseFile.length();
+	}
+
+	/**
+	 * Upper bound of the changes which yet have to be replayed to the copy, 0 if it has not been
+	 * opened yet. Changes which were superseded by later ones are counted as well. */
+	public long getPendingChanges() {
+		final Phase phase = getPhase();
+		if(phase != Phase.Replaying && phase != Phase.Staged)
+			return 0;
+		return Math.max(0, mWoT.getCurrentChangeSequence() - mReplayedChangeSequence);
+	}
+
+	/** Amount of changes which were replayed to the copy since startup. */
+	public synchronized long getReplayedChanges() {
+		return mReplayedChanges;
+	}
+
+	/** Amount of failed defragmentations since startup. */
+	public synchronized int getFailureCount() {
+		return mFailures;
+	}
+}
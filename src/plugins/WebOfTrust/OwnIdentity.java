@@ -346,6 +346,8 @@ public final class OwnIdentity extends Identity implements Cloneable, Serializab
             // Clone it because date is mutable. Set it *after* calling all setters since they would
             // update it to the current time otherwise.
             clone.mLastChangedDate = (Date)mLastChangedDate.clone();
+            clone.mChangeSequence = mChangeSequence;
+            clone.copyTrustCountsFrom(this);
             
 			return clone;
 		} catch(InvalidParameterException e) {
@@ -357,6 +359,16 @@ public final class OwnIdentity extends Identity implements Cloneable, Serializab
 		}
 	}
 	
+	/** {@inheritDoc} */
+	@Override
+	void copyStateFrom(Identity source) {
+		super.copyStateFrom(source);
+		
+		final OwnIdentity ownSource = (OwnIdentity)source;
+		mInsertURIString = ownSource.mInsertURIString; // Contains the edition
+		mLastInsertDate = ownSource.getLastInsertDate();
+	}
+	
 	/**
 	 * Stores this identity in the database without committing the transaction
 	 * You must synchronize on the WoT, on the identity and then on the database when using this function!
@@ -475,4 +487,23 @@ public final class OwnIdentity extends Identity implements Cloneable, Serializab
 		stream.defaultWriteObject();
 	}
 
+	/** @see PersistentCodec#canEncode(Persistent) */
+	@Override boolean canEncodeCompact() {
+		return super.canEncodeCompact() && mInsertURI == null;
+	}
+
+	/** ATTENTION: Must be kept in sync with {@link #OwnIdentity(PersistentCodec.Decoder)}. */
+	@Override void writeCompact(PersistentCodec.Encoder out) {
+		super.writeCompact(out);
+		out.writeString(mInsertURIString);
+		out.writeDate(mLastInsertDate);
+	}
+
+	/** Inverse of {@link #writeCompact(PersistentCodec.Encoder)}. */
+	OwnIdentity(PersistentCodec.Decoder in) throws IOException {
+		super(in);
+		mInsertURIString = in.readString();
+		mLastInsertDate = in.readDate();
+	}
+
 }
@@ -15,11 +15,16 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import com.db4o.ObjectSet;
 import com.db4o.ext.ExtObjectContainer;
@@ -81,6 +86,22 @@ public abstract class Persistent implements Serializable {
 	 */
 	private static transient final Object mTransactionLock = new Object();
 	
+	/**
+	 * The {@link TransactionListener}s of each database, see
+	 * {@link #addTransactionListener(ExtObjectContainer, TransactionListener)}.<br>
+	 * Weak keys so closed databases do not leak. Must be synchronized upon when used.
+	 */
+	private static transient final Map<ExtObjectContainer, List<TransactionListener>>
+		mTransactionListeners = new WeakHashMap<ExtObjectContainer, List<TransactionListener>>();
+	
+	/**
+	 * The listeners which are only notified about the outcome of the current transaction of each
+	 * database, see {@link #addTransactionCallback(ExtObjectContainer, TransactionListener)}.<br>
+	 * Weak keys as for {@link #mTransactionListeners}. Must be synchronized upon when used.
+	 */
+	private static transient final Map<ExtObjectContainer, List<TransactionListener>>
+		mTransactionCallbacks = new WeakHashMap<ExtObjectContainer, List<TransactionListener>>();
+	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
 	private static transient volatile boolean logDEBUG = false;
@@ -237,6 +258,112 @@ public abstract class Persistent implements Serializable {
 		return mTransactionLock;
 	}
 
+	/**
+	 * Is notified by {@link #checkedCommit(ExtObjectContainer, Object)} and
+	 * {@link #checkedRollback(ExtObjectContainer, Object, Throwable, LogLevel)} about the outcome
+	 * of the transaction.<br>
+	 * This allows state which is kept in memory instead of the database to follow the
+	 * transactions of the database: It can be staged while the transaction is open and be
+	 * published or discarded once the outcome is known.<br><br>
+	 * 
+	 * The functions are called while the {@link #transactionLock(ExtObjectContainer)} is held.
+	 * Thus, they must be fast and must not take any locks which come before the transaction
+	 * lock in the lock order.
+	 */
+	public interface TransactionListener {
+		/** Called after the transaction was committed. */
+		void onCommit();
+		
+		/** Called after the transaction was rolled back. */
+		void onRollback();
+	}
+	
+	/**
+	 * Is notified about the outcome of a commit which was deferred by the {@link GroupCommit}, see
+	 * {@link #checkedCommit(ExtObjectContainer, Object, DurabilityCallback)}.<br>
+	 * The functions are called while the {@link #transactionLock(ExtObjectContainer)} is held,
+	 * with the same constraints as the ones of {@link TransactionListener}.
+	 */
+	public interface DurabilityCallback {
+		/** Called after the changes of the transaction were committed to disk. */
+		void onDurable();
+		
+		/** Called after the changes of the transaction were discarded by a rollback. */
+		void onRolledBack();
+	}
+	
+	/**
+	 * Adds a {@link TransactionListener} to the given database. The listeners are notified in
+	 * the order in which they were added.
+	 */
+	public static final void addTransactionListener(final ExtObjectContainer db,
+			final TransactionListener listener) {
+		
+		synchronized(mTransactionListeners) {
+			List<TransactionListener> listeners = mTransactionListeners.get(db);
+			if(listeners == null) {
+				listeners = new CopyOnWriteArrayList<TransactionListener>();
+				mTransactionListeners.put(db, listeners);
+			}
+			listeners.add(listener);
+		}
+	}
+	
+	/** Removes a listener which was added by
+	 *  {@link #addTransactionListener(ExtObjectContainer, TransactionListener)}. */
+	public static final void removeTransactionListener(final ExtObjectContainer db,
+			final TransactionListener listener) {
+		
+		synchronized(mTransactionListeners) {
+			final List<TransactionListener> listeners = mTransactionListeners.get(db);
+			if(listeners != null)
+				listeners.remove(listener);
+		}
+	}
+	
+	private static final List<TransactionListener> getTransactionListeners(
+			final ExtObjectContainer db) {
+		
+		synchronized(mTransactionListeners) {
+			final List<TransactionListener> listeners = mTransactionListeners.get(db);
+			return listeners != null ? listeners : Collections.<TransactionListener>emptyList();
+		}
+	}
+	
+	/**
+	 * Adds a {@link TransactionListener} which is only notified about the outcome of the current
+	 * transaction of the given database, after the permanent listeners of
+	 * {@link #addTransactionListener(ExtObjectContainer, TransactionListener)}. It is removed
+	 * afterwards.<br>
+	 * This allows objects to keep transient state about what they have stored, which must not
+	 * survive a rollback.<br>
+	 * Must be called while the transaction is open, i.e. while holding the
+	 * {@link #transactionLock(ExtObjectContainer)}.
+	 */
+	public static final void addTransactionCallback(final ExtObjectContainer db,
+			final TransactionListener callback) {
+		
+		synchronized(mTransactionCallbacks) {
+			List<TransactionListener> callbacks = mTransactionCallbacks.get(db);
+			if(callbacks == null) {
+				callbacks = new ArrayList<TransactionListener>();
+				mTransactionCallbacks.put(db, callbacks);
+			}
+			callbacks.add(callback);
+		}
+	}
+	
+	/** Removes and returns the listeners which were added by
+	 *  {@link #addTransactionCallback(ExtObjectContainer, TransactionListener)}. */
+	private static final List<TransactionListener> takeTransactionCallbacks(
+			final ExtObjectContainer db) {
+		
+		synchronized(mTransactionCallbacks) {
+			final List<TransactionListener> callbacks = mTransactionCallbacks.remove(db);
+			return callbacks != null ? callbacks : Collections.<TransactionListener>emptyList();
+		}
+	}
+
 	/**
 	 * Only to be used by the extending classes, not to be called from the outside.
 	 * 
@@ -309,10 +436,16 @@ public abstract class Persistent implements Serializable {
 	 * Checks whether an object is stored in the database and deletes it if it is.
 	 * If it was not found in the database, an error is logged.<br /><br />
 	 * 
-	 * This is to be used as an integrity check in deleteWithoutCommit() implementations. 
+	 * This is to be used as an integrity check in deleteWithoutCommit() implementations.<br />
+	 * All deletions must use it as it also removes the object from the {@link ObjectCache}.
 	 */
 	protected final void checkedDelete(final Object object) {
 		testDatabaseIntegrity();
+		
+		final ObjectCache cache = mWebOfTrust.getObjectCache();
+		if(cache != null)
+			cache.remove(object);
+		
 		if(mDB.isStored(object))
 			mDB.delete(object);
 		else {
@@ -382,6 +515,12 @@ public abstract class Persistent implements Serializable {
 		System.gc(); 
 		Logger.logStatic(loggingObject, "ROLLED BACK!", error, logLevel);
 		testDatabaseIntegrity(null, db);
+		
+		for(TransactionListener listener : getTransactionListeners(db))
+			listener.onRollback();
+		
+		for(TransactionListener callback : takeTransactionCallbacks(db))
+			callback.onRollback();
 	}
 	
 	/**
@@ -501,6 +640,51 @@ public abstract class Persistent implements Serializable {
 		db.commit();
 		if(logDEBUG) Logger.debug(loggingObject, "COMMITED.");
 		testDatabaseIntegrity(null, db);
+		
+		for(TransactionListener listener : getTransactionListeners(db))
+			listener.onCommit();
+		
+		for(TransactionListener callback : takeTransactionCallbacks(db))
+			callback.onCommit();
+	}
+	
+	/**
+	 * Same as {@link #checkedCommit(ExtObjectContainer, Object)}, but allows the commit to be
+	 * deferred and merged with the commits of other transactions if a {@link GroupCommit} is
+	 * running for the database. The changes then stay in the open transaction, and the callback is
+	 * notified once they were committed - or discarded by a rollback of a later transaction.<br>
+	 * Must only be used for transactions whose loss is harmless, see {@link GroupCommit}.<br><br>
+	 * 
+	 * If no GroupCommit is running, commits immediately and calls
+	 * {@link DurabilityCallback#onDurable()} before returning.
+	 * 
+	 * @param callback May be null if the caller does not need to know the outcome.
+	 */
+	public static final void checkedCommit(final ExtObjectContainer db, final Object loggingObject,
+			final DurabilityCallback callback) {
+		
+		final GroupCommit groupCommit = GroupCommit.get(db);
+		if(groupCommit != null) {
+			groupCommit.defer(loggingObject, callback);
+			return;
+		}
+		
+		checkedCommit(db, loggingObject);
+		if(callback != null)
+			callback.onDurable();
+	}
+	
+	/**
+	 * Commits the changes of commits which were deferred by
+	 * {@link #checkedCommit(ExtObjectContainer, Object, DurabilityCallback)}, if there are any.<br>
+	 * For transactions which must be rolled back but which did not change anything yet, to be
+	 * called before the rollback so it does not discard the deferred changes.
+	 * The call to this function must be embedded in a transaction.
+	 */
+	public static final void commitDeferred(final ExtObjectContainer db, final Object loggingObject) {
+		final GroupCommit groupCommit = GroupCommit.get(db);
+		if(groupCommit != null && groupCommit.hasDeferredCommits())
+			checkedCommit(db, loggingObject);
 	}
 	
 	/**
@@ -546,6 +730,18 @@ public abstract class Persistent implements Serializable {
 	 */
 	public abstract String getID();
 	
+	/**
+	 * Returns the global change sequence number which this object was assigned when it was stored
+	 * the last time, see {@link WebOfTrust#getCurrentChangeSequence()}.<br>
+	 * Only {@link Identity}, {@link Trust}, {@link Score} and {@link Tombstone} are numbered, this
+	 * default implementation returns 0 for all other classes.<br>
+	 * Objects which have not been stored since the database was upgraded to
+	 * {@link WebOfTrust#DATABASE_FORMAT_VERSION} 8 also return 0.
+	 */
+	public long getChangeSequence() {
+		return 0;
+	}
+	
 	/**
 	 * Returns the java object ID and the database object ID of this Persistent object.
 	 * Notice: The database object ID can change between restarts if we defragment the database.
@@ -853,7 +1049,7 @@ public abstract class Persistent implements Serializable {
 	/* Non-db4o related code */
 
 	/**
-	 * Uses standard Java serialization to convert this Object to a byte array. NOT used by db4o.
+	 * Converts this Object to a byte array. NOT used by db4o.
 	 * 
 	 * The purpose for this is to allow in-db4o storage of cloned {@link Identity}/{@link Trust}/{@link Score}/etc. objects:
 	 * Normally there should only be one object with a given ID in the database, if we clone a Persistent object it will have the same ID.
@@ -861,7 +1057,11 @@ public abstract class Persistent implements Serializable {
 	 * 
 	 * Typically used by {@link SubscriptionManager} for being able to store clones.
 	 * 
-	 * ATTENTION: Your Persistent class must provide an implementation of the following function:
+	 * Objects which {@link PersistentCodec} supports are encoded with it, which is a lot smaller
+	 * and faster than standard Java serialization. All others fall back to Java serialization.
+	 * 
+	 * ATTENTION: If your Persistent class is not supported by {@link PersistentCodec}, it must
+	 * provide an implementation of the following function:
 	 * <code>private void writeObject(ObjectOutputStream stream) throws IOException;</code>
 	 * This function is not specified by an interface, it can be read up about in the <a href="http://docs.oracle.com/javase/7/docs/platform/serialization/spec/output.html#861">serialization documentation</a>.
 	 * It must properly activate the object, all of its members and all of their members:
@@ -869,8 +1069,12 @@ public abstract class Persistent implements Serializable {
 	 * After that, it must call {@link ObjectOutputStream#defaultWriteObject()}.
 	 * 
 	 * @see Persistent#deserialize(WebOfTrustInterface, byte[]) The inverse function.
+	 * @see #serialize(Persistent, Persistent) Version for pairs of snapshots of the same object.
 	 */
 	final byte[] serialize() {
+		if(PersistentCodec.canEncode(this))
+			return new PersistentCodec.Encoder().encode(this);
+		
 		ByteArrayOutputStream bos = null;
 		ObjectOutputStream ous = null;
 		
@@ -888,8 +1092,68 @@ public abstract class Persistent implements Serializable {
 		}
 	}
 	
+	/**
+	 * Same as {@link #serialize()} for the "old" and "new" version of an object, but the Strings
+	 * of the second one are interned against the first one: Strings which did not change, such as
+	 * IDs, URIs, nicknames, contexts and properties, are only stored in the first blob.<br>
+	 * Thus the second blob must be deserialized with
+	 * {@link #deserialize(WebOfTrustInterface, byte[], byte[])} with the first one as base.
+	 * 
+	 * @param first May be null, the resulting array entry will then be null as well.
+	 * @param second May be null, the resulting array entry will then be null as well.
+	 * @return An array of length 2 with the blobs of first and second. */
+	static final byte[][] serialize(final Persistent first, final Persistent second) {
+		if(first != null && second != null
+				&& PersistentCodec.canEncode(first) && PersistentCodec.canEncode(second)) {
+			
+			final PersistentCodec.Encoder encoder = new PersistentCodec.Encoder();
+			return new byte[][] { encoder.encode(first), encoder.encode(second) };
+		}
+		
+		return new byte[][] {
+			first != null ? first.serialize() : null,
+			second != null ? second.serialize() : null
+		};
+	}
+	
 	/** Inverse function of {@link #serialize()}. */
 	static final Persistent deserialize(final WebOfTrustInterface wot, final byte[] data) {
+		return deserialize(wot, data, null);
+	}
+	
+	/**
+	 * Inverse function of {@link #serialize(Persistent, Persistent)}.<br>
+	 * Can also decode blobs produced by older versions of WoT with Java serialization.
+	 * 
+	 * @param data The blob of the object to return.
+	 * @param base The blob which data was interned against, i.e. the first blob of
+	 *     {@link #serialize(Persistent, Persistent)} if data is the second one. Ignored if data is
+	 *     not interned, so it may be null then. */
+	static final Persistent deserialize(final WebOfTrustInterface wot, final byte[] data,
+			final byte[] base) {
+		
+		if(!PersistentCodec.isCompactFormat(data))
+			return deserializeJava(wot, data);
+		
+		try {
+			final PersistentCodec.Decoder decoder = new PersistentCodec.Decoder(wot);
+			if(PersistentCodec.isInterned(data)) {
+				if(base == null)
+					throw new IOException("Blob is interned but no base was given");
+				decoder.decode(base);
+			}
+			final Persistent deserialized = decoder.decode(data);
+			assert(deserialized.startupDatabaseIntegrityTestBoolean());
+			return deserialized;
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/** Inverse function of the Java serialization fallback of {@link #serialize()}. */
+	private static final Persistent deserializeJava(final WebOfTrustInterface wot,
+			final byte[] data) {
+		
 		ByteArrayInputStream bis = null;
 		ObjectInputStream ois = null;
 		
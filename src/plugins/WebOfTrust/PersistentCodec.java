@@ -0,0 +1,313 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+
+/**
+ * Compact binary format for the snapshots of {@link Identity}/{@link OwnIdentity}/{@link Trust}/
+ * {@link Score} objects which {@link Persistent#serialize()} produces. Typically used by
+ * {@link SubscriptionManager} for storing the "before" and "after" clones of changed objects.<br>
+ * <br>
+ * Compared to standard Java serialization it does not store any class descriptors, and it
+ * encodes numbers as variable length integers. Further, all Strings go through a table of which
+ * the indices are used as back references. Multiple blobs can share the same table by encoding
+ * them with the same {@link Encoder}: This is used for "old"/"new" pairs of snapshots of the same
+ * object, which mostly contain the same Strings - IDs, URIs, nicknames, contexts, properties.
+ * <br><br>
+ *
+ * Format of a blob:<br>
+ * - {@link #MAGIC}. Chosen to differ from the first byte of the Java serialization stream header
+ *   so legacy blobs can be detected by {@link #isCompactFormat(byte[])}.<br>
+ * - {@link #FORMAT_VERSION}.<br>
+ * - Flags. {@link #FLAG_INTERNED} means that the String table of the blob continues the one of
+ *   the blobs which were encoded before it by the same {@link Encoder}. Such blobs can only be
+ *   decoded after the previous ones have been decoded by the same {@link Decoder}.<br>
+ * - The object: A type byte, the fields as written by the writeCompact() function of its class,
+ *   and then {@link Persistent#mCreationDate}.<br><br>
+ *
+ * ATTENTION: When adding member variables to the supported classes, you must amend their
+ * writeCompact() function and decoding constructor, and increment {@link #FORMAT_VERSION}.
+ *
+ * @see Persistent#serialize()
+ * @see Persistent#deserialize(WebOfTrustInterface, byte[], byte[]) */
+final class PersistentCodec {
+
+	/** First byte of all blobs. Java serialization streams start with 0xACED instead. */
+	static final byte MAGIC = 'W';
+
+	static final byte FORMAT_VERSION = 3;
+
+	/** @see PersistentCodec */
+	static final byte FLAG_INTERNED = 1;
+
+	private static final byte TYPE_IDENTITY = 1;
+	private static final byte TYPE_OWN_IDENTITY = 2;
+	private static final byte TYPE_TRUST = 3;
+	private static final byte TYPE_SCORE = 4;
+
+	/** Varint value of a null String. Values above {@link #STRING_LITERAL} are table indices. */
+	private static final int STRING_NULL = 0;
+
+	/** Varint value which is followed by the UTF-8 encoding of a String not in the table yet. */
+	private static final int STRING_LITERAL = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+
+	private PersistentCodec() {}
+
+	/** True if the blob was produced by this codec, false if it is a legacy Java serialization
+	 *  stream. */
+	static boolean isCompactFormat(byte[] data) {
+		return data.length > 0 && data[0] == MAGIC;
+	}
+
+	/** True if the blob has {@link #FLAG_INTERNED} set. */
+	static boolean isInterned(byte[] data) {
+		return data.length > 2 && (data[2] & FLAG_INTERNED) != 0;
+	}
+
+	/**
+	 * Returns false for objects which contain state which the format cannot represent. Currently
+	 * that are the deprecated FreenetURI member variables of {@link Identity} and
+	 * {@link OwnIdentity} which are only non-null in not yet upgraded databases.<br>
+	 * {@link Persistent#serialize()} falls back to Java serialization for such objects. */
+	static boolean canEncode(Persistent p) {
+		if(p instanceof Identity)
+			return ((Identity)p).canEncodeCompact();
+		else if(p instanceof Trust) {
+			Trust t = (Trust)p;
+			return t.getTruster().canEncodeCompact() && t.getTrustee().canEncodeCompact();
+		} else if(p instanceof Score) {
+			Score s = (Score)p;
+			return s.getTruster().canEncodeCompact() && s.getTrustee().canEncodeCompact();
+		} else
+			return false;
+	}
+
+	/**
+	 * Encodes objects into blobs. All blobs produced by one Encoder share their String table,
+	 * see {@link PersistentCodec}.<br>
+	 * Not thread-safe. */
+	static final class Encoder {
+		private final HashMap<String, Integer> mStringTable = new HashMap<String, Integer>();
+
+		private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream(256);
+
+		private int mEncodedBlobs = 0;
+
+		/** You must check {@link PersistentCodec#canEncode(Persistent)} before. */
+		byte[] encode(Persistent p) {
+			assert(canEncode(p));
+			mOutput.reset();
+			mOutput.write(MAGIC);
+			mOutput.write(FORMAT_VERSION);
+			mOutput.write(mEncodedBlobs > 0 ? FLAG_INTERNED : 0);
+			writePersistent(p);
+			++mEncodedBlobs;
+			return mOutput.toByteArray();
+		}
+
+		void writePersistent(Persistent p) {
+			if(p instanceof OwnIdentity) {
+				mOutput.write(TYPE_OWN_IDENTITY);
+				((OwnIdentity)p).writeCompact(this);
+			} else if(p instanceof Identity) {
+				mOutput.write(TYPE_IDENTITY);
+				((Identity)p).writeCompact(this);
+			} else if(p instanceof Trust) {
+				mOutput.write(TYPE_TRUST);
+				((Trust)p).writeCompact(this);
+			} else if(p instanceof Score) {
+				mOutput.write(TYPE_SCORE);
+				((Score)p).writeCompact(this);
+			} else
+				throw new UnsupportedOperationException("Unsupported class: " + p.getClass());
+
+			writeDate(p.mCreationDate);
+		}
+
+		void writeByte(byte b) {
+			mOutput.write(b);
+		}
+
+		void writeBoolean(boolean b) {
+			mOutput.write(b ? 1 : 0);
+		}
+
+		void writeInt(int i) {
+			// ZigZag so small negative values stay short
+			writeVarLong(((i << 1) ^ (i >> 31)) & 0xFFFFFFFFL);
+		}
+
+		void writeLong(long l) {
+			writeVarLong((l << 1) ^ (l >> 63));
+		}
+
+		private void writeVarLong(long v) {
+			while((v & ~0x7FL) != 0) {
+				mOutput.write((int)((v & 0x7F) | 0x80));
+				v >>>= 7;
+			}
+			mOutput.write((int)v);
+		}
+
+		void writeDate(Date d) {
+			writeBoolean(d != null);
+			if(d != null)
+				writeLong(d.getTime());
+		}
+
+		void writeString(String s) {
+			if(s == null) {
+				writeVarLong(STRING_NULL);
+				return;
+			}
+
+			Integer index = mStringTable.get(s);
+			if(index != null) {
+				writeVarLong(STRING_LITERAL + 1 + index);
+				return;
+			}
+
+			mStringTable.put(s, mStringTable.size());
+			byte[] utf8 = s.getBytes(UTF8);
+			writeVarLong(STRING_LITERAL);
+			writeVarLong(utf8.length);
+			mOutput.write(utf8, 0, utf8.length);
+		}
+	}
+
+	/**
+	 * Decodes blobs of an {@link Encoder}. To decode a blob flagged with {@link #FLAG_INTERNED},
+	 * the blobs which the Encoder had produced before it must be passed to the same Decoder first.
+	 * <br>Not thread-safe. */
+	static final class Decoder {
+		private final WebOfTrustInterface mWebOfTrust;
+
+		private final ArrayList<String> mStringTable = new ArrayList<String>();
+
+		private byte[] mInput;
+
+		private int mPosition;
+
+		private int mDecodedBlobs = 0;
+
+		Decoder(WebOfTrustInterface wot) {
+			mWebOfTrust = wot;
+		}
+
+		Persistent decode(byte[] data) throws IOException {
+			mInput = data;
+			mPosition = 0;
+
+			if(readByte() != MAGIC)
+				throw new IOException("Not a compact blob");
+
+			byte version = readByte();
+			if(version != FORMAT_VERSION)
+				throw new IOException("Unknown format version: " + version);
+
+			boolean interned = (readByte() & FLAG_INTERNED) != 0;
+			if(interned && mDecodedBlobs == 0)
+				throw new IOException("Blob is interned against a base blob which was not decoded");
+
+			Persistent result = readPersistent();
+			if(mPosition != mInput.length)
+				throw new IOException("Trailing data: " + (mInput.length - mPosition) + " bytes");
+
+			++mDecodedBlobs;
+			return result;
+		}
+
+		Persistent readPersistent() throws IOException {
+			byte type = readByte();
+			Persistent result;
+			switch(type) {
+				case TYPE_IDENTITY: result = new Identity(this); break;
+				case TYPE_OWN_IDENTITY: result = new OwnIdentity(this); break;
+				case TYPE_TRUST: result = new Trust(this); break;
+				case TYPE_SCORE: result = new Score(this); break;
+				default: throw new IOException("Unknown type: " + type);
+			}
+			result.mCreationDate = readDate();
+			// Nested objects such as the truster/trustee of a Trust also need this.
+			result.initializeTransient(mWebOfTrust);
+			return result;
+		}
+
+		Identity readIdentity() throws IOException {
+			Persistent p = readPersistent();
+			if(!(p instanceof Identity))
+				throw new IOException("Expected Identity, got: " + p.getClass());
+			return (Identity)p;
+		}
+
+		byte readByte() throws IOException {
+			if(mPosition >= mInput.length)
+				throw new IOException("Unexpected end of data");
+			return mInput[mPosition++];
+		}
+
+		boolean readBoolean() throws IOException {
+			return readByte() != 0;
+		}
+
+		int readInt() throws IOException {
+			long v = readVarLong();
+			if(v > 0xFFFFFFFFL)
+				throw new IOException("Integer out of range: " + v);
+			int i = (int)v;
+			return (i >>> 1) ^ -(i & 1);
+		}
+
+		long readLong() throws IOException {
+			long v = readVarLong();
+			return (v >>> 1) ^ -(v & 1);
+		}
+
+		private long readVarLong() throws IOException {
+			long result = 0;
+			for(int shift = 0; shift < 64; shift += 7) {
+				byte b = readByte();
+				result |= (long)(b & 0x7F) << shift;
+				if((b & 0x80) == 0)
+					return result;
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		Date readDate() throws IOException {
+			return readBoolean() ? new Date(readLong()) : null;
+		}
+
+		String readString() throws IOException {
+			long v = readVarLong();
+			if(v == STRING_NULL)
+				return null;
+
+			if(v == STRING_LITERAL) {
+				long length = readVarLong();
+				if(length > mInput.length - mPosition)
+					throw new IOException("String length out of range: " + length);
+				String s = new String(mInput, mPosition, (int)length, UTF8);
+				mPosition += (int)length;
+				mStringTable.add(s);
+				return s;
+			}
+
+			long index = v - STRING_LITERAL - 1;
+			if(index >= mStringTable.size())
+				throw new IOException("String table index out of range: " + index);
+			return mStringTable.get((int)index);
+		}
+	}
+
+}
@@ -16,6 +16,7 @@ import java.util.UUID;
 
 import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.Trust.TrustID;
+import plugins.WebOfTrust.util.AssertUtil;
 import plugins.WebOfTrust.util.ReallyCloneable;
 import freenet.support.CurrentTimeUTC;
 
@@ -109,6 +110,13 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
      *  Stored as String to reduce db4o maintenance overhead. */
     private String mVersionID = null;
 
+	/**
+	 * Assigned from the global counter of the {@link WebOfTrust} by {@link #storeWithoutCommit()}.
+	 * Indexed so the FCP message "GetChangesSince" can query the scores which were changed
+	 * after a given value. See {@link WebOfTrust#getCurrentChangeSequence()}. */
+	@IndexedField
+	private long mChangeSequence = 0;
+
 
 	/**
 	 * A class for generating and validating Score IDs.
@@ -142,6 +150,20 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 			mTrusteeID = trustee.getID();
 			mID = truster.getID() + "@" + trustee.getID();
 		}
+
+		/** Does not validate the IDs, they are only checked by an assert. */
+		public ScoreID(final String trusterID, final String trusteeID) {
+			AssertUtil.assertDidNotThrow(new Runnable() {
+				@Override public void run() {
+					IdentityID.constructAndValidateFromString(trusterID);
+					IdentityID.constructAndValidateFromString(trusteeID);
+				}
+			});
+
+			mTrusterID = trusterID;
+			mTrusteeID = trusteeID;
+			mID = trusterID + "@" + trusteeID;
+		}
 		
 		private ScoreID(String id) {
 			if(id.length() != LENGTH)
@@ -411,7 +433,12 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 			activateFully();
 			throwIfNotStored(mTruster);
 			throwIfNotStored(mTrustee);
+			mChangeSequence = mWebOfTrust.getNextChangeSequence();
 			checkedStore();
+			
+			final SnapshotStore snapshots = mWebOfTrust.getSnapshotStore();
+			if(snapshots != null)
+				snapshots.stageStore(this);
 		}
 		catch(final RuntimeException e) {
 			// TODO: Code quality: We very likely don't need to catch/throw/rollback here:
@@ -422,6 +449,21 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 			checkedRollbackAndThrow(e);
 		}
 	}
+
+	/**
+	 * Stores a {@link Tombstone} of this Score so the FCP message "GetChangesSince" can tell
+	 * clients about the deletion, stages the deletion at the {@link SnapshotStore}, then deletes it.
+	 */
+	@Override
+	protected void deleteWithoutCommit() {
+		new Tombstone(mWebOfTrust, this).storeWithoutCommit();
+		
+		final SnapshotStore snapshots = mWebOfTrust.getSnapshotStore();
+		if(snapshots != null)
+			snapshots.stageDelete(this);
+		
+		super.deleteWithoutCommit();
+	}
 	
 	/**
 	 * Test if two scores are equal.
@@ -472,9 +514,29 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 		clone.mLastChangedDate = (Date)mLastChangedDate.clone();	// Clone it because date is mutable
 		if(mVersionID != null)
 			clone.mVersionID = mVersionID; // No need to clone, String is immutable
+		clone.mChangeSequence = mChangeSequence;
 		return clone;
 	}
 
+	/**
+	 * Copies the values of the given Score, which must have the same {@link #getID()} but may be
+	 * stored in another database, into this one. For {@link OnlineDefragmentation}, see
+	 * {@link Identity#copyStateFrom(Identity)}.<br>
+	 * Does not store anything, use {@link #storeWithoutCommit()} afterwards. */
+	void copyStateFrom(Score source) {
+		if(!getID().equals(source.getID()))
+			throw new IllegalArgumentException("Not a version of " + this + ": " + source);
+		
+		activateFully();
+		source.activateFully();
+		mValue = source.mValue;
+		mRank = source.mRank;
+		mCapacity = source.mCapacity;
+		mVersionID = source.mVersionID;
+		setCreationDate(source.getCreationDate());
+		mLastChangedDate = (Date)source.mLastChangedDate.clone(); // Clone it because date is mutable
+	}
+
 	@Override public Score cloneP() {
 		return clone();
 	}
@@ -521,6 +583,9 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 				throw new IllegalStateException("Invalid mVersionID: " + mVersionID);
 			}
 		}
+		
+		if(mChangeSequence < 0)
+			throw new IllegalStateException("Invalid mChangeSequence: " + mChangeSequence);
 	}
 	
 	/** @see Persistent#serialize() */
@@ -531,6 +596,41 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 		stream.defaultWriteObject();
 	}
 
+	/**
+	 * Writes all non-transient member variables for {@link Persistent#serialize()}, including the
+	 * truster and trustee {@link Identity} objects.<br>
+	 * ATTENTION: Must be kept in sync with {@link #Score(PersistentCodec.Decoder)}.
+	 * 
+	 * @see PersistentCodec */
+	void writeCompact(PersistentCodec.Encoder out) {
+		activateFully();
+		out.writePersistent(mTruster);
+		out.writePersistent(mTrustee);
+		out.writeString(mID);
+		out.writeInt(mValue);
+		out.writeInt(mRank);
+		out.writeInt(mCapacity);
+		out.writeDate(mLastChangedDate);
+		out.writeString(mVersionID);
+		out.writeLong(mChangeSequence);
+	}
+
+	/** Inverse of {@link #writeCompact(PersistentCodec.Encoder)}. */
+	Score(PersistentCodec.Decoder in) throws IOException {
+		Identity truster = in.readIdentity();
+		if(!(truster instanceof OwnIdentity))
+			throw new IOException("Truster is no OwnIdentity: " + truster);
+		mTruster = (OwnIdentity)truster;
+		mTrustee = in.readIdentity();
+		mID = in.readString();
+		mValue = in.readInt();
+		mRank = in.readInt();
+		mCapacity = in.readInt();
+		mLastChangedDate = in.readDate();
+		mVersionID = in.readString();
+		mChangeSequence = in.readLong();
+	}
+
     /** {@inheritDoc} */
     @Override public void setVersionID(UUID versionID) { 
         checkedActivate(1);
@@ -549,4 +649,10 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
         // - adapt clone() to remove the then not needed "if(mVersionID != null)" check.
         return mVersionID != null ? UUID.fromString(mVersionID) : UUID.randomUUID();
     }
+
+    /** {@inheritDoc} */
+    @Override public long getChangeSequence() {
+        checkedActivate(1); // long is a db4o primitive type so 1 is enough
+        return mChangeSequence;
+    }
 }
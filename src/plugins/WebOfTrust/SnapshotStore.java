@@ -0,0 +1,694 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import plugins.WebOfTrust.Identity.FetchState;
+import plugins.WebOfTrust.Score.ScoreID;
+import plugins.WebOfTrust.Trust.TrustID;
+
+import com.db4o.ObjectSet;
+import com.db4o.ext.ExtObjectContainer;
+import com.db4o.query.Query;
+
+import freenet.support.Logger;
+
+/**
+ * Keeps immutable copies of all {@link Identity}, {@link Trust} and {@link Score} objects in
+ * memory so read-only user interfaces can query them without locking the {@link WebOfTrust}:
+ * Reading from the database requires synchronized(WebOfTrust), so UI requests would otherwise
+ * be blocked behind identity file imports and Score recomputations, which can take minutes.
+ * <br><br>
+ *
+ * Writing: {@link Identity}/{@link Trust}/{@link Score} stage a copy of themselves at their
+ * storeWithoutCommit() and deleteWithoutCommit(). This class is a
+ * {@link Persistent.TransactionListener}: Once the transaction is committed the staged copies are
+ * published, if it is rolled back they are discarded. Thus readers never see uncommitted data.
+ * <br><br>
+ *
+ * Reading: The publication of the copies of a transaction consists of multiple changes to the
+ * maps. To allow readers to obtain a consistent view across multiple lookups anyway, publishing
+ * increments {@link #mPublication} before and after doing so, as in a sequence lock. Readers
+ * which do more than one lookup must use {@link #read(Reader)}, which repeats the read if a
+ * publication happened meanwhile. Single lookups such as {@link #getTrust(String, String)} are
+ * consistent on their own.<br><br>
+ *
+ * The copies are loaded from the database by {@link #load()}, either explicitly once the database
+ * is ready, or implicitly by the first reader. Objects which are stored before that are not
+ * staged.<br><br>
+ *
+ * Memory: The copies of Trusts and Scores are small, a few hundred bytes each, so the memory usage
+ * is linear in the size of the database, but a lot lower than that of db4o's cache.
+ */
+public final class SnapshotStore implements Persistent.TransactionListener {
+
+	/**
+	 * How often {@link #read(Reader)} retries without locking if a publication interfered with
+	 * the read before it falls back to taking the lock which prevents publications. */
+	private static final int MAX_OPTIMISTIC_READ_ATTEMPTS = 16;
+
+	private final WebOfTrust mWebOfTrust;
+
+	private final ExtObjectContainer mDB;
+
+	/** Set to true by {@link #load()}. Before that, nothing is staged or published. */
+	private volatile boolean mLoaded = false;
+
+	/**
+	 * Odd while a publication is in progress, even otherwise. Incremented twice by each
+	 * publication, see {@link #read(Reader)}. */
+	private volatile long mPublication = 0;
+
+	/**
+	 * The value of {@link WebOfTrust#getCurrentChangeSequence()} as of the last publication: All
+	 * changes with a lower or equal sequence number are visible in this store. */
+	private volatile long mPublishedChangeSequence = 0;
+
+	/**
+	 * Incremented by each publication which changed {@link #mIdentities}, see
+	 * {@link #getDataVersion(Class...)}. */
+	private volatile long mIdentitiesVersion = 0;
+
+	/** @see #mIdentitiesVersion */
+	private volatile long mTrustsVersion = 0;
+
+	/** @see #mIdentitiesVersion */
+	private volatile long mScoresVersion = 0;
+
+	/** Key = {@link Identity#getID()}. Contains both {@link OwnIdentity}s and non-own ones. */
+	private final ConcurrentHashMap<String, IdentitySnapshot> mIdentities
+		= new ConcurrentHashMap<String, IdentitySnapshot>();
+
+	/** Key = {@link Identity#getID()}. Subset of {@link #mIdentities}. */
+	private final ConcurrentHashMap<String, IdentitySnapshot> mOwnIdentities
+		= new ConcurrentHashMap<String, IdentitySnapshot>();
+
+	/** Key = {@link Trust#getID()} */
+	private final ConcurrentHashMap<String, TrustSnapshot> mTrusts
+		= new ConcurrentHashMap<String, TrustSnapshot>();
+
+	/** Key = {@link Score#getID()} */
+	private final ConcurrentHashMap<String, ScoreSnapshot> mScores
+		= new ConcurrentHashMap<String, ScoreSnapshot>();
+
+	/**
+	 * The changes of the current transaction. A null value means that the object was deleted.
+	 * Only accessed while holding {@link Persistent#transactionLock(ExtObjectContainer)}. */
+	private final HashMap<String, IdentitySnapshot> mStagedIdentities
+		= new HashMap<String, IdentitySnapshot>();
+
+	/** @see #mStagedIdentities */
+	private final HashMap<String, TrustSnapshot> mStagedTrusts
+		= new HashMap<String, TrustSnapshot>();
+
+	/** @see #mStagedIdentities */
+	private final HashMap<String, ScoreSnapshot> mStagedScores
+		= new HashMap<String, ScoreSnapshot>();
+
+	/**
+	 * Types for which {@link #stageInvalidation(Class)} was called in the current transaction.
+	 * Only accessed while holding {@link Persistent#transactionLock(ExtObjectContainer)}. */
+	private final HashSet<Class<?>> mStagedInvalidations = new HashSet<Class<?>>();
+
+
+	/** Immutable copy of the state of an {@link Identity} or {@link OwnIdentity}. */
+	public static final class IdentitySnapshot {
+		private final String mID;
+		private final boolean mIsOwnIdentity;
+		private final String mNickname;
+		/** Stored as String because {@link freenet.keys.FreenetURI} is mutable. */
+		private final String mRequestURI;
+		private final long mEdition;
+		private final FetchState mCurrentEditionFetchState;
+		private final long mLastFetchedDate;
+		private final boolean mDoesPublishTrustList;
+		private final List<String> mContexts;
+		private final Map<String, String> mProperties;
+		private final int[] mTrustCounts;
+		private final UUID mVersionID;
+		private final long mChangeSequence;
+
+		/**
+		 * The insert URI of {@link OwnIdentity}s is not copied: The snapshots are meant for
+		 * displaying public data and should not spread private keys across the memory. */
+		IdentitySnapshot(Identity identity) {
+			mID = identity.getID();
+			mIsOwnIdentity = identity instanceof OwnIdentity;
+			mNickname = identity.getNickname();
+			mRequestURI = identity.getRequestURI().toString();
+			mEdition = identity.getEdition();
+			mCurrentEditionFetchState = identity.getCurrentEditionFetchState();
+			mLastFetchedDate = identity.getLastFetchedDate().getTime();
+			mDoesPublishTrustList = identity.doesPublishTrustList();
+			mContexts = Collections.unmodifiableList(identity.getContexts());
+			mProperties = Collections.unmodifiableMap(identity.getProperties());
+			mTrustCounts = identity.getTrustCounts();
+			mVersionID = identity.getVersionID();
+			mChangeSequence = identity.getChangeSequence();
+		}
+
+		public String getID() {
+			return mID;
+		}
+
+		public boolean isOwnIdentity() {
+			return mIsOwnIdentity;
+		}
+
+		/** @see Identity#getNickname() */
+		public String getNickname() {
+			return mNickname;
+		}
+
+		/** @see Identity#getRequestURI() */
+		public String getRequestURI() {
+			return mRequestURI;
+		}
+
+		/** @see Identity#getEdition() */
+		public long getEdition() {
+			return mEdition;
+		}
+
+		/** @see Identity#getCurrentEditionFetchState() */
+		public FetchState getCurrentEditionFetchState() {
+			return mCurrentEditionFetchState;
+		}
+
+		/** @see Identity#getLastFetchedDate() */
+		public Date getLastFetchedDate() {
+			return new Date(mLastFetchedDate);
+		}
+
+		/** @see Identity#doesPublishTrustList() */
+		public boolean doesPublishTrustList() {
+			return mDoesPublishTrustList;
+		}
+
+		/** @return An unmodifiable list. */
+		public List<String> getContexts() {
+			return mContexts;
+		}
+
+		/** @return An unmodifiable map. */
+		public Map<String, String> getProperties() {
+			return mProperties;
+		}
+
+		/** @see Identity#getReceivedTrustCount(int) */
+		public int getReceivedTrustCount(int select) {
+			return getTrustCount(0, select);
+		}
+
+		/** @see Identity#getReceivedTrustCount() */
+		public int getReceivedTrustCount() {
+			return getTrustCount(0, 1) + getTrustCount(0, -1);
+		}
+
+		/** @see Identity#getGivenTrustCount(int) */
+		public int getGivenTrustCount(int select) {
+			return getTrustCount(3, select);
+		}
+
+		/** @see Identity#getGivenTrustCount() */
+		public int getGivenTrustCount() {
+			return getTrustCount(3, 1) + getTrustCount(3, -1);
+		}
+
+		/** Same semantics as {@link Identity#getReceivedTrustCount(int)}, see
+		 *  {@link Identity#getTrustCountIndex(byte)} for the layout of {@link #mTrustCounts}. */
+		private int getTrustCount(int offset, int select) {
+			if(select > 0)
+				return mTrustCounts[offset] + mTrustCounts[offset + 1];
+			else if(select == 0)
+				return mTrustCounts[offset + 1];
+			else
+				return mTrustCounts[offset + 2];
+		}
+
+		public UUID getVersionID() {
+			return mVersionID;
+		}
+
+		public long getChangeSequence() {
+			return mChangeSequence;
+		}
+	}
+
+	/** Immutable copy of the state of a {@link Trust}. */
+	public static final class TrustSnapshot {
+		private final String mTrusterID;
+		private final String mTrusteeID;
+		private final byte mValue;
+		private final String mComment;
+		private final long mTrusterEdition;
+		private final UUID mVersionID;
+		private final long mChangeSequence;
+
+		TrustSnapshot(Trust trust) {
+			mTrusterID = trust.getTruster().getID();
+			mTrusteeID = trust.getTrustee().getID();
+			mValue = trust.getValue();
+			mComment = trust.getComment();
+			mTrusterEdition = trust.getTrusterEdition();
+			mVersionID = trust.getVersionID();
+			mChangeSequence = trust.getChangeSequence();
+		}
+
+		public String getTrusterID() {
+			return mTrusterID;
+		}
+
+		public String getTrusteeID() {
+			return mTrusteeID;
+		}
+
+		public byte getValue() {
+			return mValue;
+		}
+
+		public String getComment() {
+			return mComment;
+		}
+
+		/** @see Trust#getTrusterEdition() */
+		public long getTrusterEdition() {
+			return mTrusterEdition;
+		}
+
+		public UUID getVersionID() {
+			return mVersionID;
+		}
+
+		public long getChangeSequence() {
+			return mChangeSequence;
+		}
+	}
+
+	/** Immutable copy of the state of a {@link Score}. */
+	public static final class ScoreSnapshot {
+		private final String mTrusterID;
+		private final String mTrusteeID;
+		private final int mValue;
+		private final int mRank;
+		private final int mCapacity;
+		private final UUID mVersionID;
+		private final long mChangeSequence;
+
+		ScoreSnapshot(Score score) {
+			mTrusterID = score.getTruster().getID();
+			mTrusteeID = score.getTrustee().getID();
+			mValue = score.getValue();
+			mRank = score.getRank();
+			mCapacity = score.getCapacity();
+			mVersionID = score.getVersionID();
+			mChangeSequence = score.getChangeSequence();
+		}
+
+		public String getTrusterID() {
+			return mTrusterID;
+		}
+
+		public String getTrusteeID() {
+			return mTrusteeID;
+		}
+
+		/** @see Score#getValue() */
+		public int getValue() {
+			return mValue;
+		}
+
+		/** @see Score#getRank() */
+		public int getRank() {
+			return mRank;
+		}
+
+		/** @see Score#getCapacity() */
+		public int getCapacity() {
+			return mCapacity;
+		}
+
+		public UUID getVersionID() {
+			return mVersionID;
+		}
+
+		public long getChangeSequence() {
+			return mChangeSequence;
+		}
+	}
+
+	/**
+	 * A read which does multiple lookups, see {@link SnapshotStore#read(Reader)}.<br>
+	 * Implementations must not take any locks and must not have side effects: They may be
+	 * executed multiple times. Exceptions thrown by them are treated like results, i.e. they are
+	 * thrown by {@link SnapshotStore#read(Reader)} only if the read was consistent.
+	 *
+	 * @param <T> The result of the read.
+	 * @param <E> The checked Exception which the read may throw. Use {@link RuntimeException} if
+	 *     it throws none. */
+	public interface Reader<T, E extends Exception> {
+		T read() throws E;
+	}
+
+
+	SnapshotStore(WebOfTrust webOfTrust) {
+		mWebOfTrust = webOfTrust;
+		mDB = webOfTrust.getDatabase();
+		Persistent.addTransactionListener(mDB, this);
+	}
+
+	/**
+	 * Copies all {@link Identity}, {@link Trust} and {@link Score} objects from the database.
+	 * Must not be called before the database format is up to date.<br>
+	 * Does nothing if they were loaded already. */
+	void load() {
+		assert(mWebOfTrust.mayAcquireLock(mWebOfTrust));
+		synchronized(mWebOfTrust) {
+		synchronized(Persistent.transactionLock(mDB)) {
+			if(mLoaded)
+				return;
+
+			final long startTime = System.nanoTime();
+
+			for(Identity identity : getAll(Identity.class))
+				putIdentity(identity.getID(), new IdentitySnapshot(identity));
+
+			for(Trust trust : getAll(Trust.class))
+				mTrusts.put(trust.getID(), new TrustSnapshot(trust));
+
+			for(Score score : getAll(Score.class))
+				mScores.put(score.getID(), new ScoreSnapshot(score));
+
+			mPublishedChangeSequence = mWebOfTrust.getCurrentChangeSequence();
+			mLoaded = true;
+
+			Logger.normal(this, "Loaded " + mIdentities.size() + " identities, "
+				+ mTrusts.size() + " trusts and " + mScores.size() + " scores in "
+				+ (System.nanoTime() - startTime) / (1000 * 1000) + "ms");
+		}
+		}
+	}
+
+	private <T extends Persistent> ObjectSet<T> getAll(Class<T> type) {
+		final Query query = mDB.query();
+		query.constrain(type);
+		return new Persistent.InitializingObjectSet<T>(mWebOfTrust, query);
+	}
+
+	/** Removes this store from the {@link Persistent.TransactionListener}s of the database. */
+	void stop() {
+		Persistent.removeTransactionListener(mDB, this);
+	}
+
+	/**
+	 * Called by {@link Identity#storeWithoutCommit()} and similar functions.<br>
+	 * Must be called while holding {@link Persistent#transactionLock(ExtObjectContainer)}. */
+	void stageStore(Identity identity) {
+		if(mLoaded)
+			mStagedIdentities.put(identity.getID(), new IdentitySnapshot(identity));
+	}
+
+	/** @see #stageStore(Identity) */
+	void stageDelete(Identity identity) {
+		if(mLoaded)
+			mStagedIdentities.put(identity.getID(), null);
+	}
+
+	/** @see #stageStore(Identity) */
+	void stageStore(Trust trust) {
+		if(mLoaded)
+			mStagedTrusts.put(trust.getID(), new TrustSnapshot(trust));
+	}
+
+	/** @see #stageStore(Identity) */
+	void stageDelete(Trust trust) {
+		if(mLoaded)
+			mStagedTrusts.put(trust.getID(), null);
+	}
+
+	/** @see #stageStore(Identity) */
+	void stageStore(Score score) {
+		if(mLoaded)
+			mStagedScores.put(score.getID(), new ScoreSnapshot(score));
+	}
+
+	/** @see #stageStore(Identity) */
+	void stageDelete(Score score) {
+		if(mLoaded)
+			mStagedScores.put(score.getID(), null);
+	}
+
+	/**
+	 * Makes the publication of the current transaction increase
+	 * {@link #getDataVersion(Class...)} of the given type, even if no object of it was staged.
+	 * For changes which are not staged by the store functions of the objects themselves but
+	 * must nevertheless be noticed by data computed from the store.<br>
+	 * Must be called while holding {@link Persistent#transactionLock(ExtObjectContainer)}.
+	 *
+	 * @param type {@link Identity}, {@link Trust} or {@link Score}. */
+	void stageInvalidation(Class<?> type) {
+		if(type != Identity.class && type != Trust.class && type != Score.class)
+			throw new IllegalArgumentException("Unknown type: " + type);
+
+		if(mLoaded)
+			mStagedInvalidations.add(type);
+	}
+
+	/** Publishes the staged changes. Called while holding the transaction lock. */
+	@Override public void onCommit() {
+		if(mStagedIdentities.isEmpty() && mStagedTrusts.isEmpty() && mStagedScores.isEmpty()
+				&& mStagedInvalidations.isEmpty())
+			return;
+
+		++mPublication;
+		try {
+			for(Map.Entry<String, IdentitySnapshot> entry : mStagedIdentities.entrySet())
+				putIdentity(entry.getKey(), entry.getValue());
+
+			for(Map.Entry<String, TrustSnapshot> entry : mStagedTrusts.entrySet()) {
+				if(entry.getValue() != null)
+					mTrusts.put(entry.getKey(), entry.getValue());
+				else
+					mTrusts.remove(entry.getKey());
+			}
+
+			for(Map.Entry<String, ScoreSnapshot> entry : mStagedScores.entrySet()) {
+				if(entry.getValue() != null)
+					mScores.put(entry.getKey(), entry.getValue());
+				else
+					mScores.remove(entry.getKey());
+			}
+
+			mPublishedChangeSequence = mWebOfTrust.getCurrentChangeSequence();
+
+			// After changing the maps so readers of the versions see at least their state.
+			if(!mStagedIdentities.isEmpty() || mStagedInvalidations.contains(Identity.class))
+				++mIdentitiesVersion;
+			if(!mStagedTrusts.isEmpty() || mStagedInvalidations.contains(Trust.class))
+				++mTrustsVersion;
+			if(!mStagedScores.isEmpty() || mStagedInvalidations.contains(Score.class))
+				++mScoresVersion;
+		} finally {
+			++mPublication;
+			clearStaged();
+		}
+	}
+
+	/** Discards the staged changes. Called while holding the transaction lock. */
+	@Override public void onRollback() {
+		clearStaged();
+	}
+
+	private void clearStaged() {
+		mStagedIdentities.clear();
+		mStagedTrusts.clear();
+		mStagedScores.clear();
+		mStagedInvalidations.clear();
+	}
+
+	/** @param snapshot Null if the identity was deleted. */
+	private void putIdentity(String id, IdentitySnapshot snapshot) {
+		if(snapshot == null) {
+			mIdentities.remove(id);
+			mOwnIdentities.remove(id);
+			return;
+		}
+
+		mIdentities.put(id, snapshot);
+		// An OwnIdentity can be converted to an Identity and vice versa.
+		if(snapshot.isOwnIdentity())
+			mOwnIdentities.put(id, snapshot);
+		else
+			mOwnIdentities.remove(id);
+	}
+
+	/**
+	 * Executes the given reader and returns its result. If a publication happened while the
+	 * reader was executing, its lookups might have seen different states of the database, so it
+	 * is executed again.<br>
+	 * After {@link #MAX_OPTIMISTIC_READ_ATTEMPTS} failed attempts, the reader is executed while
+	 * holding the {@link Persistent#transactionLock(ExtObjectContainer)}, which prevents
+	 * publications. This is the only case in which this function blocks, apart from waiting for
+	 * {@link #load()} during startup.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T, E extends Exception> T read(Reader<T, E> reader) throws E {
+		ensureLoaded();
+
+		for(int attempt = 0; attempt < MAX_OPTIMISTIC_READ_ATTEMPTS; ++attempt) {
+			final long publication = mPublication;
+			if((publication & 1) != 0) {
+				Thread.yield();
+				continue;
+			}
+
+			T result = null;
+			Exception error = null;
+			try {
+				result = reader.read();
+			} catch(Exception e) {
+				error = e;
+			}
+
+			if(mPublication != publication)
+				continue;
+
+			if(error != null)
+				throw (E)error; // Also works for RuntimeException due to type erasure.
+
+			return result;
+		}
+
+		synchronized(Persistent.transactionLock(mDB)) {
+			return reader.read();
+		}
+	}
+
+	/**
+	 * Calls {@link #load()} if it was not called yet. Must be called by all getters: WoT
+	 * instances which are only used for maintenance, such as the ones of
+	 * {@link WebOfTrust#backupDatabase(java.io.File)}, should not load the copies. */
+	private void ensureLoaded() {
+		if(!mLoaded)
+			load();
+	}
+
+	/**
+	 * The value of {@link WebOfTrust#getCurrentChangeSequence()} at the last publication: The
+	 * store contains all changes with a sequence number lower than or equal to it.<br>
+	 * To version data computed from the store, use {@link #getDataVersion(Class...)} instead: It
+	 * only increases with changes to the types the data depends on.
+	 */
+	public long getPublishedChangeSequence() {
+		ensureLoaded();
+		return mPublishedChangeSequence;
+	}
+
+	/**
+	 * Returns a version number of the given types of objects: It increases with each publication
+	 * which changed any object of the given types, and stays the same upon changes of other types.
+	 * Can be used as a version number of data computed from the store, as the FCP response cache
+	 * does: Data computed after obtaining the version is at least as new as the version.<br>
+	 * The numbers of different sets of types are not comparable to each other.
+	 *
+	 * @param types {@link Identity}, {@link Trust} and/or {@link Score}. */
+	public long getDataVersion(Class<?>... types) {
+		ensureLoaded();
+
+		// Each summand only increases, so the sum increases whenever any of them does.
+		long result = 0;
+		for(Class<?> type : types) {
+			if(type == Identity.class)
+				result += mIdentitiesVersion;
+			else if(type == Trust.class)
+				result += mTrustsVersion;
+			else if(type == Score.class)
+				result += mScoresVersion;
+			else
+				throw new IllegalArgumentException("Unknown type: " + type);
+		}
+		return result;
+	}
+
+	/** @return Null if there is no such identity. */
+	public IdentitySnapshot getIdentity(String id) {
+		ensureLoaded();
+		return mIdentities.get(id);
+	}
+
+	/** @return Null if there is no such {@link OwnIdentity}. */
+	public IdentitySnapshot getOwnIdentity(String id) {
+		ensureLoaded();
+		return mOwnIdentities.get(id);
+	}
+
+	/**
+	 * @param trusterID A valid {@link IdentityID}.
+	 * @param trusteeID A valid {@link IdentityID}.
+	 * @return Null if there is no such Trust. */
+	public TrustSnapshot getTrust(String trusterID, String trusteeID) {
+		ensureLoaded();
+		return mTrusts.get(new TrustID(trusterID, trusteeID).toString());
+	}
+
+	/**
+	 * @param trusterID A valid {@link IdentityID} of an {@link OwnIdentity}.
+	 * @param trusteeID A valid {@link IdentityID}.
+	 * @return Null if there is no such Score. */
+	public ScoreSnapshot getScore(String trusterID, String trusteeID) {
+		ensureLoaded();
+		return mScores.get(new ScoreID(trusterID, trusteeID).toString());
+	}
+
+	/**
+	 * Returns all identities, including {@link OwnIdentity}s. The collection is a live view: If
+	 * it is iterated while a publication happens, the iteration might or might not include the
+	 * changes. Use {@link #read(Reader)} if that matters. */
+	public Collection<IdentitySnapshot> getAllIdentities() {
+		ensureLoaded();
+		return Collections.unmodifiableCollection(mIdentities.values());
+	}
+
+	/** Same as {@link #getAllIdentities()} for {@link OwnIdentity}s only. */
+	public Collection<IdentitySnapshot> getAllOwnIdentities() {
+		ensureLoaded();
+		return Collections.unmodifiableCollection(mOwnIdentities.values());
+	}
+
+	/** Returns a copy of the IDs of all {@link OwnIdentity}s. */
+	public ArrayList<String> getAllOwnIdentityIDs() {
+		ensureLoaded();
+		return new ArrayList<String>(mOwnIdentities.keySet());
+	}
+
+	public int getIdentityCount() {
+		ensureLoaded();
+		return mIdentities.size();
+	}
+
+	public int getOwnIdentityCount() {
+		ensureLoaded();
+		return mOwnIdentities.size();
+	}
+
+	public int getTrustCount() {
+		ensureLoaded();
+		return mTrusts.size();
+	}
+
+	public int getScoreCount() {
+		ensureLoaded();
+		return mScores.size();
+	}
+}
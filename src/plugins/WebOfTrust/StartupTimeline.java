@@ -0,0 +1,136 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.support.Logger;
+
+/**
+ * Records the duration of each phase of {@link WebOfTrust#runPlugin(freenet.pluginmanager.
+ * PluginRespirator)} and of the maintenance which {@link DeferredStartupMaintenance} runs
+ * afterwards, so users and developers can see what makes startup slow.<br>
+ * Displayed on the {@link plugins.WebOfTrust.ui.web.StatisticsPage} and logged once startup
+ * has completed.<br><br>
+ *
+ * Thread-safe: The synchronous phases are recorded by the startup thread, the background ones by
+ * the thread of {@link DeferredStartupMaintenance}, and the UI reads them concurrently.
+ */
+public final class StartupTimeline {
+
+	public static final class Phase {
+		private final String mName;
+
+		/** Milliseconds since {@link StartupTimeline#StartupTimeline()} when the phase started. */
+		private final long mStart;
+
+		private final long mDuration;
+
+		/** True if it was run by {@link DeferredStartupMaintenance} after startup completed. */
+		private final boolean mBackground;
+
+		Phase(String name, long start, long duration, boolean background) {
+			mName = name;
+			mStart = start;
+			mDuration = duration;
+			mBackground = background;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		/** Milliseconds since the startup began. */
+		public long getStart() {
+			return mStart;
+		}
+
+		/** Milliseconds. */
+		public long getDuration() {
+			return mDuration;
+		}
+
+		public boolean isBackground() {
+			return mBackground;
+		}
+
+		@Override public String toString() {
+			return mName + (mBackground ? " (background)" : "") + ": +" + mStart + " ms, took "
+				+ mDuration + " ms";
+		}
+	}
+
+	private final long mStartTime = System.currentTimeMillis();
+
+	/** Protected by synchronized(this). */
+	private final ArrayList<Phase> mPhases = new ArrayList<Phase>();
+
+	/** Name of the synchronous phase which is running, or null. */
+	private String mCurrentPhase = null;
+
+	private long mCurrentPhaseStart;
+
+	/** -1 until {@link #finishStartup()} was called. */
+	private long mStartupDuration = -1;
+
+
+	/** Ends the previous synchronous phase, if any, and starts a new one. */
+	public synchronized void beginPhase(String name) {
+		endPhase();
+		mCurrentPhase = name;
+		mCurrentPhaseStart = System.currentTimeMillis();
+	}
+
+	private synchronized void endPhase() {
+		if(mCurrentPhase == null)
+			return;
+
+		final long now = System.currentTimeMillis();
+		mPhases.add(new Phase(mCurrentPhase, mCurrentPhaseStart - mStartTime,
+			now - mCurrentPhaseStart, false));
+		mCurrentPhase = null;
+	}
+
+	/**
+	 * Ends the last synchronous phase, i.e. marks the point in time where WoT became usable, and
+	 * logs the timeline. */
+	public synchronized void finishStartup() {
+		endPhase();
+		mStartupDuration = System.currentTimeMillis() - mStartTime;
+		Logger.normal(this, "Startup completed: " + this);
+	}
+
+	/**
+	 * Records a phase which was run in the background after {@link #finishStartup()}.
+	 *
+	 * @param startTime The {@link System#currentTimeMillis()} when the phase started. It ends
+	 *     now. */
+	public synchronized void addBackgroundPhase(String name, long startTime) {
+		final long now = System.currentTimeMillis();
+		final Phase phase = new Phase(name, startTime - mStartTime, now - startTime, true);
+		mPhases.add(phase);
+		Logger.normal(this, "Startup maintenance completed: " + phase);
+	}
+
+	/** @return A copy of the completed phases in the order they were completed. */
+	public synchronized List<Phase> getPhases() {
+		return new ArrayList<Phase>(mPhases);
+	}
+
+	/**
+	 * @return Milliseconds from the begin of startup until {@link #finishStartup()}, or -1 if
+	 *     startup has not completed yet. */
+	public synchronized long getStartupDuration() {
+		return mStartupDuration;
+	}
+
+	@Override public synchronized String toString() {
+		final StringBuilder result = new StringBuilder();
+		result.append("Total: ").append(mStartupDuration).append(" ms");
+		for(Phase phase : mPhases)
+			result.append("; ").append(phase);
+		return result.toString();
+	}
+}
@@ -0,0 +1,86 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.List;
+
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+/**
+ * Storage of the trust graph, i.e. the {@link Identity}, {@link OwnIdentity}, {@link Trust} and
+ * {@link Score} objects, and the queries which the {@link WebOfTrust} executes upon it.<br>
+ * This allows benchmarking different database engines against each other with the same
+ * workload, and replacing db4o with another engine:<br>
+ * - {@link Db4oStorageEngine} is the db4o database which WoT uses.<br>
+ * - {@link MemoryStorageEngine} keeps all objects in memory and persists them with a
+ *   write-ahead log.<br><br>
+ *
+ * The functions follow the semantics of the equally named functions of {@link WebOfTrust}:
+ * Changes are made by {@link #storeWithoutCommit(Persistent)} and
+ * {@link #deleteWithoutCommit(Persistent)} and become durable by {@link #commit()}. Modifying
+ * a returned object does not change the stored one before it is passed to
+ * {@link #storeWithoutCommit(Persistent)}.<br><br>
+ *
+ * Scope: Only the trust graph is covered. The commands of {@link IdentityFetcher}, the
+ * notifications of {@link SubscriptionManager} and the puzzles of
+ * {@link plugins.WebOfTrust.introduction.IntroductionPuzzleStore} are not: They cannot be encoded
+ * by {@link PersistentCodec}, and are stored and queried by db4o directly.<br>
+ * The WebOfTrust executes its queries for {@link Trust}s and {@link Score}s through its
+ * {@link Db4oStorageEngine}, see {@link WebOfTrust#getStorageEngine()}. The lookups of
+ * {@link Identity}s and the other queries of the WebOfTrust still use db4o directly, so the
+ * engine of a running WebOfTrust cannot be swapped yet.<br><br>
+ *
+ * Locking: Implementations must be usable under the locks which the {@link WebOfTrust} uses for
+ * its database, i.e. synchronized on the WebOfTrust and the
+ * {@link Persistent#transactionLock(com.db4o.ext.ExtObjectContainer)} for transactions. They
+ * may require these locks.
+ */
+public interface StorageEngine {
+
+	/** @throws UnknownIdentityException If there is no {@link Identity} with the given ID. */
+	public Identity getIdentityByID(String id) throws UnknownIdentityException;
+
+	/** @throws UnknownIdentityException If there is no {@link OwnIdentity} with the given ID. */
+	public OwnIdentity getOwnIdentityByID(String id) throws UnknownIdentityException;
+
+	/** @return All {@link Identity}s, including the {@link OwnIdentity}s. */
+	public List<Identity> getAllIdentities();
+
+	public List<OwnIdentity> getAllOwnIdentities();
+
+	/** @throws NotTrustedException If there is no {@link Trust} with the given {@link Trust#getID()}. */
+	public Trust getTrust(String id) throws NotTrustedException;
+
+	/** @return The {@link Trust}s which the given {@link Identity} has given. */
+	public List<Trust> getGivenTrusts(Identity truster);
+
+	/** @return The {@link Trust}s which the given {@link Identity} has received. */
+	public List<Trust> getReceivedTrusts(Identity trustee);
+
+	/** @throws NotInTrustTreeException If there is no {@link Score} with the given {@link Score#getID()}. */
+	public Score getScore(String id) throws NotInTrustTreeException;
+
+	/** @return The {@link Score}s in the trust tree of the given {@link OwnIdentity}. */
+	public List<Score> getGivenScores(OwnIdentity truster);
+
+	/** @return The {@link Score}s which the given {@link Identity} has in all trust trees. */
+	public List<Score> getScores(Identity trustee);
+
+	/**
+	 * Stores the given {@link Identity}, {@link Trust} or {@link Score}, or the changes to it.
+	 *
+	 * @throws IllegalArgumentException If the object is of another type. */
+	public void storeWithoutCommit(Persistent object);
+
+	/** @see #storeWithoutCommit(Persistent) */
+	public void deleteWithoutCommit(Persistent object);
+
+	/** Makes the changes since the last commit or rollback durable. */
+	public void commit();
+
+	/** Discards the changes since the last commit or rollback. */
+	public void rollback();
+}
@@ -4,11 +4,17 @@
 package plugins.WebOfTrust;
 
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.UUID;
 
 import plugins.WebOfTrust.exceptions.DuplicateObjectException;
+import plugins.WebOfTrust.ui.fcp.FCPInterface;
 import plugins.WebOfTrust.ui.fcp.FCPInterface.FCPCallFailedException;
 import plugins.WebOfTrust.util.jobs.BackgroundJob;
 import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
@@ -22,6 +28,7 @@ import com.db4o.query.Query;
 import freenet.node.PrioRunnable;
 import freenet.pluginmanager.FredPluginFCPMessageHandler;
 import freenet.pluginmanager.PluginRespirator;
+import freenet.support.CurrentTimeUTC;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.PooledExecutor;
@@ -34,8 +41,10 @@ import freenet.support.io.NativeThread;
  * The subscription manager allows client application to subscribe to certain data sets of WoT and get notified on change.
  * For example, if you subscribe to the list of identities, you will get a notification when an identity is added or removed.
  * 
- * The architecture of this class supports implementing different types of subscriptions: Currently, only FCP is implemented, but it is also technically possible to have subscriptions
- * which do a callback within the WoT plugin or maybe even via OSGI.
+ * The architecture of this class supports implementing different types of subscriptions: Currently, FCP and in-process callbacks via
+ * {@link SubscriptionListener} are implemented, but it is also technically possible to have subscriptions via OSGI for example.
+ * For callback clients, the events are not stored in the database as {@link Notification}s but queued in memory as
+ * {@link SubscriptionEvent}s, see {@link CallbackQueue}.
  * 
  * The class/object model is as following:
  * - There is exactly one SubscriptionManager object running in the WOT plugin. It is the interface for {@link Client}s.
@@ -68,6 +77,7 @@ import freenet.support.io.NativeThread;
  *	synchronized(Persistent.transactionLock(instance of ObjectContainer)) {
  * This does not mean that you need to take all of those locks when calling functions of the SubscriptionManager:
  * Its just the general order of locks which is used all over Web Of Trust to prevent deadlocks.
+ * If assertions are enabled, it is checked by {@link WebOfTrust#mayAcquireLock(Object)}.
  * Any functions which require synchronization upon some of the locks will mention it.
  * 
  * TODO: Allow out-of-order notifications if the client desires them
@@ -89,7 +99,8 @@ public final class SubscriptionManager implements PrioRunnable {
 		 */
 		public static enum Type {
 			FCP,
-			Callback /** Not implemented yet. */
+			/** In-process client, see {@link SubscriptionListener}. */
+			Callback
 		};
 		
 		/**
@@ -110,6 +121,16 @@ public final class SubscriptionManager implements PrioRunnable {
 		 */
 		@IndexedField
 		private final String mFCP_ID;
+		
+		/**
+		 * An ID which associates this client with its {@link CallbackQueue} if the type is
+		 * {@link Type#Callback}.<br>
+		 * Must be a valid {@link UUID}.
+		 * 
+		 * @see #getCallbackID()
+		 */
+		@IndexedField
+		private final String mCallbackID;
 
 		/**
 		 * Each {@link Notification} is given an index upon creation. The indexes ensure sequential processing.
@@ -129,12 +150,59 @@ public final class SubscriptionManager implements PrioRunnable {
 		 */
 		private byte mSendNotificationsFailureCount = 0;
 		
+		/**
+		 * True if the client has requested to receive multiple {@link Notification}s in a single
+		 * FCP message, see {@link FCPInterface#sendNotificationBatch(UUID, List)}.
+		 * 
+		 * @see #acceptsNotificationBatches()
+		 */
+		private boolean mAcceptsNotificationBatches = false;
+		
+		/**
+		 * Set to true if deploying a batch of {@link Notification}s failed. The following attempts
+		 * of {@link #sendNotifications(SubscriptionManager)} will then deploy the Notifications
+		 * one by one to isolate the one which failed. Once the queue has been emptied this way,
+		 * it is reset to false and batching is resumed.
+		 */
+		private boolean mNotificationBatchingSuspended = false;
+		
+		/**
+		 * Set to true if the queue of this Client has exceeded
+		 * {@link SubscriptionManager#getMaxQueuedNotificationsPerClient()} or
+		 * {@link SubscriptionManager#getMaxQueuedNotificationBytesPerClient()}.<br>
+		 * No further {@link ObjectChangedNotification}s are queued then. Instead,
+		 * {@link SubscriptionManager#run()} drops the whole queue and restarts the synchronization
+		 * of each {@link Subscription} of the client, which then is streamed in pages as usual.
+		 * This bounds the size of the database if a client is slow but still connected.<br>
+		 * For {@link Type#Callback}, the same applies to the {@link CallbackQueue}, see
+		 * {@link SubscriptionManager#checkCallbackQueueLimitWithoutCommit(Client)}.
+		 * 
+		 * @see SubscriptionManager#resynchronizeClientWithoutCommit(Client)
+		 */
+		private boolean mResynchronizationRequired = false;
+		
 		/** @param myFCP_ID See {@link #mFCP_ID} */
 		public Client(final UUID myFCP_ID) {
             assert(myFCP_ID != null);
             
 			mType = Type.FCP;
 			mFCP_ID = myFCP_ID.toString();
+			mCallbackID = null;
+		}
+		
+		/**
+		 * Constructor for clients of {@link Type#Callback}.
+		 * 
+		 * @param myCallbackID See {@link #mCallbackID}
+		 * @param callback Ignored, only exists to distinguish the constructor from
+		 *     {@link #Client(UUID)}.
+		 */
+		Client(final UUID myCallbackID, final SubscriptionListener callback) {
+			assert(myCallbackID != null);
+			
+			mType = Type.Callback;
+			mFCP_ID = null;
+			mCallbackID = myCallbackID.toString();
 		}
 		
 		/** {@inheritDoc} */
@@ -147,6 +215,9 @@ public final class SubscriptionManager implements PrioRunnable {
 			if(mType == Type.FCP) {
 				IfNull.thenThrow(mFCP_ID, "mFCP_ID");
 				UUID.fromString(mFCP_ID); // Throws if invalid.
+			} else if(mType == Type.Callback) {
+				IfNull.thenThrow(mCallbackID, "mCallbackID");
+				UUID.fromString(mCallbackID); // Throws if invalid.
 			}
 			
 			if(mNextNotificationIndex < 0)
@@ -192,6 +263,28 @@ public final class SubscriptionManager implements PrioRunnable {
 			return UUID.fromString(mFCP_ID);
 		}
 		
+		/**
+		 * @return An ID which associates this Client with its {@link CallbackQueue} if the type
+		 *     is {@link Type#Callback}.
+		 * @see #mCallbackID
+		 */
+		public final String getCallbackID() {
+			if(getType() != Type.Callback)
+				throw new UnsupportedOperationException("Type is not Callback:" + getType());
+			
+			checkedActivate(1);
+			return mCallbackID;
+		}
+		
+		/**
+		 * @return {@link #getFCP_ID()} or {@link #getCallbackID()}, depending on the
+		 *     {@link #getType()}. Used as key for in-memory state of the Client such as its
+		 *     {@link ClientStatistics}.
+		 */
+		final String getTypeSpecificID() {
+			return getType() == Type.Callback ? getCallbackID() : getFCP_ID().toString();
+		}
+		
 		/**
 		 * Returns the next free index for a {@link Notification} in the queue of this Client.
 		 * 
@@ -206,6 +299,46 @@ public final class SubscriptionManager implements PrioRunnable {
 			return index;
 		}
 		
+		/**
+		 * @see #mAcceptsNotificationBatches
+		 */
+		public final boolean acceptsNotificationBatches() {
+			checkedActivate(1);
+			return mAcceptsNotificationBatches;
+		}
+		
+		/**
+		 * Stores this Client object without committing the transaction.
+		 * 
+		 * @see #mAcceptsNotificationBatches
+		 */
+		protected final void setAcceptsNotificationBatchesWithoutCommit(final boolean accepts) {
+			checkedActivate(1);
+			mAcceptsNotificationBatches = accepts;
+			storeWithoutCommit();
+		}
+		
+		/**
+		 * @see #mResynchronizationRequired
+		 */
+		public final boolean isResynchronizationRequired() {
+			checkedActivate(1);
+			return mResynchronizationRequired;
+		}
+		
+		/**
+		 * Stores this Client object without committing the transaction.
+		 * 
+		 * @see #mResynchronizationRequired
+		 */
+		final void setResynchronizationRequiredWithoutCommit(final boolean required) {
+			checkedActivate(1);
+			mResynchronizationRequired = required;
+			storeWithoutCommit();
+			getSubscriptionManager().setResynchronizationRequiredStatisticWithoutCommit(this,
+				required);
+		}
+		
 		/**
 		 * @see #mSendNotificationsFailureCount
 		 */
@@ -250,7 +383,7 @@ public final class SubscriptionManager implements PrioRunnable {
          *             terminating the thread so WOT can shutdown quickly.<br>
          *             You do not have to rollback the transaction if this happens.
 		 */
-		protected boolean sendNotifications(SubscriptionManager manager)
+		protected boolean sendNotifications(final SubscriptionManager manager)
 		        throws InterruptedException {
 		    
 			if(SubscriptionManager.logMINOR) Logger.minor(manager, "sendNotifications() for " + this);
@@ -261,7 +394,18 @@ public final class SubscriptionManager implements PrioRunnable {
 			// This is necessary for SubscriptionManager.stop() to be fast.
 			switch(getType()) {
 				case FCP:
-					for(final Notification notification : manager.getNotifications(this)) {
+					checkedActivate(1);
+					if(mAcceptsNotificationBatches && !mNotificationBatchingSuspended)
+						return sendNotificationBatches(manager);
+					
+					final Iterator<? extends Notification> notifications
+					    = manager.getNotifications(this).iterator();
+					final ArrayList<String> streamedSubscriptions = new ArrayList<String>(3);
+					Notification notification;
+					
+					while((notification = nextDeployableNotification(
+					        notifications, streamedSubscriptions)) != null) {
+					    
 						if(SubscriptionManager.logDEBUG) Logger.debug(manager, "Sending notification via FCP: " + notification);
 						try {
 							try {
@@ -271,6 +415,10 @@ public final class SubscriptionManager implements PrioRunnable {
                                 // Shutdown of WOT was requested. This is normal mode of operation,
                                 // and not the fault of the client, so we do not increment its
                                 // failure counter.
+                                // The deletions of the previous notifications may have been
+                                // deferred by the GroupCommit, see below. Nothing was changed
+                                // for this notification yet, so they can be committed.
+                                Persistent.commitDeferred(mDB, this);
                                 Persistent.checkedRollback(mDB, this, e, LogLevel.NORMAL);
                                 throw e;
                             } catch(Throwable e) {
@@ -280,48 +428,49 @@ public final class SubscriptionManager implements PrioRunnable {
 							    // compatible until the next build. Change it back to the
 							    // Java7-style catch(). 
 							    
+							    // Commit the deferred deletions of the previous notifications
+							    // as above: notifySubscriberByFCP() does not change the
+							    // database, and deleteWithoutCommit() rolls back by itself if
+							    // it fails.
+								Persistent.commitDeferred(mDB, this);
 								Persistent.checkedRollback(mDB, this, e, LogLevel.WARNING);
-								
-								final byte failureCount = incrementSendNotificationsFailureCountWithoutCommit();
-								Persistent.checkedCommit(mDB, this);
-								
-								boolean doNotDeleteClient = true;
-								
-								// Check whether the client has disconnected. If so, we must delete
-								// it immediately. If not, we must only delete it after the failure
-								// counter has passed the limit.
-                                if(e instanceof IOException) {
-									Logger.warning(manager, "sendNotifications() failed, client has disconnected, failure count: " + failureCount, e);
-									doNotDeleteClient = false;
-								} else {
-								    if(e instanceof FCPCallFailedException) {
-								        Logger.warning(manager, "sendNotifications() failed because"
-								            + " the client indicated failure at its side."
-								            + " Failure count: " + failureCount, e);
-								    } else {
-								        assert(e instanceof RuntimeException);
-                                        Logger.error(manager, "Bug in sendNotifications()!", e);
-								    }
-									if(failureCount >= DISCONNECT_CLIENT_AFTER_FAILURE_COUNT) 
-										doNotDeleteClient = false;
-								}
-								
-								if(doNotDeleteClient)
-									manager.scheduleNotificationProcessing();
-								
-								return doNotDeleteClient;
+								return handleSendNotificationsFailure(manager, e);
 							}
 							
 							// If processing of a single notification fails, we do not want the previous notifications
 							// to be sent again when the failed notification is retried. Therefore, we commit after
-							// each processed notification but do not catch RuntimeExceptions here
+							// each processed notification but do not catch RuntimeExceptions here.
+							// The commit may be deferred by the GroupCommit: If the deletion is
+							// rolled back, the notification is deployed again, which is allowed.
 							
-							Persistent.checkedCommit(mDB, this);
+							final String clientID = getTypeSpecificID();
+							final long payloadSize = notification.getPayloadSize();
+							Persistent.checkedCommit(mDB, this, new Persistent.DurabilityCallback() {
+								@Override public void onDurable() {
+									manager.countDeployedNotifications(clientID, 1, payloadSize);
+								}
+								
+								@Override public void onRolledBack() {}
+							});
 						} catch(RuntimeException e) {
 							Persistent.checkedRollbackAndThrow(mDB, this, e);
 						}
 						if(SubscriptionManager.logDEBUG) Logger.debug(manager, "Sending notification via FCP finished: " + notification);
 					}
+					
+					if(mNotificationBatchingSuspended) {
+						// The notification which caused the batch to fail was deployed now.
+						mNotificationBatchingSuspended = false;
+						storeWithoutCommit();
+						Persistent.checkedCommit(mDB, this);
+					}
+					
+					manager.scheduleSynchronizationStreaming(streamedSubscriptions);
+					break;
+				case Callback:
+					// The listener must not be called while we hold the SubscriptionManager lock,
+					// so run() does it after releasing the lock.
+					manager.scheduleCallbackDelivery(getCallbackID());
 					break;
 				default:
 					throw new UnsupportedOperationException("Unknown Type: " + getType());
@@ -330,6 +479,172 @@ public final class SubscriptionManager implements PrioRunnable {
 			return true;
 		}
 		
+		/**
+		 * Implementation of {@link #sendNotifications(SubscriptionManager)} for clients which
+		 * {@link #acceptsNotificationBatches()}: Packs up to
+		 * {@link SubscriptionManager#MAX_NOTIFICATIONS_PER_BATCH} Notifications, or
+		 * {@link SubscriptionManager#MAX_NOTIFICATION_BATCH_BYTES} of payload, into a single
+		 * message via {@link FCPInterface#sendNotificationBatch(UUID, List)}.<br>
+		 * The client acknowledges each batch as a whole, so the Notifications of a batch are
+		 * deleted and the transaction is committed once per batch instead of once per
+		 * Notification.<br><br>
+		 * 
+		 * If deploying a batch fails, the failure is handled like failure of a single Notification
+		 * is handled by sendNotifications(), and {@link #mNotificationBatchingSuspended} is set so
+		 * the retry will deploy the Notifications one by one.
+		 * 
+		 * @return False if this Client should be deleted.
+		 * @throws InterruptedException See {@link #sendNotifications(SubscriptionManager)}.
+		 */
+		private boolean sendNotificationBatches(final SubscriptionManager manager)
+		        throws InterruptedException {
+		    
+			final FCPInterface fcp = mWebOfTrust.getFCPInterface();
+			final UUID fcpID = getFCP_ID();
+			final ArrayList<Notification> batch
+			    = new ArrayList<Notification>(MAX_NOTIFICATIONS_PER_BATCH);
+			final Iterator<? extends Notification> notifications
+			    = manager.getNotifications(this).iterator();
+			final ArrayList<String> streamedSubscriptions = new ArrayList<String>(3);
+			
+			Notification next = nextDeployableNotification(notifications, streamedSubscriptions);
+			
+			while(next != null) {
+				batch.clear();
+				long batchBytes = 0;
+				
+				// A single Notification which is larger than the byte limit is still sent, alone.
+				do {
+					batch.add(next);
+					batchBytes += next.getPayloadSize();
+					next = nextDeployableNotification(notifications, streamedSubscriptions);
+				} while(next != null
+				     && batch.size() < MAX_NOTIFICATIONS_PER_BATCH
+				     && batchBytes + next.getPayloadSize() <= MAX_NOTIFICATION_BATCH_BYTES);
+				
+				if(SubscriptionManager.logDEBUG) {
+					Logger.debug(manager, "Sending batch of " + batch.size()
+					                    + " notifications via FCP, bytes: " + batchBytes);
+				}
+				
+				try {
+					try {
+						fcp.sendNotificationBatch(fcpID, batch);
+						for(Notification notification : batch)
+							notification.deleteWithoutCommit();
+					} catch(InterruptedException e) {
+						// Shutdown of WOT was requested, not the fault of the client.
+						Persistent.checkedRollback(mDB, this, e, LogLevel.NORMAL);
+						throw e;
+					} catch(Throwable e) {
+						// FIXME: Code quality: Java 7 multi-catch, see sendNotifications().
+						Persistent.checkedRollback(mDB, this, e, LogLevel.WARNING);
+						
+						checkedActivate(1);
+						mNotificationBatchingSuspended = true;
+						storeWithoutCommit();
+						return handleSendNotificationsFailure(manager, e);
+					}
+					
+					Persistent.checkedCommit(mDB, this);
+					manager.countDeployedNotifications(this, batch.size(), batchBytes);
+				} catch(RuntimeException e) {
+					Persistent.checkedRollbackAndThrow(mDB, this, e);
+				}
+			}
+			
+			manager.scheduleSynchronizationStreaming(streamedSubscriptions);
+			return true;
+		}
+		
+		/**
+		 * Returns the next {@link Notification} of the given queue iterator which may be deployed
+		 * now, or null if there is none.<br><br>
+		 * 
+		 * Notifications of a {@link Subscription} whose synchronization is still being streamed
+		 * (see {@link Subscription#isSynchronizationInProgress()}) must not be deployed beyond its
+		 * {@link EndSynchronizationNotification}: The End marker and the changes which follow it
+		 * are held back until all pages have been streamed. The IDs of such Subscriptions are
+		 * added to the given list in queue order, so the caller can pass it to
+		 * {@link SubscriptionManager#scheduleSynchronizationStreaming(List)}.<br>
+		 * Notifications of other Subscriptions are deployed as usual: Their changes might be
+		 * required by the client for understanding the pending pages, for example a new
+		 * {@link Identity} to which a streamed {@link Trust} points.
+		 */
+		private Notification nextDeployableNotification(
+		        final Iterator<? extends Notification> notifications,
+		        final List<String> streamedSubscriptions) {
+		    
+			while(notifications.hasNext()) {
+				final Notification notification = notifications.next();
+				
+				if(!streamedSubscriptions.isEmpty() || notification instanceof EndSynchronizationNotification<?>) {
+					final Subscription<? extends EventSource> subscription
+					    = notification.getSubscription();
+					final String subscriptionID = subscription.getID();
+					
+					if(streamedSubscriptions.contains(subscriptionID))
+						continue;
+					
+					if(notification instanceof EndSynchronizationNotification<?>
+					        && subscription.isSynchronizationInProgress()) {
+						streamedSubscriptions.add(subscriptionID);
+						continue;
+					}
+				}
+				
+				return notification;
+			}
+			
+			return null;
+		}
+		
+		/**
+		 * Increments the failure counter, commits the transaction and decides whether this Client
+		 * shall be deleted due to the failure.<br>
+		 * Must be called after the transaction of the failed deployment was rolled back.
+		 * 
+		 * @param e The failure of {@link Subscription#notifySubscriberByFCP(Notification)} or
+		 *     {@link FCPInterface#sendNotificationBatch(UUID, List)}.
+		 * @return False if this Client should be deleted.
+		 */
+		private boolean handleSendNotificationsFailure(final SubscriptionManager manager,
+		        final Throwable e) {
+		    
+			final byte failureCount = incrementSendNotificationsFailureCountWithoutCommit();
+			Persistent.checkedCommit(mDB, this);
+			
+			boolean doNotDeleteClient = true;
+			
+			// Check whether the client has disconnected. If so, we must delete
+			// it immediately. If not, we must only delete it after the failure
+			// counter has passed the limit.
+			if(e instanceof IOException) {
+				Logger.warning(manager, "sendNotifications() failed, client has disconnected, failure count: " + failureCount, e);
+				doNotDeleteClient = false;
+			} else {
+				if(getType() == Type.Callback) {
+					Logger.warning(manager, "sendNotifications() failed because"
+						+ " the SubscriptionListener threw."
+						+ " Failure count: " + failureCount, e);
+				} else if(e instanceof FCPCallFailedException) {
+					Logger.warning(manager, "sendNotifications() failed because"
+						+ " the client indicated failure at its side."
+						+ " Failure count: " + failureCount, e);
+				} else {
+					assert(e instanceof RuntimeException);
+					Logger.error(manager, "Bug in sendNotifications()!", e);
+				}
+				if(failureCount >= DISCONNECT_CLIENT_AFTER_FAILURE_COUNT) 
+					doNotDeleteClient = false;
+			}
+			
+			if(doNotDeleteClient)
+				manager.scheduleNotificationProcessing();
+			
+			return doNotDeleteClient;
+		}
+		
 		/**
 		 * Sends a message to the client which indicates that a {@link Subscription} has been forcefully terminated.
 		 * This can happen if the client exceeds the limit of {@link SubscriptionManager#DISCONNECT_CLIENT_AFTER_FAILURE_COUNT} failures
@@ -351,6 +666,15 @@ public final class SubscriptionManager implements PrioRunnable {
 								    .getClass(),
 								deletedSubscriptoin.getID());
 						break;
+					case Callback:
+						final CallbackQueue queue
+						    = getSubscriptionManager().getCallbackQueue(getCallbackID());
+						if(queue != null) {
+							queue.mListener.handleSubscriptionEvent(new SubscriptionEvent(
+							    SubscriptionEvent.Type.Unsubscribed, deletedSubscriptoin.getID(),
+							    deletedSubscriptoin.getEventSourceClass(), null, null, null));
+						}
+						break;
 					default:
 						throw new UnsupportedOperationException("Unknown Type: " + getType());
 				}
@@ -381,6 +705,11 @@ public final class SubscriptionManager implements PrioRunnable {
 				notifyClientAboutDeletion(subscription);
 			}
 			super.deleteWithoutCommit();
+			
+			if(getType() == Type.Callback)
+				subscriptionManager.removeCallbackQueue(getCallbackID());
+			
+			subscriptionManager.removeClientStatistics(this);
 		}
 
 		/** {@inheritDoc} */
@@ -392,7 +721,10 @@ public final class SubscriptionManager implements PrioRunnable {
 		public String toString() {
 			return "[" + super.toString()
 			     + "; Type: " + getType()
-			     + "; FCP ID: " + getFCP_ID() + "]"; 
+			     + (getType() == Type.Callback
+			         ? "; Callback ID: " + getCallbackID()
+			         : "; FCP ID: " + getFCP_ID())
+			     + "]"; 
 		}
 	}
 	
@@ -427,6 +759,30 @@ public final class SubscriptionManager implements PrioRunnable {
 		@IndexedField
 		private final String mID;
 		
+		/**
+		 * The cursor of the synchronization which is being streamed to the client, see
+		 * {@link #storeSynchronizationWithoutCommit()}:<br>
+		 * - null if no synchronization is in progress.<br>
+		 * - "" if the synchronization is pending but no page of it has been streamed yet.<br>
+		 * - Otherwise the {@link EventSource#getID()} of the last object which was streamed.<br>
+		 * <br>
+		 * 
+		 * All objects whose ID is greater than the cursor are not known to the client yet, they
+		 * will be streamed at their then-current state as part of a future page. Thus, changes to
+		 * them must not be queued as {@link ObjectChangedNotification}s.
+		 * 
+		 * @see #synchronizationWillContain(String)
+		 */
+		private String mSynchronizationCursor = null;
+		
+		/**
+		 * The {@link BeginSynchronizationNotification#getID()} of the synchronization which is
+		 * being streamed. All objects of the synchronization are streamed with it as
+		 * {@link EventSource#getVersionID()}.<br>
+		 * Null if {@link #mSynchronizationCursor} is null.
+		 */
+		private String mSynchronizationVersionID = null;
+		
 		/**
 		 * Constructor for being used by child classes.
 		 * @param myClient The {@link Client} to which this Subscription belongs.
@@ -447,6 +803,13 @@ public final class SubscriptionManager implements PrioRunnable {
 			
 			IfNull.thenThrow(mID, "mID");
 			UUID.fromString(mID); // Throws if invalid
+			
+			if(mSynchronizationCursor != null) {
+				IfNull.thenThrow(mSynchronizationVersionID, "mSynchronizationVersionID");
+				UUID.fromString(mSynchronizationVersionID); // Throws if invalid
+			} else if(mSynchronizationVersionID != null)
+				throw new IllegalStateException("mSynchronizationVersionID without cursor: "
+				    + mSynchronizationVersionID);
 		}
 
 		/**
@@ -490,8 +853,26 @@ public final class SubscriptionManager implements PrioRunnable {
 			for(final Notification notification : manager.getNotifications(this)) {
 				notification.deleteWithoutCommit();
 			}
+			removeQueuedCallbackEvents(manager);
+			removeSynchronizationPager(manager);
 			super.deleteWithoutCommit();
 		}
+		
+		/**
+		 * If the {@link Client} is of {@link Client.Type#Callback}, removes the
+		 * {@link SubscriptionEvent}s of this Subscription from its {@link CallbackQueue}.<br>
+		 * The in-memory queue does not follow the transaction, so only use this if the
+		 * transaction will be committed.
+		 */
+		private void removeQueuedCallbackEvents(final SubscriptionManager manager) {
+			final Client client = getClient();
+			if(client.getType() != Client.Type.Callback)
+				return;
+			
+			final CallbackQueue queue = manager.getCallbackQueue(client.getCallbackID());
+			if(queue != null)
+				queue.removeSubscription(getID());
+		}
 
 		/**
 		 * Called by the {@link SubscriptionManager} before storing a new Subscription.
@@ -505,24 +886,57 @@ public final class SubscriptionManager implements PrioRunnable {
          * As new identities appear afterwards, the client can be kept up to date by sending each single new identity as it appears.
          * <br><br>
          * 
-		 * The job of this function is to store the initial state of the WOT database in this
-		 * Subscription, as a clone of all relevant objects, serialized into a series of
-		 * {@link ObjectChangedNotification}s.<br>
-		 * The actual deployment of the data to the client will happen in the future, as part of
-		 * regular {@link Notification} deployment: The synchronization can be large in size, and
-		 * thus sending it over the network can take a long time. Therefore, it would be bad if we
-		 * sent it directly from the main {@link WebOfTrust} database since that would require us
-		 * to take the main {@link WebOfTrust} lock during the whole time.<br>
-		 * By separating the part of copying the data from the {@link WebOfTrust} into a local
-		 * operation, we can keep the time we have to take the main lock as short as possible.<br>
+		 * The job of this function is to prepare the deployment of the initial state of the WOT
+		 * database to the client, which we call "synchronization".<br>
+		 * The synchronization can be very large in size: A {@link ScoresSubscription} can consist
+		 * of hundreds of thousands of objects. Therefore, it would be bad to clone all of them into
+		 * {@link ObjectChangedNotification}s in a single transaction while holding the main
+		 * {@link WebOfTrust} lock. Instead, only a {@link BeginSynchronizationNotification} and an
+		 * {@link EndSynchronizationNotification} are queued, and the objects between them are
+		 * streamed to the client page by page by
+		 * {@link SubscriptionManager#streamSynchronizationPage(String)} when the regular
+		 * {@link Notification} deployment has reached the EndSynchronizationNotification.<br>
+		 * Each page is read through the cursor {@link #mSynchronizationCursor} in a short
+		 * transaction, ordered by {@link EventSource#getID()}, see {@link IDOrderedPager}.<br>
+		 * The synchronization is NOT a snapshot of the time of subscribing: Each object is streamed
+		 * at its state at the time its page is read, and objects which are created or deleted
+		 * beyond the cursor meanwhile are included or left out accordingly. Therefore, changes to
+		 * objects beyond the cursor are not queued as {@link ObjectChangedNotification}s, see
+		 * {@link #synchronizationWillContain(String)}, while changes to the objects up to the
+		 * cursor, which the client has received already, are queued behind the
+		 * {@link EndSynchronizationNotification}. The client's view is merged from both: Once it
+		 * has processed the EndSynchronizationNotification and the Notifications queued behind it,
+		 * it matches the database, even though it was never equal to a single past state of the
+		 * database in between.<br>
 		 * <br>
 		 * 
          * <b>Thread safety:</b><br>
-		 * This must be called while locking upon the {@link WebOfTrust}, the SubscriptionManager
-		 * and the {@link Persistent#transactionLock(ExtObjectContainer)}.<br>
-		 * Therefore it may perform database queries on the WebOfTrust to obtain the dataset.
+		 * This must be called while locking upon the SubscriptionManager and the
+		 * {@link Persistent#transactionLock(ExtObjectContainer)}.<br>
+		 * Stores this Subscription without committing the transaction.
 		 */
 		protected final void storeSynchronizationWithoutCommit() {
+            final Client client = getClient();
+            
+            if(client.getType() == Client.Type.Callback) {
+                // Callback clients receive the markers from their in-memory CallbackQueue.
+                final UUID versionID = UUID.randomUUID();
+                final SubscriptionManager manager = client.getSubscriptionManager();
+                
+                checkedActivate(1);
+                mSynchronizationVersionID = versionID.toString();
+                mSynchronizationCursor = "";
+                storeWithoutCommit();
+                
+                manager.stageCallbackEventWithoutCommit(client.getCallbackID(),
+                    new SubscriptionEvent(SubscriptionEvent.Type.BeginSynchronization, getID(),
+                        getEventSourceClass(), versionID, null, null));
+                manager.stageCallbackEventWithoutCommit(client.getCallbackID(),
+                    new SubscriptionEvent(SubscriptionEvent.Type.EndSynchronization, getID(),
+                        getEventSourceClass(), versionID, null, null));
+                return;
+            }
+            
             final BeginSynchronizationNotification<EventType> beginMarker
                 = new BeginSynchronizationNotification<EventType>(this);
                 
@@ -533,21 +947,11 @@ public final class SubscriptionManager implements PrioRunnable {
             // EventSource.setVersionID() with the version ID of the
             // BeginSynchronizationNotification beginMarker. See JavaDoc of
             // EventSource.setVersionID() and BeginSynchronizationNotification.
-            final UUID synchronizationID
-                = UUID.fromString(beginMarker.getID());
-            
-            // We require thread locking upon the WebOfTrust per JavaDoc, so we may now call
-            // getSynchronization().
-            for(EventType eventSource : getSynchronization()) {
-                // We need to call setVersionID() on the EventSource, but we must not modify the
-                // main EventSource object stored in the mWebOfTrust. Thus, we clone() the
-                // EventSource and call the setter upon the temporary clone.
-                @SuppressWarnings("unchecked")
-                EventType eventSourceWithProperVersionID = (EventType) eventSource.clone();
-                eventSourceWithProperVersionID.setVersionID(synchronizationID);
-                
-                storeNotificationWithoutCommit(null, eventSourceWithProperVersionID);
-            }
+            // This is done by takeSynchronizationPageWithoutCommit().
+            checkedActivate(1);
+            mSynchronizationVersionID = beginMarker.getID();
+            mSynchronizationCursor = "";
+            storeWithoutCommit();
             
             final EndSynchronizationNotification<EventType> endMarker
                 = new EndSynchronizationNotification<EventType>(beginMarker);
@@ -557,19 +961,163 @@ public final class SubscriptionManager implements PrioRunnable {
         }
 		
 		/**
-		 * Must return all objects of a given EventType which form a valid synchronization.<br>
-		 * This is all objects of the EventType stored in the {@link WebOfTrust}.<br><br>
+		 * Deletes all queued {@link Notification}s of this Subscription and stores a new
+		 * synchronization via {@link #storeSynchronizationWithoutCommit()}.<br>
+		 * Used if streaming a page of the synchronization has failed: The client might have
+		 * received parts of the page, so we must start over with a new version ID for it to be
+		 * able to detect which objects it received are stale.<br><br>
+		 * 
+		 * Must be called while locking upon the SubscriptionManager and the
+		 * {@link Persistent#transactionLock(ExtObjectContainer)}. Does not commit the transaction.
+		 */
+		protected final void restartSynchronizationWithoutCommit(
+		        final SubscriptionManager manager) {
+		    
+			for(final Notification notification : manager.getNotifications(this)) {
+				notification.deleteWithoutCommit();
+			}
+			removeQueuedCallbackEvents(manager);
+			removeSynchronizationPager(manager);
+			storeSynchronizationWithoutCommit();
+		}
+		
+		/**
+		 * Removes the {@link IDOrderedPager} of the synchronization in progress, if any, from the
+		 * given SubscriptionManager. If the transaction is rolled back, it will be created again
+		 * from the cursor on demand. */
+		private void removeSynchronizationPager(final SubscriptionManager manager) {
+			checkedActivate(1);
+			if(mSynchronizationVersionID != null)
+				manager.mSynchronizationPagers.remove(mSynchronizationVersionID);
+		}
+		
+		/**
+		 * @return True if the synchronization of this Subscription has not been fully streamed to
+		 *     the client yet.
+		 * @see #mSynchronizationCursor
+		 */
+		protected final boolean isSynchronizationInProgress() {
+			checkedActivate(1);
+			return mSynchronizationCursor != null;
+		}
+		
+		/**
+		 * @param eventSourceID The {@link EventSource#getID()} of an object of the EventType.
+		 * @return True if the object will be streamed to the client as part of a future page of the
+		 *     synchronization. Changes to it then must not be queued as a {@link Notification}.
+		 * @see #mSynchronizationCursor
+		 */
+		protected final boolean synchronizationWillContain(final String eventSourceID) {
+			checkedActivate(1);
+			// IDs are ASCII, so String.compareTo() matches the ordering of db4o.
+			return mSynchronizationCursor != null
+			    && eventSourceID.compareTo(mSynchronizationCursor) > 0;
+		}
+		
+		/**
+		 * Reads the next page of the synchronization, advances the cursor and stores this
+		 * Subscription without committing the transaction.<br>
+		 * The returned objects are clones, with {@link EventSource#setVersionID(UUID)} set to the
+		 * ID of the synchronization. They are self-contained and thus can be sent to the client
+		 * after the locks have been released.<br>
+		 * If the returned page is smaller than pageSize, the synchronization is finished and
+		 * {@link #isSynchronizationInProgress()} will return false.<br>
+		 * The pages are read by an {@link IDOrderedPager} which the SubscriptionManager keeps
+		 * across the pages, so each page only costs O(pageSize) instead of a query of all objects
+		 * beyond the cursor.<br><br>
 		 * 
          * <b>Thread safety:</b><br>
-         * This must be called while locking upon the {@link WebOfTrust}.<br>
-         * Therefore it may perform database queries on the WebOfTrust to obtain the dataset.<br>
-         * 
-         * @see #storeSynchronizationWithoutCommit()
-         *         storeSynchronizationWithoutCommit() will use this function to obtain the dataset
-         *         of this function. Its JavaDoc also explains what a "synchronization" is in more
-         *         detail.
+		 * This must be called while locking upon the {@link WebOfTrust}, the SubscriptionManager
+		 * and the {@link Persistent#transactionLock(ExtObjectContainer)}.
+		 */
+		protected final List<EventType> takeSynchronizationPageWithoutCommit(final int pageSize) {
+			checkedActivate(1);
+			assert(mSynchronizationCursor != null);
+			
+			final SubscriptionManager manager = getClient().getSubscriptionManager();
+			IDOrderedPager<Persistent> pager
+				= manager.mSynchronizationPagers.get(mSynchronizationVersionID);
+			
+			// The cursor of the pager is ahead of ours if the transaction which took the previous
+			// page was rolled back.
+			if(pager == null || !pager.getCursor().equals(mSynchronizationCursor)) {
+				pager = new IDOrderedPager<Persistent>(manager.mWoT,
+					getEventSourceClass().asSubclass(Persistent.class), mSynchronizationCursor);
+				manager.mSynchronizationPagers.put(mSynchronizationVersionID, pager);
+			}
+			
+			final UUID versionID = UUID.fromString(mSynchronizationVersionID);
+			final ArrayList<EventType> page = new ArrayList<EventType>(pageSize);
+			
+			for(Persistent object : pager.nextPage(pageSize)) {
+				// We need to call setVersionID() on the EventSource, but we must not modify the
+				// main EventSource object stored in the mWebOfTrust. Thus, we clone() the
+				// EventSource and call the setter upon the temporary clone.
+				@SuppressWarnings("unchecked")
+				final EventType eventSource = (EventType) ((EventSource)object).clone();
+				eventSource.setVersionID(versionID);
+				page.add(eventSource);
+			}
+			
+			if(page.size() < pageSize) {
+				manager.mSynchronizationPagers.remove(mSynchronizationVersionID);
+				mSynchronizationCursor = null;
+				mSynchronizationVersionID = null;
+			} else
+				mSynchronizationCursor = page.get(page.size() - 1).getID();
+			
+			storeWithoutCommit();
+			return page;
+		}
+		
+		/**
+		 * Must return the class of the objects of which the synchronization of this Subscription
+		 * consists, i.e. the class of the EventType.<br>
+		 * All objects of the class stored in the {@link WebOfTrust} form the synchronization.
+		 * 
+		 * @see #takeSynchronizationPageWithoutCommit(int)
+		 */
+		abstract Class<? extends EventType> getEventSourceClass();
+		
+		/**
+		 * Queues the change of an object for deployment to the {@link Client}:<br>
+		 * For {@link Client.Type#FCP}, it is stored as {@link ObjectChangedNotification} via
+		 * {@link #storeNotificationWithoutCommit(EventSource, EventSource)}.<br>
+		 * For {@link Client.Type#Callback}, it is staged as {@link SubscriptionEvent} in memory,
+		 * without serialization. It will be added to the {@link CallbackQueue} once the
+		 * transaction is committed.<br><br>
+		 * 
+		 * Must be called while locking upon the SubscriptionManager and the
+		 * {@link Persistent#transactionLock(ExtObjectContainer)}.
+		 * 
+		 * @param oldEventSource A clone of the object before the change. Null if it was created.
+		 * @param newEventSource The object as stored in the database now. Null if it was deleted.
 		 */
-		abstract List<EventType> getSynchronization();
+		final void storeChangeWithoutCommit(
+		        final EventType oldEventSource, final EventType newEventSource) {
+		    
+			final Client client = getClient();
+			
+			// The queue will be replaced by a new synchronization, which will contain the
+			// change. See Client.mResynchronizationRequired.
+			if(client.isResynchronizationRequired())
+				return;
+			
+			if(client.getType() != Client.Type.Callback) {
+				storeNotificationWithoutCommit(oldEventSource, newEventSource);
+				client.getSubscriptionManager().checkQueueLimitsWithoutCommit(client);
+				return;
+			}
+			
+			// The new object is the one stored in the database and thus will change in the
+			// future. The listener must receive the state of now, so we have to clone it.
+			client.getSubscriptionManager().stageCallbackEventWithoutCommit(
+			    client.getCallbackID(),
+			    new SubscriptionEvent(SubscriptionEvent.Type.ObjectChanged, getID(),
+			        getEventSourceClass(), null, oldEventSource,
+			        newEventSource != null ? newEventSource.clone() : null));
+			client.getSubscriptionManager().checkCallbackQueueLimitWithoutCommit(client);
+		}
 
         /**
          * Shall store a {@link ObjectChangedNotification} constructed via
@@ -715,6 +1263,49 @@ public final class SubscriptionManager implements PrioRunnable {
             throw new UnsupportedOperationException();
         }
         
+        /**
+         * @return The size of the serialized objects which this Notification carries, in bytes.
+         *     Used for limiting the size of batches in
+         *     {@link Client#sendNotificationBatches(SubscriptionManager)}, and the size of the
+         *     queue of the {@link Client}, see {@link Client#mResynchronizationRequired}.
+         */
+        int getPayloadSize() {
+            return 0;
+        }
+        
+        /**
+         * Stores this Notification without committing the transaction.<br>
+         * If it was not stored yet, it is added to the {@link ClientStatistics} of its
+         * {@link Client}.
+         */
+        @Override protected void storeWithoutCommit() {
+            final boolean isNew = !mDB.isStored(this);
+            super.storeWithoutCommit();
+            if(isNew) {
+                mWebOfTrust.getSubscriptionManager().countQueuedNotificationWithoutCommit(
+                    getClient(), 1, getPayloadSize(), getCreationDate().getTime());
+            }
+        }
+        
+        /**
+         * Deletes this Notification without committing the transaction, and removes it from the
+         * {@link ClientStatistics} of its {@link Client}.
+         */
+        @Override protected void deleteWithoutCommit() {
+            mWebOfTrust.getSubscriptionManager().countQueuedNotificationWithoutCommit(
+                getClient(), -1, -getPayloadSize(), 0);
+            super.deleteWithoutCommit();
+        }
+        
+        /**
+         * @return The {@link Client} to whose queue this Notification belongs.
+         */
+        final Client getClient() {
+            checkedActivate(1);
+            mClient.initializeTransient(mWebOfTrust);
+            return mClient;
+        }
+        
         /**
          * @return The {@link Subscription} which requested this type of Notification.
          */
@@ -766,7 +1357,10 @@ public final class SubscriptionManager implements PrioRunnable {
 		 * Null if the change was the deletion of the object.
 		 * If non-null its {@link Persistent#getID()} must be equal to the one of {@link #mOldObject} if that member is non-null as well.
 		 * 
-		 * @see Persistent#serialize()
+		 * If both are non-null, the Strings of this are interned against {@link #mOldObject} so
+		 * it must be deserialized with mOldObject as base.
+		 * 
+		 * @see Persistent#serialize(Persistent, Persistent)
 		 * @see #getNewObject() The public getter for this.
 		 */
 		private final byte[] mNewObject;
@@ -792,8 +1386,9 @@ public final class SubscriptionManager implements PrioRunnable {
 						(oldObject != null && newObject != null && oldObject.getID().equals(newObject.getID()))
 					);
 			
-			mOldObject = (oldObject != null ? oldObject.serialize() : null);
-			mNewObject = (newObject != null ? newObject.serialize() : null);
+			final byte[][] serialized = Persistent.serialize(oldObject, newObject);
+			mOldObject = serialized[0];
+			mNewObject = serialized[1];
 		}
 		
 		/** {@inheritDoc} */
@@ -842,7 +1437,15 @@ public final class SubscriptionManager implements PrioRunnable {
 		 */
 		public final Persistent getNewObject() throws NoSuchElementException {
 			checkedActivate(1); // byte[] is a db4o primitive type so 1 is enough
-			return mNewObject != null ? Persistent.deserialize(mWebOfTrust, mNewObject) : null;
+			return mNewObject != null
+			    ? Persistent.deserialize(mWebOfTrust, mNewObject, mOldObject) : null;
+		}
+
+		/** {@inheritDoc} */
+		@Override int getPayloadSize() {
+			checkedActivate(1); // byte[] is a db4o primitive type so 1 is enough
+			return (mOldObject != null ? mOldObject.length : 0)
+			     + (mNewObject != null ? mNewObject.length : 0);
 		}
 
 		/** {@inheritDoc} */
@@ -1053,8 +1656,8 @@ public final class SubscriptionManager implements PrioRunnable {
 
 
 		/** {@inheritDoc} */
-        @Override List<Identity> getSynchronization() {
-            return mWebOfTrust.getAllIdentities();
+        @Override Class<Identity> getEventSourceClass() {
+            return Identity.class;
         }
 
         // TODO: Code quality: This function is almost the same in TrustsSubscription and
@@ -1120,8 +1723,8 @@ public final class SubscriptionManager implements PrioRunnable {
 		}
 
         /** {@inheritDoc} */
-        @Override List<Trust> getSynchronization() {
-            return mWebOfTrust.getAllTrusts();
+        @Override Class<Trust> getEventSourceClass() {
+            return Trust.class;
         }
 
 		/** {@inheritDoc} */
@@ -1182,8 +1785,8 @@ public final class SubscriptionManager implements PrioRunnable {
 		}
 
         /** {@inheritDoc} */
-        @Override List<Score> getSynchronization() {
-            return mWebOfTrust.getAllScores();
+        @Override Class<Score> getEventSourceClass() {
+            return Score.class;
         }
 
 		/** {@inheritDoc} */
@@ -1229,39 +1832,527 @@ public final class SubscriptionManager implements PrioRunnable {
 
 	
 	/**
-	 * After a {@link Notification} command is stored, we wait this amount of time before processing it.
-	 * This is to allow some coalescing when multiple notifications happen in a short interval.
-	 * This is usually the case as the import of trust lists often causes multiple changes.
-	 * 
-	 * Further, if deploying a {@link Notification} fails and its resend-counter is not exhausted, it will be resent after this delay.
-	 */
-	public static final long PROCESS_NOTIFICATIONS_DELAY = 60 * 1000;
-	
-	/**
-	 * If {@link Client#sendNotifications(SubscriptionManager)} fails, the failure counter of the subscription is incremented.
-	 * If the counter reaches this value, the client is disconnected.
+	 * Implemented by in-process clients which want to subscribe without using FCP, see
+	 * {@link SubscriptionManager#subscribeToIdentities(SubscriptionListener)} and the other
+	 * subscribeTo*(SubscriptionListener) functions.<br>
+	 * The events are the same as the ones which FCP clients receive, in the same order and with
+	 * the same retry semantics. But they are neither serialized nor stored in the database: They
+	 * are delivered as {@link SubscriptionEvent} objects from the in-memory {@link CallbackQueue}.
 	 */
-	public static final byte DISCONNECT_CLIENT_AFTER_FAILURE_COUNT = 5;
-	
+	public interface SubscriptionListener {
+		/**
+		 * Called for each event of all {@link Subscription}s of this listener, in the order in
+		 * which the events happened.<br>
+		 * Called on the thread of the SubscriptionManager, without any locks of WOT being held,
+		 * except for events of {@link SubscriptionEvent.Type#Unsubscribed}: Those are delivered by
+		 * the thread which terminates the Subscription while it holds the lock of the
+		 * SubscriptionManager. Thus, you must not call any functions of WOT when handling them.
+		 * <br><br>
+		 * 
+		 * If processing fails, throw an Exception: The event will be delivered again after
+		 * {@link SubscriptionManager#PROCESS_NOTIFICATIONS_DELAY}, and no later event is delivered
+		 * before it. After {@link SubscriptionManager#DISCONNECT_CLIENT_AFTER_FAILURE_COUNT}
+		 * failures, all Subscriptions of the listener are terminated.
+		 */
+		void handleSubscriptionEvent(SubscriptionEvent event) throws Exception;
+	}
 	
 	/**
-	 * The {@link WebOfTrust} to which this SubscriptionManager belongs.
-	 */
-	private final WebOfTrust mWoT;
-
-	/**
-	 * The database in which to store {@link Client}, {@link Subscription} and {@link Notification} objects.
-	 * Same as <code>mWoT.getDatabase();</code>
+	 * An event which is delivered to a {@link SubscriptionListener}. It is the in-memory
+	 * equivalent of a {@link Notification}.<br>
+	 * Immutable. The contained {@link EventSource} objects are clones which are not stored in the
+	 * database. They may be shared with other listeners and thus must not be modified.
 	 */
-	private final ExtObjectContainer mDB;
-
-	/**
-	 * The SubscriptionManager schedules execution of its notification deployment thread on this
-	 * {@link DelayedBackgroundJob}.<br>
-	 * The execution typically is scheduled after a delay of {@link #PROCESS_NOTIFICATIONS_DELAY}.
-	 * <br><br>
-	 * 
-     * The value distinguishes the run state of this SubscriptionManager as follows:<br>
+	public static final class SubscriptionEvent {
+		public static enum Type {
+			/** See {@link BeginSynchronizationNotification} */
+			BeginSynchronization,
+			/** See {@link EndSynchronizationNotification} */
+			EndSynchronization,
+			/** See {@link ObjectChangedNotification} */
+			ObjectChanged,
+			/** The Subscription was terminated due to too many failures. */
+			Unsubscribed
+		}
+		
+		private final Type mType;
+		
+		private final String mSubscriptionID;
+		
+		private final Class<? extends EventSource> mEventSourceClass;
+		
+		private final UUID mVersionID;
+		
+		private final EventSource mOldObject;
+		
+		private final EventSource mNewObject;
+		
+		SubscriptionEvent(final Type myType, final String mySubscriptionID,
+		        final Class<? extends EventSource> myEventSourceClass, final UUID myVersionID,
+		        final EventSource myOldObject, final EventSource myNewObject) {
+		    
+			mType = myType;
+			mSubscriptionID = mySubscriptionID;
+			mEventSourceClass = myEventSourceClass;
+			mVersionID = myVersionID;
+			mOldObject = myOldObject;
+			mNewObject = myNewObject;
+		}
+		
+		public Type getType() {
+			return mType;
+		}
+		
+		/** @see Subscription#getID() */
+		public String getSubscriptionID() {
+			return mSubscriptionID;
+		}
+		
+		/** @return {@link Identity}, {@link Trust} or {@link Score}. */
+		public Class<? extends EventSource> getEventSourceClass() {
+			return mEventSourceClass;
+		}
+		
+		/**
+		 * @return For {@link Type#BeginSynchronization} and {@link Type#EndSynchronization} the
+		 *     version ID of the synchronization, see {@link BeginSynchronizationNotification}.
+		 *     The objects of the synchronization will have it as {@link EventSource#getVersionID()}.
+		 *     <br>Null for other types.
+		 */
+		public UUID getVersionID() {
+			return mVersionID;
+		}
+		
+		/** @return The object before the change. Null if it was created. */
+		public EventSource getOldObject() {
+			return mOldObject;
+		}
+		
+		/** @return The object after the change. Null if it was deleted. */
+		public EventSource getNewObject() {
+			return mNewObject;
+		}
+		
+		@Override
+		public String toString() {
+			return "[SubscriptionEvent: " + mType
+			     + "; Subscription: " + mSubscriptionID
+			     + "; Class: " + mEventSourceClass.getSimpleName()
+			     + "; VersionID: " + mVersionID
+			     + "; Old: " + mOldObject
+			     + "; New: " + mNewObject + "]";
+		}
+	}
+	
+	/**
+	 * The in-memory queue of {@link SubscriptionEvent}s of a {@link Client} of
+	 * {@link Client.Type#Callback}. It replaces the {@link Notification} objects which FCP
+	 * clients have in the database.<br>
+	 * The events are first staged while the transaction which caused them is open, and appended
+	 * to the queue once it is committed, see
+	 * {@link SubscriptionManager#stageCallbackEventWithoutCommit(String, SubscriptionEvent)}.
+	 * They are removed once the {@link SubscriptionListener} has processed them successfully.
+	 * <br>
+	 * The size is bounded by {@link SubscriptionManager#getMaxQueuedNotificationsPerClient()}: If
+	 * the listener is too slow, the queue is dropped and the client is resynchronized as FCP
+	 * clients are, see
+	 * {@link SubscriptionManager#checkCallbackQueueLimitWithoutCommit(Client)}.<br><br>
+	 * 
+	 * Not stored in the database: Callback clients cannot survive a restart of WOT anyway.<br><br>
+	 * 
+	 * Thread safety: The staging functions must be called while holding the
+	 * {@link Persistent#transactionLock(ExtObjectContainer)}. The other functions synchronize on
+	 * the queue itself. Delivery to the listener is serialized by {@link #mDeliveryLock}.
+	 */
+	private static final class CallbackQueue {
+		/** @see Client#getCallbackID() */
+		final String mID;
+		
+		final SubscriptionListener mListener;
+		
+		/**
+		 * Held while the listener is called, to ensure that events are delivered by only one
+		 * thread at once. The queue lock is never held while calling the listener.<br>
+		 * Comes before the lock of the SubscriptionManager in the lock order.
+		 */
+		final Object mDeliveryLock = new Object();
+		
+		/** Events of the current transaction. Guarded by the transaction lock. */
+		private final ArrayList<SubscriptionEvent> mUncommittedEvents
+		    = new ArrayList<SubscriptionEvent>();
+		
+		private final ArrayDeque<SubscriptionEvent> mEvents = new ArrayDeque<SubscriptionEvent>();
+		
+		/**
+		 * The {@link Subscription#getID()}s of the Subscriptions whose synchronization has not
+		 * been fully streamed yet. Their {@link SubscriptionEvent.Type#EndSynchronization} and the
+		 * events which follow it are held back, same as
+		 * {@link Client#nextDeployableNotification(Iterator, List)} does for FCP.
+		 */
+		private final HashSet<String> mSynchronizationsInProgress = new HashSet<String>();
+		
+		CallbackQueue(final String myID, final SubscriptionListener myListener) {
+			mID = myID;
+			mListener = myListener;
+		}
+		
+		/** @return True if this is the first staged event of the transaction. */
+		boolean stageWithoutCommit(final SubscriptionEvent event) {
+			mUncommittedEvents.add(event);
+			return mUncommittedEvents.size() == 1;
+		}
+		
+		synchronized int size() {
+			return mEvents.size();
+		}
+		
+		/**
+		 * @return {@link #size()} plus the amount of staged events. Must be called while holding
+		 *     the transaction lock. */
+		synchronized int sizeWithoutCommit() {
+			return mEvents.size() + mUncommittedEvents.size();
+		}
+		
+		synchronized void commit() {
+			for(SubscriptionEvent event : mUncommittedEvents) {
+				if(event.getType() == SubscriptionEvent.Type.BeginSynchronization)
+					mSynchronizationsInProgress.add(event.getSubscriptionID());
+				
+				mEvents.addLast(event);
+			}
+			mUncommittedEvents.clear();
+		}
+		
+		void rollback() {
+			mUncommittedEvents.clear();
+		}
+		
+		/**
+		 * Returns the first event which may be delivered now, or null if there is none.<br>
+		 * The {@link Subscription#getID()}s of the Subscriptions whose events are held back due
+		 * to their synchronization being in progress are added to the given list in queue order.
+		 */
+		synchronized SubscriptionEvent peekDeliverableEvent(final List<String> heldSubscriptions) {
+			for(SubscriptionEvent event : mEvents) {
+				final String subscriptionID = event.getSubscriptionID();
+				
+				if(heldSubscriptions.contains(subscriptionID))
+					continue;
+				
+				if(event.getType() == SubscriptionEvent.Type.EndSynchronization
+				        && mSynchronizationsInProgress.contains(subscriptionID)) {
+					heldSubscriptions.add(subscriptionID);
+					continue;
+				}
+				
+				return event;
+			}
+			return null;
+		}
+		
+		synchronized boolean hasDeliverableEvents() {
+			return peekDeliverableEvent(new ArrayList<String>(3)) != null;
+		}
+		
+		/** Removes an event which was returned by {@link #peekDeliverableEvent(List)}. */
+		synchronized void remove(final SubscriptionEvent event) {
+			// The typical case: The head of the queue was delivered.
+			if(mEvents.peekFirst() == event) {
+				mEvents.pollFirst();
+				return;
+			}
+			
+			for(Iterator<SubscriptionEvent> i = mEvents.iterator(); i.hasNext(); ) {
+				if(i.next() == event) {
+					i.remove();
+					return;
+				}
+			}
+		}
+		
+		/** Called once the last page of the synchronization was delivered. */
+		synchronized void finishSynchronization(final String subscriptionID) {
+			mSynchronizationsInProgress.remove(subscriptionID);
+		}
+		
+		/** Removes all events of the given {@link Subscription#getID()}. */
+		synchronized void removeSubscription(final String subscriptionID) {
+			for(Iterator<SubscriptionEvent> i = mEvents.iterator(); i.hasNext(); ) {
+				if(i.next().getSubscriptionID().equals(subscriptionID))
+					i.remove();
+			}
+			mSynchronizationsInProgress.remove(subscriptionID);
+		}
+	}
+
+	/**
+	 * Statistics about the queue of a single {@link Client}, for display on the web interface.
+	 * <br>
+	 * The queue size is maintained in memory by
+	 * {@link SubscriptionManager#countQueuedNotificationWithoutCommit(Client, int, int, long)}
+	 * so {@link SubscriptionManager#checkQueueLimitsWithoutCommit(Client)} does not need to query
+	 * the database whenever a {@link Notification} is queued. This is possible because Clients
+	 * do not survive restarts, see {@link SubscriptionManager#deleteAllClients()}.<br>
+	 * All fields are kept in memory, and guarded by synchronized(this) instead of the
+	 * SubscriptionManager, so {@link SubscriptionManager#getClientStatistics()} does not have to
+	 * wait while {@link SubscriptionManager#run()} deploys notifications.
+	 * 
+	 * @see SubscriptionManager#getClientStatistics()
+	 */
+	public static final class ClientStatistics implements Cloneable {
+		/** @see Client#getType() */
+		public final Client.Type mType;
+		
+		/** @see Client#getTypeSpecificID() */
+		public final String mClientID;
+		
+		/** Time when the Client was first seen, in milliseconds since the epoch. */
+		public final long mCreationTime = CurrentTimeUTC.getInMillis();
+		
+		/**
+		 * Number of {@link Notification}s in the queue of the client. For clients of
+		 * {@link Client.Type#Callback}, the number of {@link SubscriptionEvent}s in its
+		 * {@link CallbackQueue} instead.
+		 */
+		public int mQueuedNotifications = 0;
+		
+		/** Sum of the {@link Notification#getPayloadSize()} of {@link #mQueuedNotifications}. */
+		public long mQueuedBytes = 0;
+		
+		/**
+		 * Age of the oldest queued {@link Notification}, in milliseconds. Only computed by
+		 * {@link SubscriptionManager#getClientStatistics()}, and 0 for clients of
+		 * {@link Client.Type#Callback} since their queue is not timestamped.
+		 */
+		public long mLag = 0;
+		
+		/**
+		 * {@link Notification#getCreationDate()} of the oldest queued Notification, 0 if the queue
+		 * is empty. Set by {@link #commit()} if the queue was empty, and updated by
+		 * {@link SubscriptionManager#run()} after deploying notifications.
+		 */
+		private long mOldestQueuedTime = 0;
+		
+		/**
+		 * Number of {@link Notification}s and objects of synchronization pages which have been
+		 * deployed to the client successfully.
+		 */
+		public long mDeployedNotifications = 0;
+		
+		/** Sum of the {@link Notification#getPayloadSize()} of {@link #mDeployedNotifications}. */
+		public long mDeployedBytes = 0;
+		
+		/**
+		 * Number of times the queue of the client exceeded the limits and was replaced by a new
+		 * synchronization, see {@link Client#mResynchronizationRequired}.
+		 */
+		public int mResynchronizations = 0;
+		
+		/** @see Client#isResynchronizationRequired() */
+		public boolean mResynchronizationRequired = false;
+		
+		/**
+		 * True if any of the following uncommitted changes were staged since the last
+		 * {@link #commit()} or {@link #rollback()}.
+		 * Guarded by the {@link Persistent#transactionLock(ExtObjectContainer)}.
+		 */
+		private boolean mHasUncommittedChanges = false;
+		
+		/**
+		 * Changes of {@link #mQueuedNotifications} in the current transaction, applied by
+		 * {@link #commit()}. Guarded by the {@link Persistent#transactionLock(ExtObjectContainer)}.
+		 */
+		private int mUncommittedNotifications = 0;
+		
+		/** Changes of {@link #mQueuedBytes} in the current transaction, see
+		 *  {@link #mUncommittedNotifications}. */
+		private long mUncommittedBytes = 0;
+		
+		/** {@link #mOldestQueuedTime} of the Notifications queued in the current transaction. */
+		private long mUncommittedOldestQueuedTime = 0;
+		
+		/** Change of {@link #mResynchronizationRequired} in the current transaction, or null. */
+		private Boolean mUncommittedResynchronizationRequired = null;
+		
+		ClientStatistics(final Client.Type type, final String clientID) {
+			mType = type;
+			mClientID = clientID;
+		}
+		
+		/** @return The queue size including the changes of the current transaction. */
+		synchronized int getQueuedNotificationsWithoutCommit() {
+			return mQueuedNotifications + mUncommittedNotifications;
+		}
+		
+		/** @return The queue size including the changes of the current transaction. */
+		synchronized long getQueuedBytesWithoutCommit() {
+			return mQueuedBytes + mUncommittedBytes;
+		}
+		
+		/**
+		 * @param creationTime The {@link #mOldestQueuedTime} of the Notification if it was queued.
+		 * @return True if there were no uncommitted changes before. */
+		synchronized boolean countQueuedWithoutCommit(final int notifications, final long bytes,
+				final long creationTime) {
+			
+			mUncommittedNotifications += notifications;
+			mUncommittedBytes += bytes;
+			// Notifications are queued in ascending order of time.
+			if(notifications > 0 && mUncommittedOldestQueuedTime == 0)
+				mUncommittedOldestQueuedTime = creationTime;
+			return stageChange();
+		}
+		
+		/** @return True if there were no uncommitted changes before. */
+		synchronized boolean setResynchronizationRequiredWithoutCommit(final boolean required) {
+			mUncommittedResynchronizationRequired = required;
+			return stageChange();
+		}
+		
+		private boolean stageChange() {
+			final boolean wasCommitted = !mHasUncommittedChanges;
+			mHasUncommittedChanges = true;
+			return wasCommitted;
+		}
+		
+		synchronized void commit() {
+			mQueuedNotifications += mUncommittedNotifications;
+			mQueuedBytes += mUncommittedBytes;
+			if(mQueuedNotifications == 0)
+				mOldestQueuedTime = 0;
+			else if(mOldestQueuedTime == 0)
+				mOldestQueuedTime = mUncommittedOldestQueuedTime;
+			if(mUncommittedResynchronizationRequired != null)
+				mResynchronizationRequired = mUncommittedResynchronizationRequired;
+			rollback();
+		}
+		
+		synchronized void rollback() {
+			mHasUncommittedChanges = false;
+			mUncommittedNotifications = 0;
+			mUncommittedBytes = 0;
+			mUncommittedOldestQueuedTime = 0;
+			mUncommittedResynchronizationRequired = null;
+		}
+		
+		/** @see SubscriptionManager#updateOldestQueuedTime(Client) */
+		synchronized void setOldestQueuedTime(final long oldestQueuedTime) {
+			mOldestQueuedTime = oldestQueuedTime;
+		}
+		
+		synchronized void countDeployed(final int notifications, final long bytes) {
+			mDeployedNotifications += notifications;
+			mDeployedBytes += bytes;
+		}
+		
+		/** @return The average number of deployed notifications per hour since the client was
+		 *      first seen.<br>ATTENTION: Only use this upon objects obtained from
+		 *      {@link SubscriptionManager#getClientStatistics()}. */
+		public double getDeployedNotificationsPerHour() {
+			final long uptime = CurrentTimeUTC.getInMillis() - mCreationTime;
+			if(uptime <= 0) // prevent division by 0
+				return 0;
+			
+			return (double)mDeployedNotifications / ((double)uptime / (60 * 60 * 1000));
+		}
+		
+		@Override public synchronized ClientStatistics clone() {
+			try {
+				return (ClientStatistics)super.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		@Override public String toString() {
+			return "[ClientStatistics: mType: " + mType
+			     + "; mClientID: " + mClientID
+			     + "; mQueuedNotifications: " + mQueuedNotifications
+			     + "; mQueuedBytes: " + mQueuedBytes
+			     + "; mDeployedNotifications: " + mDeployedNotifications
+			     + "; mResynchronizations: " + mResynchronizations + "]";
+		}
+	}
+
+	
+	/**
+	 * After a {@link Notification} command is stored, we wait this amount of time before processing it.
+	 * This is to allow some coalescing when multiple notifications happen in a short interval.
+	 * This is usually the case as the import of trust lists often causes multiple changes.
+	 * 
+	 * Further, if deploying a {@link Notification} fails and its resend-counter is not exhausted, it will be resent after this delay.
+	 */
+	public static final long PROCESS_NOTIFICATIONS_DELAY = 60 * 1000;
+	
+	/**
+	 * If {@link Client#sendNotifications(SubscriptionManager)} fails, the failure counter of the subscription is incremented.
+	 * If the counter reaches this value, the client is disconnected.
+	 */
+	public static final byte DISCONNECT_CLIENT_AFTER_FAILURE_COUNT = 5;
+	
+	/**
+	 * Maximal amount of {@link Notification}s which
+	 * {@link Client#sendNotifications(SubscriptionManager)} packs into a single FCP message for
+	 * clients which {@link Client#acceptsNotificationBatches()}.
+	 */
+	public static final int MAX_NOTIFICATIONS_PER_BATCH = 512;
+	
+	/**
+	 * Maximal sum of {@link Notification#getPayloadSize()} of a batch of Notifications, see
+	 * {@link #MAX_NOTIFICATIONS_PER_BATCH}.
+	 */
+	public static final int MAX_NOTIFICATION_BATCH_BYTES = 1024 * 1024;
+	
+	/**
+	 * Amount of objects which {@link #streamSynchronizationPage(String)} reads from the database
+	 * in a single transaction and sends to the client as a single page of the synchronization of
+	 * a {@link Subscription}.
+	 */
+	public static final int SYNCHRONIZATION_PAGE_SIZE = 512;
+	
+	/**
+	 * Key of the {@link Configuration} integer which limits the amount of {@link Notification}s
+	 * in the queue of a single {@link Client}, or of {@link SubscriptionEvent}s in the
+	 * {@link CallbackQueue}, see {@link Client#mResynchronizationRequired}.
+	 * Defaults to {@link #DEFAULT_MAX_QUEUED_NOTIFICATIONS_PER_CLIENT}.
+	 */
+	public static final String CONFIGURATION_MAX_QUEUED_NOTIFICATIONS_PER_CLIENT
+	    = "SubscriptionManager.MaxQueuedNotificationsPerClient";
+	
+	/**
+	 * Key of the {@link Configuration} integer which limits the sum of the
+	 * {@link Notification#getPayloadSize()} of the queue of a single {@link Client}, see
+	 * {@link Client#mResynchronizationRequired}.
+	 * Defaults to {@link #DEFAULT_MAX_QUEUED_NOTIFICATION_BYTES_PER_CLIENT}.
+	 */
+	public static final String CONFIGURATION_MAX_QUEUED_NOTIFICATION_BYTES_PER_CLIENT
+	    = "SubscriptionManager.MaxQueuedNotificationBytesPerClient";
+	
+	/** @see #CONFIGURATION_MAX_QUEUED_NOTIFICATIONS_PER_CLIENT */
+	public static final int DEFAULT_MAX_QUEUED_NOTIFICATIONS_PER_CLIENT = 128 * 1024;
+	
+	/** @see #CONFIGURATION_MAX_QUEUED_NOTIFICATION_BYTES_PER_CLIENT */
+	public static final int DEFAULT_MAX_QUEUED_NOTIFICATION_BYTES_PER_CLIENT = 64 * 1024 * 1024;
+	
+	
+	/**
+	 * The {@link WebOfTrust} to which this SubscriptionManager belongs.
+	 */
+	private final WebOfTrust mWoT;
+
+	/**
+	 * The database in which to store {@link Client}, {@link Subscription} and {@link Notification} objects.
+	 * Same as <code>mWoT.getDatabase();</code>
+	 */
+	private final ExtObjectContainer mDB;
+
+	/**
+	 * The SubscriptionManager schedules execution of its notification deployment thread on this
+	 * {@link DelayedBackgroundJob}.<br>
+	 * The execution typically is scheduled after a delay of {@link #PROCESS_NOTIFICATIONS_DELAY}.
+	 * <br><br>
+	 * 
+     * The value distinguishes the run state of this SubscriptionManager as follows:<br>
      * - Until {@link #start()} was called, defaults to {@link MockDelayedBackgroundJob#DEFAULT}
      *   with {@link DelayedBackgroundJob#isTerminated()} == true.<br>
      * - Once {@link #start()} has been called, becomes a
@@ -1276,6 +2367,75 @@ public final class SubscriptionManager implements PrioRunnable {
      * Volatile since {@link #stop()} needs to use it without synchronization.
 	 */
     private volatile DelayedBackgroundJob mJob = MockDelayedBackgroundJob.DEFAULT;
+    
+    /**
+     * The {@link Subscription#getID()}s of the Subscriptions whose synchronization shall be
+     * streamed by {@link #run()} after the current pass of {@link Notification} deployment, see
+     * {@link #scheduleSynchronizationStreaming(List)}.<br>
+     * Must only be used while synchronized on this SubscriptionManager.
+     */
+    private final ArrayList<String> mSynchronizationsToStream = new ArrayList<String>();
+    
+    /**
+     * The {@link Client#getCallbackID()}s of the {@link Client.Type#Callback} clients whose
+     * {@link CallbackQueue} shall be delivered by {@link #run()} after the current pass of
+     * {@link Notification} deployment, see {@link #scheduleCallbackDelivery(String)}.<br>
+     * Must only be used while synchronized on this SubscriptionManager.
+     */
+    private final ArrayList<String> mCallbacksToDeliver = new ArrayList<String>();
+    
+    /**
+     * The {@link CallbackQueue} of each {@link Client} of {@link Client.Type#Callback}.<br>
+     * Key = {@link Client#getCallbackID()}. Must be synchronized upon when used.
+     */
+    private final HashMap<String, CallbackQueue> mCallbackQueues
+        = new HashMap<String, CallbackQueue>();
+    
+    /**
+     * The {@link CallbackQueue}s which have {@link SubscriptionEvent}s staged in the current
+     * transaction. Guarded by the {@link Persistent#transactionLock(ExtObjectContainer)}.
+     */
+    private final ArrayList<CallbackQueue> mQueuesWithUncommittedEvents
+        = new ArrayList<CallbackQueue>();
+    
+    /**
+     * The {@link ClientStatistics} of each {@link Client}.<br>
+     * Key = {@link Client#getTypeSpecificID()}. Must be synchronized upon when used.
+     */
+    private final HashMap<String, ClientStatistics> mClientStatistics
+        = new HashMap<String, ClientStatistics>();
+    
+    /**
+     * The {@link IDOrderedPager}s of the synchronizations which are being streamed, see
+     * {@link Subscription#takeSynchronizationPageWithoutCommit(int)}.<br>
+     * Key = {@link Subscription#mSynchronizationVersionID}. Not persistent: A pager which is
+     * missing, e.g. because all Clients are deleted by {@link #start()} anyway, is created again
+     * from the cursor of the Subscription. Must only be used while synchronized on this
+     * SubscriptionManager.
+     */
+    private final HashMap<String, IDOrderedPager<Persistent>> mSynchronizationPagers
+        = new HashMap<String, IDOrderedPager<Persistent>>();
+    
+    /**
+     * The {@link ClientStatistics} which have changes of their queue size staged in the current
+     * transaction. Guarded by the {@link Persistent#transactionLock(ExtObjectContainer)}.
+     */
+    private final ArrayList<ClientStatistics> mStatisticsWithUncommittedChanges
+        = new ArrayList<ClientStatistics>();
+    
+    /**
+     * @see #CONFIGURATION_MAX_QUEUED_NOTIFICATIONS_PER_CLIENT
+     * @see #getMaxQueuedNotificationsPerClient()
+     */
+    private volatile int mMaxQueuedNotificationsPerClient
+        = DEFAULT_MAX_QUEUED_NOTIFICATIONS_PER_CLIENT;
+    
+    /**
+     * @see #CONFIGURATION_MAX_QUEUED_NOTIFICATION_BYTES_PER_CLIENT
+     * @see #getMaxQueuedNotificationBytesPerClient()
+     */
+    private volatile int mMaxQueuedNotificationBytesPerClient
+        = DEFAULT_MAX_QUEUED_NOTIFICATION_BYTES_PER_CLIENT;
 
 
 	/** Automatically set to true by {@link Logger} if the log level is set to {@link LogLevel#DEBUG} for this class.
@@ -1299,6 +2459,31 @@ public final class SubscriptionManager implements PrioRunnable {
 	public SubscriptionManager(WebOfTrust myWoT) {
 		mWoT = myWoT;
 		mDB = mWoT.getDatabase();
+		
+		// Publishes the SubscriptionEvents of callback clients only if the transaction which
+		// caused them is committed, same as it happens with the Notifications of FCP clients.
+		// The in-memory queue sizes of the ClientStatistics follow the transaction as well.
+		Persistent.addTransactionListener(mDB, new Persistent.TransactionListener() {
+			@Override public void onCommit() {
+				for(CallbackQueue queue : mQueuesWithUncommittedEvents)
+					queue.commit();
+				mQueuesWithUncommittedEvents.clear();
+				
+				for(ClientStatistics statistics : mStatisticsWithUncommittedChanges)
+					statistics.commit();
+				mStatisticsWithUncommittedChanges.clear();
+			}
+			
+			@Override public void onRollback() {
+				for(CallbackQueue queue : mQueuesWithUncommittedEvents)
+					queue.rollback();
+				mQueuesWithUncommittedEvents.clear();
+				
+				for(ClientStatistics statistics : mStatisticsWithUncommittedChanges)
+					statistics.rollback();
+				mStatisticsWithUncommittedChanges.clear();
+			}
+		});
 	}
 
 	
@@ -1404,25 +2589,22 @@ public final class SubscriptionManager implements PrioRunnable {
      *             transfers possibly the whole WOT database to the client and therefore can take
      *             a very long time. Please honor it by terminating the thread so WOT can shutdown
      *             quickly.<br>
-     *             TODO: Performance: Throwing InterruptedException is not implemented yet.
-     *             It should be thrown by {@link Subscription#storeSynchronizationWithoutCommit()}
-     *             as that is the callee of this function which can take very long.<br>
-     *             It would be trivial to implement it to check {@link Thread#interrupted()} in
-     *             its main loop and throw if it returns true. What's difficult is determining in
-     *             {@link SubscriptionManager#stop()} which *are* the Threads which need to be
-     *             interrupted - we do not store them anywhere, they are created by fred when
-     *             calling the FCP interface's
-     *             {@link FredPluginFCPMessageHandler.ServerSideFCPMessageHandler}.
+     *             Not thrown currently: {@link Subscription#storeSynchronizationWithoutCommit()}
+     *             only queues the begin and end markers of the synchronization, the data is
+     *             streamed by {@link #run()}, which honors {@link Thread#interrupt()}.<br>
 	 */
 	private void storeNewSubscriptionWithoutCommit(
-	        final Subscription<? extends EventSource> subscription)
+	        final Subscription<? extends EventSource> subscription,
+	        final boolean acceptsNotificationBatches)
 	            throws InterruptedException, SubscriptionExistsAlreadyException {
 	    
 		subscription.initializeTransient(mWoT);
 
 		throwIfSimilarSubscriptionExists(subscription);
 		
-		// Needs the lock on mWoT which the JavaDoc requests
+		subscription.getClient().setAcceptsNotificationBatchesWithoutCommit(
+		    acceptsNotificationBatches);
+		
 		subscription.storeSynchronizationWithoutCommit();
 		
 		subscription.storeWithoutCommit();
@@ -1447,6 +2629,7 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * TODO: Code quality: Rename to subscribeToIdentitiesByFCP() or similar.
 	 * 
 	 * @param fcpID The identifier of the FCP connection of the {@link Client}. Must be unique among all FCP connections!
+	 * @param acceptsNotificationBatches See {@link Client#acceptsNotificationBatches()}.
 	 * @return The return value of {@link Subscription#getID()} of the created subscription.<br>
 	 *         TODO: Return the Subscription object after this is fixed:
 	 *         https://bugs.freenetproject.org/view.php?id=6247
@@ -1459,16 +2642,17 @@ public final class SubscriptionManager implements PrioRunnable {
 	 *             quickly. 
 	 * @see IdentityChangedNotification The type of {@link Notification} which is sent when an event happens.
 	 */
-    public String subscribeToIdentities(UUID fcpID)
+    public String subscribeToIdentities(UUID fcpID, boolean acceptsNotificationBatches)
             throws InterruptedException, SubscriptionExistsAlreadyException {
 
+		assert(mWoT.mayAcquireLock(mWoT));
 		synchronized(mWoT) {
 		synchronized(this) {
 		synchronized(Persistent.transactionLock(mDB)) {
 		    try {
     			final IdentitiesSubscription subscription
     			    = new IdentitiesSubscription(getOrCreateClient(fcpID));
-    			storeNewSubscriptionWithoutCommit(subscription);
+    			storeNewSubscriptionWithoutCommit(subscription, acceptsNotificationBatches);
     			subscription.checkedCommit(this);
     			return subscription.getID();
 		    } catch(RuntimeException e) {
@@ -1491,6 +2675,7 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * The {@link Client} is notified when a {@link Trust} changes, is created or removed.
 	 * 
 	 * @param fcpID The identifier of the FCP connection of the {@link Client}. Must be unique among all FCP connections!
+	 * @param acceptsNotificationBatches See {@link Client#acceptsNotificationBatches()}.
      * @return The return value of {@link Subscription#getID()} of the created subscription.<br>
      *         TODO: Return the Subscription object after this is fixed:
      *         https://bugs.freenetproject.org/view.php?id=6247
@@ -1503,16 +2688,17 @@ public final class SubscriptionManager implements PrioRunnable {
      *             quickly.
 	 * @see TrustChangedNotification The type of {@link Notification} which is sent when an event happens.
 	 */
-	public String subscribeToTrusts(UUID fcpID)
+	public String subscribeToTrusts(UUID fcpID, boolean acceptsNotificationBatches)
 	    throws InterruptedException, SubscriptionExistsAlreadyException {
 	    
+		assert(mWoT.mayAcquireLock(mWoT));
 		synchronized(mWoT) {
 		synchronized(this) {
 		synchronized(Persistent.transactionLock(mDB)) {
 	        try {
     			final TrustsSubscription subscription
     			    = new TrustsSubscription(getOrCreateClient(fcpID));
-    			storeNewSubscriptionWithoutCommit(subscription);
+    			storeNewSubscriptionWithoutCommit(subscription, acceptsNotificationBatches);
     			subscription.checkedCommit(this);
     			return subscription.getID();
 	        } catch(RuntimeException e) {
@@ -1535,6 +2721,7 @@ public final class SubscriptionManager implements PrioRunnable {
 	 * The {@link Client} is notified when a {@link Score} changes, is created or removed.
 	 * 
 	 * @param fcpID The identifier of the FCP connection of the {@link Client}. Must be unique among all FCP connections!
+	 * @param acceptsNotificationBatches See {@link Client#acceptsNotificationBatches()}.
      * @return The return value of {@link Subscription#getID()} of the created subscription.<br>
      *         TODO: Return the Subscription object after this is fixed:
      *         https://bugs.freenetproject.org/view.php?id=6247
@@ -1547,16 +2734,17 @@ public final class SubscriptionManager implements PrioRunnable {
      *             quickly.
 	 * @see ScoreChangedNotification The type of {@link Notification} which is sent when an event happens.
 	 */
-	public String subscribeToScores(UUID fcpID)
+	public String subscribeToScores(UUID fcpID, boolean acceptsNotificationBatches)
 	        throws InterruptedException, SubscriptionExistsAlreadyException {
 	    
+		assert(mWoT.mayAcquireLock(mWoT));
 		synchronized(mWoT) {
 		synchronized(this) {
 	    synchronized(Persistent.transactionLock(mDB)) {
 	        try {
 	            final ScoresSubscription subscription
 	                = new ScoresSubscription(getOrCreateClient(fcpID));
-	            storeNewSubscriptionWithoutCommit(subscription);
+	            storeNewSubscriptionWithoutCommit(subscription, acceptsNotificationBatches);
 	            subscription.checkedCommit(this);
 	            return subscription.getID();
 	        } catch(RuntimeException e) {
@@ -1576,75 +2764,473 @@ public final class SubscriptionManager implements PrioRunnable {
 	}
 	
 	/**
-	 * Deletes the given {@link Subscription}.
+	 * Same as {@link #subscribeToIdentities(UUID, boolean)}, but for in-process clients: The
+	 * events are delivered to the given {@link SubscriptionListener} as {@link SubscriptionEvent}s
+	 * from memory, without being serialized and stored in the database.<br>
+	 * All subscriptions of the same listener object belong to the same {@link Client}, so their
+	 * events are delivered in the order in which they happened.<br>
+	 * If you subscribe to multiple types, subscribe to the identities first so the identities which
+	 * trusts and scores point to are known to you before.
+	 * 
+	 * @return The return value of {@link Subscription#getID()} of the created subscription.
+	 *     It can be passed to {@link #unsubscribe(String)}.
+	 */
+	public String subscribeToIdentities(final SubscriptionListener listener)
+	        throws SubscriptionExistsAlreadyException {
+		
+		return subscribeByCallback(listener, Identity.class);
+	}
+	
+	/**
+	 * Same as {@link #subscribeToTrusts(UUID, boolean)}, but for in-process clients, see
+	 * {@link #subscribeToIdentities(SubscriptionListener)}.
+	 */
+	public String subscribeToTrusts(final SubscriptionListener listener)
+	        throws SubscriptionExistsAlreadyException {
+		
+		return subscribeByCallback(listener, Trust.class);
+	}
+	
+	/**
+	 * Same as {@link #subscribeToScores(UUID, boolean)}, but for in-process clients, see
+	 * {@link #subscribeToIdentities(SubscriptionListener)}.
+	 */
+	public String subscribeToScores(final SubscriptionListener listener)
+	        throws SubscriptionExistsAlreadyException {
+		
+		return subscribeByCallback(listener, Score.class);
+	}
+	
+	/**
+	 * Implementation of the subscribeTo*(SubscriptionListener) functions.
+	 * 
+	 * @param eventSourceClass {@link Identity}, {@link Trust} or {@link Score}.
+	 */
+	private String subscribeByCallback(final SubscriptionListener listener,
+	        final Class<? extends EventSource> eventSourceClass)
+	            throws SubscriptionExistsAlreadyException {
+	    
+		assert(mWoT.mayAcquireLock(mWoT));
+		synchronized(mWoT) {
+		synchronized(this) {
+		synchronized(Persistent.transactionLock(mDB)) {
+		    try {
+		        final Client client = getOrCreateCallbackClient(listener);
+		        final Subscription<? extends EventSource> subscription;
+		        
+		        if(eventSourceClass == Identity.class)
+		            subscription = new IdentitiesSubscription(client);
+		        else if(eventSourceClass == Trust.class)
+		            subscription = new TrustsSubscription(client);
+		        else if(eventSourceClass == Score.class)
+		            subscription = new ScoresSubscription(client);
+		        else
+		            throw new IllegalArgumentException("Unknown class: " + eventSourceClass);
+		        
+		        storeNewSubscriptionWithoutCommit(subscription, false);
+		        subscription.checkedCommit(this);
+		        return subscription.getID();
+		    } catch(RuntimeException e) {
+		        Persistent.checkedRollbackAndThrow(mDB, this, e);
+		        throw e; // Satisfy the compiler: Without, it would complain about missing return.
+		    } catch(InterruptedException e) {
+		        // Not thrown currently, see storeNewSubscriptionWithoutCommit()
+		        Persistent.checkedRollback(mDB, this, e);
+		        throw new RuntimeException(e);
+		    } catch(SubscriptionExistsAlreadyException e) {
+		        // This is thrown before anything is stored to the database, rollback not needed.
+		        throw e;
+		    }
+		}
+		}
+		}
+	}
+	
+	/**
+	 * Deletes the given {@link Subscription}.
+	 * 
+	 * @param subscriptionID See {@link Subscription#getID()}
+	 * @return The class of the terminated {@link Subscription}
+	 * @throws UnknownSubscriptionException If no subscription with the given ID exists.
+	 */
+	@SuppressWarnings("unchecked")
+	public Class<Subscription<? extends EventSource>> unsubscribe(String subscriptionID)
+	        throws UnknownSubscriptionException {
+	    
+		synchronized(this) {
+		final Subscription<? extends EventSource> subscription = getSubscription(subscriptionID);
+		synchronized(Persistent.transactionLock(mDB)) {
+			try {
+				subscription.deleteWithoutCommit(this);
+				
+				final Client client = subscription.getClient();
+				if(getSubscriptions(client).size() == 0) {
+					Logger.normal(this, "Last subscription of client removed, deleting it: " + client);
+					client.deleteWithoutCommit();
+					
+					if(client.getType() == Client.Type.Callback)
+						removeCallbackQueue(client.getCallbackID());
+					
+					removeClientStatistics(client);
+				}
+				
+				Persistent.checkedCommit(mDB, this);
+				Logger.normal(this, "Unsubscribed: " + subscription);
+			} catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(mDB, this, e);
+			}
+		}
+		return (Class<Subscription<? extends EventSource>>) subscription.getClass();
+		}
+	}
+	
+	/**
+	 * Typically used by {@link #run()}.
+	 * 
+	 * @return All existing {@link Client}s.
+	 */
+	private ObjectSet<Client> getAllClients() {
+		final Query q = mDB.query();
+		q.constrain(Client.class);
+		return new Persistent.InitializingObjectSet<Client>(mWoT, q);
+	}
+	
+	/**
+	 * @see Client#getFCP_ID()
+	 */
+	private Client getClient(final UUID fcpID) throws UnknownClientException {
+		final Query q = mDB.query();
+		q.constrain(Client.class);
+		q.descend("mFCP_ID").constrain(fcpID.toString());
+		final ObjectSet<Client> result = new Persistent.InitializingObjectSet<Client>(mWoT, q);
+		
+		switch(result.size()) {
+			case 1: return result.next();
+			case 0: throw new UnknownClientException(fcpID.toString());
+			default: throw new DuplicateObjectException(fcpID.toString());
+		}
+	}
+	
+	/**
+	 * Gets the {@link Client} with the given FCP ID, see {@link Client#getFCP_ID()}. If none exists, it is created.
+	 * It will NOT be stored to the database if it was created.
+	 */
+	private Client getOrCreateClient(final UUID fcpID) {
+		try {
+			return getClient(fcpID);
+		} catch(UnknownClientException e) {
+			final Client client = new Client(fcpID);
+			createClientStatisticsWithoutCommit(client);
+			return client;
+		}
+	}
+	
+	/**
+	 * @see Client#getCallbackID()
+	 */
+	private Client getCallbackClient(final String callbackID) throws UnknownClientException {
+		final Query q = mDB.query();
+		q.constrain(Client.class);
+		q.descend("mCallbackID").constrain(callbackID);
+		final ObjectSet<Client> result = new Persistent.InitializingObjectSet<Client>(mWoT, q);
+		
+		switch(result.size()) {
+			case 1: return result.next();
+			case 0: throw new UnknownClientException(callbackID);
+			default: throw new DuplicateObjectException(callbackID);
+		}
+	}
+	
+	/**
+	 * Gets the {@link Client} of {@link Client.Type#Callback} which belongs to the given
+	 * listener. If none exists, it is created along with its {@link CallbackQueue}.
+	 * It will NOT be stored to the database if it was created.
+	 */
+	private Client getOrCreateCallbackClient(final SubscriptionListener listener) {
+		CallbackQueue queue = null;
+		
+		synchronized(mCallbackQueues) {
+			for(CallbackQueue existing : mCallbackQueues.values()) {
+				if(existing.mListener == listener) {
+					queue = existing;
+					break;
+				}
+			}
+			
+			if(queue == null) {
+				final String id = UUID.randomUUID().toString();
+				queue = new CallbackQueue(id, listener);
+				mCallbackQueues.put(id, queue);
+			}
+		}
+		
+		try {
+			return getCallbackClient(queue.mID);
+		} catch(UnknownClientException e) {
+			// Also happens if a previous subscription attempt was rolled back: The queue was
+			// created already then.
+			final Client client = new Client(UUID.fromString(queue.mID), listener);
+			createClientStatisticsWithoutCommit(client);
+			return client;
+		}
+	}
+	
+	/** @return The {@link CallbackQueue} with the given {@link Client#getCallbackID()}, or null. */
+	private CallbackQueue getCallbackQueue(final String callbackID) {
+		synchronized(mCallbackQueues) {
+			return mCallbackQueues.get(callbackID);
+		}
+	}
+	
+	/** Must be called when the {@link Client} with the given callback ID is deleted. */
+	private void removeCallbackQueue(final String callbackID) {
+		synchronized(mCallbackQueues) {
+			mCallbackQueues.remove(callbackID);
+		}
+	}
+	
+	/**
+	 * Stages an event for a {@link Client} of {@link Client.Type#Callback}. It will be appended to
+	 * the client's {@link CallbackQueue} once the current transaction is committed, and discarded
+	 * if it is rolled back.<br>
+	 * Schedules processing of the queues via {@link #scheduleNotificationProcessing()}.<br><br>
+	 * 
+	 * Must be called while synchronized on the
+	 * {@link Persistent#transactionLock(ExtObjectContainer)}.
+	 */
+	private void stageCallbackEventWithoutCommit(final String callbackID,
+	        final SubscriptionEvent event) {
+	    
+		final CallbackQueue queue = getCallbackQueue(callbackID);
+		if(queue == null) {
+			Logger.error(this, "No CallbackQueue for callback ID " + callbackID
+			                 + ", dropping event: " + event);
+			return;
+		}
+		
+		if(queue.stageWithoutCommit(event))
+			mQueuesWithUncommittedEvents.add(queue);
+		
+		scheduleNotificationProcessing();
+	}
+	
+	/**
+	 * Gets the {@link ClientStatistics} of the given {@link Client}.
+	 * 
+	 * @param create If true and none exist, they are created. Otherwise null is returned then.
+	 */
+	private ClientStatistics getClientStatistics(final Client client, final boolean create) {
+		final String clientID = client.getTypeSpecificID();
+		
+		synchronized(mClientStatistics) {
+			ClientStatistics statistics = mClientStatistics.get(clientID);
+			if(statistics == null && create) {
+				statistics = new ClientStatistics(client.getType(), clientID);
+				mClientStatistics.put(clientID, statistics);
+			}
+			return statistics;
+		}
+	}
+	
+	/**
+	 * Creates the {@link ClientStatistics} of the given new {@link Client}. They are removed
+	 * again if the current transaction is rolled back, as the Client is not stored then.<br><br>
 	 * 
-	 * @param subscriptionID See {@link Subscription#getID()}
-	 * @return The class of the terminated {@link Subscription}
-	 * @throws UnknownSubscriptionException If no subscription with the given ID exists.
+	 * Must be called while synchronized on the
+	 * {@link Persistent#transactionLock(ExtObjectContainer)}.
 	 */
-	@SuppressWarnings("unchecked")
-	public Class<Subscription<? extends EventSource>> unsubscribe(String subscriptionID)
-	        throws UnknownSubscriptionException {
-	    
-		synchronized(this) {
-		final Subscription<? extends EventSource> subscription = getSubscription(subscriptionID);
-		synchronized(Persistent.transactionLock(mDB)) {
-			try {
-				subscription.deleteWithoutCommit(this);
-				
-				final Client client = subscription.getClient();
-				if(getSubscriptions(client).size() == 0) {
-					Logger.normal(this, "Last subscription of client removed, deleting it: " + client);
-					client.deleteWithoutCommit();
+	private void createClientStatisticsWithoutCommit(final Client client) {
+		getClientStatistics(client, true);
+		
+		final String clientID = client.getTypeSpecificID();
+		Persistent.addTransactionCallback(mDB, new Persistent.TransactionListener() {
+			@Override public void onCommit() {}
+			
+			@Override public void onRollback() {
+				synchronized(mClientStatistics) {
+					mClientStatistics.remove(clientID);
 				}
-				
-				Persistent.checkedCommit(mDB, this);
-				Logger.normal(this, "Unsubscribed: " + subscription);
-			} catch(RuntimeException e) {
-				Persistent.checkedRollbackAndThrow(mDB, this, e);
 			}
-		}
-		return (Class<Subscription<? extends EventSource>>) subscription.getClass();
+		});
+	}
+	
+	/** Must be called when the given {@link Client} is deleted. */
+	private void removeClientStatistics(final Client client) {
+		synchronized(mClientStatistics) {
+			mClientStatistics.remove(client.getTypeSpecificID());
 		}
 	}
 	
 	/**
-	 * Typically used by {@link #run()}.
+	 * Called by {@link Notification#storeWithoutCommit()} and
+	 * {@link Notification#deleteWithoutCommit()} to maintain the queue size of the
+	 * {@link ClientStatistics} of the given {@link Client}. The change is applied once the current
+	 * transaction is committed, and discarded if it is rolled back.<br><br>
 	 * 
-	 * @return All existing {@link Client}s.
+	 * Must be called while synchronized on the
+	 * {@link Persistent#transactionLock(ExtObjectContainer)}.
+	 * 
+	 * @param notifications +1 if a Notification was stored, -1 if it was deleted.
+	 * @param bytes The {@link Notification#getPayloadSize()}, negative if it was deleted.
+	 * @param creationTime The {@link Notification#getCreationDate()} if it was stored.
 	 */
-	private ObjectSet<Client> getAllClients() {
-		final Query q = mDB.query();
-		q.constrain(Client.class);
-		return new Persistent.InitializingObjectSet<Client>(mWoT, q);
+	void countQueuedNotificationWithoutCommit(final Client client, final int notifications,
+	        final int bytes, final long creationTime) {
+	    
+		// Deletion of a Client deletes its Notifications after the statistics, so don't create.
+		final ClientStatistics statistics = getClientStatistics(client, notifications > 0);
+		if(statistics != null
+		        && statistics.countQueuedWithoutCommit(notifications, bytes, creationTime))
+			mStatisticsWithUncommittedChanges.add(statistics);
 	}
 	
 	/**
-	 * @see Client#getFCP_ID()
+	 * Called by {@link Client#setResynchronizationRequiredWithoutCommit(boolean)} to stage the
+	 * change of {@link ClientStatistics#mResynchronizationRequired}, same as
+	 * {@link #countQueuedNotificationWithoutCommit(Client, int, int, long)}.<br><br>
+	 * 
+	 * Must be called while synchronized on the
+	 * {@link Persistent#transactionLock(ExtObjectContainer)}.
 	 */
-	private Client getClient(final UUID fcpID) throws UnknownClientException {
-		final Query q = mDB.query();
-		q.constrain(Client.class);
-		q.descend("mFCP_ID").constrain(fcpID.toString());
-		final ObjectSet<Client> result = new Persistent.InitializingObjectSet<Client>(mWoT, q);
+	void setResynchronizationRequiredStatisticWithoutCommit(final Client client,
+	        final boolean required) {
+	    
+		final ClientStatistics statistics = getClientStatistics(client, false);
+		if(statistics != null && statistics.setResynchronizationRequiredWithoutCommit(required))
+			mStatisticsWithUncommittedChanges.add(statistics);
+	}
+	
+	/**
+	 * Sets {@link ClientStatistics#mOldestQueuedTime} of the given {@link Client} of
+	 * {@link Client.Type#FCP} to the oldest {@link Notification} in its queue. Called by
+	 * {@link #run()} after deploying its notifications, which deletes the oldest ones.<br><br>
+	 * 
+	 * Must be called while synchronized on this SubscriptionManager.
+	 */
+	private void updateOldestQueuedTime(final Client client) {
+		final ClientStatistics statistics = getClientStatistics(client, false);
+		if(statistics == null)
+			return;
 		
-		switch(result.size()) {
-			case 1: return result.next();
-			case 0: throw new UnknownClientException(fcpID.toString());
-			default: throw new DuplicateObjectException(fcpID.toString());
-		}
+		final Iterator<? extends Notification> queue = getNotifications(client).iterator();
+		statistics.setOldestQueuedTime(
+			queue.hasNext() ? queue.next().getCreationDate().getTime() : 0);
 	}
 	
 	/**
-	 * Gets the {@link Client} with the given FCP ID, see {@link Client#getFCP_ID()}. If none exists, it is created.
-	 * It will NOT be stored to the database if it was created.
+	 * Called after {@link Notification}s, or objects of a synchronization page, have been
+	 * deployed to the given {@link Client} and the transaction was committed.
 	 */
-	private Client getOrCreateClient(final UUID fcpID) {
-		try {
-			return getClient(fcpID);
-		} catch(UnknownClientException e) {
-			return new Client(fcpID);
+	private void countDeployedNotifications(final Client client, final int notifications,
+	        final long bytes) {
+	    
+		countDeployedNotifications(client.getTypeSpecificID(), notifications, bytes);
+	}
+	
+	/**
+	 * Same as {@link #countDeployedNotifications(Client, int, long)} for callers which only
+	 * know the {@link Client#getTypeSpecificID()}, as they are not synchronized on this
+	 * SubscriptionManager and thus cannot query the Client.
+	 */
+	private void countDeployedNotifications(final String clientID, final int notifications,
+	        final long bytes) {
+	    
+		final ClientStatistics statistics;
+		synchronized(mClientStatistics) {
+			statistics = mClientStatistics.get(clientID);
 		}
+		if(statistics != null)
+			statistics.countDeployed(notifications, bytes);
+	}
+	
+	/**
+	 * Called after a {@link Notification} was queued for the given {@link Client} of
+	 * {@link Client.Type#FCP}. If the queue exceeds {@link #getMaxQueuedNotificationsPerClient()}
+	 * or {@link #getMaxQueuedNotificationBytesPerClient()}, marks the Client with
+	 * {@link Client#setResynchronizationRequiredWithoutCommit(boolean)}, see
+	 * {@link Client#mResynchronizationRequired}.<br><br>
+	 * 
+	 * Must be called while synchronized on this SubscriptionManager and the
+	 * {@link Persistent#transactionLock(ExtObjectContainer)}. Does not commit the transaction.
+	 */
+	private void checkQueueLimitsWithoutCommit(final Client client) {
+		final ClientStatistics statistics = getClientStatistics(client, false);
+		if(statistics == null)
+			return;
+		
+		final int queuedNotifications = statistics.getQueuedNotificationsWithoutCommit();
+		final long queuedBytes = statistics.getQueuedBytesWithoutCommit();
+		
+		if(queuedNotifications <= mMaxQueuedNotificationsPerClient
+		        && queuedBytes <= mMaxQueuedNotificationBytesPerClient)
+			return;
+		
+		Logger.warning(this, "Client is too slow, queued notifications: " + queuedNotifications
+		                   + "; bytes: " + queuedBytes + "; will resynchronize it: " + client);
+		
+		client.setResynchronizationRequiredWithoutCommit(true);
+		scheduleNotificationProcessing();
+	}
+	
+	/**
+	 * Same as {@link #checkQueueLimitsWithoutCommit(Client)} for a {@link Client} of
+	 * {@link Client.Type#Callback}, called after an event was staged for its
+	 * {@link CallbackQueue}: Only {@link #getMaxQueuedNotificationsPerClient()} is checked, the
+	 * byte limit does not apply since the events are kept in memory without being serialized.
+	 * <br>
+	 * Once the limit is exceeded no further events are staged, and {@link #run()} replaces the
+	 * queue with a new synchronization as for FCP clients. This bounds the memory usage if a
+	 * {@link SubscriptionListener} is too slow.<br><br>
+	 * 
+	 * Must be called while synchronized on this SubscriptionManager and the
+	 * {@link Persistent#transactionLock(ExtObjectContainer)}. Does not commit the transaction.
+	 */
+	private void checkCallbackQueueLimitWithoutCommit(final Client client) {
+		final CallbackQueue queue = getCallbackQueue(client.getCallbackID());
+		if(queue == null)
+			return;
+		
+		final int queuedEvents = queue.sizeWithoutCommit();
+		if(queuedEvents <= mMaxQueuedNotificationsPerClient)
+			return;
+		
+		Logger.warning(this, "Callback client is too slow, queued events: " + queuedEvents
+		                   + "; will resynchronize it: " + client);
+		
+		client.setResynchronizationRequiredWithoutCommit(true);
+		scheduleNotificationProcessing();
+	}
+	
+	/**
+	 * Drops the {@link Notification} queue of the given {@link Client} and restarts the
+	 * synchronization of each of its {@link Subscription}s via
+	 * {@link Subscription#restartSynchronizationWithoutCommit(SubscriptionManager)}.<br>
+	 * The synchronizations are streamed in pages as usual, so the client receives the current
+	 * state of the database instead of the backlog of changes which it could not keep up with.
+	 * <br><br>
+	 * 
+	 * Must be called while synchronized on this SubscriptionManager. Does not commit the
+	 * transaction.
+	 * 
+	 * @see Client#mResynchronizationRequired
+	 */
+	private void resynchronizeClientWithoutCommit(final Client client) {
+		Logger.warning(this, "Resynchronizing client: " + client);
+		
+		for(Subscription<? extends EventSource> subscription : getSubscriptions(client))
+			subscription.restartSynchronizationWithoutCommit(this);
+		
+		client.setResynchronizationRequiredWithoutCommit(false);
+	}
+	
+	/** @see #CONFIGURATION_MAX_QUEUED_NOTIFICATIONS_PER_CLIENT */
+	public int getMaxQueuedNotificationsPerClient() {
+		return mMaxQueuedNotificationsPerClient;
+	}
+	
+	/** @see #CONFIGURATION_MAX_QUEUED_NOTIFICATION_BYTES_PER_CLIENT */
+	public int getMaxQueuedNotificationBytesPerClient() {
+		return mMaxQueuedNotificationBytesPerClient;
 	}
 	
 	/**
@@ -1766,6 +3352,14 @@ public final class SubscriptionManager implements PrioRunnable {
 					client.deleteWithoutCommit();
 				}
 				Persistent.checkedCommit(mDB, this);
+				
+				synchronized(mCallbackQueues) {
+					mCallbackQueues.clear();
+				}
+				
+				synchronized(mClientStatistics) {
+					mClientStatistics.clear();
+				}
 			} catch(RuntimeException e) {
 				Persistent.checkedRollbackAndThrow(mDB, this, e);
 			}
@@ -1846,8 +3440,15 @@ public final class SubscriptionManager implements PrioRunnable {
 		@SuppressWarnings("unchecked")
 		final ObjectSet<IdentitiesSubscription> subscriptions = (ObjectSet<IdentitiesSubscription>)getSubscriptions(IdentitiesSubscription.class);
 		
+		final String id = (newIdentity != null ? newIdentity : oldIdentity).getID();
+		
 		for(IdentitiesSubscription subscription : subscriptions) {
-			subscription.storeNotificationWithoutCommit(oldIdentity, newIdentity);
+			// Objects which the client has not received yet will be streamed at their then-current
+			// state as part of the synchronization, so the change must not be queued for them.
+			if(subscription.synchronizationWillContain(id))
+				continue;
+			
+			subscription.storeChangeWithoutCommit(oldIdentity, newIdentity);
 		}
 		
 		if(logDEBUG) Logger.debug(this, "storeIdentityChangedNotificationWithoutCommit() finished.");
@@ -1876,8 +3477,14 @@ public final class SubscriptionManager implements PrioRunnable {
 		@SuppressWarnings("unchecked")
 		final ObjectSet<TrustsSubscription> subscriptions = (ObjectSet<TrustsSubscription>)getSubscriptions(TrustsSubscription.class);
 		
+		final String id = (newTrust != null ? newTrust : oldTrust).getID();
+		
 		for(TrustsSubscription subscription : subscriptions) {
-			subscription.storeNotificationWithoutCommit(oldTrust, newTrust);
+			// See storeIdentityChangedNotificationWithoutCommit()
+			if(subscription.synchronizationWillContain(id))
+				continue;
+			
+			subscription.storeChangeWithoutCommit(oldTrust, newTrust);
 		}
 		
 		if(logDEBUG) Logger.debug(this, "storeTrustChangedNotificationWithoutCommit() finished.");
@@ -1906,8 +3513,14 @@ public final class SubscriptionManager implements PrioRunnable {
 		@SuppressWarnings("unchecked")
 		final ObjectSet<ScoresSubscription> subscriptions = (ObjectSet<ScoresSubscription>)getSubscriptions(ScoresSubscription.class);
 		
+		final String id = (newScore != null ? newScore : oldScore).getID();
+		
 		for(ScoresSubscription subscription : subscriptions) {
-			subscription.storeNotificationWithoutCommit(oldScore, newScore);
+			// See storeIdentityChangedNotificationWithoutCommit()
+			if(subscription.synchronizationWillContain(id))
+				continue;
+			
+			subscription.storeChangeWithoutCommit(oldScore, newScore);
 		}
 		
 		if(logDEBUG) Logger.debug(this, "storeScoreChangedNotificationWithoutCommit() finished.");
@@ -1931,35 +3544,382 @@ public final class SubscriptionManager implements PrioRunnable {
 	public void run() {
 		if(logMINOR) Logger.minor(this, "run()...");
 		
-		/* We do NOT allow database queries on the WebOfTrust object in sendNotifications: 
-		 * Notification objects contain serialized clones of all required objects for deploying them, they are self-contained.
-		 * Therefore, we don't have to take the WebOfTrust lock and can execute in parallel to threads which need to lock the WebOfTrust.*/
-		// synchronized(mWoT) {
+		// Each pass deploys the regular Notification queues up to the first synchronization which
+		// has not been fully streamed yet, then streams one page of each such synchronization.
+		// We loop until no more pages are pending so the End marker and the changes which were
+		// held back behind it are deployed in the same run().
+		while(true) {
+			final ArrayList<String> synchronizationsToStream;
+			final ArrayList<String> callbacksToDeliver;
+			
+			/* We do NOT allow database queries on the WebOfTrust object in sendNotifications: 
+			 * Notification objects contain serialized clones of all required objects for deploying them, they are self-contained.
+			 * Therefore, we don't have to take the WebOfTrust lock and can execute in parallel to threads which need to lock the WebOfTrust.*/
+			// synchronized(mWoT) {
+			synchronized(this) {
+				mSynchronizationsToStream.clear();
+				mCallbacksToDeliver.clear();
+			
+			    // TODO: Optimization: We should investigate whether we can deploy notifications in
+			    // a thread for each client instead of one thread which iterates over all clients:
+			    // This will prevent a single slow client from causing all others to starve.
+				for(Client client : getAllClients()) {
+					try {
+						if(client.isResynchronizationRequired()) {
+							resynchronizeClientWithoutCommit(client);
+							Persistent.checkedCommit(mDB, this);
+							
+							final ClientStatistics statistics = getClientStatistics(client, false);
+							if(statistics != null) {
+								synchronized(statistics) {
+									++statistics.mResynchronizations;
+								}
+							}
+						}
+						
+						if(client.sendNotifications(this)) {
+							// Persistent.checkedCommit(mDB, this);	/* sendNotifications() does this already */
+							if(client.getType() == Client.Type.FCP)
+								updateOldestQueuedTime(client);
+						} else {
+							Logger.warning(this, "sendNotifications tells us to delete the Client, deleting it: " + client);
+							client.deleteWithoutCommit(this);
+							Persistent.checkedCommit(mDB, this);
+						}
+					} catch(InterruptedException e) {
+					    Logger.normal(this, "run(): Got InterruptedException, exiting thread.", e);
+					    // Rollback is already done by sendNotifications().
+					    return;
+					} catch(RuntimeException e) {
+						Persistent.checkedRollback(mDB, this, e);
+					}
+				}
+			
+				synchronizationsToStream = new ArrayList<String>(mSynchronizationsToStream);
+				callbacksToDeliver = new ArrayList<String>(mCallbacksToDeliver);
+			}
+			//}
+			
+			try {
+				for(String callbackID : callbacksToDeliver) {
+					final String synchronizationToStream = deliverCallbackEvents(callbackID);
+					if(synchronizationToStream != null)
+						synchronizationsToStream.add(synchronizationToStream);
+				}
+			} catch(InterruptedException e) {
+				Logger.normal(this, "run(): Got InterruptedException, exiting thread.", e);
+				return;
+			}
+			
+			if(synchronizationsToStream.isEmpty())
+				break;
+			
+			boolean streamedAnyPage = false;
+			try {
+				for(String subscriptionID : synchronizationsToStream) {
+					if(streamSynchronizationPage(subscriptionID))
+						streamedAnyPage = true;
+				}
+			} catch(InterruptedException e) {
+				Logger.normal(this, "run(): Got InterruptedException, exiting thread.", e);
+				return;
+			}
+			
+			if(!streamedAnyPage)
+				break;
+		}
+		
+		if(logMINOR) Logger.minor(this, "run() finished.");
+	}
+	
+	/**
+	 * Called by {@link Client#sendNotifications(SubscriptionManager)} with the
+	 * {@link Subscription#getID()}s of the Subscriptions whose
+	 * {@link EndSynchronizationNotification} it has reached while their synchronization was
+	 * still in progress, in queue order.<br>
+	 * Only the first one is scheduled for {@link #streamSynchronizationPage(String)}: Streaming
+	 * them one after another per {@link Client} preserves the order in which the client has
+	 * subscribed, so for example the {@link Identity}s are fully known to it before the
+	 * {@link Trust}s which point to them are streamed.<br><br>
+	 * 
+	 * Must be called while synchronized on this SubscriptionManager.
+	 */
+	private void scheduleSynchronizationStreaming(final List<String> subscriptionIDs) {
+		if(!subscriptionIDs.isEmpty())
+			mSynchronizationsToStream.add(subscriptionIDs.get(0));
+	}
+	
+	/**
+	 * Called by {@link Client#sendNotifications(SubscriptionManager)} for clients of
+	 * {@link Client.Type#Callback}: Their {@link CallbackQueue} is delivered by
+	 * {@link #deliverCallbackEvents(String)} after {@link #run()} has released the lock of the
+	 * SubscriptionManager, so the {@link SubscriptionListener} can use WOT.<br><br>
+	 * 
+	 * Must be called while synchronized on this SubscriptionManager.
+	 */
+	private void scheduleCallbackDelivery(final String callbackID) {
+		mCallbacksToDeliver.add(callbackID);
+	}
+	
+	/**
+	 * Delivers the {@link CallbackQueue} of the given {@link Client} of
+	 * {@link Client.Type#Callback} to its {@link SubscriptionListener}, in sequence.<br>
+	 * If the listener fails, delivery stops and the failure is handled the same way as failure of
+	 * deploying a {@link Notification} to a FCP client.<br><br>
+	 * 
+	 * Must NOT be called while synchronized on this SubscriptionManager.
+	 * 
+	 * @return The {@link Subscription#getID()} of the Subscription whose synchronization shall be
+	 *     streamed by {@link #streamSynchronizationPage(String)}, or null.
+	 * @throws InterruptedException See {@link Client#sendNotifications(SubscriptionManager)}.
+	 */
+	private String deliverCallbackEvents(final String callbackID) throws InterruptedException {
+		final CallbackQueue queue = getCallbackQueue(callbackID);
+		if(queue == null)
+			return null; // The client was deleted meanwhile.
+		
+		final ArrayList<String> heldSubscriptions = new ArrayList<String>(3);
+		
+		synchronized(queue.mDeliveryLock) {
+			while(true) {
+				heldSubscriptions.clear();
+				final SubscriptionEvent event = queue.peekDeliverableEvent(heldSubscriptions);
+				if(event == null)
+					break;
+				
+				if(logDEBUG) Logger.debug(this, "Delivering event via callback: " + event);
+				
+				try {
+					queue.mListener.handleSubscriptionEvent(event);
+				} catch(Throwable e) {
+					// FIXME: Code quality: Java 7 multi-catch, see Client.sendNotifications().
+					handleCallbackFailure(callbackID, e);
+					return null;
+				}
+				
+				queue.remove(event);
+				countDeployedNotifications(callbackID, 1, 0);
+				
+				if(Thread.interrupted())
+					throw new InterruptedException();
+			}
+		}
+		
+		return heldSubscriptions.isEmpty() ? null : heldSubscriptions.get(0);
+	}
+	
+	/**
+	 * Handles failure of the {@link SubscriptionListener} of the given {@link Client} of
+	 * {@link Client.Type#Callback} via {@link Client#handleSendNotificationsFailure(
+	 * SubscriptionManager, Throwable)}, and deletes the Client if that demands it.<br><br>
+	 * 
+	 * Must NOT be called while synchronized on the {@link CallbackQueue} of the client.
+	 */
+	private void handleCallbackFailure(final String callbackID, final Throwable e) {
+		assert(mWoT.mayAcquireLock(this));
+		synchronized(this) {
+		synchronized(Persistent.transactionLock(mDB)) {
+			try {
+				final Client client = getCallbackClient(callbackID);
+				
+				// Commits the transaction
+				if(!client.handleSendNotificationsFailure(this, e)) {
+					Logger.warning(this, "SubscriptionListener failed too often, deleting Client: "
+					                   + client);
+					client.deleteWithoutCommit(this);
+					Persistent.checkedCommit(mDB, this);
+				}
+			} catch(UnknownClientException e2) {
+				// The client was deleted meanwhile.
+				return;
+			} catch(RuntimeException e2) {
+				Persistent.checkedRollback(mDB, this, e2);
+			}
+		}
+		}
+	}
+	
+	/**
+	 * Reads the next page of the synchronization of the given {@link Subscription} from the
+	 * database in a short transaction and sends it to the client, see
+	 * {@link Subscription#storeSynchronizationWithoutCommit()}.<br>
+	 * The {@link WebOfTrust} lock is only held while reading the page, not while sending it.
+	 * <br><br>
+	 * 
+	 * No page is read while the client has {@link Notification}s queued which can be deployed
+	 * now: Those must reach the client first since the page reflects the state of the database
+	 * after the changes which they describe.<br><br>
+	 * 
+	 * If sending the page fails, the synchronization is restarted with a new version ID and the
+	 * failure is counted like failure of deploying a Notification, which may cause the
+	 * {@link Client} to be deleted.<br><br>
+	 * 
+	 * Must NOT be called while synchronized on this SubscriptionManager since it needs to take
+	 * the {@link WebOfTrust} lock first.
+	 * 
+	 * @return True if a page was sent to the client.
+	 * @throws InterruptedException See {@link Client#sendNotifications(SubscriptionManager)}.
+	 *     The cursor of the synchronization has been advanced already then, but as WOT is
+	 *     shutting down this does not matter: All Clients are deleted by the next {@link #start()}.
+	 */
+	private boolean streamSynchronizationPage(final String subscriptionID)
+	        throws InterruptedException {
+	    
+		final UUID clientID;
+		final String statisticsID;
+		final boolean asBatch;
+		final CallbackQueue callbackQueue;
+		final boolean finished;
+		final Class<? extends EventSource> eventSourceClass;
+		final List<? extends EventSource> page;
+		
+		assert(mWoT.mayAcquireLock(mWoT));
+		synchronized(mWoT) {
 		synchronized(this) {
-		    // TODO: Optimization: We should investigate whether we can deploy notifications in
-		    // a thread for each client instead of one thread which iterates over all clients:
-		    // This will prevent a single slow client from causing all others to starve.
-			for(Client client : getAllClients()) {
+		synchronized(Persistent.transactionLock(mDB)) {
+			try {
+				final Subscription<? extends EventSource> subscription;
+				try {
+					subscription = getSubscription(subscriptionID);
+				} catch(UnknownSubscriptionException e) {
+					// The client has unsubscribed meanwhile.
+					return false;
+				}
+				
+				if(!subscription.isSynchronizationInProgress())
+					return false;
+				
+				final Client client = subscription.getClient();
+				
+				// If there are any then deploying them has failed or they were queued after the
+				// current pass of run(). In both cases, run() will be scheduled again.
+				if(hasDeployableNotifications(client))
+					return false;
+				
+				// run() will restart the synchronization before deploying anything else.
+				if(client.isResynchronizationRequired())
+					return false;
+				
+				statisticsID = client.getTypeSpecificID();
+				
+				if(client.getType() == Client.Type.Callback) {
+					clientID = null;
+					asBatch = false;
+					callbackQueue = getCallbackQueue(client.getCallbackID());
+					if(callbackQueue == null)
+						return false; // The client is being deleted.
+				} else {
+					clientID = client.getFCP_ID();
+					asBatch = client.acceptsNotificationBatches();
+					callbackQueue = null;
+				}
+				
+				eventSourceClass = subscription.getEventSourceClass();
+				page = subscription.takeSynchronizationPageWithoutCommit(SYNCHRONIZATION_PAGE_SIZE);
+				finished = !subscription.isSynchronizationInProgress();
+				Persistent.checkedCommit(mDB, this);
+			} catch(RuntimeException e) {
+				Persistent.checkedRollback(mDB, this, e);
+				return false;
+			}
+		}
+		}
+		}
+		
+		if(logMINOR) {
+			Logger.minor(this, "Streaming synchronization page of " + page.size()
+			                 + " objects for subscription " + subscriptionID);
+		}
+		
+		try {
+			if(callbackQueue != null)
+				deliverSynchronizationPage(callbackQueue, subscriptionID, eventSourceClass, page, finished);
+			else
+				mWoT.getFCPInterface().sendSynchronizationPage(clientID, page, asBatch);
+			countDeployedNotifications(statisticsID, page.size(), 0);
+			return true;
+		} catch(InterruptedException e) {
+			throw e;
+		} catch(Throwable e) {
+			// FIXME: Code quality: Java 7 multi-catch, see Client.sendNotifications().
+			
+			assert(mWoT.mayAcquireLock(this));
+			synchronized(this) {
+			synchronized(Persistent.transactionLock(mDB)) {
 				try {
-					if(client.sendNotifications(this)) {
-						// Persistent.checkedCommit(mDB, this);	/* sendNotifications() does this already */
-					} else {
-						Logger.warning(this, "sendNotifications tells us to delete the Client, deleting it: " + client);
+					final Subscription<? extends EventSource> subscription;
+					try {
+						subscription = getSubscription(subscriptionID);
+					} catch(UnknownSubscriptionException e2) {
+						return false;
+					}
+					
+					subscription.restartSynchronizationWithoutCommit(this);
+					
+					final Client client = subscription.getClient();
+					// Commits the transaction
+					if(!client.handleSendNotificationsFailure(this, e)) {
+						Logger.warning(this, "Streaming synchronization failed, deleting Client: "
+						                   + client);
 						client.deleteWithoutCommit(this);
 						Persistent.checkedCommit(mDB, this);
 					}
-				} catch(InterruptedException e) {
-				    Logger.normal(this, "run(): Got InterruptedException, exiting thread.", e);
-				    // Rollback is already done by sendNotifications().
-				    return;
-				} catch(RuntimeException e) {
-					Persistent.checkedRollback(mDB, this, e);
+				} catch(RuntimeException e2) {
+					Persistent.checkedRollback(mDB, this, e2);
 				}
 			}
+			}
+			
+			return false;
+		}
+	}
+	
+	/**
+	 * Implementation of {@link #streamSynchronizationPage(String)} for clients of
+	 * {@link Client.Type#Callback}: Delivers each object of the page as a
+	 * {@link SubscriptionEvent} of {@link SubscriptionEvent.Type#ObjectChanged} with
+	 * {@link SubscriptionEvent#getOldObject()} = null, same as FCP clients receive it.
+	 * 
+	 * @param finished True if this is the last page. Then the
+	 *     {@link SubscriptionEvent.Type#EndSynchronization} will be released for delivery.
+	 * @throws Exception If the {@link SubscriptionListener} failed.
+	 */
+	private void deliverSynchronizationPage(final CallbackQueue queue,
+	        final String subscriptionID, final Class<? extends EventSource> eventSourceClass,
+	        final List<? extends EventSource> page, final boolean finished) throws Exception {
+	    
+		synchronized(queue.mDeliveryLock) {
+			for(EventSource eventSource : page) {
+				queue.mListener.handleSubscriptionEvent(new SubscriptionEvent(
+				    SubscriptionEvent.Type.ObjectChanged, subscriptionID, eventSourceClass,
+				    null, null, eventSource));
+			}
 		}
-		//}
 		
-		if(logMINOR) Logger.minor(this, "run() finished.");
+		if(finished)
+			queue.finishSynchronization(subscriptionID);
+	}
+	
+	/**
+	 * @return True if the given {@link Client} has {@link Notification}s queued which
+	 *     {@link Client#sendNotifications(SubscriptionManager)} would deploy now, i.e. which do not
+	 *     belong to a {@link Subscription} whose synchronization is still in progress.
+	 * 
+	 * TODO: Performance: This iterates over the changes which are held back behind the
+	 * {@link EndSynchronizationNotification}s of the synchronizations in progress. If that
+	 * becomes an issue, store a per-Client counter of deployable Notifications.
+	 */
+	private boolean hasDeployableNotifications(final Client client) {
+		if(client.getType() == Client.Type.Callback) {
+			final CallbackQueue queue = getCallbackQueue(client.getCallbackID());
+			return queue != null && queue.hasDeliverableEvents();
+		}
+		
+		for(Notification notification : getNotifications(client)) {
+			if(!notification.getSubscription().isSynchronizationInProgress())
+				return true;
+		}
+		return false;
 	}
 	
 	/** {@inheritDoc} */
@@ -2027,6 +3987,16 @@ public final class SubscriptionManager implements PrioRunnable {
         // scheduleNotificationProcessing().
 		deleteAllClients();
 		
+		final Configuration config = mWoT.getConfig();
+		if(config.containsInt(CONFIGURATION_MAX_QUEUED_NOTIFICATIONS_PER_CLIENT)) {
+			mMaxQueuedNotificationsPerClient
+			    = config.getInt(CONFIGURATION_MAX_QUEUED_NOTIFICATIONS_PER_CLIENT);
+		}
+		if(config.containsInt(CONFIGURATION_MAX_QUEUED_NOTIFICATION_BYTES_PER_CLIENT)) {
+			mMaxQueuedNotificationBytesPerClient
+			    = config.getInt(CONFIGURATION_MAX_QUEUED_NOTIFICATION_BYTES_PER_CLIENT);
+		}
+		
 		final PluginRespirator respirator = mWoT.getPluginRespirator();
         final Ticker ticker;
         final Runnable jobRunnable;
@@ -2133,4 +4103,37 @@ public final class SubscriptionManager implements PrioRunnable {
         return amount;
     }
 
+    /**
+     * @return Clones of the {@link ClientStatistics} of all current {@link Client}s, with
+     *         {@link ClientStatistics#mLag} computed.<br>
+     *         Does not synchronize on this SubscriptionManager and does not query the database,
+     *         so it does not wait while {@link #run()} deploys notifications to slow clients.
+     */
+    public ArrayList<ClientStatistics> getClientStatistics() {
+        final ArrayList<ClientStatistics> statistics;
+        synchronized(mClientStatistics) {
+            statistics = new ArrayList<ClientStatistics>(mClientStatistics.values());
+        }
+        
+        final long now = CurrentTimeUTC.getInMillis();
+        final ArrayList<ClientStatistics> result
+            = new ArrayList<ClientStatistics>(statistics.size());
+        
+        for(ClientStatistics original : statistics) {
+            final ClientStatistics clone = original.clone();
+            
+            if(clone.mType == Client.Type.Callback) {
+                // For callback clients, the ID is the Client#getCallbackID()
+                final CallbackQueue queue = getCallbackQueue(clone.mClientID);
+                clone.mQueuedNotifications = queue != null ? queue.size() : 0;
+            } else if(clone.mOldestQueuedTime != 0) {
+                clone.mLag = now - clone.mOldestQueuedTime;
+            }
+            
+            result.add(clone);
+        }
+        
+        return result;
+    }
+
 }
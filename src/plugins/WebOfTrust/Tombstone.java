@@ -0,0 +1,109 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.Serializable;
+
+/**
+ * Records the deletion of an {@link Identity}, {@link Trust} or {@link Score}.<br>
+ * Stored by their deleteWithoutCommit() so the FCP message "GetChangesSince" can tell clients
+ * which objects were deleted after a given change sequence number, see
+ * {@link WebOfTrust#getCurrentChangeSequence()}.<br><br>
+ *
+ * Tombstones are kept for {@link Configuration#getTombstoneRetentionDays()} and then deleted by
+ * {@link WebOfTrust#deleteExpiredTombstones()}. The highest change sequence number of the deleted
+ * tombstones is remembered as {@link Configuration#getChangeSequenceHorizon()}: Clients which
+ * ask for changes since an older sequence number cannot be told about all deletions anymore and
+ * thus must resynchronize.
+ */
+@Persistent.IndexedField(names = {"mCreationDate"})
+public final class Tombstone extends Persistent {
+
+	/** @see Serializable */
+	private static transient final long serialVersionUID = 1L;
+
+	/** Value of {@link #getType()} for deleted {@link Identity} and {@link OwnIdentity} objects */
+	public static transient final String TYPE_IDENTITY = "Identity";
+
+	/** Value of {@link #getType()} for deleted {@link Trust} objects */
+	public static transient final String TYPE_TRUST = "Trust";
+
+	/** Value of {@link #getType()} for deleted {@link Score} objects */
+	public static transient final String TYPE_SCORE = "Score";
+
+	/** The change sequence number of the deletion. Also serves as the ID of the Tombstone. */
+	@IndexedField
+	private final long mChangeSequence;
+
+	/** One of {@link #TYPE_IDENTITY}, {@link #TYPE_TRUST}, {@link #TYPE_SCORE}. */
+	@IndexedField
+	private final String mType;
+
+	/** The {@link Persistent#getID()} of the deleted object. */
+	private final String mObjectID;
+
+
+	Tombstone(WebOfTrustInterface myWebOfTrust, Persistent deletedObject) {
+		if(deletedObject instanceof Identity)
+			mType = TYPE_IDENTITY;
+		else if(deletedObject instanceof Trust)
+			mType = TYPE_TRUST;
+		else if(deletedObject instanceof Score)
+			mType = TYPE_SCORE;
+		else
+			throw new IllegalArgumentException("Unsupported class: " + deletedObject.getClass());
+
+		mObjectID = deletedObject.getID();
+		mChangeSequence = myWebOfTrust.getNextChangeSequence();
+		initializeTransient(myWebOfTrust);
+	}
+
+	/** Returns the change sequence number as String. It is unique for every Tombstone. */
+	@Override
+	public String getID() {
+		return Long.toString(getChangeSequence());
+	}
+
+	@Override
+	public long getChangeSequence() {
+		checkedActivate(1); // long is a db4o primitive type so 1 is enough
+		return mChangeSequence;
+	}
+
+	/** @see #mType */
+	public String getType() {
+		checkedActivate(1); // String is a db4o primitive type so 1 is enough
+		return mType;
+	}
+
+	/** @see #mObjectID */
+	public String getObjectID() {
+		checkedActivate(1); // String is a db4o primitive type so 1 is enough
+		return mObjectID;
+	}
+
+	@Override
+	public void startupDatabaseIntegrityTest() throws Exception {
+		checkedActivate(1); // All members are db4o primitive types so 1 is enough
+
+		if(mChangeSequence <= 0)
+			throw new IllegalStateException("Invalid mChangeSequence: " + mChangeSequence);
+
+		if(!TYPE_IDENTITY.equals(mType) && !TYPE_TRUST.equals(mType) && !TYPE_SCORE.equals(mType))
+			throw new IllegalStateException("Invalid mType: " + mType);
+
+		if(mObjectID == null)
+			throw new NullPointerException("mObjectID==null");
+	}
+
+	@Override
+	public String toString() {
+		checkedActivate(1);
+		return "[" + super.toString()
+		     + "; mChangeSequence: " + mChangeSequence
+		     + "; mType: " + mType
+		     + "; mObjectID: " + mObjectID
+		     + "]";
+	}
+}
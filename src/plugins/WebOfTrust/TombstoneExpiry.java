@@ -0,0 +1,74 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+
+import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
+import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
+import plugins.WebOfTrust.util.jobs.TickerDelayedBackgroundJob;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Logger;
+import freenet.support.Ticker;
+import freenet.support.io.NativeThread;
+
+/**
+ * Calls {@link WebOfTrust#deleteExpiredTombstones()} {@link DeferredStartupMaintenance#DELAY}
+ * after startup and then every {@link #INTERVAL} while WoT is running. Thus a node which is not
+ * restarted for a long time does not accumulate {@link Tombstone}s beyond
+ * {@link Configuration#getTombstoneRetentionDays()}: They are kept for at most the retention
+ * period plus the interval.
+ */
+final class TombstoneExpiry implements PrioRunnable {
+
+	/** Delay between two runs of {@link WebOfTrust#deleteExpiredTombstones()}. */
+	public static final long INTERVAL = HOURS.toMillis(6);
+
+	private final WebOfTrust mWoT;
+
+	/** Until {@link #start(Ticker)} is called, a {@link MockDelayedBackgroundJob}. */
+	private volatile DelayedBackgroundJob mJob = MockDelayedBackgroundJob.DEFAULT;
+
+
+	TombstoneExpiry(WebOfTrust wot) {
+		mWoT = wot;
+	}
+
+	synchronized void start(Ticker ticker) {
+		if(mJob != MockDelayedBackgroundJob.DEFAULT)
+			throw new IllegalStateException("start() was already called!");
+
+		mJob = new TickerDelayedBackgroundJob(this, "WoT TombstoneExpiry", INTERVAL, ticker);
+		mJob.triggerExecution(DeferredStartupMaintenance.DELAY);
+	}
+
+	/** Aborts a scheduled run and waits for a running one to finish. */
+	void stop() {
+		mJob.terminate();
+		try {
+			mJob.waitForTermination(Long.MAX_VALUE);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override public void run() {
+		if(Thread.interrupted())
+			return;
+
+		try {
+			mWoT.deleteExpiredTombstones();
+		} catch(RuntimeException e) {
+			Logger.error(this, "deleteExpiredTombstones() failed", e);
+		} finally {
+			// Also after a failure: The next run might succeed. Does nothing after stop().
+			mJob.triggerExecution(INTERVAL);
+		}
+	}
+
+	@Override public int getPriority() {
+		return NativeThread.LOW_PRIORITY;
+	}
+}
@@ -115,6 +115,13 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
      *  Stored as String to reduce db4o maintenance overhead. */
     private String mVersionID = null;
 
+	/**
+	 * Assigned from the global counter of the {@link WebOfTrust} by {@link #storeWithoutCommit()}.
+	 * Indexed so the FCP message "GetChangesSince" can query the trusts which were changed
+	 * after a given value. See {@link WebOfTrust#getCurrentChangeSequence()}. */
+	@IndexedField
+	private long mChangeSequence = 0;
+
 
 	/**
 	 * A class for generating and validating Trust IDs.
@@ -434,13 +441,33 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 			activateFully();
 			throwIfNotStored(mTruster);
 			throwIfNotStored(mTrustee);
+			mChangeSequence = mWebOfTrust.getNextChangeSequence();
 			checkedStore();
+			
+			final SnapshotStore snapshots = mWebOfTrust.getSnapshotStore();
+			if(snapshots != null)
+				snapshots.stageStore(this);
 		}
 		catch(final RuntimeException e) {
 			checkedRollbackAndThrow(e);
 		}
 	}
 
+	/**
+	 * Stores a {@link Tombstone} of this Trust so the FCP message "GetChangesSince" can tell
+	 * clients about the deletion, stages the deletion at the {@link SnapshotStore}, then deletes it.
+	 */
+	@Override
+	protected void deleteWithoutCommit() {
+		new Tombstone(mWebOfTrust, this).storeWithoutCommit();
+		
+		final SnapshotStore snapshots = mWebOfTrust.getSnapshotStore();
+		if(snapshots != null)
+			snapshots.stageDelete(this);
+		
+		super.deleteWithoutCommit();
+	}
+
 	/**
 	 * Test if two trust objects are equal.<br />
 	 * - <b>All</b> attributes are compared <b>except</b> the dates.<br />
@@ -490,12 +517,32 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 			clone.setCreationDate(getCreationDate());
 			clone.mLastChangedDate = (Date)mLastChangedDate.clone();	// Clone it because date is mutable
 			clone.mTrusterTrustListEdition = mTrusterTrustListEdition; // Don't use the getter since it will re-query it from the actual Identity object which might have changed
+			clone.mChangeSequence = mChangeSequence;
 			return clone;
 		} catch (InvalidParameterException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	/**
+	 * Copies the values of the given Trust, which must have the same {@link #getID()} but may be
+	 * stored in another database, into this one. For {@link OnlineDefragmentation}, see
+	 * {@link Identity#copyStateFrom(Identity)}.<br>
+	 * Does not store anything, use {@link #storeWithoutCommit()} afterwards. */
+	void copyStateFrom(Trust source) {
+		if(!getID().equals(source.getID()))
+			throw new IllegalArgumentException("Not a version of " + this + ": " + source);
+		
+		activateFully();
+		source.activateFully();
+		mValue = source.mValue;
+		mComment = source.mComment;
+		mTrusterTrustListEdition = source.mTrusterTrustListEdition;
+		mVersionID = source.mVersionID;
+		setCreationDate(source.getCreationDate());
+		mLastChangedDate = (Date)source.mLastChangedDate.clone(); // Clone it because date is mutable
+	}
+
 	@Override public Trust cloneP() {
 		return clone();
 	}
@@ -536,6 +583,9 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 		if(mTrusterTrustListEdition != getTruster().getEdition() && getTruster().getCurrentEditionFetchState() == Identity.FetchState.Fetched
 				&& !(getTruster() instanceof OwnIdentity)) // We do not update mTrusterTrustListEdition for OwnIdentities, they do not need it.
 			throw new IllegalStateException("mTrusterTrustListEdition is invalid: " + mTrusterTrustListEdition);
+		
+		if(mChangeSequence < 0)
+			throw new IllegalStateException("Invalid mChangeSequence: " + mChangeSequence);
 	}
 	
 	/** @see Persistent#serialize() */
@@ -546,6 +596,38 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 		stream.defaultWriteObject();
 	}
 
+	/**
+	 * Writes all non-transient member variables for {@link Persistent#serialize()}, including the
+	 * truster and trustee {@link Identity} objects.<br>
+	 * ATTENTION: Must be kept in sync with {@link #Trust(PersistentCodec.Decoder)}.
+	 * 
+	 * @see PersistentCodec */
+	void writeCompact(PersistentCodec.Encoder out) {
+		activateFully();
+		out.writePersistent(mTruster);
+		out.writePersistent(mTrustee);
+		out.writeString(mID);
+		out.writeByte(mValue);
+		out.writeString(mComment);
+		out.writeDate(mLastChangedDate);
+		out.writeLong(mTrusterTrustListEdition);
+		out.writeString(mVersionID);
+		out.writeLong(mChangeSequence);
+	}
+
+	/** Inverse of {@link #writeCompact(PersistentCodec.Encoder)}. */
+	Trust(PersistentCodec.Decoder in) throws IOException {
+		mTruster = in.readIdentity();
+		mTrustee = in.readIdentity();
+		mID = in.readString();
+		mValue = in.readByte();
+		mComment = in.readString();
+		mLastChangedDate = in.readDate();
+		mTrusterTrustListEdition = in.readLong();
+		mVersionID = in.readString();
+		mChangeSequence = in.readLong();
+	}
+
     /** {@inheritDoc} */
     @Override public void setVersionID(UUID versionID) { 
         checkedActivate(1);
@@ -559,4 +641,10 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
         // FIXME: Validate whether this yields proper results using an event-notifications FCP dump
         return mVersionID != null ? UUID.fromString(mVersionID) : UUID.randomUUID();
     }
+
+    /** {@inheritDoc} */
+    @Override public long getChangeSequence() {
+        checkedActivate(1); // long is a db4o primitive type so 1 is enough
+        return mChangeSequence;
+    }
 }
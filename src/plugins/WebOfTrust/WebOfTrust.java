@@ -11,18 +11,24 @@ import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import plugins.WebOfTrust.Identity.FetchState;
@@ -46,6 +52,8 @@ import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.ChangeSet;
 import plugins.WebOfTrust.ui.fcp.FCPInterface;
 import plugins.WebOfTrust.ui.web.WebInterface;
 import plugins.WebOfTrust.util.IdentifierHashSet;
+import plugins.WebOfTrust.util.LockOrder;
+import plugins.WebOfTrust.util.LockProfiler;
 import plugins.WebOfTrust.util.StopWatch;
 
 import com.db4o.Db4o;
@@ -108,7 +116,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	public static final String SELF_URI = "/WebOfTrust";
 	
 	public static final String DATABASE_FILENAME =  WebOfTrustInterface.WOT_NAME + ".db4o"; 
-	public static final int DATABASE_FORMAT_VERSION = 7;
+	public static final int DATABASE_FORMAT_VERSION = 10;
 
 	/* References from the node */
 	
@@ -191,6 +199,92 @@ public final class WebOfTrust extends WebOfTrustInterface
 	
 	private boolean mTrustListImportInProgress = false;
 	
+	/**
+	 * The change sequence number which was handed out last by {@link #getNextChangeSequence()}.
+	 * Not stored in the database: {@link #initializeChangeSequence()} restores it at startup from
+	 * the stored objects.
+	 * 
+	 * @see #getCurrentChangeSequence() */
+	private final AtomicLong mChangeSequence = new AtomicLong(0);
+	
+	/**
+	 * In-memory copies of the Identity, Trust and Score objects for read-only user interfaces,
+	 * which allows them to avoid synchronized(this). */
+	private SnapshotStore mSnapshotStore;
+	
+	/**
+	 * Cache of the results of {@link #getIdentityByID(String)}, {@link #getTrust(String)} and
+	 * {@link #getScore(String)}. Null until the database format is up to date as
+	 * {@link #upgradeDB()} might change the IDs. */
+	private ObjectCache mObjectCache;
+	
+	/**
+	 * Executes the queries for {@link Trust}s and {@link Score}s, such as {@link #getTrust(String)}
+	 * and {@link #getGivenTrusts(Identity)}. */
+	private final Db4oStorageEngine mStorageEngine = new Db4oStorageEngine(this);
+	
+	/**
+	 * Merges the commits of transactions which opted in, see {@link GroupCommit}. Null if
+	 * {@link Configuration#getGroupCommitDelay()} is 0. */
+	private GroupCommit mGroupCommit = null;
+	
+	/**
+	 * Backs up the database periodically while WoT is running. Null if
+	 * {@link Configuration#getBackupInterval()} is 0, and in unit tests. */
+	private DatabaseBackup mDatabaseBackup = null;
+	
+	/** Defragments the database while WoT is running. Null in unit tests. */
+	private OnlineDefragmentation mOnlineDefragmentation = null;
+	
+	/** Deletes expired {@link Tombstone}s periodically while WoT is running. Null in unit tests. */
+	private TombstoneExpiry mTombstoneExpiry = null;
+	
+	/** Durations of the phases of {@link #runPlugin(PluginRespirator)}. Null in unit tests. */
+	private StartupTimeline mStartupTimeline = null;
+	
+	/**
+	 * Runs the startup maintenance which is deferred until after startup has completed.
+	 * Null in unit tests. */
+	private DeferredStartupMaintenance mDeferredStartupMaintenance = null;
+	
+	/**
+	 * The order in which the locks of the subsystems must be acquired, see
+	 * {@link SubscriptionManager}. Checked by assertions before taking the first lock of a chain,
+	 * see {@link #mayAcquireLock(Object)}. */
+	private LockOrder mLockOrder;
+	
+	/** Names of the locks of {@link #mLockOrder} for the {@link #mLockProfiler}. */
+	private static final String[] LOCK_NAMES = { "WebOfTrust", "IntroductionPuzzleStore",
+		"IdentityFetcher", "SubscriptionManager", "TransactionLock" };
+	
+	/**
+	 * Only running if {@link Configuration#isLockProfilerEnabled()}.
+	 * 
+	 * @see #setLockProfilerEnabled(boolean) */
+	private LockProfiler mLockProfiler;
+	
+	/**
+	 * Maximal amount of entries of {@link #mPagers}. Each of them holds 8 bytes per object of the
+	 * paged class, so this is small. */
+	public static final int MAX_PAGERS = 4;
+	
+	/**
+	 * The {@link IDOrderedPager}s of the paged queries of {@link #getIdentitiesPage(String,
+	 * String, int)}, {@link #getTrustsPage(String, int)} and {@link #getScoresPage(String, int)}
+	 * which can be continued with the next page. Key = {@link #getPagerKey(Class, String,
+	 * String)} of the cursor at which the next page starts.<br>
+	 * A query whose pager was evicted or never existed, e.g. after a restart, creates a new one
+	 * from the cursor. Ordered by access so the least recently used one is evicted first.<br>
+	 * Protected by synchronized(this). */
+	@SuppressWarnings("serial")
+	private final LinkedHashMap<String, IDOrderedPager<?>> mPagers
+		= new LinkedHashMap<String, IDOrderedPager<?>>(MAX_PAGERS + 1, 0.75f, true) {
+			@Override protected boolean removeEldestEntry(
+					Map.Entry<String, IDOrderedPager<?>> eldest) {
+				return size() > MAX_PAGERS;
+			}
+		};
+	
 	
 	/* User interfaces */
 	
@@ -234,6 +328,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 	
 			mPR = myPR;
 			
+			mStartupTimeline = new StartupTimeline();
+			mStartupTimeline.beginPhase("OpenDatabase");
+			
 			/* TODO: This can be used for clean copies of the database to get rid of corrupted internal db4o structures. 
 			/* We should provide an option on the web interface to run this once during next startup and switch to the cloned database */
 			// cloneDatabase(getDatabaseFile(), new File(getUserDataDirectory(), DATABASE_FILENAME + ".clone"));
@@ -242,6 +339,12 @@ public final class WebOfTrust extends WebOfTrustInterface
 			
 			mConfig = getOrCreateConfig();
 			
+			initializeChangeSequence();
+			
+			mStartupTimeline.beginPhase("CreateSubsystems");
+			
+			mSnapshotStore = new SnapshotStore(this);
+			
 			mSubscriptionManager = new SubscriptionManager(this);
 			
 			mPuzzleStore = new IntroductionPuzzleStore(this);
@@ -273,10 +376,36 @@ public final class WebOfTrust extends WebOfTrustInterface
 				mIdentityFileQueue, mPR.getNode().getTicker(), mXMLTransformer);
 
 			mFetcher = new IdentityFetcher(this, getPluginRespirator(), mIdentityFileQueue);
+			
+			mLockOrder = new LockOrder(this, mPuzzleStore, mFetcher, mSubscriptionManager,
+				Persistent.transactionLock(mDB));
+			
+			mLockProfiler = new LockProfiler(mLockOrder, LOCK_NAMES,
+				LockProfiler.DEFAULT_SAMPLE_INTERVAL);
+			// Started before upgradeDB() and the other startup maintenance so it is profiled too.
+			if(mConfig.isLockProfilerEnabled())
+				mLockProfiler.start();
 
 
+			mStartupTimeline.beginPhase("UpgradeDatabase");
+			
 			// Please ensure that no threads are using the IntroductionPuzzleStore / IdentityFetcher / SubscriptionManager while this is executing.
 			upgradeDB();
+			
+			mStartupTimeline.beginPhase("LoadSnapshots");
+			
+			// Load it now instead of lazily so the first UI request after startup is not slow.
+			// This must happen after upgradeDB() because it copies the objects in their new format.
+			mSnapshotStore.load();
+			
+			mStartupTimeline.beginPhase("StartSubsystems");
+			
+			mObjectCache = new ObjectCache(this);
+			
+			if(mConfig.getGroupCommitDelay() > 0) {
+				mGroupCommit = new GroupCommit(mDB, mConfig.getGroupCommitDelay());
+				mGroupCommit.start();
+			}
 
 			
 			mInserter = new IdentityInserter(this);
@@ -302,16 +431,37 @@ public final class WebOfTrust extends WebOfTrustInterface
 			// We only do this if debug logging is enabled since the integrity verification cannot repair anything anyway,
 			// if the user does not read his logs there is no need to check the integrity.
 			// TODO: Do this once every few startups and notify the user in the web ui if errors are found.
-			if(logDEBUG)
+			// It is not deferred because deleteDuplicateObjects() must run before the
+			// SubscriptionManager is started.
+			if(logDEBUG) {
+				mStartupTimeline.beginPhase("VerifyDatabaseIntegrity");
 				verifyDatabaseIntegrity();
+			}
 			
-			maybeVerifyAndCorrectStoredScores();
+			// The following maintenance is not necessary for correctness, so it is run in the
+			// background once the user interfaces are up to not delay the startup.
+			mDeferredStartupMaintenance = new DeferredStartupMaintenance(mStartupTimeline);
+			mDeferredStartupMaintenance.add("VerifyScores", new Runnable() {
+				@Override public void run() {
+					maybeVerifyAndCorrectStoredScores();
+				}
+			});
+			
+			mStartupTimeline.beginPhase("StartServices");
 			
-						
 			// Database is up now, integrity is checked. We can start to actually do stuff
 			
-			// TODO: This can be used for doing backups. Implement auto backup, maybe once a week or month
-			//backupDatabase(new File(getUserDataDirectory(), DATABASE_FILENAME + ".backup"));
+			if(mConfig.getBackupInterval() > 0) {
+				mDatabaseBackup = new DatabaseBackup(this, getDatabaseFile(),
+					mConfig.getBackupInterval(), mConfig.getBackupCount());
+				mDatabaseBackup.start(mPR.getNode().getTicker());
+			}
+			
+			mOnlineDefragmentation = new OnlineDefragmentation(this, getDatabaseFile());
+			mOnlineDefragmentation.start(mPR.getNode().getTicker());
+			
+			mTombstoneExpiry = new TombstoneExpiry(this);
+			mTombstoneExpiry.start(mPR.getNode().getTicker());
 
 			mSubscriptionManager.start();
 			
@@ -339,6 +489,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 			// Start at the very end to ensure that its processing doesn't slow down startup.
 			mIdentityFileProcessor.start();
 			
+			mDeferredStartupMaintenance.start(mPR.getNode().getTicker());
+			
+			mStartupTimeline.finishStartup();
 			Logger.normal(this, "Web Of Trust plugin starting up completed.");
 		}
 		catch(RuntimeException e){
@@ -375,6 +528,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 			throw new RuntimeException("Database format version mismatch. Found: " + mConfig.getDatabaseFormatVersion() + 
 					"; expected: " + WebOfTrust.DATABASE_FORMAT_VERSION);
 		
+		initializeChangeSequence();
+		
+		// Not loaded here: This constructor is also used for maintenance of databases, e.g. by
+		// backupDatabase(), which doesn't need the copies. Readers will load it on demand.
+		mSnapshotStore = new SnapshotStore(this);
+		
+		mObjectCache = new ObjectCache(this);
+		
 		mPuzzleStore = new IntroductionPuzzleStore(this);
 		
 		mSubscriptionManager = new SubscriptionManager(this);
@@ -393,6 +554,12 @@ public final class WebOfTrust extends WebOfTrustInterface
 
 		mFetcher = new IdentityFetcher(this, null, mIdentityFileQueue);
 		
+		mLockOrder = new LockOrder(this, mPuzzleStore, mFetcher, mSubscriptionManager,
+			Persistent.transactionLock(mDB));
+		
+		mLockProfiler = new LockProfiler(mLockOrder, LOCK_NAMES,
+			LockProfiler.DEFAULT_SAMPLE_INTERVAL);
+		
 		// Identity files flow through the following pipe:
 		//     mFetcher -> mIdentityFileQueue -> mIdentityFileProcessor
 		// Thus, in theory, we should want to start the pipe's daemons in reverse order to
@@ -440,12 +607,15 @@ public final class WebOfTrust extends WebOfTrustInterface
         return wotDirectory;
 	}
 
-	/** Same as {@link #getNewDatabaseConfiguration(boolean)} with parameter readOnly = false. */
-	private com.db4o.config.Configuration getNewDatabaseConfiguration() {
+	/**
+	 * Same as {@link #getNewDatabaseConfiguration(boolean)} with parameter readOnly = false.<br>
+	 * Not private for {@link OnlineDefragmentation}. */
+	com.db4o.config.Configuration getNewDatabaseConfiguration() {
 		return getNewDatabaseConfiguration(false);
 	}
 
-	private com.db4o.config.Configuration getNewDatabaseConfiguration(boolean readOnly) {
+	/** Not private for {@link DatabaseIntegrityVerifier}. */
+	com.db4o.config.Configuration getNewDatabaseConfiguration(boolean readOnly) {
 		com.db4o.config.Configuration cfg = Db4o.newConfiguration();
 		
 		if(readOnly)
@@ -491,7 +661,9 @@ public final class WebOfTrust extends WebOfTrustInterface
         	SubscriptionManager.ScoreChangedNotification.class,
         	SubscriptionManager.TrustChangedNotification.class,
         	IntroductionPuzzle.class,
-        	OwnIntroductionPuzzle.class
+        	OwnIntroductionPuzzle.class,
+        	Tombstone.class,
+        	IdentityContext.class
         };
         
         for(Class<? extends Persistent> clazz : persistentClasses) {
@@ -600,7 +772,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 			while(!database.close());
 
 			if(!mayDefrag) {
-				Logger.normal(this, "Not defragmenting, minimal delay not expired.");
+				Logger.normal(this, "Not defragmenting, not scheduled. OnlineDefragmentation "
+					+ "will do it while running.");
 				return;
 			}
 			
@@ -710,6 +883,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		Logger.normal(this, "Upgrading database format version " + databaseFormatVersion);
 		
 		//synchronized(this) { // Already done at function level
+		assert(mayAcquireLock(mPuzzleStore));
 		synchronized(mPuzzleStore) { // For deleteWithoutCommit(Identity) / restoreOwnIdentityWithoutCommit()
 		synchronized(mFetcher) { // For deleteWithoutCommit(Identity) / restoreOwnIdentityWithoutCommit()
 		synchronized(mSubscriptionManager) { // For deleteWithoutCommit(Identity) / restoreOwnIdentityWithoutCommit()
@@ -732,7 +906,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 					case 4: upgradeDatabaseFormatVersion4(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
                     case 5: upgradeDatabaseFormatVersion12345(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
 					case 6: upgradeDatabaseFormatVersion6(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
-					case 7: break;
+					case 7: upgradeDatabaseFormatVersion7(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
+					case 8: upgradeDatabaseFormatVersion8(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
+					case 9: upgradeDatabaseFormatVersion9(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
+					case 10: break;
 					default:
 						throw new UnsupportedOperationException("Your database is newer than this WOT version! Please upgrade WOT.");
 				}
@@ -996,6 +1173,45 @@ public final class WebOfTrust extends WebOfTrustInterface
 		mConfig.storeWithoutCommit();
 	}
 
+	/**
+	 * Upgrades database format version 7 to version 8.<br><br>
+	 *
+	 * Initializes {@link Configuration#getChangeSequenceEpoch()} and
+	 * {@link Configuration#getChangeSequenceHorizon()}.<br>
+	 * The existing {@link Identity}/{@link Trust}/{@link Score} objects are not renumbered: They
+	 * keep the change sequence number 0 until they are stored the next time. That is fine because
+	 * clients of the FCP message "GetChangesSince" must download the full dataset before they can
+	 * ask for changes anyway. To ensure that they do, the horizon is raised above 0. */
+	private void upgradeDatabaseFormatVersion7() {
+		Logger.normal(this, "Initializing change sequence epoch and horizon...");
+		
+		mConfig.renewChangeSequenceEpoch();
+		mConfig.raiseChangeSequenceHorizon(getNextChangeSequence());
+		mConfig.storeWithoutCommit();
+	}
+
+	/**
+	 * Upgrades database format version 8 to version 9.<br><br>
+	 *
+	 * Initializes the counters of {@link Identity#getReceivedTrustCount(int)} and
+	 * {@link Identity#getGivenTrustCount(int)}. */
+	private void upgradeDatabaseFormatVersion8() {
+		Logger.normal(this, "Counting received and given trusts of all identities...");
+		
+		verifyAndCorrectTrustCountsWithoutCommit();
+	}
+
+	/**
+	 * Upgrades database format version 9 to version 10.<br><br>
+	 *
+	 * Creates the {@link IdentityContext} objects of all identities. */
+	private void upgradeDatabaseFormatVersion9() {
+		Logger.normal(this, "Indexing the contexts of all identities...");
+		
+		for(Identity identity : getAllIdentities())
+			identity.storeContextIndexWithoutCommit();
+	}
+
 	/**
 	 * DO NOT USE THIS FUNCTION ON A DATABASE WHICH YOU WANT TO CONTINUE TO USE!
 	 * 
@@ -1008,6 +1224,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		Logger.normal(this, "checkForDatabaseLeaks(): Checking for database leaks... This will delete the whole database content!");
 		
 		Logger.normal(this, "checkForDatabaseLeaks(): Deleting all identities...");
+		assert(mayAcquireLock(mPuzzleStore));
 		synchronized(mPuzzleStore) {
 		synchronized(mFetcher) {
 		synchronized(mSubscriptionManager) {
@@ -1036,6 +1253,21 @@ public final class WebOfTrust extends WebOfTrustInterface
 		Logger.normal(this, "checkForDatabaseLeaks(): Deleting all SubscriptionManager clients...");
 		mSubscriptionManager.deleteAllClients();
 		
+		Logger.normal(this, "checkForDatabaseLeaks(): Deleting all Tombstones...");
+		//synchronized(this) { // Done at function level
+		synchronized(Persistent.transactionLock(mDB)) {
+			try {
+				final Query q = mDB.query();
+				q.constrain(Tombstone.class);
+				for(Tombstone tombstone : new Persistent.InitializingObjectSet<Tombstone>(this, q))
+					tombstone.deleteWithoutCommit();
+				Persistent.checkedCommit(mDB, this);
+			} catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(mDB, this, e);
+			}
+		}
+		//}
+		
 		Logger.normal(this, "checkForDatabaseLeaks(): Deleting Configuration...");
 		//synchronized(this) { // Done at function level
 			try {
@@ -1073,12 +1305,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 	}
 
 	/** Checks {@link Persistent#startupDatabaseIntegrityTest()} upon all {@link Persistent} objects
-	 *  stored in the database.
+	 *  stored in the database, using a {@link DatabaseIntegrityVerifier}.
 	 *  Returns false if any of the objects' startupDatabaseIntegrityTest() threw an exception.
 	 *  
-	 *  Also calls {@link #deleteDuplicateObjects()} and {@link #deleteOrphanObjects()}. */
+	 *  Also calls {@link #deleteDuplicateObjects()}, {@link #deleteOrphanObjects()} and
+	 *  {@link #verifyAndCorrectTrustCounts()}. */
 	public synchronized boolean verifyDatabaseIntegrity() {
 		// Take locks of all objects which deal with persistent stuff because we act upon ALL persistent objects.
+		assert(mayAcquireLock(mPuzzleStore));
 		synchronized(mPuzzleStore) {
 		synchronized(mFetcher) {
 		synchronized(mSubscriptionManager) {
@@ -1087,24 +1321,23 @@ public final class WebOfTrust extends WebOfTrustInterface
 			
 			Logger.debug(this, "Testing database integrity...");
 			
-			final Query q = mDB.query();
-			q.constrain(Persistent.class);
+			// Also repairs the counters after the above functions have deleted Trusts without
+			// updating them.
+			boolean result = verifyAndCorrectTrustCounts();
 			
-			boolean result = true;
+			// Nothing can write to the database while we hold the locks, so the objects can be
+			// checked concurrently.
+			final DatabaseIntegrityVerifier verifier = new DatabaseIntegrityVerifier(this,
+				Runtime.getRuntime().availableProcessors(),
+				DatabaseIntegrityVerifier.DEFAULT_BATCH_SIZE, null);
 			
-			for(final Persistent p : new Persistent.InitializingObjectSet<Persistent>(this, q)) {
-				try {
-					p.startupDatabaseIntegrityTest();
-				} catch(Exception e) {
+			try {
+				if(!verifier.verify())
 					result = false;
-					
-					try {
-						Logger.error(this, "Integrity test failed for " + p, e);
-					} catch(Exception e2) {
-						Logger.error(this, "Integrity test failed for Persistent of class " + p.getClass(), e);
-						Logger.error(this, "Exception thrown by toString() was:", e2);
-					}
-				}
+			} catch(InterruptedException e) {
+				Logger.warning(this, "Interrupted, database integrity test incomplete.");
+				Thread.currentThread().interrupt();
+				result = false;
 			}
 			
 			Logger.debug(this, "Database integrity test finished.");
@@ -1236,6 +1469,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 			// - Introduction puzzles because we can just download new ones
 			// - IdentityFetcher commands because they aren't persistent across startups anyway
 			// - Subscription and Notification objects because subscriptions are also not persistent across startups.
+			// - Tombstone objects: The clone has a new Configuration, and thus a new change
+			//   sequence epoch, so clients of "GetChangesSince" will resynchronize anyway.
+			// - IdentityContext objects: Identity.storeWithoutCommit() creates them for Identity
+			//   objects which are new to the database.
 			
 			original.terminate();
 			assert(original.isTerminated());
@@ -1303,7 +1540,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 
 	/**
 	 * If a delay of {@value Configuration#DEFAULT_VERIFY_SCORES_INTERVAL} has expired since the
-	 * last execution, verifies that all stored {@link Score} objects are correct.<br><br>
+	 * last execution, verifies that all stored {@link Score} objects are correct. Also verifies
+	 * the trust counters of the identities, see {@link #verifyAndCorrectTrustCounts()}.<br><br>
 	 * 
 	 * Shall be called at startup: Score computation is fully incremental nowadays and thus wrong
 	 * results due to bugs will persist for a long time. This function fixes wrong Scores. */
@@ -1328,6 +1566,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		if(doVerify) {
 			verifyAndCorrectStoredScores();
+			verifyAndCorrectTrustCounts();
 			mConfig.updateLastVerificationOfScoresDate();
 			mConfig.storeAndCommit();
 		} else {
@@ -1344,6 +1583,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 */
 	public synchronized boolean verifyAndCorrectStoredScores() {
 		Logger.normal(this, "Veriying all stored scores ...");
+		assert(mayAcquireLock(mFetcher));
 		synchronized(mFetcher) {
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
@@ -1398,6 +1638,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	synchronized void deleteDuplicateObjects() {
 		if(logDEBUG) Logger.debug(this, "deleteDuplicateObjects() ...");
 		
+		assert(mayAcquireLock(mPuzzleStore));
 		synchronized(mPuzzleStore) { // Needed for deleteWithoutCommit(Identity) etc.
 		synchronized(mFetcher) { // Needed for deleteWithoutCommit(Identity) etc.
 		synchronized(mSubscriptionManager) { // Needed for deleteWithoutCommit(Identity) etc.
@@ -1446,6 +1687,16 @@ public final class WebOfTrust extends WebOfTrustInterface
 			}
 			
 			if(anythingChanged) {
+				// The Tombstones of the duplicates have the same IDs as the objects which we kept.
+				// Clients of "GetChangesSince" would thus wrongly delete them, so we force them to
+				// resynchronize instead.
+				mConfig.raiseChangeSequenceHorizon(getCurrentChangeSequence());
+				mConfig.storeWithoutCommit();
+				
+				// The duplicate Trusts were never counted by the trust counters of the Identitys,
+				// but deleteWithoutCommit(Identity) did subtract them. So we recount.
+				verifyAndCorrectTrustCountsWithoutCommit();
+				
 				// We couldn't have set mFullScoreComputationNeeded earlier, that would have caused
 				// failing assert() in callees.
 				mFullScoreComputationNeeded = true;
@@ -1476,6 +1727,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 */
 	private synchronized void deleteOrphanObjects() {
 		// synchronized(this) { // For computeAllScoresWithoutCommit(). Done at function level already.
+		assert(mayAcquireLock(mFetcher));
 		synchronized(mFetcher) { // For computeAllScoresWithoutCommit()
 		synchronized(mSubscriptionManager) { // For computeAllScoresWithoutCommit()
 		synchronized(Persistent.transactionLock(mDB)) {
@@ -1515,6 +1767,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 
 		// synchronized(this) { // For computeAllScoresWithoutCommit(). Done at function level already.
+		assert(mayAcquireLock(mFetcher));
 		synchronized(mFetcher) { // For computeAllScoresWithoutCommit()
 		synchronized(mSubscriptionManager) { // For computeAllScoresWithoutCommit()
 		synchronized(Persistent.transactionLock(mDB)) {
@@ -1592,7 +1845,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * ATTENTION: This function is not synchronized, use it only in single threaded mode.
 	 * @return
 	 *     True if {@link Configuration#getLastDefragDate()} indicated that the caller may do
-	 *     database defragmentation now.
+	 *     database defragmentation now. This is only the case if it was requested by
+	 *     {@link Configuration#scheduleDefragmentationWithoutCommit()}: To not delay startup,
+	 *     the regular defragmentation every {@link Configuration#DEFAULT_DEFRAG_INTERVAL} is done
+	 *     by {@link OnlineDefragmentation} while WoT is running.
 	 *     Will also call {@link Configuration#updateLastDefragDate()} and store the modified
 	 *     configuration.
 	 */
@@ -1611,10 +1867,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 				config.checkedActivate(4);
 				
 				Date lastDefragDate = config.getLastDefragDate();
-				Date nextDefragDate
-					= new Date(lastDefragDate.getTime() + Configuration.DEFAULT_DEFRAG_INTERVAL);
-			
-				if(!nextDefragDate.after(CurrentTimeUTC.get())) {
+				
+				if(lastDefragDate.getTime() == 0) {
 					config.updateLastDefragDate();
 					config.storeAndCommit();
 					return true;
@@ -2280,6 +2534,31 @@ public final class WebOfTrust extends WebOfTrustInterface
 				mSubscriptionManager.stop();
 		}});
 
+		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
+			if(mLockProfiler != null)
+				mLockProfiler.stop();
+		}});
+
+		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
+			if(mDatabaseBackup != null)
+				mDatabaseBackup.stop();
+		}});
+
+		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
+			if(mOnlineDefragmentation != null)
+				mOnlineDefragmentation.stop();
+		}});
+
+		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
+			if(mTombstoneExpiry != null)
+				mTombstoneExpiry.stop();
+		}});
+
+		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
+			if(mDeferredStartupMaintenance != null)
+				mDeferredStartupMaintenance.stop();
+		}});
+
         latch.set(new CountDownLatch(shutdownThreads.size()));
 
         Executor executor = (mPR != null /* Can be null in unit tests */)
@@ -2319,9 +2598,23 @@ public final class WebOfTrust extends WebOfTrustInterface
 			success.set(false);
 		}
 		
+		// Must be stopped after anything is down which can defer a commit, and before the
+		// database is closed so the deferred commits are committed instead of rolled back.
+		try {
+			if(mGroupCommit != null)
+				mGroupCommit.stop();
+		} catch(Exception e) {
+			Logger.error(this, "Error during termination.", e);
+			success.set(false);
+		}
+		
 		if(!threadsOnly) {
 			try {
 				if(mDB != null) {
+					// Before closing the database as it replays the last changes from it.
+					final boolean swapDefragmentedDatabase = mOnlineDefragmentation != null
+						&& mOnlineDefragmentation.prepareSwap();
+					
 					// TODO: At 2009-06-15, it does not seem possible to ask db4o for whether a
 					// transaction is pending.
 					// If it becomes possible some day, we should check that here, and log an error
@@ -2329,11 +2622,20 @@ public final class WebOfTrust extends WebOfTrustInterface
 					// - All transactions should be committed after obtaining the lock() on the
 					// database.
 					synchronized(Persistent.transactionLock(mDB)) {
+						if(mSnapshotStore != null)
+							mSnapshotStore.stop();
+						
+						if(mObjectCache != null)
+							mObjectCache.stop();
+						
 						System.gc();
 						mDB.rollback();
 						System.gc(); 
 						mDB.close();
 					}
+					
+					if(swapDefragmentedDatabase)
+						mOnlineDefragmentation.swap();
 				}
 			}
 			catch(Exception e) {
@@ -2397,13 +2699,23 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws UnknownIdentityException if there is no identity with this id in the database
 	 */
 	public synchronized Identity getIdentityByID(String id) throws UnknownIdentityException {
+		if(mObjectCache != null) {
+			final Identity cached = mObjectCache.getIdentity(id);
+			if(cached != null)
+				return cached;
+		}
+		
 		final Query query = mDB.query();
 		query.constrain(Identity.class);
 		query.descend("mID").constrain(id);
 		final ObjectSet<Identity> result = new Persistent.InitializingObjectSet<Identity>(this, query);
 		
 		switch(result.size()) {
-			case 1: return result.next();
+			case 1:
+				final Identity identity = result.next();
+				if(mObjectCache != null)
+					mObjectCache.put(identity);
+				return identity;
 			case 0: throw new UnknownIdentityException(id);
 			default: throw new DuplicateIdentityException(id, result.size());
 		}  
@@ -2417,13 +2729,25 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws UnknownIdentityException if there is now OwnIdentity with that id
 	 */
 	public synchronized OwnIdentity getOwnIdentityByID(String id) throws UnknownIdentityException {
+		if(mObjectCache != null) {
+			final Identity cached = mObjectCache.getIdentity(id);
+			if(cached instanceof OwnIdentity)
+				return (OwnIdentity)cached;
+			else if(cached != null)
+				throw new UnknownIdentityException(id);
+		}
+		
 		final Query query = mDB.query();
 		query.constrain(OwnIdentity.class);
 		query.descend("mID").constrain(id);
 		final ObjectSet<OwnIdentity> result = new Persistent.InitializingObjectSet<OwnIdentity>(this, query);
 		
 		switch(result.size()) {
-			case 1: return result.next();
+			case 1:
+				final OwnIdentity identity = result.next();
+				if(mObjectCache != null)
+					mObjectCache.put(identity);
+				return identity;
 			case 0: throw new UnknownIdentityException(id);
 			default: throw new DuplicateIdentityException(id, result.size());
 		}  
@@ -2490,6 +2814,339 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return new Persistent.InitializingObjectSet<Identity>(this, query);
 	}
 	
+	/**
+	 * Returns all objects of the given class whose ID is greater than the given cursor, sorted
+	 * ascending by ID.<br>
+	 * This allows iterating over the whole dataset in pages: Pass the ID of the last object of
+	 * the previous page as cursor, or "" for the first page. As IDs do not change, the cursor stays
+	 * valid if objects are added or deleted between the pages.<br><br>
+	 * 
+	 * You have to synchronize on this WebOfTrust when calling the function and processing the
+	 * returned list.<br><br>
+	 * 
+	 * ATTENTION: Each call queries and sorts all objects beyond the cursor. For iterating over a
+	 * large dataset page by page, use {@link #getIdentitiesPage(String, String, int)} and the
+	 * related functions instead.
+	 * 
+	 * @see #getAllIdentitiesAfterID(String)
+	 * @see #getAllTrustsAfterID(String)
+	 * @see #getAllScoresAfterID(String) */
+	private <T extends Persistent> ObjectSet<T> getAllAfterID(Class<T> clazz, String cursor) {
+		final Query query = mDB.query();
+		query.constrain(clazz);
+		query.descend("mID").constrain(cursor).greater();
+		query.descend("mID").orderAscending();
+		return new Persistent.InitializingObjectSet<T>(this, query);
+	}
+	
+	/** @see #getAllAfterID(Class, String) */
+	public ObjectSet<Identity> getAllIdentitiesAfterID(String cursor) {
+		return getAllAfterID(Identity.class, cursor);
+	}
+	
+	/**
+	 * Gets the {@link IdentityContext} objects of all identities which have the given context,
+	 * sorted ascending by the ID of the identity. Use {@link IdentityContext#getIdentity()} to
+	 * obtain the identities.<br>
+	 * Other than checking {@link Identity#hasContext(String)} of all identities, this only
+	 * touches the identities which have the context.<br><br>
+	 * 
+	 * You have to synchronize on this WebOfTrust when calling the function and processing the
+	 * returned list. */
+	public ObjectSet<IdentityContext> getIdentityContexts(String context) {
+		return getIdentityContextsAfterID(context, "");
+	}
+	
+	/**
+	 * Same as {@link #getIdentityContexts(String)}, but only returns the identities whose ID is
+	 * greater than the given cursor. Allows pagination as with {@link #getAllAfterID(Class,
+	 * String)}. */
+	public ObjectSet<IdentityContext> getIdentityContextsAfterID(String context, String cursor) {
+		final Query query = mDB.query();
+		query.constrain(IdentityContext.class);
+		query.descend("mContext").constrain(context.trim());
+		query.descend("mIdentityID").constrain(cursor).greater();
+		query.descend("mIdentityID").orderAscending();
+		return new Persistent.InitializingObjectSet<IdentityContext>(this, query);
+	}
+	
+	/**
+	 * A page of the result of {@link WebOfTrust#getIdentitiesPage(String, String, int)},
+	 * {@link WebOfTrust#getTrustsPage(String, int)} or {@link WebOfTrust#getScoresPage(String,
+	 * int)}.
+	 */
+	public static final class Page<T extends Persistent> {
+		/** The objects stored in the database, sorted by ID. Not clones! */
+		public final List<T> mObjects;
+		
+		/** The cursor of the next page, or null if this is the last page. */
+		public final String mNextCursor;
+		
+		Page(List<T> objects, String nextCursor) {
+			mObjects = objects;
+			mNextCursor = nextCursor;
+		}
+	}
+	
+	/**
+	 * Returns the page of at most pageSize {@link Identity}s, sorted by ID, which follows the
+	 * given cursor. Pass {@link Page#mNextCursor} of the previous page as cursor, or "" for the
+	 * first page.<br>
+	 * Other than {@link #getAllIdentitiesAfterID(String)}, this does not query all identities
+	 * beyond the cursor for each page: The {@link IDOrderedPager} of the previous page is kept
+	 * in memory and continued, so each page costs O(pageSize) as long as it is requested soon
+	 * enough to not be evicted from the {@link #MAX_PAGERS} most recent ones. The result is the
+	 * same either way, see {@link IDOrderedPager} for how changes between the pages are
+	 * reflected.<br><br>
+	 * 
+	 * You have to synchronize on this WebOfTrust while processing the returned page.
+	 * 
+	 * @param context If not null and not "", only identities which have the given context are
+	 *     returned. They are found by their {@link IdentityContext} objects, see
+	 *     {@link #getIdentityContexts(String)}. */
+	public synchronized Page<Identity> getIdentitiesPage(String context, String cursor,
+			int pageSize) {
+		
+		return getPage(Identity.class,
+			context != null && !context.trim().equals("") ? context.trim() : null, cursor,
+			pageSize);
+	}
+	
+	/** Same as {@link #getIdentitiesPage(String, String, int)} for {@link Trust}s. */
+	public synchronized Page<Trust> getTrustsPage(String cursor, int pageSize) {
+		return getPage(Trust.class, null, cursor, pageSize);
+	}
+	
+	/** Same as {@link #getIdentitiesPage(String, String, int)} for {@link Score}s. */
+	public synchronized Page<Score> getScoresPage(String cursor, int pageSize) {
+		return getPage(Score.class, null, cursor, pageSize);
+	}
+	
+	/**
+	 * Implementation of {@link #getIdentitiesPage(String, String, int)} and the related
+	 * functions.
+	 * 
+	 * @param context Must be null unless clazz is {@link Identity}. */
+	private synchronized <T extends Persistent> Page<T> getPage(Class<T> clazz, String context,
+			String cursor, int pageSize) {
+		
+		@SuppressWarnings("unchecked")
+		IDOrderedPager<T> pager
+			= (IDOrderedPager<T>)mPagers.remove(getPagerKey(clazz, context, cursor));
+		
+		if(pager == null) {
+			pager = context != null
+				? new IDOrderedPager<T>(this, context, cursor)
+				: new IDOrderedPager<T>(this, clazz, cursor);
+		}
+		
+		final List<T> objects = pager.nextPage(pageSize);
+		if(objects.size() < pageSize || !pager.hasNextPage())
+			return new Page<T>(objects, null);
+		
+		mPagers.put(getPagerKey(clazz, context, pager.getCursor()), pager);
+		return new Page<T>(objects, pager.getCursor());
+	}
+	
+	/** @see #mPagers */
+	private static String getPagerKey(Class<?> clazz, String context, String cursor) {
+		return clazz.getSimpleName() + "|" + (context != null ? context : "") + "|" + cursor;
+	}
+	
+	/**
+	 * Gets the IDs of all identities which have the given context, see
+	 * {@link #getIdentityContexts(String)}. Useful for filtering long lists of {@link Trust} or
+	 * {@link Score} objects by the context of the involved identities without activating their
+	 * lists of contexts. For short lists, {@link #hasIdentityContext(String, String)} is cheaper.
+	 * <br>
+	 * The result is cached by the {@link ObjectCache} until {@link #getCurrentChangeSequence()}
+	 * changes, so repeated queries do not collect all matching identities each time.<br><br>
+	 * 
+	 * You have to synchronize on this WebOfTrust when calling the function and using the result
+	 * for filtering other query results.
+	 * 
+	 * @return An unmodifiable set. */
+	public Set<String> getIdentityIDsByContext(String context) {
+		context = context.trim();
+		final long changeSequence = getCurrentChangeSequence();
+		
+		if(mObjectCache != null) {
+			final Set<String> cached
+				= mObjectCache.getIdentityIDsByContext(context, changeSequence);
+			if(cached != null)
+				return cached;
+		}
+		
+		final HashSet<String> ids = new HashSet<String>();
+		for(IdentityContext entry : getIdentityContexts(context))
+			ids.add(entry.getIdentityID());
+		
+		final Set<String> result = Collections.unmodifiableSet(ids);
+		if(mObjectCache != null)
+			mObjectCache.putIdentityIDsByContext(context, changeSequence, result);
+		return result;
+	}
+	
+	/**
+	 * Returns true if the identity with the given ID has the given context, see
+	 * {@link Identity#hasContext(String)}.<br>
+	 * Queries the index of the {@link IdentityContext} objects, so the list of contexts of the
+	 * identity is not activated. Useful for filtering short lists of identities, such as the
+	 * trusters of an identity. For long lists, see {@link #getIdentityIDsByContext(String)}.
+	 * <br><br>
+	 * 
+	 * You have to synchronize on this WebOfTrust when calling the function. */
+	public boolean hasIdentityContext(String identityID, String context) {
+		final Query query = mDB.query();
+		query.constrain(IdentityContext.class);
+		query.descend("mIdentityID").constrain(identityID);
+		query.descend("mContext").constrain(context.trim());
+		return query.execute().size() > 0;
+	}
+	
+	/**
+	 * Hands out the next value of the global change sequence number.<br>
+	 * Called by {@link Identity}/{@link Trust}/{@link Score} when they are stored, and by
+	 * {@link Tombstone} when one of them is deleted. Thus, you must hold the locks which their
+	 * storeWithoutCommit() / deleteWithoutCommit() demand, which includes the lock on this
+	 * WebOfTrust.<br>
+	 * Does not need to lock anything by itself: It must not take the lock of this WebOfTrust to
+	 * be usable by {@link #cloneDatabase(File, File)} on a WebOfTrust which isn't locked. */
+	@Override protected long getNextChangeSequence() {
+		return mChangeSequence.incrementAndGet();
+	}
+	
+	/**
+	 * Returns the change sequence number which was handed out last. Every time an
+	 * {@link Identity}, {@link Trust} or {@link Score} is stored or deleted, it is assigned a new,
+	 * higher change sequence number. Deletions are represented by {@link Tombstone} objects.<br>
+	 * So by remembering this value, clients can later on query only the objects which have changed
+	 * since then. This is what the FCP message "GetChangesSince" does.<br><br>
+	 * 
+	 * You have to synchronize on this WebOfTrust when calling this function and while using the
+	 * result for querying changes: Transactions which store objects are only done while holding
+	 * the lock. Thus, this guarantees that no uncommitted changes exist, and that the changes
+	 * which are committed later on will all have a higher change sequence number.<br><br>
+	 * 
+	 * The numbering is only valid together with {@link Configuration#getChangeSequenceEpoch()}.
+	 * 
+	 * @see #getAllIdentitiesChangedSince(long)
+	 * @see #getAllTrustsChangedSince(long)
+	 * @see #getAllScoresChangedSince(long)
+	 * @see #getTombstonesChangedSince(String, long) */
+	public long getCurrentChangeSequence() {
+		return mChangeSequence.get();
+	}
+	
+	/**
+	 * Initializes {@link #mChangeSequence} to the highest change sequence number of the stored
+	 * {@link Identity}/{@link Trust}/{@link Score}/{@link Tombstone} objects, or to the
+	 * {@link Configuration#getChangeSequenceHorizon()} if it is higher because the most recent
+	 * Tombstones were deleted already.<br>
+	 * Must be called after {@link #getOrCreateConfig()} and before anything is stored. */
+	private void initializeChangeSequence() {
+		long highest = mConfig.getChangeSequenceHorizon();
+		
+		@SuppressWarnings("unchecked")
+		final Class<? extends Persistent>[] classes = new Class[] {
+			Identity.class, Trust.class, Score.class, Tombstone.class
+		};
+		
+		for(Class<? extends Persistent> clazz : classes) {
+			final Query query = mDB.query();
+			query.constrain(clazz);
+			query.descend("mChangeSequence").orderDescending();
+			final ObjectSet<Persistent> result
+				= new Persistent.InitializingObjectSet<Persistent>(this, query);
+			
+			if(result.hasNext())
+				highest = Math.max(highest, result.next().getChangeSequence());
+		}
+		
+		mChangeSequence.set(highest);
+		Logger.normal(this, "Current change sequence number: " + highest);
+	}
+	
+	/**
+	 * Returns all objects of the given class which were stored after the given change sequence
+	 * number was handed out, sorted ascending by their change sequence number.<br>
+	 * As every change is assigned an unique number, the change sequence number of the last
+	 * object can be used as the parameter for querying the next page of results.<br><br>
+	 * 
+	 * You have to synchronize on this WebOfTrust when calling the function and processing the
+	 * returned list, see {@link #getCurrentChangeSequence()}. */
+	private <T extends Persistent> ObjectSet<T> getAllChangedSince(Class<T> clazz,
+			long changeSequence) {
+		
+		final Query query = mDB.query();
+		query.constrain(clazz);
+		query.descend("mChangeSequence").constrain(changeSequence).greater();
+		query.descend("mChangeSequence").orderAscending();
+		return new Persistent.InitializingObjectSet<T>(this, query);
+	}
+	
+	/** @see #getAllChangedSince(Class, long) */
+	public ObjectSet<Identity> getAllIdentitiesChangedSince(long changeSequence) {
+		return getAllChangedSince(Identity.class, changeSequence);
+	}
+	
+	/**
+	 * Returns the {@link Tombstone}s of the given {@link Tombstone#getType()} which were stored
+	 * after the given change sequence number was handed out, sorted ascending by their change
+	 * sequence number.<br>
+	 * Tombstones older than {@link Configuration#getChangeSequenceHorizon()} may have been deleted
+	 * already.<br><br>
+	 * 
+	 * You have to synchronize on this WebOfTrust when calling the function and processing the
+	 * returned list, see {@link #getCurrentChangeSequence()}. */
+	public ObjectSet<Tombstone> getTombstonesChangedSince(String type, long changeSequence) {
+		final Query query = mDB.query();
+		query.constrain(Tombstone.class);
+		query.descend("mType").constrain(type);
+		query.descend("mChangeSequence").constrain(changeSequence).greater();
+		query.descend("mChangeSequence").orderAscending();
+		return new Persistent.InitializingObjectSet<Tombstone>(this, query);
+	}
+	
+	/**
+	 * Deletes the {@link Tombstone}s which are older than
+	 * {@link Configuration#getTombstoneRetentionDays()} and raises the
+	 * {@link Configuration#getChangeSequenceHorizon()} to the highest change sequence number of
+	 * them.<br>
+	 * Called periodically by {@link TombstoneExpiry}. Thus, Tombstones may be kept for longer than
+	 * the retention period, but never shorter. */
+	synchronized void deleteExpiredTombstones() {
+		final Date expirationDate = new Date(CurrentTimeUTC.get().getTime()
+			- TimeUnit.DAYS.toMillis(mConfig.getTombstoneRetentionDays()));
+		
+		synchronized(Persistent.transactionLock(mDB)) {
+			try {
+				final Query query = mDB.query();
+				query.constrain(Tombstone.class);
+				query.descend("mCreationDate").constrain(expirationDate).smaller();
+				
+				int deleted = 0;
+				for(Tombstone tombstone
+						: new Persistent.InitializingObjectSet<Tombstone>(this, query)) {
+					
+					mConfig.raiseChangeSequenceHorizon(tombstone.getChangeSequence());
+					tombstone.deleteWithoutCommit();
+					++deleted;
+				}
+				
+				if(deleted > 0) {
+					mConfig.storeWithoutCommit();
+					Persistent.checkedCommit(mDB, this);
+				}
+				
+				Logger.normal(this, "Deleted expired Tombstones: " + deleted
+					+ "; change sequence horizon: " + mConfig.getChangeSequenceHorizon());
+			} catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(mDB, this, e);
+			}
+		}
+	}
+	
 	public static enum SortOrder {
 	    ByEditionAscending,
 	    ByEditionDescending,
@@ -2683,12 +3340,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 
 			if(logDEBUG) Logger.debug(this, "Deleting received trusts...");
 			for(Trust trust : getReceivedTrusts(identity)) {
+				updateTrustCountsWithoutCommit(trust, null);
 				trust.deleteWithoutCommit();
 				mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(trust, null);
 			}
 
 			if(logDEBUG) Logger.debug(this, "Deleting given trusts...");
 			for(Trust givenTrust : getGivenTrusts(identity)) {
+				updateTrustCountsWithoutCommit(givenTrust, null);
 				givenTrust.deleteWithoutCommit();
 				mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(givenTrust, null);
 				// We call computeAllScores anyway so we do not use removeTrustWithoutCommit()
@@ -2735,36 +3394,45 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws NotInTrustTreeException if this identity is not in the required trust tree 
 	 */
 	public synchronized Score getScore(final OwnIdentity truster, final Identity trustee) throws NotInTrustTreeException {
-		final Query query = mDB.query();
-		query.constrain(Score.class);
-		query.descend("mID").constrain(new ScoreID(truster, trustee).toString());
-		final ObjectSet<Score> result = new Persistent.InitializingObjectSet<Score>(this, query);
+		final String id = new ScoreID(truster, trustee).toString();
+		
+		if(mObjectCache != null) {
+			final Score cached = mObjectCache.getScore(id);
+			if(cached != null) {
+				assert(cached.getTruster() == truster);
+				assert(cached.getTrustee() == trustee);
+				return cached;
+			}
+		}
 		
-		switch(result.size()) {
-			case 1: 
-				final Score score = result.next();
-				assert(score.getTruster() == truster);
-				assert(score.getTrustee() == trustee);
-				return score;
-			case 0: throw new NotInTrustTreeException(truster, trustee);
-			default: throw new DuplicateScoreException(truster, trustee, result.size());
+		final Score score;
+		try {
+			score = mStorageEngine.getScore(id);
+		} catch(NotInTrustTreeException e) {
+			throw new NotInTrustTreeException(truster, trustee);
 		}
+		
+		assert(score.getTruster() == truster);
+		assert(score.getTrustee() == trustee);
+		if(mObjectCache != null)
+			mObjectCache.put(score);
+		return score;
 	}
 
 	/** @see #getScore(OwnIdentity, Identity) */
 	public synchronized Score getScore(final String id) throws NotInTrustTreeException {
 		// TODO: Code quality: assert(id is valid)
 		
-		final Query query = mDB.query();
-		query.constrain(Score.class);
-		query.descend("mID").constrain(id);
-		final ObjectSet<Score> result = new Persistent.InitializingObjectSet<Score>(this, query);
-		
-		switch(result.size()) {
-			case 1: return result.next();
-			case 0: throw new NotInTrustTreeException(id);
-			default: throw new DuplicateScoreException(id, result.size());
+		if(mObjectCache != null) {
+			final Score cached = mObjectCache.getScore(id);
+			if(cached != null)
+				return cached;
 		}
+		
+		final Score score = mStorageEngine.getScore(id);
+		if(mObjectCache != null)
+			mObjectCache.put(score);
+		return score;
 	}
 
 	/**
@@ -2774,10 +3442,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @return An {@link ObjectSet} containing all {@link Score} this Identity has.
 	 */
 	public ObjectSet<Score> getScores(final Identity identity) {
-		final Query query = mDB.query();
-		query.constrain(Score.class);
-		query.descend("mTrustee").constrain(identity).identity();
-		return new Persistent.InitializingObjectSet<Score>(this, query);
+		return mStorageEngine.getScores(identity);
 	}
 	
 	/**
@@ -2787,10 +3452,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @return An {@link ObjectSet} containing all {@link Score} this Identity has given.
 	 */
 	public ObjectSet<Score> getGivenScores(final OwnIdentity truster) {
-		final Query query = mDB.query();
-		query.constrain(Score.class);
-		query.descend("mTruster").constrain(truster).identity();
-		return new Persistent.InitializingObjectSet<Score>(this, query);
+		return mStorageEngine.getGivenScores(truster);
 	}
 	
 	/**
@@ -2842,6 +3504,16 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return new Persistent.InitializingObjectSet<Score>(this, query);
 	}
 	
+	/** @see #getAllAfterID(Class, String) */
+	public ObjectSet<Score> getAllScoresAfterID(String cursor) {
+		return getAllAfterID(Score.class, cursor);
+	}
+	
+	/** @see #getAllChangedSince(Class, long) */
+	public ObjectSet<Score> getAllScoresChangedSince(long changeSequence) {
+		return getAllChangedSince(Score.class, changeSequence);
+	}
+	
 	/**
 	 * Checks whether the given identity should be downloaded. 
 	 * 
@@ -2996,19 +3668,17 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @see #getTrust(Identity, Identity)
 	 */
 	public synchronized Trust getTrust(final String trustID) throws NotTrustedException, DuplicateTrustException {
-		final Query query = mDB.query();
-		query.constrain(Trust.class);
-		query.descend("mID").constrain(trustID);
-		final ObjectSet<Trust> result = new Persistent.InitializingObjectSet<Trust>(this, query);
-		
-		switch(result.size()) {
-			case 1: 
-				final Trust trust = result.next();
-				assert(trustID.equals(new TrustID(trust.getTruster(), trust.getTrustee()).toString()));
-				return trust;
-			case 0: throw new NotTrustedException(trustID);
-			default: throw new DuplicateTrustException(trustID, result.size());
+		if(mObjectCache != null) {
+			final Trust cached = mObjectCache.getTrust(trustID);
+			if(cached != null)
+				return cached;
 		}
+		
+		final Trust trust = mStorageEngine.getTrust(trustID);
+		assert(trustID.equals(new TrustID(trust.getTruster(), trust.getTrustee()).toString()));
+		if(mObjectCache != null)
+			mObjectCache.put(trust);
+		return trust;
 	}
 
 	/**
@@ -3018,10 +3688,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @return An {@link ObjectSet} containing all {@link Trust} the passed Identity has given.
 	 */
 	public ObjectSet<Trust> getGivenTrusts(final Identity truster) {
-		final Query query = mDB.query();
-		query.constrain(Trust.class);
-		query.descend("mTruster").constrain(truster).identity();
-		return new Persistent.InitializingObjectSet<Trust>(this, query);
+		return mStorageEngine.getGivenTrusts(truster);
 	}
 	
 	/**
@@ -3084,10 +3751,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @return An {@link ObjectSet} containing all {@link Trust} the passed Identity has received.
 	 */
 	public ObjectSet<Trust> getReceivedTrusts(final Identity trustee) {
-		final Query query = mDB.query();
-		query.constrain(Trust.class);
-		query.descend("mTrustee").constrain(trustee).identity();
-		return new Persistent.InitializingObjectSet<Trust>(this, query);
+		return mStorageEngine.getReceivedTrusts(trustee);
 	}
 	
 	/**
@@ -3129,6 +3793,16 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return new Persistent.InitializingObjectSet<Trust>(this, query); 
 	}
 	
+	/** @see #getAllAfterID(Class, String) */
+	public ObjectSet<Trust> getAllTrustsAfterID(String cursor) {
+		return getAllAfterID(Trust.class, cursor);
+	}
+	
+	/** @see #getAllChangedSince(Class, long) */
+	public ObjectSet<Trust> getAllTrustsChangedSince(long changeSequence) {
+		return getAllChangedSince(Trust.class, changeSequence);
+	}
+	
 	/**
 	 * Gives some {@link Trust} to another Identity.
 	 * It creates or updates an existing Trust object and make the trustee compute its {@link Score}.
@@ -3162,6 +3836,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 				trust.setValue(newValue);
 			
 			trust.storeWithoutCommit();
+			updateTrustCountsWithoutCommit(oldTrust, trust);
 			
 			if(!trust.equals(oldTrust))
 				mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(oldTrust, trust);
@@ -3173,6 +3848,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		} catch (NotTrustedException e) {
 			final Trust trust = new Trust(this, truster, trustee, newValue, newComment);
 			trust.storeWithoutCommit();
+			updateTrustCountsWithoutCommit(null, trust);
 			mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(null, trust);
 			if(logDEBUG) Logger.debug(this, "New trust value ("+ trust +"), now updating Score.");
 			updateScoresWithoutCommit(null, trust);
@@ -3194,6 +3870,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	void setTrust(Identity truster, Identity trustee, byte newValue, String newComment)
 		throws InvalidParameterException {
 		
+		assert(mayAcquireLock(mFetcher));
 		synchronized(mFetcher) {
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
@@ -3250,11 +3927,113 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * 
 	 */
 	protected void removeTrustWithoutCommit(Trust trust) {
+		updateTrustCountsWithoutCommit(trust, null);
 		trust.deleteWithoutCommit();
 		mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(trust, null);
 		updateScoresWithoutCommit(trust, null);
 	}
 
+	/**
+	 * Updates the counters of {@link Identity#getGivenTrustCount(int)} of the truster and of
+	 * {@link Identity#getReceivedTrustCount(int)} of the trustee of a {@link Trust} which is
+	 * created, deleted or changes its value. ATTENTION: All code which does that must call this.
+	 * <br><br>
+	 * 
+	 * This function does neither lock the database nor commit the transaction. You have to
+	 * surround it with the same locks as {@link #setTrustWithoutCommit(Identity, Identity, byte,
+	 * String)}.
+	 * 
+	 * @param oldTrust The Trust before the change, null if it is being created. Only its value is
+	 *     used, so it may be a {@link Trust#clone()}.
+	 * @param newTrust The Trust after the change, null if it is being deleted. If non-null, it
+	 *     must be the object which is stored in the database.
+	 *     If it is null, oldTrust must be the stored object and this must be called before it is
+	 *     deleted. */
+	private void updateTrustCountsWithoutCommit(Trust oldTrust, Trust newTrust) {
+		final Trust trust = newTrust != null ? newTrust : oldTrust;
+		final Byte oldValue = oldTrust != null ? oldTrust.getValue() : null;
+		final Byte newValue = newTrust != null ? newTrust.getValue() : null;
+		
+		final Identity truster = trust.getTruster();
+		if(truster.updateGivenTrustCount(oldValue, newValue))
+			truster.storeTrustCountsWithoutCommit();
+		
+		final Identity trustee = trust.getTrustee();
+		if(trustee.updateReceivedTrustCount(oldValue, newValue))
+			trustee.storeTrustCountsWithoutCommit();
+	}
+	
+	/**
+	 * Counts the {@link Trust}s which each {@link Identity} has received and given and corrects
+	 * the counters of {@link Identity#getReceivedTrustCount(int)} and
+	 * {@link Identity#getGivenTrustCount(int)} if they don't match.
+	 * 
+	 * The function is synchronized and does a transaction, no outer synchronization is needed.
+	 * 
+	 * @return True if all counters were correct. */
+	public synchronized boolean verifyAndCorrectTrustCounts() {
+		Logger.normal(this, "Verifying trust counts ...");
+		synchronized(Persistent.transactionLock(mDB)) {
+			try {
+				boolean result = verifyAndCorrectTrustCountsWithoutCommit();
+				Persistent.checkedCommit(mDB, this);
+				return result;
+			} catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(mDB, this, e);
+			} finally {
+				Logger.normal(this, "Verifying trust counts finished.");
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Same as {@link #verifyAndCorrectTrustCounts()} but does neither lock nor commit. You have to
+	 * surround it with synchronized(this) and synchronized(Persistent.transactionLock(mDB)). */
+	private boolean verifyAndCorrectTrustCountsWithoutCommit() {
+		// Key = Identity ID, value = counters as in Identity.getTrustCounts()
+		final HashMap<String, int[]> counts = new HashMap<String, int[]>();
+		
+		for(Trust trust : getAllTrusts()) {
+			final int index = Identity.getTrustCountIndex(trust.getValue());
+			getOrCreateTrustCounts(counts, trust.getTrustee().getID())[index]++;
+			getOrCreateTrustCounts(counts, trust.getTruster().getID())[3 + index]++;
+		}
+		
+		boolean result = true;
+		
+		for(Identity identity : getAllIdentities()) {
+			final int[] expected = getOrCreateTrustCounts(counts, identity.getID());
+			
+			if(!Arrays.equals(identity.getTrustCounts(), expected)) {
+				Logger.error(this, "Correcting wrong trust counts of " + identity + ": "
+				                 + Arrays.toString(identity.getTrustCounts()) + " should be "
+				                 + Arrays.toString(expected));
+				identity.setTrustCounts(expected);
+				identity.storeTrustCountsWithoutCommit();
+				result = false;
+			}
+		}
+		
+		// The counters are not a change of the Identity which clients must be notified about, so
+		// storeTrustCountsWithoutCommit() does not hand out a change sequence number. Data which
+		// is computed from the identities, such as the replies which the FCPInterface caches,
+		// must notice them nevertheless.
+		if(!result && mSnapshotStore != null)
+			mSnapshotStore.stageInvalidation(Identity.class);
+		
+		return result;
+	}
+	
+	private static int[] getOrCreateTrustCounts(HashMap<String, int[]> counts, String identityID) {
+		int[] result = counts.get(identityID);
+		if(result == null) {
+			result = new int[6];
+			counts.put(identityID, result);
+		}
+		return result;
+	}
+
 	/**
 	 * Initializes this OwnIdentity's trust tree without commiting the transaction. 
 	 * Meaning : It creates a Score object for this OwnIdentity in its own trust so it can give trust to other Identities. 
@@ -4860,6 +5639,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 		catch(UnknownIdentityException e) {
 			final Identity identity = new Identity(this, requestURI, null, false);
+			assert(mayAcquireLock(mSubscriptionManager));
 			synchronized(mSubscriptionManager) {
 			synchronized(Persistent.transactionLock(mDB)) {
 				try {
@@ -4892,6 +5672,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	public synchronized OwnIdentity createOwnIdentity(FreenetURI insertURI, String nickName,
 			boolean publishTrustList, String context) throws MalformedURLException, InvalidParameterException {
 		
+		assert(mayAcquireLock(mFetcher));
 		synchronized(mFetcher) { // For beginTrustListImport()/setTrustWithoutCommit()
 		synchronized(mSubscriptionManager) { // For beginTrustListImport()/setTrustWithoutCommit()/storeIdentityChangedNotificationWithoutCommit()
 		synchronized(Persistent.transactionLock(mDB)) {
@@ -4976,6 +5757,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	public synchronized void deleteOwnIdentity(String id) throws UnknownIdentityException {
 		Logger.normal(this, "deleteOwnIdentity(): Starting... ");
 		
+		assert(mayAcquireLock(mPuzzleStore));
 		synchronized(mPuzzleStore) {
 		synchronized(mFetcher) {
 		synchronized(mSubscriptionManager) {
@@ -5039,8 +5821,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 					// Certain member values such as the edition might not be equal.
 					/* assert(newReceivedTrust.equals(oldReceivedTrust)); */
 
+					updateTrustCountsWithoutCommit(oldReceivedTrust, null);
 					oldReceivedTrust.deleteWithoutCommit();
 					newReceivedTrust.storeWithoutCommit();
+					updateTrustCountsWithoutCommit(null, newReceivedTrust);
 				}
 
 				assert(getReceivedTrusts(oldIdentity).size() == 0);
@@ -5104,8 +5888,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 					// Certain member values such as the edition might not be equal.
 					/* assert(newGivenTrust.equals(oldGivenTrust)); */
 
+					updateTrustCountsWithoutCommit(oldGivenTrust, null);
 					oldGivenTrust.deleteWithoutCommit();
 					newGivenTrust.storeWithoutCommit();
+					updateTrustCountsWithoutCommit(null, newGivenTrust);
 				}
 
 				mPuzzleStore.onIdentityDeletion(oldIdentity);
@@ -5219,8 +6005,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 						// Certain member values such as the edition might not be equal.
 						/* assert(newReceivedTrust.equals(oldReceivedTrust)); */
 						
+						updateTrustCountsWithoutCommit(oldReceivedTrust, null);
 						oldReceivedTrust.deleteWithoutCommit();
 						newReceivedTrust.storeWithoutCommit();
+						updateTrustCountsWithoutCommit(null, newReceivedTrust);
 					}
 					
 					assert(getReceivedTrusts(oldIdentity).size() == 0);
@@ -5264,8 +6052,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 					final ArrayList<Trust> oldGivenTrustsCopy
 						= new ArrayList<Trust>(oldGivenTrusts);
 					
-					for(Trust oldGivenTrust : oldGivenTrusts)
+					for(Trust oldGivenTrust : oldGivenTrusts) {
+						updateTrustCountsWithoutCommit(oldGivenTrust, null);
 						oldGivenTrust.deleteWithoutCommit();
+					}
 					
 					assert(getGivenTrusts(oldIdentity).size() == 0);
 					
@@ -5331,6 +6121,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 *     to do with it whatever you like.
 	 */
 	public synchronized OwnIdentity restoreOwnIdentity(FreenetURI insertFreenetURI) throws MalformedURLException, InvalidParameterException {
+		assert(mayAcquireLock(mPuzzleStore));
 		synchronized(mPuzzleStore) {
 		synchronized(mFetcher) {
 		synchronized(mSubscriptionManager) {
@@ -5365,6 +6156,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		final OwnIdentity truster = getOwnIdentityByID(ownTrusterID);
 		final Identity trustee = getIdentityByID(trusteeID);
 
+		assert(mayAcquireLock(mFetcher));
 		synchronized(mFetcher) {
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
@@ -5380,6 +6172,111 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 	}
 
+	/**
+	 * An entry of the batch operation {@link WebOfTrust#setTrusts(List)}: Either sets the trust of
+	 * an {@link OwnIdentity} to an {@link Identity}, or removes it.
+	 */
+	public static final class TrustChange {
+		public final String mTrusterID;
+		
+		public final String mTrusteeID;
+		
+		/** Only valid if {@link #isRemoval()} is false. */
+		public final byte mValue;
+		
+		/** Null if {@link #isRemoval()} is true. */
+		public final String mComment;
+		
+		/** Constructs an entry which sets the trust, same as
+		 *  {@link WebOfTrust#setTrust(String, String, byte, String)}. */
+		public TrustChange(String trusterID, String trusteeID, byte value, String comment) {
+			if(comment == null)
+				throw new NullPointerException("comment must not be null");
+			
+			mTrusterID = trusterID;
+			mTrusteeID = trusteeID;
+			mValue = value;
+			mComment = comment;
+		}
+		
+		/** Constructs an entry which removes the trust, same as
+		 *  {@link WebOfTrust#removeTrust(String, String)}. */
+		public TrustChange(String trusterID, String trusteeID) {
+			mTrusterID = trusterID;
+			mTrusteeID = trusteeID;
+			mValue = 0;
+			mComment = null;
+		}
+		
+		public boolean isRemoval() {
+			return mComment == null;
+		}
+	}
+	
+	/**
+	 * Batch version of {@link #setTrust(String, String, byte, String)} and
+	 * {@link #removeTrust(String, String)}.<br>
+	 * All changes are applied as a trust list import, see {@link #beginTrustListImport()}, so the
+	 * {@link Score} computation which the individual functions do for each trust value is only
+	 * done once at the end, and there is only a single commit.<br><br>
+	 * 
+	 * Entries which refer to non-existing identities or trusts, or have invalid values, do not
+	 * prevent the other entries from being applied. Instead, their failure is returned.
+	 * 
+	 * @return For each entry of the given list, at the same index: Null if it was applied, or the
+	 *     {@link UnknownIdentityException}, {@link NotTrustedException} or
+	 *     {@link InvalidParameterException} which prevented it.
+	 */
+	public synchronized ArrayList<Exception> setTrusts(List<TrustChange> changes) {
+		final ArrayList<Exception> results = new ArrayList<Exception>(changes.size());
+		
+		assert(mayAcquireLock(mFetcher));
+		synchronized(mFetcher) {
+		synchronized(mSubscriptionManager) {
+		synchronized(Persistent.transactionLock(mDB)) {
+			try {
+				beginTrustListImport();
+				
+				for(TrustChange change : changes) {
+					try {
+						final OwnIdentity truster = getOwnIdentityByID(change.mTrusterID);
+						final Identity trustee = getIdentityByID(change.mTrusteeID);
+						
+						if(change.isRemoval())
+							removeTrustWithoutCommit(getTrust(truster, trustee));
+						else {
+							// setTrustWithoutCommit() may have partly modified an existing Trust
+							// when it throws due to an invalid value or comment, which would be
+							// committed along with the other entries. So we let the constructor
+							// of a temporary Trust, which is not stored, validate them first.
+							new Trust(this, truster, trustee, change.mValue, change.mComment);
+							setTrustWithoutCommit(truster, trustee, change.mValue, change.mComment);
+						}
+						
+						results.add(null);
+					} catch(UnknownIdentityException e) {
+						results.add(e);
+					} catch(NotTrustedException e) {
+						results.add(e);
+					} catch(InvalidParameterException e) {
+						results.add(e);
+					}
+				}
+				
+				finishTrustListImport();
+				Persistent.checkedCommit(mDB, this);
+			}
+			catch(RuntimeException e) {
+				abortTrustListImport(e); // Does checkedRollback() for us
+				throw e;
+			}
+		}
+		}
+		}
+		
+		return results;
+	}
+
 	/**
 	 * Same as {@link #removeTrust(String, String)} except that it additionally allows removing
 	 * trust values set by a non-own {@link Identity} where the other function only allows removing
@@ -5388,6 +6285,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	public synchronized void removeTrustIncludingNonOwn(String trusterID, String trusteeID)
 			throws UnknownIdentityException, NotTrustedException {
 
+		assert(mayAcquireLock(mFetcher));
 		synchronized(mFetcher) {
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
@@ -5416,6 +6314,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		final OwnIdentity identity = getOwnIdentityByID(ownIdentityID);
 		final OwnIdentity oldIdentity = identity.clone(); // For the SubscriptionManager
 		
+		assert(mayAcquireLock(mSubscriptionManager));
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
 			try {
@@ -5450,6 +6349,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		if(publishIntroductionPuzzles && !identity.doesPublishTrustList())
 			throw new InvalidParameterException("An identity must publish its trust list if it wants to publish introduction puzzles!");
 		
+		assert(mayAcquireLock(mSubscriptionManager));
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
 			try {
@@ -5483,6 +6383,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		final OwnIdentity identity = getOwnIdentityByID(ownIdentityID);
 		final OwnIdentity oldIdentity = identity.clone(); // For the SubscriptionManager
 		
+		assert(mayAcquireLock(mSubscriptionManager));
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
 			try {
@@ -5503,6 +6404,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		final OwnIdentity identity = getOwnIdentityByID(ownIdentityID);
 		final OwnIdentity oldIdentity = identity.clone(); // For the SubscriptionManager
 		
+		assert(mayAcquireLock(mSubscriptionManager));
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
 			try {
@@ -5526,6 +6428,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		final OwnIdentity identity = getOwnIdentityByID(ownIdentityID);
 		final OwnIdentity oldIdentity = identity.clone(); // For the SubscriptionManager
 		
+		assert(mayAcquireLock(mSubscriptionManager));
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
 			try {
@@ -5545,6 +6448,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		final OwnIdentity identity = getOwnIdentityByID(ownIdentityID);
 		final OwnIdentity oldIdentity = identity.clone(); // For the SubscriptionManager
 		
+		assert(mayAcquireLock(mSubscriptionManager));
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
 			try {
@@ -5600,6 +6504,83 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return mSubscriptionManager;
 	}
 	
+	@Override
+	public SnapshotStore getSnapshotStore() {
+		return mSnapshotStore;
+	}
+	
+	@Override
+	public ObjectCache getObjectCache() {
+		return mObjectCache;
+	}
+	
+	/** @see #mStorageEngine */
+	public Db4oStorageEngine getStorageEngine() {
+		return mStorageEngine;
+	}
+	
+	/** @return The {@link GroupCommit}, or null if it is disabled. */
+	public GroupCommit getGroupCommit() {
+		return mGroupCommit;
+	}
+	
+	/** @return The {@link DatabaseBackup}, or null if it is disabled. */
+	public DatabaseBackup getDatabaseBackup() {
+		return mDatabaseBackup;
+	}
+	
+	/** @return The {@link OnlineDefragmentation}, or null in unit tests. */
+	public OnlineDefragmentation getOnlineDefragmentation() {
+		return mOnlineDefragmentation;
+	}
+	
+	/** @return The {@link StartupTimeline}, or null in unit tests. */
+	public StartupTimeline getStartupTimeline() {
+		return mStartupTimeline;
+	}
+	
+	/**
+	 * Returns false if acquiring the given lock would violate the lock order of the subsystems,
+	 * i.e. if the current thread holds a lock which must be acquired after it. Only meant to be
+	 * used in assert statements as it is not free:<br>
+	 * <code>assert(mWoT.mayAcquireLock(mWoT)); synchronized(mWoT) { ... }</code> */
+	public boolean mayAcquireLock(Object lock) {
+		return mLockOrder == null || mLockOrder.mayAcquire(lock);
+	}
+	
+	/**
+	 * Returns the profiler of the locks of the subsystems. It is not necessarily running, see
+	 * {@link LockProfiler#isRunning()}. */
+	public LockProfiler getLockProfiler() {
+		return mLockProfiler;
+	}
+	
+	/**
+	 * Starts or stops the {@link #getLockProfiler()} and stores the choice in the
+	 * {@link Configuration} so it is applied at the next startup as well.<br>
+	 * The statistics are kept when stopping so they can be viewed afterwards. */
+	public void setLockProfilerEnabled(boolean enabled) {
+		// Not synchronized(this) as the profiler is usually enabled because the WoT lock is held
+		// for too long.
+		if(enabled)
+			mLockProfiler.start();
+		else
+			mLockProfiler.stop();
+		
+		// Not Configuration.storeAndCommit(): It locks the Configuration before the transaction,
+		// which is the reverse of deleteExpiredTombstones(). Other callers avoid the deadlock by
+		// holding the WoT lock, which we do not want to wait for here.
+		synchronized(Persistent.transactionLock(mDB)) {
+			try {
+				mConfig.set(Configuration.LOCK_PROFILER_ENABLED, enabled);
+				mConfig.storeWithoutCommit();
+				Persistent.checkedCommit(mDB, this);
+			} catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(mDB, this, e);
+			}
+		}
+	}
+	
 	IdentityFetcher getIdentityFetcher() {
 		return mFetcher;
 	}
@@ -63,4 +63,23 @@ public abstract class WebOfTrustInterface {
 
 	abstract protected FCPInterface getFCPInterface();
 
+	/**
+	 * Hands out the next value of the global change sequence number. Used by
+	 * {@link Identity}/{@link Trust}/{@link Score}/{@link Tombstone} to number their
+	 * storeWithoutCommit() / deleteWithoutCommit(), see {@link Persistent#getChangeSequence()}.
+	 */
+	abstract protected long getNextChangeSequence();
+
+	/**
+	 * Returns the {@link SnapshotStore} to which {@link Identity}/{@link Trust}/{@link Score} stage
+	 * their storeWithoutCommit() / deleteWithoutCommit(). May return null if there is none.
+	 */
+	abstract protected SnapshotStore getSnapshotStore();
+
+	/**
+	 * Returns the {@link ObjectCache} from which {@link Persistent#checkedDelete(Object)} must
+	 * remove deleted objects. May return null if there is none.
+	 */
+	abstract protected ObjectCache getObjectCache();
+
 }
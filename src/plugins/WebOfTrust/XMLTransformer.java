@@ -395,6 +395,7 @@ public final class XMLTransformer {
 		// We first parse the XML without synchronization, then do the synchronized import into the WebOfTrust		
 		final ParsedIdentityXML xmlData = parseIdentityXML(xmlInputStream);
 		
+		assert(mWoT.mayAcquireLock(mWoT));
 		synchronized(mWoT) {
 		synchronized(mWoT.getIdentityFetcher()) {
 		synchronized(mSubscriptionManager) {
@@ -665,6 +666,7 @@ public final class XMLTransformer {
 		
 		final IdentityFetcher identityFetcher = mWoT.getIdentityFetcher();
 		
+		assert(mWoT.mayAcquireLock(mWoT));
 		synchronized(mWoT) {
 		synchronized(identityFetcher) {
 		synchronized(mSubscriptionManager) {
@@ -789,6 +791,7 @@ public final class XMLTransformer {
 		Element dataElement = (Element)puzzleElement.getElementsByTagName("Data").item(0);
 		puzzleData = Base64.decodeStandard(dataElement.getAttribute("Value"));
 
+		assert(mWoT.mayAcquireLock(mWoT));
 		synchronized(mWoT) {
 		synchronized(mWoT.getIntroductionPuzzleStore()) {
 			Identity puzzleInserter = mWoT.getIdentityByURI(puzzleURI);
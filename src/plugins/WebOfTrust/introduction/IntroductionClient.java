@@ -259,6 +259,7 @@ public final class IntroductionClient extends TransferThread  {
 		/* Deadlocks could occur without the lock on WoT because the loop calls functions which lock the WoT - if something else started to
 		 * execute (while we have already locked the puzzle store) which locks the WoT and waits for the puzzle store to become available
 		 * until it releases the WoT. */
+		assert(mWoT.mayAcquireLock(mWoT));
 		synchronized(mWoT) {
 		synchronized(mPuzzleStore) {
 		    final OwnIdentity user = mWoT.getOwnIdentityByID(ownIdentityID);
@@ -457,6 +458,7 @@ public final class IntroductionClient extends TransferThread  {
 	    // https://bugs.freenetproject.org/view.php?id=6247
 	    // (IntroductionPuzzle objects contain references to Identity objects, and mWoT is the
 	    // synchronization domain of Identity objects)
+	    assert(mWoT.mayAcquireLock(mWoT));
 	    synchronized(mWoT) {
 		synchronized(mPuzzleStore) {
 			final ObjectSet<IntroductionPuzzle> puzzles = mPuzzleStore.getUninsertedSolvedPuzzles();
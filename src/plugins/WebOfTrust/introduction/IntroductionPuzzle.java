@@ -15,8 +15,10 @@ import plugins.WebOfTrust.OwnIdentity;
 import plugins.WebOfTrust.Persistent;
 import plugins.WebOfTrust.Score;
 import plugins.WebOfTrust.Trust;
+import plugins.WebOfTrust.WebOfTrust;
 import plugins.WebOfTrust.WebOfTrustInterface;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.ui.fcp.DebugFCPClient;
 import plugins.WebOfTrust.util.ReallyCloneable;
 import freenet.keys.FreenetURI;
@@ -469,6 +471,25 @@ public class IntroductionPuzzle extends Persistent implements ReallyCloneable<In
 		return clone();
 	}
 
+	/**
+	 * Creates a copy which references the {@link Identity}s with the same IDs of the given
+	 * WebOfTrust, so it can be stored in its database. Other than {@link #clone()}, the copy is
+	 * not a detached object but meant for being stored.<br>
+	 * Used by {@link IntroductionPuzzleStore#replaceAllPuzzlesWithoutCommit(
+	 * IntroductionPuzzleStore)}.
+	 * 
+	 * @throws UnknownIdentityException If the inserter or solver does not exist there. */
+	IntroductionPuzzle cloneForDatabase(WebOfTrust wot) throws UnknownIdentityException {
+		final IntroductionPuzzle copy = new IntroductionPuzzle(wot,
+			wot.getIdentityByID(getInserter().getID()), getID(), getType(), getMimeType(),
+			getData(), getDateOfInsertion(), getValidUntilDate(), getIndex());
+		copy.setCreationDate(getCreationDate());
+		if(wasSolved())
+			copy.setSolved(wot.getOwnIdentityByID(getSolver().getID()), getSolution());
+		if(wasInserted()) copy.setInserted();
+		return copy;
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if(o == this)
@@ -193,6 +193,46 @@ public final class IntroductionPuzzleStore {
 			puzzle.deleteWithoutCommit();
 	}
 
+	/**
+	 * Replaces all puzzles of this store with copies of the ones of the given store, see
+	 * {@link IntroductionPuzzle#cloneForDatabase(WebOfTrust)}. Expired puzzles are not copied.
+	 * <br>
+	 * Used by {@link plugins.WebOfTrust.OnlineDefragmentation}, which does not replay the changes
+	 * of the puzzles while WoT is running: This ensures that the swapped database contains the
+	 * {@link OwnIntroductionPuzzle}s whose solutions may still arrive, and that
+	 * {@link #getFreeIndex(Identity, Date)} does not return indexes which were inserted already.
+	 * <br><br>
+	 * 
+	 * You must synchronize on the WebOfTrusts of both stores, on both stores, and on the
+	 * {@link Persistent#transactionLock(ExtObjectContainer)} of the database of this store.
+	 */
+	public void replaceAllPuzzlesWithoutCommit(final IntroductionPuzzleStore source) {
+		final Query query = mDB.query();
+		query.constrain(IntroductionPuzzle.class);
+		for(IntroductionPuzzle puzzle : new InitializingObjectSet<IntroductionPuzzle>(mWoT, query))
+			puzzle.deleteWithoutCommit();
+		
+		final Query sourceQuery = source.mDB.query();
+		sourceQuery.constrain(IntroductionPuzzle.class);
+		final Date now = CurrentTimeUTC.get();
+		
+		for(IntroductionPuzzle puzzle
+				: new InitializingObjectSet<IntroductionPuzzle>(source.mWoT, sourceQuery)) {
+			
+			if(puzzle.getValidUntilDate().before(now))
+				continue;
+			
+			try {
+				puzzle.cloneForDatabase(mWoT).storeWithoutCommit();
+			} catch(UnknownIdentityException e) {
+				Logger.error(this, "Not copying puzzle, its identity does not exist: " + puzzle, e);
+			} catch(IllegalArgumentException e) {
+				// Thrown by the constructor, e.g. if the inserter lost the introduction context.
+				Logger.error(this, "Not copying puzzle: " + puzzle, e);
+			}
+		}
+	}
+
 	public synchronized void storeAndCommit(final IntroductionPuzzle puzzle) {
 		puzzle.initializeTransient(mWoT);
 		/* TODO: Convert to assert() maybe when we are sure that this does not happen. Duplicate puzzles will be deleted after they
@@ -314,6 +314,7 @@ public final class IntroductionServer extends TransferThread {
 		if(logDEBUG) Logger.debug(this, "Successful insert of puzzle: " + state.getURI());
 		
 		try {
+			assert(mWoT.mayAcquireLock(mWoT));
 			synchronized(mWoT) {
 			synchronized(mPuzzleStore) {
 				final OwnIntroductionPuzzle puzzle = mPuzzleStore.getOwnPuzzleByRequestURI(state.getURI()); /* Be careful: This locks the WoT! */
@@ -346,6 +347,7 @@ public final class IntroductionServer extends TransferThread {
 				
 				// We mark it as inserted to prevent continuous insert attempts
 				try {
+					assert(mWoT.mayAcquireLock(mWoT));
 					synchronized(mWoT) {
 					synchronized(mPuzzleStore) {
 						final OwnIntroductionPuzzle puzzle = mPuzzleStore.getOwnPuzzleByRequestURI(state.getURI()); /* Be careful: This locks the WoT! */
@@ -385,6 +387,7 @@ public final class IntroductionServer extends TransferThread {
 			
 			/* importIntroduction() locks the WoT so we need to do that here first to keep the locking order the same everywhere to
 			 * prevent deadlocks. */
+			assert(mWoT.mayAcquireLock(mWoT));
 			synchronized(mWoT) {
 			synchronized(mPuzzleStore) {
 				final  OwnIntroductionPuzzle p = mPuzzleStore.getOwnPuzzleBySolutionURI(state.getURI());
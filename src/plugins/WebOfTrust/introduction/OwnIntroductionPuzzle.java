@@ -7,7 +7,9 @@ import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.OwnIdentity;
 import plugins.WebOfTrust.Score;
 import plugins.WebOfTrust.Trust;
+import plugins.WebOfTrust.WebOfTrust;
 import plugins.WebOfTrust.WebOfTrustInterface;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.ui.fcp.DebugFCPClient;
 import freenet.keys.FreenetURI;
 import freenet.support.Logger;
@@ -145,6 +147,27 @@ public class OwnIntroductionPuzzle extends IntroductionPuzzle {
 		return copy;
 	}
 	
+	@Override
+	OwnIntroductionPuzzle cloneForDatabase(WebOfTrust wot) throws UnknownIdentityException {
+		final OwnIntroductionPuzzle copy = new OwnIntroductionPuzzle(wot,
+			wot.getOwnIdentityByID(getInserter().getID()), getID(), getType(), getMimeType(),
+			getData(), getSolution(), getDateOfInsertion(), getIndex());
+		
+		copy.setCreationDate(getCreationDate());
+		
+		// Before setSolved() because it complains about solved puzzles which were not inserted.
+		if(wasInserted()) copy.setInserted();
+		
+		if(wasSolved()) {
+			if(getSolver() != null)
+				copy.setSolved(wot.getIdentityByID(getSolver().getID()));
+			else
+				copy.setSolved();
+		}
+		
+		return copy;
+	}
+	
 	@Override
 	public boolean equals(Object o) {
 		return super.equals(o);
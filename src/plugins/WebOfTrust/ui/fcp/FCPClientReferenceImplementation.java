@@ -12,6 +12,10 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import plugins.WebOfTrust.EventSource;
 import plugins.WebOfTrust.Identity;
@@ -77,6 +81,10 @@ import freenet.support.io.NativeThread;
  * full JavaDoc, so I hope the whole private internals of this class will be easy to understand as
  * well.<br><br>
  * 
+ * If your {@link SubscribedObjectChangedHandler} is slow, please consider
+ * {@link #enableAsynchronousProcessing(int, int, NotificationJournal)}: By default, WOT has to
+ * wait for your handler to return before it can send the next event-notification.<br><br>
+ * 
  * NOTICE: This class was based upon class SubscriptionManagerFCPTest, which you can find in the unit tests. Please backport improvements.
  * [Its not possible to link it in the JavaDoc because the unit tests are not within the classpath.] 
  * <br><br>
@@ -103,7 +111,19 @@ public final class FCPClientReferenceImplementation {
 	
 	/** The amount of milliseconds for waiting for "Unsubscribed" messages to arrive in {@link #stop()} */
 	private static final int SHUTDOWN_UNSUBSCRIBE_TIMEOUT = 3*1000;
-	
+
+	/**
+	 * The amount of milliseconds for which the thread which receives a notification from WOT
+	 * waits for space in / emptying of the queue of the {@link AsynchronousProcessor}.
+	 * Must be shorter than {@link FCPInterface#SUBSCRIPTION_NOTIFICATION_TIMEOUT_MINUTES}. */
+	public static final int ASYNC_QUEUE_TIMEOUT = 30 * 1000;
+
+	/** The amount of times the {@link AsynchronousProcessor} retries a failed notification. */
+	public static final int ASYNC_MAX_RETRIES = 3;
+
+	/** The amount of milliseconds the {@link AsynchronousProcessor} waits between retries. */
+	private static final int ASYNC_RETRY_DELAY = 10 * 1000;
+
 	/**
 	 * The implementing child class provides this Map. It is used for obtaining the {@link Identity} objects which are used for
 	 * constructing {@link Trust} and {@link Score} objects which are passed to its handlers.
@@ -274,6 +294,19 @@ public final class FCPClientReferenceImplementation {
 	        <SubscriptionType, FCPEventSourceContainerParser<? extends EventSource>>
             (SubscriptionType.class);
 
+	/**
+	 * Null if {@link #enableAsynchronousProcessing(int, int, NotificationJournal)} was not called,
+	 * i.e. if "ObjectChangedEvent" messages are passed to the
+	 * {@link SubscribedObjectChangedHandler}s synchronously. */
+	private AsynchronousProcessor mAsynchronousProcessor = null;
+
+	/**
+	 * Set to true by the {@link AsynchronousProcessor} if it had to give up processing a
+	 * notification which it had already acknowledged to WOT. The {@link KeepaliveLoop} will then
+	 * reconnect so the subscriptions are filed again and WOT sends the full synchronization,
+	 * which repairs the lost change. */
+	private volatile boolean mResynchronizationRequested = false;
+
 	/** Automatically set to true by {@link Logger} if the log level is set to {@link LogLevel#DEBUG} for this class.
 	 * Used as performance optimization to prevent construction of the log strings if it is not necessary. */
 	private static transient volatile boolean logDEBUG = false;
@@ -313,7 +346,8 @@ public final class FCPClientReferenceImplementation {
 				new FCPErrorHandler(),
 				new FCPBeginSynchronizationEventHandler(),
 				new FCPEndSynchronizationEventHandler(),
-				new FCPObjectChangedEventHandler()
+				new FCPObjectChangedEventHandler(),
+				new FCPNotificationBatchHandler()
 		};
 		
 		for(FCPMessageHandler handler : handlers)
@@ -327,7 +361,84 @@ public final class FCPClientReferenceImplementation {
 		mParsers.put(SubscriptionType.Trusts, new TrustParser(wot, mIdentityStorage));
 		mParsers.put(SubscriptionType.Scores, new ScoreParser(wot, mIdentityStorage));
 	}
-	
+
+	/**
+	 * Makes the client process "ObjectChangedEvent" messages asynchronously. Must be called
+	 * before {@link #start()}, if at all.<br><br>
+	 *
+	 * By default, the {@link SubscribedObjectChangedHandler} is called on the thread which
+	 * receives the FCP message from WOT, and WOT only receives the acknowledgement of the message
+	 * after the handler has returned. Clients whose handlers are slow, for example because they
+	 * store each change in a database, therefore slow down the delivery of all notifications.
+	 * <br>
+	 * With asynchronous processing, the notification is instead appended to the given
+	 * {@link NotificationJournal}, put into a bounded queue and acknowledged immediately.
+	 * A pool of worker threads then calls the handler. Changes of the same object are always
+	 * processed by the same worker, so their order is preserved.<br>
+	 * Without a journal, the notification is acknowledged once it is queued, i.e. NOT durably:
+	 * If your client crashes, the queued notifications are lost. They are only repaired by the
+	 * synchronization which WOT sends when the client subscribes again after its restart.
+	 * <br><br>
+	 *
+	 * To keep the semantics of the synchronous mode, the queue is emptied before:<br>
+	 * - the handlers of the "BeginSynchronizationEvent" / "EndSynchronizationEvent" are called.
+	 *   <br>
+	 * - a notification of a different {@link SubscriptionType} than the queued ones is queued.
+	 *   This ensures that {@link Trust} and {@link Score} objects can be constructed from the
+	 *   {@link Identity} objects in your storage.<br>
+	 * If the queue does not become empty or does not have space within
+	 * {@link #ASYNC_QUEUE_TIMEOUT}, an error is signaled to WOT, which will re-send the
+	 * notification later.<br><br>
+	 *
+	 * If your handler throws, the notification is retried {@link #ASYNC_MAX_RETRIES} times.
+	 * If it still fails, the client reconnects to WOT. The new subscriptions will begin with a
+	 * synchronization of all objects, which repairs the lost change.
+	 *
+	 * @param workerThreads The amount of threads which call your
+	 *     {@link SubscribedObjectChangedHandler}s. They must be safe to be called concurrently for
+	 *     different objects.
+	 * @param queueCapacity The maximal amount of queued notifications of each worker thread.
+	 * @param journal Stores the notifications before they are acknowledged. Can be null if you do
+	 *     not need them to survive a crash of your client, see above.
+	 * @see #getAsynchronousProcessingStatistics() */
+	public final void enableAsynchronousProcessing(final int workerThreads,
+			final int queueCapacity, final NotificationJournal journal) {
+
+		enableAsynchronousProcessing(workerThreads, queueCapacity, journal, ASYNC_QUEUE_TIMEOUT,
+			ASYNC_RETRY_DELAY);
+	}
+
+	/**
+	 * Same as {@link #enableAsynchronousProcessing(int, int, NotificationJournal)} with custom
+	 * values instead of {@link #ASYNC_QUEUE_TIMEOUT} and {@link #ASYNC_RETRY_DELAY}. For unit
+	 * tests, which cannot wait for the default ones. */
+	final synchronized void enableAsynchronousProcessing(final int workerThreads,
+			final int queueCapacity, final NotificationJournal journal, final int queueTimeout,
+			final int retryDelay) {
+
+		if(mClientState != ClientState.NotStarted)
+			throw new IllegalStateException(mClientState.toString());
+
+		if(mAsynchronousProcessor != null)
+			throw new IllegalStateException("Asynchronous processing is enabled already!");
+
+		if(workerThreads < 1 || queueCapacity < 1)
+			throw new IllegalArgumentException("workerThreads: " + workerThreads
+			                                 + "; queueCapacity: " + queueCapacity);
+
+		mAsynchronousProcessor = new AsynchronousProcessor(workerThreads, queueCapacity, journal,
+			queueTimeout, retryDelay);
+	}
+
+	/**
+	 * Returns the queue depth and processing latency of the asynchronous processing, or null if
+	 * {@link #enableAsynchronousProcessing(int, int, NotificationJournal)} was not called. */
+	public final synchronized AsynchronousProcessingStatistics
+			getAsynchronousProcessingStatistics() {
+
+		return mAsynchronousProcessor != null ? mAsynchronousProcessor.getStatistics() : null;
+	}
+
 	/**
 	 * Tells the client to start connecting to WOT. Must be called at startup of your plugin.
 	 * <br><br>
@@ -346,6 +457,10 @@ public final class FCPClientReferenceImplementation {
 			throw new IllegalStateException(mClientState.toString());
 		
 		mClientState = ClientState.Started;
+		
+		if(mAsynchronousProcessor != null)
+			mAsynchronousProcessor.start();
+		
 		mKeepAliveLoop.triggerExecution(0);
 
 		Logger.normal(this, "Started.");
@@ -393,6 +508,9 @@ public final class FCPClientReferenceImplementation {
 		mEndSubscriptionSynchronizationHandlers.put(realType, endSyncHandler);
 		mSubscribedObjectChangedHandlers.put(realType, objectChangedHandler);
 		
+		if(mAsynchronousProcessor != null)
+			mAsynchronousProcessor.replayJournal(realType);
+		
 		mKeepAliveLoop.triggerExecution(0);
 	}
 	
@@ -476,6 +594,13 @@ public final class FCPClientReferenceImplementation {
 			            return;
 			        }
 
+			        if(mResynchronizationRequested) {
+			            Logger.warning(this, "Asynchronous processing of a notification failed, "
+			                               + "reconnecting to re-synchronize the subscriptions.");
+			            mResynchronizationRequested = false;
+			            force_disconnect();
+			        }
+
 			        if(!connected() || pingTimedOut())
 			            connect();
 
@@ -707,6 +832,8 @@ public final class FCPClientReferenceImplementation {
 		final SimpleFieldSet sfs = new SimpleFieldSet(true);
 		sfs.putOverwrite("Message", "Subscribe");
 		sfs.putOverwrite("To", type.toString());
+		// See FCPNotificationBatchHandler
+		sfs.put("AcceptsNotificationBatches", true);
 		send(sfs);
 	}
 	
@@ -1019,6 +1146,10 @@ public final class FCPClientReferenceImplementation {
 	    @Override void handle_MaybeFailing(final SimpleFieldSet sfs, final Bucket data)
 	            throws ProcessingFailedException {
 	        
+	        // The handler expects the notifications which were received before to be processed
+	        if(mAsynchronousProcessor != null)
+	            mAsynchronousProcessor.waitUntilEmpty();
+	        
 	        mBeginSubscriptionSynchronizationHandlers.get(parseSubscriptionType(sfs))
 	            .handleBeginSubscriptionSynchronization(parseVersionID(sfs));
 	    }
@@ -1046,6 +1177,11 @@ public final class FCPClientReferenceImplementation {
 	    @Override void handle_MaybeFailing(final SimpleFieldSet sfs, final Bucket data)
 	            throws ProcessingFailedException {
 	        
+	        // The handler will delete all objects which were not contained in the
+	        // synchronization, so the ones which were must have been stored already.
+	        if(mAsynchronousProcessor != null)
+	            mAsynchronousProcessor.waitUntilEmpty();
+	        
             mEndSubscriptionSynchronizationHandlers.get(parseSubscriptionType(sfs))
                 .handleEndSubscriptionSynchronization(parseVersionID(sfs));
 	    }
@@ -1058,7 +1194,9 @@ public final class FCPClientReferenceImplementation {
 	 * 
 	 * Parses the contained {@link Identity} / {@link Trust} / {@link Score} and 
 	 * passes it to the event handler {@link SubscribedObjectChangedHandler} with the type parameter
-	 * matching Identity / Trust / Score.
+	 * matching Identity / Trust / Score.<br>
+	 * If {@link #enableAsynchronousProcessing(int, int, NotificationJournal)} was called, the
+	 * handler is called by the {@link AsynchronousProcessor} instead.
 	 */
 	private final class FCPObjectChangedEventHandler
 	        extends MaybeFailingFCPMessageHandler {
@@ -1083,10 +1221,19 @@ public final class FCPClientReferenceImplementation {
 		        = (SubscribedObjectChangedHandler<EventSource>)
 		            mSubscribedObjectChangedHandlers.get(subscriptionType);
 		    
+		    if(mAsynchronousProcessor != null) {
+		        // Parse the notification only after the notifications of other types were
+		        // processed: Trusts and Scores are constructed from the client's Identity objects.
+		        mAsynchronousProcessor.waitUntilEmptyIfOtherType(subscriptionType);
+		    }
+		    
 		    final ChangeSet<EventSource> changeSet
 		        = (ChangeSet<EventSource>) parser.parseObjectChangedEvent(sfs);
 
-			handler.handleSubscribedObjectChanged(changeSet);
+		    if(mAsynchronousProcessor != null)
+		        mAsynchronousProcessor.enqueue(subscriptionType, handler, changeSet, sfs);
+		    else
+		        handler.handleSubscribedObjectChanged(changeSet);
 		}
 		
         private final SubscriptionType parseSubscriptionType(final SimpleFieldSet sfs) {
@@ -1094,6 +1241,488 @@ public final class FCPClientReferenceImplementation {
         }
 	}
 
+	/**
+	 * Handles the "NotificationBatch" message which WOT sends instead of single event messages
+	 * because {@link FCPClientReferenceImplementation#fcp_Subscribe(SubscriptionType)} requests
+	 * it to.<br>
+	 * It contains a series of "BeginSynchronizationEvent" / "EndSynchronizationEvent" /
+	 * "ObjectChangedEvent" messages, which are passed in order to the handlers of the single
+	 * messages.<br><br>
+	 * 
+	 * The batch is acknowledged as a whole: If any of the contained events fails, failure of the
+	 * whole batch is signaled to WOT, and it will re-send all of its events - including the ones
+	 * which were processed successfully before the failing one. The event handlers therefore must
+	 * be able to process the same event twice. This is already the case for handlers which store
+	 * the "after" state of the {@link ChangeSet} they receive.
+	 * 
+	 * @see FCPInterface#sendNotificationBatch(UUID, java.util.List)
+	 */
+	private final class FCPNotificationBatchHandler extends MaybeFailingFCPMessageHandler {
+		@Override
+		public String getMessageName() {
+			return "NotificationBatch";
+		}
+		
+		@Override
+		void handle_MaybeFailing(final SimpleFieldSet sfs, final Bucket data) throws Throwable {
+			final int amount = sfs.getInt("Amount");
+			final SimpleFieldSet notifications = sfs.subset("Notifications");
+			
+			for(int i = 0; i < amount; ++i) {
+				final SimpleFieldSet notification = notifications.subset(Integer.toString(i));
+				final String messageString = notification.get("Message");
+				final FCPMessageHandler handler = mFCPMessageHandlers.get(messageString);
+				
+				if(!(handler instanceof MaybeFailingFCPMessageHandler)
+				        || handler instanceof FCPNotificationBatchHandler) {
+					throw new IllegalStateException(
+					    "Invalid message type in NotificationBatch: " + messageString);
+				}
+				
+				((MaybeFailingFCPMessageHandler)handler).handle_MaybeFailing(notification, null);
+			}
+		}
+	}
+
+	/**
+	 * Statistics of the {@link AsynchronousProcessor}, see
+	 * {@link FCPClientReferenceImplementation#getAsynchronousProcessingStatistics()}. */
+	public static final class AsynchronousProcessingStatistics {
+		/** Notifications which are queued or being processed. */
+		public final int mQueueDepth;
+
+		public final int mMaxQueueDepth;
+
+		/** Notifications whose handler succeeded. */
+		public final long mProcessed;
+
+		/** Notifications whose handler still failed after {@link #ASYNC_MAX_RETRIES} retries. */
+		public final long mFailed;
+
+		/** Sum of the time between acknowledging the {@link #mProcessed} notifications to WOT
+		 *  and their handler returning. */
+		public final long mTotalLatencyNanoseconds;
+
+		public final long mMaxLatencyNanoseconds;
+
+
+		AsynchronousProcessingStatistics(int queueDepth, int maxQueueDepth, long processed,
+				long failed, long totalLatencyNanoseconds, long maxLatencyNanoseconds) {
+			mQueueDepth = queueDepth;
+			mMaxQueueDepth = maxQueueDepth;
+			mProcessed = processed;
+			mFailed = failed;
+			mTotalLatencyNanoseconds = totalLatencyNanoseconds;
+			mMaxLatencyNanoseconds = maxLatencyNanoseconds;
+		}
+
+		public double getAverageLatencyMilliseconds() {
+			return mProcessed == 0 ? 0
+				: (double)mTotalLatencyNanoseconds / mProcessed / TimeUnit.MILLISECONDS.toNanos(1);
+		}
+
+		@Override
+		public String toString() {
+			return "AsynchronousProcessingStatistics { QueueDepth: " + mQueueDepth
+			     + "; MaxQueueDepth: " + mMaxQueueDepth
+			     + "; Processed: " + mProcessed
+			     + "; Failed: " + mFailed
+			     + "; AverageLatencyMilliseconds: " + getAverageLatencyMilliseconds()
+			     + "; MaxLatencyMilliseconds: "
+			     + TimeUnit.NANOSECONDS.toMillis(mMaxLatencyNanoseconds) + " }";
+		}
+	}
+
+	/**
+	 * Calls the {@link SubscribedObjectChangedHandler}s on a pool of worker threads, see
+	 * {@link FCPClientReferenceImplementation#enableAsynchronousProcessing(int, int,
+	 * NotificationJournal)}.<br><br>
+	 *
+	 * Each worker has its own queue. The queue of a notification is chosen by the ID of the
+	 * changed object, so all changes of an object are processed in order by the same worker.
+	 * <br><br>
+	 *
+	 * Locking: The functions which are called by the {@link FCPMessageHandler}s are called while
+	 * synchronized(FCPClientReferenceImplementation.this). When they have to wait for the
+	 * workers, they do so by FCPClientReferenceImplementation.this.wait(), which releases that
+	 * lock, so waiting for a slow {@link SubscribedObjectChangedHandler} does not block the
+	 * {@link KeepaliveLoop}, {@link FCPClientReferenceImplementation#stop()} and other messages.
+	 * The workers only take the lock for notifying the waiting threads, see
+	 * {@link #notifyWaiters()}, and do not hold any other lock meanwhile.<br>
+	 * The waiting is limited to {@link #mQueueTimeout} so the message handling thread can not be
+	 * blocked forever by a hanging {@link SubscribedObjectChangedHandler}.
+	 */
+	private final class AsynchronousProcessor {
+
+		/** Null if the user did not supply a journal. */
+		private final NotificationJournal mJournal;
+
+		/** Usually {@link #ASYNC_QUEUE_TIMEOUT}. */
+		private final int mQueueTimeout;
+
+		/** Usually {@link #ASYNC_RETRY_DELAY}. */
+		private final int mRetryDelay;
+
+		private final ArrayList<Worker> mWorkers;
+
+		/** Counted down by {@link #terminate()}. Awaited for sleeping between retries. */
+		private final CountDownLatch mTerminated = new CountDownLatch(1);
+
+		/** The {@link SubscriptionType} of the notifications in the queues. Only valid if
+		 *  {@link #mQueueDepth} is greater than 0. */
+		private SubscriptionType mQueuedType = null;
+
+		/** Amount of notifications which are queued or being processed. */
+		private int mQueueDepth = 0;
+
+		private int mMaxQueueDepth = 0;
+
+		private long mProcessed = 0;
+
+		private long mFailed = 0;
+
+		private long mTotalLatencyNanoseconds = 0;
+
+		private long mMaxLatencyNanoseconds = 0;
+
+
+		AsynchronousProcessor(int workerThreads, int queueCapacity, NotificationJournal journal,
+				int queueTimeout, int retryDelay) {
+			mJournal = journal;
+			mQueueTimeout = queueTimeout;
+			mRetryDelay = retryDelay;
+			mWorkers = new ArrayList<Worker>(workerThreads);
+			for(int i = 0; i < workerThreads; ++i)
+				mWorkers.add(new Worker(i, queueCapacity));
+		}
+
+		void start() {
+			for(Worker worker : mWorkers) {
+				mPluginRespirator.getNode().executor.execute(worker,
+					"WOT " + FCPClientReferenceImplementation.class.getSimpleName()
+					       + " " + Worker.class.getSimpleName() + " " + worker.mIndex);
+			}
+		}
+
+		/**
+		 * Makes the workers exit once they are finished with their current notification.
+		 * Does not wait for that. The notifications which were not processed yet are not
+		 * removed from the {@link NotificationJournal}.<br>
+		 * Threads which are waiting for the workers give up. */
+		void terminate() {
+			mTerminated.countDown();
+			notifyWaiters();
+		}
+
+		boolean isTerminated() {
+			return mTerminated.getCount() == 0;
+		}
+
+		/**
+		 * Calls the handler of the given type for all notifications in the
+		 * {@link NotificationJournal} which were not processed yet because the client had been
+		 * stopped or crashed.<br>
+		 * Runs on the calling thread: Trusts and Scores can only be constructed once the
+		 * Identities have been replayed, and subscriptions are filed in that order.<br><br>
+		 *
+		 * Failing notifications are logged and removed from the journal: The subscription which
+		 * is about to be filed will start with a synchronization of all objects, which repairs
+		 * them. */
+		@SuppressWarnings("unchecked")
+		void replayJournal(final SubscriptionType type) {
+			if(mJournal == null)
+				return;
+
+			final Map<Object, SimpleFieldSet> unprocessed;
+			try {
+				unprocessed = mJournal.getUnprocessed();
+			} catch(IOException e) {
+				Logger.error(this, "Reading the NotificationJournal failed!", e);
+				return;
+			}
+
+			final SubscribedObjectChangedHandler<EventSource> handler
+				= (SubscribedObjectChangedHandler<EventSource>)
+					mSubscribedObjectChangedHandlers.get(type);
+
+			int replayed = 0;
+			for(Map.Entry<Object, SimpleFieldSet> entry : unprocessed.entrySet()) {
+				final SimpleFieldSet notification = entry.getValue();
+				if(!type.toString().equals(notification.get("SubscriptionType")))
+					continue;
+
+				try {
+					handler.handleSubscribedObjectChanged((ChangeSet<EventSource>)
+						mParsers.get(type).parseObjectChangedEvent(notification));
+					++replayed;
+				} catch(Throwable t) {
+					Logger.error(this, "Replaying notification failed, the synchronization "
+					                 + "of the subscription will repair it: " + notification, t);
+				}
+
+				markProcessed(entry.getKey());
+			}
+
+			Logger.normal(this, "Replayed " + replayed + " " + type + " notifications.");
+		}
+
+		/**
+		 * Waits until all queued notifications were processed.<br>
+		 * Must be called while synchronized(FCPClientReferenceImplementation.this). The lock is
+		 * released while waiting, see the JavaDoc of this class. It is held again when this
+		 * returns, and as long as the caller holds it, nothing can be queued, so the queue stays
+		 * empty.
+		 * @throws ProcessingFailedException If that does not happen within
+		 *     {@link #mQueueTimeout}. WOT will then re-send the message which we are
+		 *     currently processing. */
+		void waitUntilEmpty() throws ProcessingFailedException {
+			assert(Thread.holdsLock(FCPClientReferenceImplementation.this));
+
+			final FCPPluginConnection connection = mConnection;
+			final long deadline = System.currentTimeMillis() + mQueueTimeout;
+
+			while(getQueueDepth() > 0)
+				waitForWorkers(connection, deadline, "Queue did not become empty");
+		}
+
+		/** Calls {@link #waitUntilEmpty()} if the queued notifications are of a different type. */
+		void waitUntilEmptyIfOtherType(final SubscriptionType type)
+				throws ProcessingFailedException {
+
+			final boolean otherType;
+			synchronized(this) {
+				otherType = mQueueDepth > 0 && mQueuedType != type;
+			}
+
+			if(otherType)
+				waitUntilEmpty();
+		}
+
+		private synchronized int getQueueDepth() {
+			return mQueueDepth;
+		}
+
+		/**
+		 * Waits once until {@link #notifyWaiters()} is called or the deadline is reached.
+		 * Must be called while synchronized(FCPClientReferenceImplementation.this), which is
+		 * released during the wait(). Callers must check their condition in a loop.
+		 * @param connection The {@link #mConnection} at the beginning of the waiting: Other
+		 *     threads may have reconnected while the lock was released, which makes the message
+		 *     which we are processing obsolete.
+		 * @throws ProcessingFailedException If the deadline has passed, if {@link #terminate()}
+		 *     was called or if the connection has changed. */
+		private void waitForWorkers(final FCPPluginConnection connection, final long deadline,
+				final String timeoutMessage) throws ProcessingFailedException {
+
+			final long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0 || isTerminated()) {
+				throw new ProcessingFailedException(new TimeoutException(timeoutMessage
+					+ ", queue depth: " + getQueueDepth()));
+			}
+
+			try {
+				FCPClientReferenceImplementation.this.wait(remaining);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ProcessingFailedException(e);
+			}
+
+			if(mConnection != connection) {
+				throw new ProcessingFailedException(new IllegalStateException(
+					"Connection changed while waiting for the queue"));
+			}
+		}
+
+		/**
+		 * Wakes up the threads in {@link #waitForWorkers(FCPPluginConnection, long, String)}.
+		 * Must not be called while holding the lock of this AsynchronousProcessor, the lock order
+		 * is FCPClientReferenceImplementation.this before this. */
+		private void notifyWaiters() {
+			synchronized(FCPClientReferenceImplementation.this) {
+				FCPClientReferenceImplementation.this.notifyAll();
+			}
+		}
+
+		/**
+		 * Stores the notification in the {@link NotificationJournal} and queues it for
+		 * processing by the worker which is responsible for the changed object.<br>
+		 * The caller must have called {@link #waitUntilEmptyIfOtherType(SubscriptionType)} before
+		 * and must be synchronized(FCPClientReferenceImplementation.this), which ensures that
+		 * nothing else is queued meanwhile.
+		 *
+		 * @throws ProcessingFailedException If the journal fails, or if the queue of the worker
+		 *     has no space within {@link #mQueueTimeout}. The lock is released while waiting
+		 *     for space, as by {@link #waitUntilEmpty()}. */
+		void enqueue(final SubscriptionType type,
+				final SubscribedObjectChangedHandler<EventSource> handler,
+				final ChangeSet<EventSource> changeSet, final SimpleFieldSet notification)
+				throws ProcessingFailedException {
+
+			assert(Thread.holdsLock(FCPClientReferenceImplementation.this));
+
+			if(isTerminated())
+				throw new ProcessingFailedException(new IllegalStateException("Terminated"));
+
+			final String id = (changeSet.afterChange != null ? changeSet.afterChange
+			                                                  : changeSet.beforeChange).getID();
+			final Worker worker = mWorkers.get((id.hashCode() & Integer.MAX_VALUE) % mWorkers.size());
+
+			Object journalEntry = null;
+			try {
+				if(mJournal != null)
+					journalEntry = mJournal.append(notification);
+			} catch(IOException e) {
+				throw new ProcessingFailedException(e);
+			}
+
+			synchronized(this) {
+				mQueuedType = type;
+				++mQueueDepth;
+				mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueueDepth);
+			}
+
+			final QueuedChange change
+				= new QueuedChange(handler, changeSet, journalEntry, System.nanoTime());
+			final FCPPluginConnection connection = mConnection;
+			final long deadline = System.currentTimeMillis() + mQueueTimeout;
+			boolean queued = false;
+			try {
+				// The workers notify us once they have processed a notification, which is
+				// after they have taken it from the queue.
+				while(!worker.mQueue.offer(change)) {
+					waitForWorkers(connection, deadline,
+						"Queue of worker " + worker.mIndex + " is full");
+				}
+				queued = true;
+			} finally {
+				if(!queued) {
+					markProcessed(journalEntry);
+					synchronized(this) {
+						--mQueueDepth;
+					}
+				}
+			}
+		}
+
+		private void markProcessed(final Object journalEntry) {
+			if(mJournal == null)
+				return;
+
+			try {
+				mJournal.markProcessed(journalEntry);
+			} catch(IOException e) {
+				Logger.error(this, "Marking notification as processed in NotificationJournal "
+				                 + "failed: " + journalEntry, e);
+			}
+		}
+
+		/** Called by the workers once they are done with a {@link QueuedChange}. */
+		private synchronized void countProcessed(final QueuedChange change,
+				final boolean success) {
+
+			if(success) {
+				final long latency = System.nanoTime() - change.mQueuedAtNanoTime;
+				++mProcessed;
+				mTotalLatencyNanoseconds += latency;
+				mMaxLatencyNanoseconds = Math.max(mMaxLatencyNanoseconds, latency);
+			} else
+				++mFailed;
+
+			--mQueueDepth;
+		}
+
+		synchronized AsynchronousProcessingStatistics getStatistics() {
+			return new AsynchronousProcessingStatistics(mQueueDepth, mMaxQueueDepth, mProcessed,
+				mFailed, mTotalLatencyNanoseconds, mMaxLatencyNanoseconds);
+		}
+
+		/** A notification in the queue of a {@link Worker}. */
+		private final class QueuedChange {
+			final SubscribedObjectChangedHandler<EventSource> mHandler;
+
+			final ChangeSet<EventSource> mChangeSet;
+
+			/** The return value of {@link NotificationJournal#append(SimpleFieldSet)}. */
+			final Object mJournalEntry;
+
+			/** {@link System#nanoTime()} when the notification was acknowledged to WOT. */
+			final long mQueuedAtNanoTime;
+
+			QueuedChange(SubscribedObjectChangedHandler<EventSource> handler,
+					ChangeSet<EventSource> changeSet, Object journalEntry, long queuedAtNanoTime) {
+				mHandler = handler;
+				mChangeSet = changeSet;
+				mJournalEntry = journalEntry;
+				mQueuedAtNanoTime = queuedAtNanoTime;
+			}
+		}
+
+		private final class Worker implements PrioRunnable {
+			final int mIndex;
+
+			final ArrayBlockingQueue<QueuedChange> mQueue;
+
+			Worker(int index, int queueCapacity) {
+				mIndex = index;
+				mQueue = new ArrayBlockingQueue<QueuedChange>(queueCapacity);
+			}
+
+			@Override
+			public void run() {
+				try {
+					while(!isTerminated()) {
+						// Poll with a timeout instead of take() to notice terminate().
+						final QueuedChange change = mQueue.poll(1, TimeUnit.SECONDS);
+						if(change != null)
+							process(change);
+					}
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch(Throwable t) {
+					Logger.error(this, "Worker " + mIndex + " died!", t);
+				}
+			}
+
+			private void process(final QueuedChange change) throws InterruptedException {
+				for(int attempt = 0; ; ++attempt) {
+					try {
+						change.mHandler.handleSubscribedObjectChanged(change.mChangeSet);
+						markProcessed(change.mJournalEntry);
+						countProcessed(change, true);
+						notifyWaiters();
+						return;
+					} catch(Throwable t) {
+						Logger.error(this, "SubscribedObjectChangedHandler failed, attempt "
+						                 + (attempt + 1) + ": " + change.mChangeSet, t);
+					}
+
+					if(attempt >= ASYNC_MAX_RETRIES)
+						break;
+
+					// Returns true if terminate() was called. The notification then stays in
+					// the journal.
+					if(mTerminated.await(mRetryDelay, TimeUnit.MILLISECONDS)) {
+						countProcessed(change, false);
+						notifyWaiters();
+						return;
+					}
+				}
+
+				// The notification was acknowledged to WOT already, so it won't re-send it. The
+				// synchronization of a new subscription will repair it.
+				markProcessed(change.mJournalEntry);
+				countProcessed(change, false);
+				mResynchronizationRequested = true;
+				notifyWaiters();
+			}
+
+			@Override
+			public int getPriority() {
+				return NativeThread.PriorityLevel.NORM_PRIORITY.value;
+			}
+		}
+	}
+
 	/**
 	 * Represents the data of a {@link SubscriptionManager.Notification}
 	 */
@@ -1430,6 +2059,39 @@ public final class FCPClientReferenceImplementation {
 		 */
 		 void handleSubscribedObjectChanged(ChangeSet<T> changeSet) throws ProcessingFailedException;
 	}
+
+	/**
+	 * Durable storage for "ObjectChangedEvent" messages which is used if
+	 * {@link FCPClientReferenceImplementation#enableAsynchronousProcessing(int, int,
+	 * NotificationJournal)} was called with a journal: The messages are acknowledged to WOT once
+	 * they are stored in the journal, before they have been passed to your
+	 * {@link SubscribedObjectChangedHandler}. Without a journal, they are acknowledged once they
+	 * are queued in memory.<br>
+	 * The functions are called concurrently by the thread which receives the messages and by the
+	 * worker threads.
+	 */
+	public interface NotificationJournal {
+		/**
+		 * Must store the message durably, e.g. by writing it to disk with fsync, before it
+		 * returns.
+		 * @return An object which identifies the stored message. Is passed to
+		 *     {@link #markProcessed(Object)}. */
+		Object append(SimpleFieldSet notification) throws IOException;
+
+		/**
+		 * Called once the {@link SubscribedObjectChangedHandler} has processed the message,
+		 * or once processing it has been given up. The entry may then be deleted. */
+		void markProcessed(Object entry) throws IOException;
+
+		/**
+		 * Called by {@link FCPClientReferenceImplementation#subscribe(Class,
+		 * BeginSubscriptionSynchronizationHandler, EndSubscriptionSynchronizationHandler,
+		 * SubscribedObjectChangedHandler)} for replaying the messages which were not processed
+		 * before the client was stopped or crashed.
+		 * @return The entries for which {@link #markProcessed(Object)} was not called yet. The
+		 *     iteration order must be the order of {@link #append(SimpleFieldSet)}. */
+		Map<Object, SimpleFieldSet> getUnprocessed() throws IOException;
+	}
 	
 	/**
 	 * Must be called at shutdown of your plugin.
@@ -1516,7 +2178,14 @@ public final class FCPClientReferenceImplementation {
 		            // Releases the lock on this object - which is why we needed to set
 		            // mClientState = ClientState.StopRequested:
 		            // To prevent new subscriptions from happening in between
-		            wait(SHUTDOWN_UNSUBSCRIBE_TIMEOUT);
+		            // Looped because the AsynchronousProcessor also calls notifyAll().
+		            final long deadline
+		                = System.currentTimeMillis() + SHUTDOWN_UNSUBSCRIBE_TIMEOUT;
+		            long remaining = SHUTDOWN_UNSUBSCRIBE_TIMEOUT;
+		            while(!mSubscriptionIDs.isEmpty() && mConnection != null && remaining > 0) {
+		                wait(remaining);
+		                remaining = deadline - System.currentTimeMillis();
+		            }
 		        } catch (InterruptedException e) {
 		            Logger.error(this, "stop(): Received InterruptedException while waiting for "
 		                             + "replies to fcp_Unsubscribe(). The shutdown thread should "
@@ -1564,6 +2233,10 @@ public final class FCPClientReferenceImplementation {
 		// anything if all subscriptions have been terminated properly before.
 		force_disconnect();
 		
+		// Notifications which are still queued stay in the NotificationJournal.
+		if(mAsynchronousProcessor != null)
+			mAsynchronousProcessor.terminate();
+		
 		mClientState = ClientState.Stopped;
 		
 		Logger.normal(this, "stop() finished.");
@@ -4,19 +4,35 @@
 package plugins.WebOfTrust.ui.fcp;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
+import plugins.WebOfTrust.Configuration;
 import plugins.WebOfTrust.EventSource;
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.Identity.IdentityID;
+import plugins.WebOfTrust.IdentityContext;
 import plugins.WebOfTrust.OwnIdentity;
+import plugins.WebOfTrust.Persistent;
 import plugins.WebOfTrust.Score;
+import plugins.WebOfTrust.SnapshotStore;
+import plugins.WebOfTrust.SnapshotStore.IdentitySnapshot;
+import plugins.WebOfTrust.SnapshotStore.ScoreSnapshot;
+import plugins.WebOfTrust.SnapshotStore.TrustSnapshot;
 import plugins.WebOfTrust.SubscriptionManager;
 import plugins.WebOfTrust.SubscriptionManager.BeginSynchronizationNotification;
 import plugins.WebOfTrust.SubscriptionManager.EndSynchronizationNotification;
@@ -31,6 +47,7 @@ import plugins.WebOfTrust.SubscriptionManager.SubscriptionExistsAlreadyException
 import plugins.WebOfTrust.SubscriptionManager.TrustChangedNotification;
 import plugins.WebOfTrust.SubscriptionManager.TrustsSubscription;
 import plugins.WebOfTrust.SubscriptionManager.UnknownSubscriptionException;
+import plugins.WebOfTrust.Tombstone;
 import plugins.WebOfTrust.Trust;
 import plugins.WebOfTrust.WebOfTrust;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
@@ -87,12 +104,60 @@ public final class FCPInterface
      */
     public static final int SUBSCRIPTION_NOTIFICATION_TIMEOUT_MINUTES = 1;
 
+    /**
+     * Maximal value of the "PageSize" parameter of the messages which support pagination, e.g.
+     * "GetIdentities". Limits the time for which a single page holds the lock of the
+     * {@link WebOfTrust}.
+     */
+    public static final int MAX_PAGE_SIZE = 4096;
+
+    /** Maximal amount of entries of the batch messages "SetTrusts" and "RemoveTrusts". */
+    public static final int MAX_BATCH_SIZE = 4096;
+
+    /** Maximal estimated memory usage of the {@link #mResponseCache}, in bytes. */
+    public static final long RESPONSE_CACHE_MAX_SIZE = 8 * 1024 * 1024;
+
     private final WebOfTrust mWoT;
     
     private final PluginRespirator mPluginRespirator;
     
     private final SubscriptionManager mSubscriptionManager;
 
+    /**
+     * The handlers of all FCP messages which we support, keyed by the value of the "Message" field
+     * of the {@link FCPPluginMessage#params}.<br>
+     * Filled by {@link #registerMessageHandlers()} in the constructor and not modified afterwards,
+     * so no synchronization is needed. */
+    private final HashMap<String, MessageHandler> mMessageHandlers
+        = new HashMap<String, MessageHandler>();
+
+    /**
+     * Has the same keys as {@link #mMessageHandlers}. The {@link MessageStatistics} objects
+     * themselves are synchronized. */
+    private final HashMap<String, MessageStatistics> mMessageStatistics
+        = new HashMap<String, MessageStatistics>();
+
+    /** Caches the replies of the handlers registered by
+     *  {@link #registerCacheableMessageHandler(String, SimpleFieldSetMessageHandler,
+     *  Class...)}. */
+    private final FCPResponseCache mResponseCache
+        = new FCPResponseCache(RESPONSE_CACHE_MAX_SIZE);
+
+    /** Used for measuring {@link MessageStatistics#mLockWaitTimeMilliseconds}. */
+    private final ThreadMXBean mThreadMXBean = ManagementFactory.getThreadMXBean();
+
+    /**
+     * If true, {@link MessageStatistics#mLockWaitTimeMilliseconds} and
+     * {@link MessageStatistics#mResponseSize} are measured, otherwise they stay 0.
+     * 
+     * @see Configuration#isFCPDetailedStatisticsEnabled() */
+    private final boolean mDetailedStatistics;
+
+    /**
+     * True if we have enabled {@link ThreadMXBean#setThreadContentionMonitoringEnabled(boolean)}
+     * and thus must disable it again at {@link #stop()}. */
+    private final boolean mEnabledThreadContentionMonitoring;
+
     /** Automatically set to true by {@link Logger} if the log level is set to
      *  {@link LogLevel#MINOR} for this class.<br>
      *  Used as performance optimization to prevent construction of the log strings if it is not
@@ -109,12 +174,35 @@ public final class FCPInterface
         mWoT = myWoT;
         mPluginRespirator = mWoT.getPluginRespirator();
         mSubscriptionManager = mWoT.getSubscriptionManager();
+        mDetailedStatistics = mWoT.getConfig().isFCPDetailedStatisticsEnabled();
+        
+        boolean enabledThreadContentionMonitoring = false;
+        try {
+            if(mDetailedStatistics && mThreadMXBean.isThreadContentionMonitoringSupported()
+                    && !mThreadMXBean.isThreadContentionMonitoringEnabled()) {
+                mThreadMXBean.setThreadContentionMonitoringEnabled(true);
+                enabledThreadContentionMonitoring = true;
+            }
+        } catch(SecurityException e) {
+            Logger.warning(this, "Cannot measure lock wait time of FCP messages", e);
+        }
+        mEnabledThreadContentionMonitoring = enabledThreadContentionMonitoring;
+        
+        registerMessageHandlers();
     }
     
     /** TODO: Could be removed, is empty. */
     public void start() {}
     
     public void stop() {
+        if(mEnabledThreadContentionMonitoring) {
+            try {
+                mThreadMXBean.setThreadContentionMonitoringEnabled(false);
+            } catch(SecurityException e) {
+                Logger.warning(this, "setThreadContentionMonitoringEnabled(false) failed", e);
+            }
+        }
+        
         // We currently do not have to interrupt() threads on functions of FCPInterface which use
         // FCPPluginConnection.sendSynchronous():
         // By their JavaDoc, they all require the caller to deal with interrupting the thread upon
@@ -122,6 +210,358 @@ public final class FCPInterface
         // SubscriptionManager).
     }
 
+    /**
+     * Handler of a single type of FCP message, see {@link #mMessageHandlers}.<br>
+     * Implementations shall throw upon error, {@link #handlePluginFCPMessage(FCPPluginConnection,
+     * FCPPluginMessage)} will convert the exception to an error reply. */
+    private interface MessageHandler {
+        /** @param connection Is null if the message was received via the legacy
+         *      {@link FredPluginFCP} API. */
+        FCPPluginMessage handle(FCPPluginConnection connection, FCPPluginMessage message)
+            throws Exception;
+    }
+
+    /**
+     * Adapter for the handlers which only return the {@link SimpleFieldSet} of the reply instead
+     * of a full {@link FCPPluginMessage}. */
+    private static abstract class SimpleFieldSetMessageHandler implements MessageHandler {
+        @Override public final FCPPluginMessage handle(FCPPluginConnection connection,
+                FCPPluginMessage message) throws Exception {
+            return FCPPluginMessage.constructReplyMessage(
+                message, handle(message.params), null,
+                true,
+                null, null);
+        }
+
+        abstract SimpleFieldSet handle(SimpleFieldSet params) throws Exception;
+    }
+
+    private void registerMessageHandler(String message, MessageHandler handler) {
+        assert(!mMessageHandlers.containsKey(message));
+        mMessageHandlers.put(message, handler);
+        mMessageStatistics.put(message, new MessageStatistics(message));
+    }
+
+    /**
+     * Registers a handler whose replies are cached by the {@link #mResponseCache}.<br>
+     * The handler must not modify anything, and its reply must only depend on the request
+     * parameters and on the objects of the given types in the database: Its cached replies are
+     * only invalidated when those change, see {@link FCPResponseCache}.
+     * 
+     * @param dependencies {@link Identity}, {@link Trust} and/or {@link Score}. */
+    private void registerCacheableMessageHandler(final String message,
+            final SimpleFieldSetMessageHandler handler, final Class<?>... dependencies) {
+        
+        registerMessageHandler(message, new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                // Must be obtained before computing the reply, see FCPResponseCache.
+                // Not synchronized(mWoT) to not block on it when answering from the cache.
+                // Not getCurrentChangeSequence(): Handlers which read from the SnapshotStore
+                // don't see changes before they are published, so a reply computed from it
+                // might be older than the current change sequence.
+                // The key contains the message name, so all replies of a key have the same
+                // dependencies and thus comparable versions.
+                final long dataVersion = mWoT.getSnapshotStore().getDataVersion(dependencies);
+                final String key = FCPResponseCache.getKey(params);
+                
+                SimpleFieldSet reply = mResponseCache.get(key, dataVersion);
+                if(reply != null) {
+                    mMessageStatistics.get(message).countCacheHit();
+                    return reply;
+                }
+                
+                // Errors are not cached, the handler throws upon them.
+                reply = handler.handle(params);
+                mResponseCache.put(key, dataVersion, reply);
+                return reply;
+            }});
+    }
+
+    private void registerMessageHandlers() {
+        registerCacheableMessageHandler("GetTrust", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetTrust(params);
+            }}, Trust.class);
+        registerCacheableMessageHandler("GetScore", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetScore(params);
+            }}, Identity.class, Score.class);
+        registerMessageHandler("CreateIdentity", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleCreateIdentity(params);
+            }});
+        registerMessageHandler("SetTrust", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleSetTrust(params);
+            }});
+        registerMessageHandler("RemoveTrust", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleRemoveTrust(params);
+            }});
+        registerMessageHandler("SetTrusts", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleSetTrusts(params);
+            }});
+        registerMessageHandler("RemoveTrusts", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleRemoveTrusts(params);
+            }});
+        registerMessageHandler("AddIdentity", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleAddIdentity(params);
+            }});
+        registerCacheableMessageHandler("GetIdentity", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetIdentity(params);
+            }}, Identity.class, Trust.class, Score.class);
+        registerCacheableMessageHandler("GetOwnIdentities", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetOwnIdentities(params);
+            }}, Identity.class);
+        registerMessageHandler("GetIdentities", new MessageHandler() {
+            @Override public FCPPluginMessage handle(FCPPluginConnection connection,
+                    FCPPluginMessage message) throws Exception {
+                return handleGetIdentities(message);
+            }});
+        registerMessageHandler("GetTrusts", new MessageHandler() {
+            @Override public FCPPluginMessage handle(FCPPluginConnection connection,
+                    FCPPluginMessage message) throws Exception {
+                return handleGetTrusts(message);
+            }});
+        registerMessageHandler("GetScores", new MessageHandler() {
+            @Override public FCPPluginMessage handle(FCPPluginConnection connection,
+                    FCPPluginMessage message) throws Exception {
+                return handleGetScores(message);
+            }});
+        registerMessageHandler("GetChangesSince", new MessageHandler() {
+            @Override public FCPPluginMessage handle(FCPPluginConnection connection,
+                    FCPPluginMessage message) throws Exception {
+                return handleGetChangesSince(message);
+            }});
+        registerCacheableMessageHandler("GetIdentitiesByScore", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetIdentitiesByScore(params);
+            }}, Identity.class, Trust.class, Score.class);
+        registerCacheableMessageHandler("GetTrusters", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetTrusters(params);
+            }}, Identity.class, Trust.class);
+        registerCacheableMessageHandler("GetTrustersCount", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetTrustersCount(params);
+            }}, Identity.class);
+        registerCacheableMessageHandler("GetTrustees", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetTrustees(params);
+            }}, Identity.class, Trust.class);
+        registerCacheableMessageHandler("GetTrusteesCount", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetTrusteesCount(params);
+            }}, Identity.class);
+        registerMessageHandler("AddContext", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleAddContext(params);
+            }});
+        registerMessageHandler("RemoveContext", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleRemoveContext(params);
+            }});
+        registerMessageHandler("SetProperty", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleSetProperty(params);
+            }});
+        registerCacheableMessageHandler("GetProperty", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetProperty(params);
+            }}, Identity.class);
+        registerMessageHandler("RemoveProperty", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleRemoveProperty(params);
+            }});
+        registerMessageHandler("GetIntroductionPuzzles", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetIntroductionPuzzles(params);
+            }});
+        registerMessageHandler("GetIntroductionPuzzle", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetIntroductionPuzzle(params);
+            }});
+        registerMessageHandler("SolveIntroductionPuzzle", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleSolveIntroductionPuzzle(params);
+            }});
+        registerMessageHandler("Subscribe", new MessageHandler() {
+            @Override public FCPPluginMessage handle(FCPPluginConnection connection,
+                    FCPPluginMessage message) throws Exception {
+                return handleSubscribe(connection, message);
+            }});
+        registerMessageHandler("Unsubscribe", new MessageHandler() {
+            @Override public FCPPluginMessage handle(FCPPluginConnection connection,
+                    FCPPluginMessage message) throws Exception {
+                return handleUnsubscribe(message);
+            }});
+        registerMessageHandler("Ping", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handlePing();
+            }});
+        registerMessageHandler("RandomName", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleRandomName(params);
+            }});
+        registerMessageHandler("GetFCPStatistics", new SimpleFieldSetMessageHandler() {
+            @Override SimpleFieldSet handle(SimpleFieldSet params) throws Exception {
+                return handleGetFCPStatistics();
+            }});
+    }
+
+    /**
+     * Returns the total time in milliseconds which the current thread has spent blocked on
+     * entering a synchronized() block, or 0 if the JVM does not support measuring it or
+     * {@link #isDetailedStatisticsEnabled()} is false. */
+    private long getBlockedTimeMilliseconds() {
+        if(!isLockWaitTimeMeasured())
+            return 0;
+        
+        final ThreadInfo info = mThreadMXBean.getThreadInfo(Thread.currentThread().getId());
+        return info != null ? Math.max(info.getBlockedTime(), 0) : 0;
+    }
+
+    /**
+     * Statistics about the calls of a single FCP message type, see
+     * {@link FCPInterface#getMessageStatistics()}.<br>
+     * The member variables are only safe to access on objects returned by that function as they
+     * are clones. */
+    public static final class MessageStatistics implements Cloneable {
+        /**
+         * Upper bounds, in milliseconds, of the buckets of {@link #mExecutionTimeHistogram}.
+         * The last bucket has no upper bound. */
+        public static final long[] EXECUTION_TIME_HISTOGRAM_BOUNDS_MILLISECONDS
+            = { 1, 10, 100, 1000, 10 * 1000 };
+
+        /** The value of the "Message" field of the FCP messages. */
+        public final String mMessage;
+
+        public long mCalls = 0;
+
+        /** Calls to which an error reply was sent. */
+        public long mErrors = 0;
+
+        public long mExecutionTimeNanoseconds = 0;
+
+        public long mMaxExecutionTimeNanoseconds = 0;
+
+        /** Number of calls whose execution time was in the bucket with the same index in
+         *  {@link #EXECUTION_TIME_HISTOGRAM_BOUNDS_MILLISECONDS}. */
+        public long[] mExecutionTimeHistogram
+            = new long[EXECUTION_TIME_HISTOGRAM_BOUNDS_MILLISECONDS.length + 1];
+
+        /**
+         * Time the handler threads spent blocked on entering synchronized() blocks, i.e. waiting
+         * for locks such as the one of the {@link WebOfTrust}. Is a subset of
+         * {@link #mExecutionTimeNanoseconds}. Stays 0 if the JVM does not support measuring it,
+         * or if {@link FCPInterface#isDetailedStatisticsEnabled()} is false. */
+        public long mLockWaitTimeMilliseconds = 0;
+
+        /**
+         * Total size of the {@link FCPPluginMessage#params} of the replies, in characters. Stays
+         * 0 if {@link FCPInterface#isDetailedStatisticsEnabled()} is false. */
+        public long mResponseSize = 0;
+
+        public long mMaxResponseSize = 0;
+
+        /** Calls which were answered from the response cache, see {@link FCPResponseCache}.
+         *  Is a subset of {@link #mCalls}. */
+        public long mCacheHits = 0;
+
+
+        MessageStatistics(String message) {
+            mMessage = message;
+        }
+
+        synchronized void count(boolean success, long executionTimeNanoseconds,
+                long lockWaitTimeMilliseconds, int responseSize) {
+            ++mCalls;
+            if(!success)
+                ++mErrors;
+            
+            mExecutionTimeNanoseconds += executionTimeNanoseconds;
+            mMaxExecutionTimeNanoseconds
+                = Math.max(mMaxExecutionTimeNanoseconds, executionTimeNanoseconds);
+            
+            long executionTimeMilliseconds
+                = TimeUnit.NANOSECONDS.toMillis(executionTimeNanoseconds);
+            int bucket = 0;
+            while(bucket < EXECUTION_TIME_HISTOGRAM_BOUNDS_MILLISECONDS.length
+                    && executionTimeMilliseconds >= EXECUTION_TIME_HISTOGRAM_BOUNDS_MILLISECONDS[bucket])
+                ++bucket;
+            ++mExecutionTimeHistogram[bucket];
+            
+            mLockWaitTimeMilliseconds += lockWaitTimeMilliseconds;
+            
+            mResponseSize += responseSize;
+            mMaxResponseSize = Math.max(mMaxResponseSize, responseSize);
+        }
+
+        synchronized void countCacheHit() {
+            ++mCacheHits;
+        }
+
+        /** Returns the percentage of calls which were answered from the response cache. */
+        public double getCacheHitRatePercent() {
+            return mCalls == 0 ? 0 : 100d * mCacheHits / mCalls;
+        }
+
+        public double getAverageExecutionTimeMilliseconds() {
+            return mCalls == 0 ? 0
+                : (double)mExecutionTimeNanoseconds / mCalls / TimeUnit.MILLISECONDS.toNanos(1);
+        }
+
+        public long getAverageResponseSize() {
+            return mCalls == 0 ? 0 : mResponseSize / mCalls;
+        }
+
+        @Override public synchronized MessageStatistics clone() {
+            try {
+                MessageStatistics result = (MessageStatistics)super.clone();
+                result.mExecutionTimeHistogram = mExecutionTimeHistogram.clone();
+                return result;
+            } catch (CloneNotSupportedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /** @see Configuration#isFCPDetailedStatisticsEnabled() */
+    public boolean isDetailedStatisticsEnabled() {
+        return mDetailedStatistics;
+    }
+
+    private boolean isLockWaitTimeMeasured() {
+        return mDetailedStatistics && mThreadMXBean.isThreadContentionMonitoringEnabled();
+    }
+
+    /** Returns the statistics of the cache of the replies of the read-only FCP messages. */
+    public FCPResponseCache.ResponseCacheStatistics getResponseCacheStatistics() {
+        return mResponseCache.getStatistics();
+    }
+
+    /** Returns clones of the {@link MessageStatistics} of all FCP messages, sorted by name. */
+    public ArrayList<MessageStatistics> getMessageStatistics() {
+        final ArrayList<MessageStatistics> result
+            = new ArrayList<MessageStatistics>(mMessageStatistics.size());
+        
+        for(MessageStatistics statistics : mMessageStatistics.values())
+            result.add(statistics.clone());
+        
+        Collections.sort(result, new Comparator<MessageStatistics>() {
+            @Override public int compare(MessageStatistics o1, MessageStatistics o2) {
+                return o1.mMessage.compareTo(o2.mMessage);
+            }
+        });
+        
+        return result;
+    }
+
     /** {@inheritDoc} */
     @Override
     public FCPPluginMessage handlePluginFCPMessage(
@@ -137,85 +577,21 @@ public final class FCPInterface
         }
         
 
-        final SimpleFieldSet params = fcpMessage.params;
-        SimpleFieldSet result = null;
+        final String message = fcpMessage.params.get("Message");
+        final MessageHandler handler = message != null ? mMessageHandlers.get(message) : null;
+        final long lockWaitStartTime = getBlockedTimeMilliseconds();
+        final long startTime = System.nanoTime();
+        boolean success = false;
         FCPPluginMessage reply = null;
         
         try {
-            final String message = params.get("Message");
-            // TODO: Optimization: This should use a HashMap<String, HandleInterface> instead of zillions of equals()
-            
-            if (message.equals("GetTrust")) {
-                result = handleGetTrust(params);
-            } else if(message.equals("GetScore")) {
-                result = handleGetScore(params);
-            }else if (message.equals("CreateIdentity")) {
-                result = handleCreateIdentity(params);
-            } else if (message.equals("SetTrust")) {
-                result = handleSetTrust(params);
-            } else if (message.equals("RemoveTrust")) {
-                result = handleRemoveTrust(params);
-            } else if (message.equals("AddIdentity")) {
-                result = handleAddIdentity(params);
-            } else if (message.equals("GetIdentity")) {
-                result = handleGetIdentity(params);
-            } else if (message.equals("GetOwnIdentities")) {
-                result = handleGetOwnIdentities(params);
-            } else if (message.equals("GetIdentities")) {
-                reply = handleGetIdentities(fcpMessage);
-            } else if (message.equals("GetTrusts")) {
-                reply = handleGetTrusts(fcpMessage);
-            } else if (message.equals("GetScores")) {
-                reply = handleGetScores(fcpMessage);
-            } else if (message.equals("GetIdentitiesByScore")) {
-                result = handleGetIdentitiesByScore(params);
-            } else if (message.equals("GetTrusters")) {
-                result = handleGetTrusters(params);
-            } else if (message.equals("GetTrustersCount")) {
-                result = handleGetTrustersCount(params);
-            } else if (message.equals("GetTrustees")) {
-                result = handleGetTrustees(params);
-            } else if (message.equals("GetTrusteesCount")) {
-                result = handleGetTrusteesCount(params);
-            } else if (message.equals("AddContext")) {
-                result = handleAddContext(params);
-            } else if (message.equals("RemoveContext")) {
-                result = handleRemoveContext(params);
-            } else if (message.equals("SetProperty")) {
-                result = handleSetProperty(params);
-            } else if (message.equals("GetProperty")) {
-                result = handleGetProperty(params);
-            } else if (message.equals("RemoveProperty")) {
-                result = handleRemoveProperty(params);
-            } else if (message.equals("GetIntroductionPuzzles")) {
-                result = handleGetIntroductionPuzzles(params);
-            } else if (message.equals("GetIntroductionPuzzle")) {
-                result = handleGetIntroductionPuzzle(params);
-            } else if (message.equals("SolveIntroductionPuzzle")) {
-                result = handleSolveIntroductionPuzzle(params);
-            } else if (message.equals("Subscribe")) {
-                reply = handleSubscribe(connection, fcpMessage);
-            } else if (message.equals("Unsubscribe")) {
-                reply = handleUnsubscribe(fcpMessage);
-            } else if (message.equals("Ping")) {
-                result = handlePing();
-            } else if (message.equals("RandomName")) {
-                result = handleRandomName(params);
-            } else {
+            if(handler == null)
                 throw new Exception("Unknown message (" + message + ")");
-            }
             
             // All handlers throw upon error, so at this point, the call has succeeded and the
             // FCPPluginMessage reply should be available.
-            // But some of the handlers still return the SimpleFieldSet result instead of a
-            // FCPPluginMessage, so we must check whether the FCPPluginMessage reply was constructed
-            // yet and construct it if not.
-            if(reply == null && result != null) {
-                reply = FCPPluginMessage.constructReplyMessage(
-                    fcpMessage, result, null,
-                    true,
-                    null, null);
-            }
+            reply = handler.handle(connection, fcpMessage);
+            success = true;
         } catch (final Exception e) {
         	// TODO: This might miss some stuff which are errors. Find a better way of detecting which exceptions are okay.
             // A good solution would be to have the message handling functions return a valid
@@ -237,6 +613,13 @@ public final class FCPInterface
             reply = errorMessageFCP(fcpMessage, e);
         }
         
+        if(handler != null) {
+            mMessageStatistics.get(message).count(success,
+                System.nanoTime() - startTime,
+                getBlockedTimeMilliseconds() - lockWaitStartTime,
+                mDetailedStatistics ? reply.params.toOrderedString().length() : 0);
+        }
+        
         return reply;
     }
 
@@ -342,85 +725,125 @@ public final class FCPInterface
         return sfs;
     }
     
-    private SimpleFieldSet handleGetTrust(final SimpleFieldSet params) throws InvalidParameterException, UnknownIdentityException {
+    private SimpleFieldSet handleGetTrust(final SimpleFieldSet params) throws InvalidParameterException {
     	final String trusterID = getMandatoryParameter(params, "Truster");
     	final String trusteeID = getMandatoryParameter(params, "Trustee");
     	
+        // The SnapshotStore won't validate the IDs. Since we are a UI, it's better to do it:
+        // This will prevent claiming that there is no trust due to invalid IDs.
+        IdentityID.constructAndValidateFromString(trusterID);
+        IdentityID.constructAndValidateFromString(trusteeID);
+        
+        // A single lookup, so it does not need SnapshotStore.read() to be coherent.
+        final TrustSnapshot trust = mWoT.getSnapshotStore().getTrust(trusterID, trusteeID);
+    	
     	final SimpleFieldSet sfs = new SimpleFieldSet(true);
-        // TODO: Performance: The synchronized() can be removed after this is fixed:
-        // https://bugs.freenetproject.org/view.php?id=6247
-    	synchronized(mWoT) {
-            // getTrust() won't validate the IDs. Since we are a UI, it's better to do it:
-            // This will prevent getTrust() claiming that there is no trust due to invalid IDs.
-            IdentityID.constructAndValidateFromString(trusterID);
-            IdentityID.constructAndValidateFromString(trusteeID);
-
-    		Trust trust = null;
-    		try {
-                trust = mWoT.getTrust(trusterID, trusteeID);
-    		} catch(NotTrustedException e) {}
-    		
-    		handleGetTrust(sfs, trust, "0");
-    	}
+    	handleGetTrust(sfs, trust, "0");
     	sfs.putOverwrite("Message", "Trust");
     	return sfs;
     }
     
+    /** Same as {@link #handleGetTrust(SimpleFieldSet, Trust, String)} for a {@link TrustSnapshot}. */
+    private SimpleFieldSet handleGetTrust(final SimpleFieldSet sfs, final TrustSnapshot trust,
+            String suffix) {
+        
+        if(trust == null)
+            return putNonexistent(sfs, "Trusts." + suffix + ".");
+        
+        return putTrust(sfs, suffix, trust.getTrusterID(), trust.getTrusteeID(), trust.getValue(),
+            trust.getComment(), trust.getTrusterEdition(), trust.getVersionID());
+    }
+    
     private SimpleFieldSet handleGetTrust(final SimpleFieldSet sfs, final Trust trust, String suffix) {
+        if(trust == null)
+            return putNonexistent(sfs, "Trusts." + suffix + ".");
+        
+        return putTrust(sfs, suffix, trust.getTruster().getID(), trust.getTrustee().getID(),
+            trust.getValue(), trust.getComment(), trust.getTrusterEdition(), trust.getVersionID());
+    }
+    
+    /** Formats a {@link Trust} or {@link TrustSnapshot}, see the handleGetTrust() functions. */
+    private static SimpleFieldSet putTrust(final SimpleFieldSet sfs, final String suffix,
+            final String trusterID, final String trusteeID, final byte value, final String comment,
+            final long trusterEdition, final UUID versionID) {
+        
     	final String prefix = "Trusts." + suffix + ".";
     	
-    	if(trust == null) {
-    		sfs.putOverwrite(prefix + "Value", "Nonexistent");
-    		return sfs;
-    	}
-    	
-		sfs.putOverwrite(prefix + "Truster", trust.getTruster().getID());
-		sfs.putOverwrite(prefix + "Trustee", trust.getTrustee().getID());
-		sfs.putOverwrite(prefix + "Value", Byte.toString(trust.getValue()));
-		sfs.putOverwrite(prefix + "Comment", trust.getComment());
-		sfs.put(prefix + "TrusterEdition", trust.getTrusterEdition());
-		sfs.putOverwrite(prefix + "VersionID", trust.getVersionID().toString());
+		sfs.putOverwrite(prefix + "Truster", trusterID);
+		sfs.putOverwrite(prefix + "Trustee", trusteeID);
+		sfs.putOverwrite(prefix + "Value", Byte.toString(value));
+		sfs.putOverwrite(prefix + "Comment", comment);
+		sfs.put(prefix + "TrusterEdition", trusterEdition);
+		sfs.putOverwrite(prefix + "VersionID", versionID.toString());
 		
     	sfs.putOverwrite("Trusts.Amount", "1");
     	
 		return sfs;
     }
     
+    /** Formats a Trust or Score which does not exist. */
+    private static SimpleFieldSet putNonexistent(final SimpleFieldSet sfs, final String prefix) {
+        sfs.putOverwrite(prefix + "Value", "Nonexistent");
+        return sfs;
+    }
+    
     private SimpleFieldSet handleGetScore(final SimpleFieldSet params) throws UnknownIdentityException, InvalidParameterException {
     	final String trusterID = getMandatoryParameter(params, "Truster");
     	final String trusteeID = getMandatoryParameter(params, "Trustee");
 
+    	final SnapshotStore snapshots = mWoT.getSnapshotStore();
+    	// We check whether the two identities exist before querying the Score, which is three
+    	// lookups, so we must use read() to get a coherent result.
+    	final ScoreSnapshot score = snapshots.read(
+    	        new SnapshotStore.Reader<ScoreSnapshot, UnknownIdentityException>() {
+    	    @Override public ScoreSnapshot read() throws UnknownIdentityException {
+    	        if(snapshots.getOwnIdentity(trusterID) == null)
+    	            throw new UnknownIdentityException(trusterID);
+    	        if(snapshots.getIdentity(trusteeID) == null)
+    	            throw new UnknownIdentityException(trusteeID);
+    	        
+    	        return snapshots.getScore(trusterID, trusteeID);
+    	    }
+    	});
+    	
     	final SimpleFieldSet sfs = new SimpleFieldSet(true);
-        // TODO: Performance: The synchronized() can be removed after this is fixed:
-        // https://bugs.freenetproject.org/view.php?id=6247
-    	synchronized(mWoT) {
-    		Score score = null;
-    		try {
-        		// TODO: Optimize by implementing https://bugs.freenetproject.org/view.php?id=6076
-    			score = mWoT.getScore(mWoT.getOwnIdentityByID(trusterID), mWoT.getIdentityByID(trusteeID));
-     		} catch(NotInTrustTreeException e) {}
-    		
-    		handleGetScore(sfs, score, "0");
-    	}
-
+    	handleGetScore(sfs, score, "0");
     	sfs.putOverwrite("Message", "Score");
 		return sfs;
     }
     
+    /** Same as {@link #handleGetScore(SimpleFieldSet, Score, String)} for a {@link ScoreSnapshot}. */
+    private SimpleFieldSet handleGetScore(final SimpleFieldSet sfs, final ScoreSnapshot score,
+            final String suffix) {
+        
+        if(score == null)
+            return putNonexistent(sfs, "Scores." + suffix + ".");
+        
+        return putScore(sfs, suffix, score.getTrusterID(), score.getTrusteeID(),
+            score.getCapacity(), score.getRank(), score.getValue(), score.getVersionID());
+    }
+    
     private SimpleFieldSet handleGetScore(final SimpleFieldSet sfs, final Score score, final String suffix) {
+        if(score == null)
+            return putNonexistent(sfs, "Scores." + suffix + ".");
+        
+        return putScore(sfs, suffix, score.getTruster().getID(), score.getTrustee().getID(),
+            score.getCapacity(), score.getRank(), score.getScore(), score.getVersionID());
+    }
+    
+    /** Formats a {@link Score} or {@link ScoreSnapshot}, see the handleGetScore() functions. */
+    private static SimpleFieldSet putScore(final SimpleFieldSet sfs, final String suffix,
+            final String trusterID, final String trusteeID, final int capacity, final int rank,
+            final int value, final UUID versionID) {
+        
     	final String prefix = "Scores." + suffix + ".";
     	
-    	if(score == null) {
-    		sfs.putOverwrite(prefix + "Value", "Nonexistent");
-    		return sfs;
-    	}
-    	
-		sfs.putOverwrite(prefix + "Truster", score.getTruster().getID());
-		sfs.putOverwrite(prefix + "Trustee", score.getTrustee().getID());
-		sfs.putOverwrite(prefix + "Capacity", Integer.toString(score.getCapacity()));
-		sfs.putOverwrite(prefix + "Rank", Integer.toString(score.getRank()));
-		sfs.putOverwrite(prefix + "Value", Integer.toString(score.getScore()));
-		sfs.putOverwrite(prefix + "VersionID", score.getVersionID().toString());
+		sfs.putOverwrite(prefix + "Truster", trusterID);
+		sfs.putOverwrite(prefix + "Trustee", trusteeID);
+		sfs.putOverwrite(prefix + "Capacity", Integer.toString(capacity));
+		sfs.putOverwrite(prefix + "Rank", Integer.toString(rank));
+		sfs.putOverwrite(prefix + "Value", Integer.toString(value));
+		sfs.putOverwrite(prefix + "VersionID", versionID.toString());
 		
     	sfs.putOverwrite("Scores.Amount", "1");
     	
@@ -482,6 +905,137 @@ public final class FCPInterface
         }
     	return sfs;
     }
+
+    /**
+     * Parses the amount of entries of "SetTrusts" and "RemoveTrusts".
+     * @see #MAX_BATCH_SIZE */
+    private int getTrustsBatchSize(final SimpleFieldSet params) throws InvalidParameterException {
+        final String amountString = getMandatoryParameter(params, "Trusts.Amount");
+        final int amount;
+        try {
+            amount = Integer.parseInt(amountString);
+        } catch(NumberFormatException e) {
+            throw new InvalidParameterException("Invalid Trusts.Amount: " + amountString);
+        }
+        
+        if(amount < 0 || amount > MAX_BATCH_SIZE) {
+            throw new InvalidParameterException(
+                "Trusts.Amount must be between 0 and " + MAX_BATCH_SIZE + ": " + amount);
+        }
+        
+        return amount;
+    }
+
+    /**
+     * Batch version of "SetTrust", see {@link WebOfTrust#setTrusts(List)}.<br><br>
+     * 
+     * Parameters:<br>
+     * Trusts.Amount = Number of entries, at most {@link #MAX_BATCH_SIZE}.<br>
+     * Trusts.X.Truster = ID of the {@link OwnIdentity} which gives the trust.<br>
+     * Trusts.X.Trustee = ID of the {@link Identity} which receives the trust.<br>
+     * Trusts.X.Value = Trust value, -100 to 100.<br>
+     * Trusts.X.Comment = Comment of the trust value.<br><br>
+     * 
+     * Reply: Message "TrustsSet", see {@link #addTrustsBatchResults(SimpleFieldSet, List,
+     * List)}.
+     */
+    private SimpleFieldSet handleSetTrusts(final SimpleFieldSet params)
+            throws InvalidParameterException {
+        
+        final int amount = getTrustsBatchSize(params);
+        final ArrayList<WebOfTrust.TrustChange> changes
+            = new ArrayList<WebOfTrust.TrustChange>(amount);
+        
+        for(int i = 0; i < amount; ++i) {
+            final String prefix = "Trusts." + i + ".";
+            final String value = getMandatoryParameter(params, prefix + "Value");
+            try {
+                changes.add(new WebOfTrust.TrustChange(
+                    getMandatoryParameter(params, prefix + "Truster"),
+                    getMandatoryParameter(params, prefix + "Trustee"),
+                    Byte.parseByte(value),
+                    getMandatoryParameter(params, prefix + "Comment")));
+            } catch(NumberFormatException e) {
+                throw new InvalidParameterException("Invalid " + prefix + "Value: " + value);
+            }
+        }
+        
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "TrustsSet");
+        addTrustsBatchResults(sfs, changes, mWoT.setTrusts(changes));
+        return sfs;
+    }
+
+    /**
+     * Batch version of "RemoveTrust", see {@link WebOfTrust#setTrusts(List)}.<br><br>
+     * 
+     * Parameters:<br>
+     * Trusts.Amount = Number of entries, at most {@link #MAX_BATCH_SIZE}.<br>
+     * Trusts.X.Truster = ID of the {@link OwnIdentity} which gives the trust.<br>
+     * Trusts.X.Trustee = ID of the {@link Identity} which receives the trust.<br><br>
+     * 
+     * Reply: Message "TrustsRemoved", see {@link #addTrustsBatchResults(SimpleFieldSet, List,
+     * List)}.
+     */
+    private SimpleFieldSet handleRemoveTrusts(final SimpleFieldSet params)
+            throws InvalidParameterException {
+        
+        final int amount = getTrustsBatchSize(params);
+        final ArrayList<WebOfTrust.TrustChange> changes
+            = new ArrayList<WebOfTrust.TrustChange>(amount);
+        
+        for(int i = 0; i < amount; ++i) {
+            final String prefix = "Trusts." + i + ".";
+            changes.add(new WebOfTrust.TrustChange(
+                getMandatoryParameter(params, prefix + "Truster"),
+                getMandatoryParameter(params, prefix + "Trustee")));
+        }
+        
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "TrustsRemoved");
+        addTrustsBatchResults(sfs, changes, mWoT.setTrusts(changes));
+        return sfs;
+    }
+
+    /**
+     * Adds the per-entry results of "SetTrusts" / "RemoveTrusts":<br>
+     * Trusts.Amount = Number of entries, same as in the request.<br>
+     * Trusts.X.Truster, Trusts.X.Trustee = Same as in the request.<br>
+     * Trusts.X.Success = true if the entry was applied, false otherwise.<br>
+     * Trusts.X.ErrorCode = Only if Success=false: "UnknownIdentity" if the truster is no
+     * {@link OwnIdentity} or the trustee does not exist, "NotTrusted" if a trust which shall be
+     * removed does not exist, "InvalidParameter" if the value or comment is invalid.<br>
+     * Trusts.X.Description = Only if Success=false: Human readable description of the error.
+     */
+    private void addTrustsBatchResults(final SimpleFieldSet sfs,
+            final List<WebOfTrust.TrustChange> changes, final List<Exception> results) {
+        
+        assert(changes.size() == results.size());
+        
+        for(int i = 0; i < changes.size(); ++i) {
+            final String prefix = "Trusts." + i + ".";
+            final Exception e = results.get(i);
+            
+            sfs.putOverwrite(prefix + "Truster", changes.get(i).mTrusterID);
+            sfs.putOverwrite(prefix + "Trustee", changes.get(i).mTrusteeID);
+            sfs.put(prefix + "Success", e == null);
+            
+            if(e != null) {
+                final String errorCode;
+                if(e instanceof UnknownIdentityException)
+                    errorCode = "UnknownIdentity";
+                else if(e instanceof NotTrustedException)
+                    errorCode = "NotTrusted";
+                else
+                    errorCode = "InvalidParameter";
+                
+                sfs.putOverwrite(prefix + "ErrorCode", errorCode);
+                sfs.putOverwrite(prefix + "Description", e.toString());
+            }
+        }
+        
+        sfs.put("Trusts.Amount", changes.size());
+    }
     
     /**
      * Used for handling the "GetIdentity" FCP message.
@@ -572,6 +1126,63 @@ public final class FCPInterface
 	}
 
 
+    /**
+     * Groups of fields of an {@link Identity} which the client can select with the "Fields"
+     * parameter of "GetIdentities", "GetIdentitiesByScore", "GetTrusters" and "GetTrustees".<br>
+     * The parameter is a comma-separated list of the names of the groups, for example
+     * "Fields=Nickname,Contexts". If it is not specified, all groups are returned, which is what
+     * the messages did before the parameter was introduced.<br>
+     * Groups which are not selected are not added to the reply and their data is not loaded from
+     * the database, which makes the messages cheaper for clients which e.g. only need the IDs and
+     * nicknames.
+     */
+    public static enum IdentityFields {
+        /**
+         * "ID", "Type" and "VersionID". They are always returned, selecting them has no effect.
+         * Allowed so clients can list all fields they need, e.g. "Fields=ID,Nickname". */
+        ID,
+        /** "Nickname" */
+        Nickname,
+        /** "RequestURI", and "InsertURI" for {@link OwnIdentity}s. */
+        URIs,
+        /** "PublishesTrustList" and "CurrentEditionFetchState". */
+        FetchState,
+        /** "Contexts.*" */
+        Contexts,
+        /** "Properties.*" */
+        Properties,
+        /**
+         * Deprecated duplicates of the other fields, in the layout which old clients use, for
+         * example "Identity" and "Context0". New clients should not select this. */
+        Legacy;
+    }
+
+    private static final EnumSet<IdentityFields> ALL_IDENTITY_FIELDS
+        = EnumSet.allOf(IdentityFields.class);
+
+    /** Parses the optional "Fields" parameter, see {@link IdentityFields}. */
+    private EnumSet<IdentityFields> getIdentityFields(final SimpleFieldSet params)
+            throws InvalidParameterException {
+        
+        final String fieldsString = params.get("Fields");
+        if(fieldsString == null)
+            return ALL_IDENTITY_FIELDS;
+        
+        final EnumSet<IdentityFields> fields = EnumSet.noneOf(IdentityFields.class);
+        for(String field : fieldsString.split(",")) {
+            field = field.trim();
+            if(field.isEmpty())
+                continue;
+            
+            try {
+                fields.add(IdentityFields.valueOf(field));
+            } catch(IllegalArgumentException e) {
+                throw new InvalidParameterException("Unknown value in Fields: " + field);
+            }
+        }
+        return fields;
+    }
+
     /**
      * Add fields describing the given identity:
      * 
@@ -617,34 +1228,61 @@ public final class FCPInterface
      * @param suffix Added as descriptor for possibly multiple identities. Empty string is special case as explained in the function description.
      */
     private void addIdentityFields(SimpleFieldSet sfs, Identity identity, final String prefix, String suffix) {
+        addIdentityFields(sfs, identity, prefix, suffix, ALL_IDENTITY_FIELDS);
+    }
+
+    /**
+     * Same as {@link #addIdentityFields(SimpleFieldSet, Identity, String, String)} but only adds
+     * the given groups of fields. "Type", "ID" and "VersionID" are always added.<br>
+     * The data of groups which are not selected is not queried from the {@link Identity}, which
+     * avoids activating it from the database.
+     */
+    private void addIdentityFields(SimpleFieldSet sfs, Identity identity, final String prefix,
+            String suffix, final EnumSet<IdentityFields> fields) {
+        
     	if(identity == null) {
     		sfs.putOverwrite(prefix + "Type" + suffix, "Nonexistent");
     		return;
     	}
     	
     	sfs.putOverwrite(prefix + "Type" + suffix, (identity instanceof OwnIdentity) ? "OwnIdentity" : "Identity");
-        sfs.putOverwrite(prefix + "Nickname" + suffix, identity.getNickname());
-        sfs.putOverwrite(prefix + "RequestURI" + suffix, identity.getRequestURI().toString());
+    	
+    	if(fields.contains(IdentityFields.Nickname))
+    	    sfs.putOverwrite(prefix + "Nickname" + suffix, identity.getNickname());
+    	
+    	if(fields.contains(IdentityFields.URIs))
+    	    sfs.putOverwrite(prefix + "RequestURI" + suffix, identity.getRequestURI().toString());
         
-        sfs.putOverwrite(prefix + "Identity" + suffix, identity.getID()); // TODO: As of 2013-09-11, this is legacy code to support old FCP clients. Remove it after some time.
-        if(logMINOR)
-            sfs.put(prefix + "Identity" + suffix + ".DeprecatedField", true);
+        if(fields.contains(IdentityFields.Legacy)) {
+            sfs.putOverwrite(prefix + "Identity" + suffix, identity.getID()); // TODO: As of 2013-09-11, this is legacy code to support old FCP clients. Remove it after some time.
+            if(logMINOR)
+                sfs.put(prefix + "Identity" + suffix + ".DeprecatedField", true);
+        }
         
  		sfs.putOverwrite(prefix + "ID" + suffix, identity.getID());
  		sfs.putOverwrite(prefix + "VersionID" + suffix, identity.getVersionID().toString());
  		
-        sfs.put(prefix + "PublishesTrustList" + suffix, identity.doesPublishTrustList());
+ 		if(fields.contains(IdentityFields.FetchState))
+ 		    sfs.put(prefix + "PublishesTrustList" + suffix, identity.doesPublishTrustList());
 
- 		if(identity instanceof OwnIdentity) {
+ 		if(fields.contains(IdentityFields.URIs) && identity instanceof OwnIdentity) {
  			OwnIdentity ownId = (OwnIdentity)identity;
  			sfs.putOverwrite(prefix + "InsertURI" + suffix, ownId.getInsertURI().toString());
  		}
-        sfs.putOverwrite(prefix + "CurrentEditionFetchState" + suffix, identity.getCurrentEditionFetchState().toString());
+ 		
+ 		if(fields.contains(IdentityFields.FetchState))
+ 		    sfs.putOverwrite(prefix + "CurrentEditionFetchState" + suffix, identity.getCurrentEditionFetchState().toString());
         
- 		final ArrayList<String> contexts = identity.getContexts();
- 		final HashMap<String, String> properties = identity.getProperties();
+ 		// Use empty collections instead of null for groups which were not selected so the code
+ 		// below does not have to check for them again.
+ 		final List<String> contexts = fields.contains(IdentityFields.Contexts)
+ 		    ? identity.getContexts() : Collections.<String>emptyList();
+ 		final Map<String, String> properties = fields.contains(IdentityFields.Properties)
+ 		    ? identity.getProperties() : Collections.<String, String>emptyMap();
  		
-        if (suffix.isEmpty()) {	 // Deprecated
+        if (!fields.contains(IdentityFields.Legacy)) {
+            // Skip the deprecated fields
+        } else if (suffix.isEmpty()) {	 // Deprecated
      		int contextCounter = 0;
      		int propertyCounter = 0;
      		
@@ -692,8 +1330,10 @@ public final class FCPInterface
             sfs.putOverwrite(prefix + "Properties." + propertyCounter++ + ".Value", property.getValue());
         }
         
-        sfs.put(prefix + "Contexts" + suffix + ".Amount", contextCounter);
-        sfs.put(prefix + "Properties" + suffix + ".Amount", propertyCounter);
+        if(fields.contains(IdentityFields.Contexts))
+            sfs.put(prefix + "Contexts" + suffix + ".Amount", contextCounter);
+        if(fields.contains(IdentityFields.Properties))
+            sfs.put(prefix + "Properties" + suffix + ".Amount", propertyCounter);
         
         sfs.putOverwrite("Identities.Amount", "1");
     }
@@ -783,26 +1423,108 @@ public final class FCPInterface
 		return sfs;
     }
 
-    private FCPPluginMessage handleGetIdentities(final FCPPluginMessage request) {
+    /**
+     * Parses the optional "PageSize" parameter of {@link #handleGetIdentities(FCPPluginMessage)},
+     * {@link #handleGetTrusts(FCPPluginMessage)} and {@link #handleGetScores(FCPPluginMessage)}.
+     * 
+     * @return 0 if the parameter is not specified, which means that the whole dataset shall be
+     *     returned in a single message. */
+    private int getPageSize(final SimpleFieldSet params) throws InvalidParameterException {
+        final String pageSizeString = params.get("PageSize");
+        if(pageSizeString == null)
+            return 0;
+        
+        final int pageSize;
+        try {
+            pageSize = Integer.parseInt(pageSizeString);
+        } catch(NumberFormatException e) {
+            throw new InvalidParameterException("Invalid PageSize: " + pageSizeString);
+        }
+        
+        if(pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new InvalidParameterException(
+                "PageSize must be between 1 and " + MAX_PAGE_SIZE + ": " + pageSize);
+        }
+        
+        return pageSize;
+    }
+
+    /**
+     * Parameters:<br>
+     * - Context: Optional. If specified, only identities which have the given context are
+     *   returned.<br>
+     * - Fields: Optional, selects which data of the identities is returned. See
+     *   {@link IdentityFields}.<br>
+     * - PageSize: Optional, see {@link #MAX_PAGE_SIZE}. If specified, only a page of the identities
+     *   is returned instead of all of them, see below.<br>
+     * - Cursor: Optional, only used together with PageSize. Must be the value of the "NextCursor"
+     *   field of the reply to the previous page. Not specifying it returns the first page.<br><br>
+     * 
+     * Pagination: The identities are sorted by ID, and each page consists of the PageSize
+     * identities following the Cursor. If a Context is specified, only identities which have it
+     * are considered, using the database index of {@link WebOfTrust#getIdentityContexts(String)}.
+     * A page can contain less identities, or none at all. If there are more pages, the reply
+     * contains a field "NextCursor". Once it is missing, the last page was reached.<br>
+     * The pages are built by {@link WebOfTrust#getIdentitiesPage(String, String, int)}, which
+     * continues the query of the previous page, so requesting a page does not query all
+     * identities following the Cursor.<br>
+     * The lock of the {@link WebOfTrust} is only held while a single page is built, so identity
+     * file processing can continue between the pages. Thus, the pages are not a consistent
+     * snapshot: Each identity is returned at its state when its page is built. Identities which
+     * are added or deleted between two pages are reflected if their ID follows the Cursor, and
+     * not reflected otherwise. Use the "Subscribe" message if you need a consistent view.
+     */
+    private FCPPluginMessage handleGetIdentities(final FCPPluginMessage request)
+            throws InvalidParameterException {
+        
         final FCPPluginMessage result = FCPPluginMessage.constructSuccessReply(request);
         
         result.params.putOverwrite("Message", "Identities");
 		
         final String context = request.params.get("Context");
+        final EnumSet<IdentityFields> fields = getIdentityFields(request.params);
+        final int pageSize = getPageSize(request.params);
+        final String cursor = request.params.get("Cursor");
         
         // WebOfTrust.getAllIdentities() demands that we synchronize while processing the result.
 		synchronized(mWoT) {
 			final boolean getAll = context == null || context.equals("");
+			final Iterator<Identity> identities;
+			
+			if(pageSize != 0) {
+			    final WebOfTrust.Page<Identity> page = mWoT.getIdentitiesPage(context,
+			        cursor != null ? cursor : "", pageSize);
+			    identities = page.mObjects.iterator();
+			    if(page.mNextCursor != null)
+			        result.params.putOverwrite("NextCursor", page.mNextCursor);
+			} else if(getAll) {
+			    identities = mWoT.getAllIdentities().iterator();
+			} else {
+			    // Only touches the identities which have the context instead of checking
+			    // Identity.hasContext() of all of them.
+			    final Iterator<IdentityContext> entries
+			        = mWoT.getIdentityContexts(context).iterator();
+			    
+			    identities = new Iterator<Identity>() {
+			        @Override public boolean hasNext() {
+			            return entries.hasNext();
+			        }
+			        
+			        @Override public Identity next() {
+			            return entries.next().getIdentity();
+			        }
+			        
+			        @Override public void remove() {
+			            throw new UnsupportedOperationException();
+			        }
+			    };
+			}
 	
 			int i = 0;
-			for(final Identity identity : mWoT.getAllIdentities()) {
-				if(getAll || identity.hasContext(context)) {
-					// TODO: Allow the client to select what data he wants
-                    addIdentityFields(result.params, identity,
-                        "Identities." + Integer.toString(i) + ".", "");
-					
-					++i;
-				}
+			while(identities.hasNext()) {
+                addIdentityFields(result.params, identities.next(),
+                    "Identities." + Integer.toString(i) + ".", "", fields);
+                ++i;
 			}
             
             // Need to use Overwrite because addIdentityFields() sets it to 1
@@ -812,16 +1534,36 @@ public final class FCPInterface
         return result;
     }
 
-    private FCPPluginMessage handleGetTrusts(final FCPPluginMessage request) {
+    /**
+     * Parameters:<br>
+     * - PageSize, Cursor: Optional, for pagination. Same semantics as at
+     *   {@link #handleGetIdentities(FCPPluginMessage)}, the trusts are sorted by their ID.
+     */
+    private FCPPluginMessage handleGetTrusts(final FCPPluginMessage request)
+            throws InvalidParameterException {
+        
         final FCPPluginMessage result = FCPPluginMessage.constructSuccessReply(request);
         
         result.params.putOverwrite("Message", "Trusts");
+        
+        final int pageSize = getPageSize(request.params);
+        final String cursor = request.params.get("Cursor");
    
         // WebOfTrust.getAllTrusts() demands that we synchronize while processing the result.
         synchronized(mWoT) {
+            final Iterator<Trust> trusts;
+            if(pageSize != 0) {
+                final WebOfTrust.Page<Trust> page
+                    = mWoT.getTrustsPage(cursor != null ? cursor : "", pageSize);
+                trusts = page.mObjects.iterator();
+                if(page.mNextCursor != null)
+                    result.params.putOverwrite("NextCursor", page.mNextCursor);
+            } else
+                trusts = mWoT.getAllTrusts().iterator();
+            
         	int i = 0;
-			for(final Trust trust : mWoT.getAllTrusts()) {
-                handleGetTrust(result.params, trust, Integer.toString(i));
+			while(trusts.hasNext()) {
+                handleGetTrust(result.params, trusts.next(), Integer.toString(i));
 				++i;
 			}
             
@@ -832,17 +1574,36 @@ public final class FCPInterface
         return result;
     }
 
-    private FCPPluginMessage handleGetScores(final FCPPluginMessage request) {
+    /**
+     * Parameters:<br>
+     * - PageSize, Cursor: Optional, for pagination. Same semantics as at
+     *   {@link #handleGetIdentities(FCPPluginMessage)}, the scores are sorted by their ID.
+     */
+    private FCPPluginMessage handleGetScores(final FCPPluginMessage request)
+            throws InvalidParameterException {
+        
         final FCPPluginMessage result = FCPPluginMessage.constructSuccessReply(request);
        
         result.params.putOverwrite("Message", "Scores");
+        
+        final int pageSize = getPageSize(request.params);
+        final String cursor = request.params.get("Cursor");
    
         // WebOfTrust.getAllScores() demands that we synchronize while processing the result.
         synchronized(mWoT) {
+            final Iterator<Score> scores;
+            if(pageSize != 0) {
+                final WebOfTrust.Page<Score> page
+                    = mWoT.getScoresPage(cursor != null ? cursor : "", pageSize);
+                scores = page.mObjects.iterator();
+                if(page.mNextCursor != null)
+                    result.params.putOverwrite("NextCursor", page.mNextCursor);
+            } else
+                scores = mWoT.getAllScores().iterator();
+            
         	int i = 0;
-			for(final Score score: mWoT.getAllScores()) {
-                handleGetScore(result.params, score, Integer.toString(i));
-				
+			while(scores.hasNext()) {
+                handleGetScore(result.params, scores.next(), Integer.toString(i));
 				++i;
 			}
             
@@ -853,11 +1614,175 @@ public final class FCPInterface
         return result;
     }
 
+    /**
+     * Returns the {@link Identity}/{@link Trust}/{@link Score} objects which were changed or
+     * deleted after a given change sequence number, see
+     * {@link WebOfTrust#getCurrentChangeSequence()}.<br><br>
+     * 
+     * Parameters:<br>
+     * - Type: "Identities", "Trusts" or "Scores".<br>
+     * - Since: The value of "NextSince" of the previous reply.<br>
+     * - Epoch: Optional, but should always be specified: The value of "Epoch" of the previous
+     *   reply.<br>
+     * - Limit: Optional, at most {@link #MAX_PAGE_SIZE}, which is also the default. The maximal
+     *   amount of changed plus deleted objects to return.<br>
+     * - Fields: Optional, only for Type=Identities. See {@link IdentityFields}.<br><br>
+     * 
+     * Reply: Message=ChangesSince, and:<br>
+     * - Epoch: Identifies the numbering of the change sequence numbers.<br>
+     * - CurrentChangeSequence: The current change sequence number.<br>
+     * - ResyncRequired: If true, the changes since the given sequence number are not known (anymore).
+     *   In that case the reply contains no changes. The client must then download the full
+     *   dataset using "GetIdentities"/"GetTrusts"/"GetScores", and pass the Epoch and
+     *   CurrentChangeSequence of this reply as Epoch and Since to the next GetChangesSince.
+     *   It must obtain them before downloading the dataset so changes during the download are
+     *   not missed.<br>
+     * - Identities.X.* / Trusts.X.* / Scores.X.*: The changed objects, in the same format as
+     *   "GetIdentities"/"GetTrusts"/"GetScores" use, plus a field "ChangeSequence".<br>
+     * - Deletions.X.ID, Deletions.X.ChangeSequence: The IDs of the deleted objects.<br>
+     * - NextSince: The value of Since to use for the next GetChangesSince.<br>
+     * - HasMore: True if the Limit was reached and there are more changes available already.<br>
+     * <br>
+     * 
+     * The changes and deletions are returned in the order in which they happened. The client
+     * should apply them in the order of their ChangeSequence: An object might have been deleted
+     * and then created again.<br>
+     * Clients which poll less often than {@link Configuration#getTombstoneRetentionDays()} will
+     * have to resynchronize because information about deletions is not kept for longer.
+     */
+    private FCPPluginMessage handleGetChangesSince(final FCPPluginMessage request)
+            throws InvalidParameterException {
+        
+        final String type = getMandatoryParameter(request.params, "Type");
+        final String tombstoneType;
+        if(type.equals("Identities"))
+            tombstoneType = Tombstone.TYPE_IDENTITY;
+        else if(type.equals("Trusts"))
+            tombstoneType = Tombstone.TYPE_TRUST;
+        else if(type.equals("Scores"))
+            tombstoneType = Tombstone.TYPE_SCORE;
+        else
+            throw new InvalidParameterException("Unknown Type: " + type);
+        
+        final String sinceString = getMandatoryParameter(request.params, "Since");
+        final long since;
+        try {
+            since = Long.parseLong(sinceString);
+        } catch(NumberFormatException e) {
+            throw new InvalidParameterException("Invalid Since: " + sinceString);
+        }
+        
+        final String limitString = request.params.get("Limit");
+        final int limit;
+        try {
+            limit = limitString != null ? Integer.parseInt(limitString) : MAX_PAGE_SIZE;
+        } catch(NumberFormatException e) {
+            throw new InvalidParameterException("Invalid Limit: " + limitString);
+        }
+        if(limit < 1 || limit > MAX_PAGE_SIZE) {
+            throw new InvalidParameterException(
+                "Limit must be between 1 and " + MAX_PAGE_SIZE + ": " + limit);
+        }
+        
+        final String epoch = request.params.get("Epoch");
+        final EnumSet<IdentityFields> fields = getIdentityFields(request.params);
+        
+        final FCPPluginMessage result = FCPPluginMessage.constructSuccessReply(request);
+        result.params.putOverwrite("Message", "ChangesSince");
+        
+        // WebOfTrust.getCurrentChangeSequence() and the queries demand that we synchronize while
+        // processing the result.
+        synchronized(mWoT) {
+            final Configuration config = mWoT.getConfig();
+            final long current = mWoT.getCurrentChangeSequence();
+            
+            result.params.putOverwrite("Epoch", config.getChangeSequenceEpoch());
+            result.params.put("CurrentChangeSequence", current);
+            
+            if((epoch != null && !epoch.equals(config.getChangeSequenceEpoch()))
+                    || since < config.getChangeSequenceHorizon()
+                    || since > current) {
+                
+                result.params.put("ResyncRequired", true);
+                return result;
+            }
+            
+            result.params.put("ResyncRequired", false);
+            
+            final Iterator<? extends Persistent> changed;
+            if(tombstoneType.equals(Tombstone.TYPE_IDENTITY))
+                changed = mWoT.getAllIdentitiesChangedSince(since).iterator();
+            else if(tombstoneType.equals(Tombstone.TYPE_TRUST))
+                changed = mWoT.getAllTrustsChangedSince(since).iterator();
+            else
+                changed = mWoT.getAllScoresChangedSince(since).iterator();
+            
+            final Iterator<Tombstone> deleted
+                = mWoT.getTombstonesChangedSince(tombstoneType, since).iterator();
+            
+            // Merge both lists, they are both sorted by their change sequence number.
+            Persistent nextChanged = changed.hasNext() ? changed.next() : null;
+            Tombstone nextDeleted = deleted.hasNext() ? deleted.next() : null;
+            long last = since;
+            int changes = 0;
+            int deletions = 0;
+            
+            while((nextChanged != null || nextDeleted != null) && changes + deletions < limit) {
+                if(nextDeleted == null || (nextChanged != null
+                        && nextChanged.getChangeSequence() < nextDeleted.getChangeSequence())) {
+                    
+                    last = nextChanged.getChangeSequence();
+                    final String prefix = type + "." + Integer.toString(changes);
+                    
+                    if(nextChanged instanceof Identity) {
+                        addIdentityFields(result.params, (Identity)nextChanged,
+                            prefix + ".", "", fields);
+                    } else if(nextChanged instanceof Trust) {
+                        handleGetTrust(result.params, (Trust)nextChanged,
+                            Integer.toString(changes));
+                    } else {
+                        handleGetScore(result.params, (Score)nextChanged,
+                            Integer.toString(changes));
+                    }
+                    result.params.put(prefix + ".ChangeSequence", last);
+                    
+                    ++changes;
+                    nextChanged = changed.hasNext() ? changed.next() : null;
+                } else {
+                    last = nextDeleted.getChangeSequence();
+                    final String prefix = "Deletions." + Integer.toString(deletions);
+                    result.params.putOverwrite(prefix + ".ID", nextDeleted.getObjectID());
+                    result.params.put(prefix + ".ChangeSequence", last);
+                    
+                    ++deletions;
+                    nextDeleted = deleted.hasNext() ? deleted.next() : null;
+                }
+            }
+            
+            final boolean hasMore = nextChanged != null || nextDeleted != null;
+            
+            // Need to use Overwrite because the above functions set it to 1
+            result.params.putOverwrite(type + ".Amount", Integer.toString(changes));
+            result.params.putOverwrite("Deletions.Amount", Integer.toString(deletions));
+            result.params.put("NextSince", hasMore ? last : current);
+            result.params.put("HasMore", hasMore);
+        }
+        
+        return result;
+    }
+
+    /**
+     * The optional parameter "Fields" selects which data of the identities is returned, see
+     * {@link IdentityFields}. If it does not include {@link IdentityFields#Legacy}, the
+     * deprecated non-prefixed fields of the identities, scores and trusts are omitted as well.
+     */
     private SimpleFieldSet handleGetIdentitiesByScore(final SimpleFieldSet params) throws InvalidParameterException, UnknownIdentityException, FSParseException {
     	final String trusterID = params.get("Truster");
         final String selection = getMandatoryParameter(params, "Selection");
         final String context = getMandatoryParameter(params, "Context");
         final boolean includeTrustValue = params.getBoolean("WantTrustValues", false);
+        final EnumSet<IdentityFields> fields = getIdentityFields(params);
+        final boolean legacy = fields.contains(IdentityFields.Legacy);
 
 		final String selectString = selection.trim();
 		int select = 0; // TODO: decide about the default value
@@ -878,30 +1803,36 @@ public final class FCPInterface
 		synchronized(mWoT) {
 			final OwnIdentity truster = trusterID != null ? mWoT.getOwnIdentityByID(trusterID) : null;
 			final boolean getAll = context.equals("");
+			// Filtering by ID avoids activating the list of contexts of every trustee.
+			final Set<String> identitiesWithContext
+			    = getAll ? null : mWoT.getIdentityIDsByContext(context);
 	
 			int i = 0;
 			for(final Score score : mWoT.getIdentitiesByScore(truster, select)) {
-				if(getAll || score.getTrustee().hasContext(context)) {
-					// TODO: Allow the client to select what data he wants
+				if(getAll || identitiesWithContext.contains(score.getTrustee().getID())) {
 					final OwnIdentity scoreOwner = score.getTruster();
 					final Identity identity = score.getTrustee();
 					final String suffix = Integer.toString(i);
 					
-					// TODO: As of 2013-10-24, this is deprecated code to support old FCP clients.
-					// Remove it after some time. Make sure to update all DeprecatedFields entries
-					// which this function adds.
-					addIdentityFields(sfs, identity, "", suffix);
-					// The above has no prefix, so we set it as deprecated as a whole, and then
-					// whitelist other stuff by setting DeprecatedField=false:
-					if(logMINOR)
-					    sfs.put("*.DeprecatedField", true);
+					if(legacy) {
+    					// TODO: As of 2013-10-24, this is deprecated code to support old FCP clients.
+    					// Remove it after some time. Make sure to update all DeprecatedFields entries
+    					// which this function adds.
+    					addIdentityFields(sfs, identity, "", suffix, fields);
+    					// The above has no prefix, so we set it as deprecated as a whole, and then
+    					// whitelist other stuff by setting DeprecatedField=false:
+    					if(logMINOR)
+    					    sfs.put("*.DeprecatedField", true);
+					}
 					
-					addIdentityFields(sfs, identity, "Identities." + suffix + ".", "");
+					addIdentityFields(sfs, identity, "Identities." + suffix + ".", "", fields);
 					if(logMINOR)
 					    sfs.put("Identities." + suffix + ".*.DeprecatedField", false);
 					
-					// Adds DeprecatedField entries on its own.
-					addScoreFields(sfs, score, suffix); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
+					if(legacy) {
+    					// Adds DeprecatedField entries on its own.
+    					addScoreFields(sfs, score, suffix); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
+					}
 					
 					handleGetScore(sfs, score, suffix);
 					if(logMINOR)
@@ -913,15 +1844,17 @@ public final class FCPInterface
 							trust = mWoT.getTrust(scoreOwner, identity);
 						} catch(NotTrustedException e) {}
 						
-		                // Adds DeprecatedField entries on its own.
-						addTrustFields(sfs, trust, suffix); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
+						if(legacy) {
+    		                // Adds DeprecatedField entries on its own.
+    						addTrustFields(sfs, trust, suffix); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
+						}
 						
 						handleGetTrust(sfs, trust, suffix);
 						if(logMINOR)
 						    sfs.put("Trusts.*.DeprecatedField", false);
 					}
 					
-					if(truster == null) { // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
+					if(legacy && truster == null) { // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
 		    			sfs.putOverwrite("ScoreOwner" + i, scoreOwner.getID());
 		    			if(logMINOR)
 		    			    sfs.put("ScoreOwner" + i + ".DeprecatedField", true); 
@@ -939,11 +1872,17 @@ public final class FCPInterface
     }
 
     /**
+     * The optional parameter "Fields" selects which data of the identities is returned, see
+     * {@link IdentityFields}. Only {@link IdentityFields#Nickname}, {@link IdentityFields#URIs},
+     * {@link IdentityFields#Contexts} and {@link IdentityFields#Properties} have an effect.
+     * The ID of the identity and the value and comment of the trust are always returned.
+     * 
      * TODO: Unify message layout to be same as in {@link #handleGetIdentities(FCPPluginMessage)}
      */
     private SimpleFieldSet handleGetTrusters(final SimpleFieldSet params) throws InvalidParameterException, UnknownIdentityException {
     	final String identityID = getMandatoryParameter(params, "Identity");
     	final String context = getMandatoryParameter(params, "Context");
+    	final EnumSet<IdentityFields> fields = getIdentityFields(params);
     	
         final SimpleFieldSet sfs = new SimpleFieldSet(true);
         sfs.putOverwrite("Message", "Identities");
@@ -957,24 +1896,30 @@ public final class FCPInterface
         synchronized(mWoT) {
         	int i = 0;
 			for(final Trust trust : mWoT.getReceivedTrusts(mWoT.getIdentityByID(identityID))) {
-				if(getAll || trust.getTruster().hasContext(params.get("Context"))) {
+				// Querying the index avoids activating the list of contexts of every truster.
+				if(getAll || mWoT.hasIdentityContext(trust.getTruster().getID(), context)) {
 					sfs.putOverwrite("Identity" + i, trust.getTruster().getID());
-					sfs.putOverwrite("Nickname" + i, trust.getTruster().getNickname());
-					sfs.putOverwrite("RequestURI" + i, trust.getTruster().getRequestURI().toString());
+					if(fields.contains(IdentityFields.Nickname))
+					    sfs.putOverwrite("Nickname" + i, trust.getTruster().getNickname());
+					if(fields.contains(IdentityFields.URIs))
+					    sfs.putOverwrite("RequestURI" + i, trust.getTruster().getRequestURI().toString());
 					sfs.putOverwrite("Value" + i, Byte.toString(trust.getValue()));
 					sfs.putOverwrite("Comment" + i, trust.getComment());
 
-					int contextCounter = 0;
-					for (String identityContext: trust.getTruster().getContexts()) {
-						sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, identityContext);
+					if(fields.contains(IdentityFields.Contexts)) {
+    					int contextCounter = 0;
+    					for (String identityContext: trust.getTruster().getContexts()) {
+    						sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, identityContext);
+    					}
 					}
 
-					int propertiesCounter = 0;
-					for (Entry<String, String> property : trust.getTruster().getProperties().entrySet()) {
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
+					if(fields.contains(IdentityFields.Properties)) {
+    					int propertiesCounter = 0;
+    					for (Entry<String, String> property : trust.getTruster().getProperties().entrySet()) {
+    						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
+    						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
+    					}
 					}
-					// TODO: Allow the client to select what data he wants
 					++i;
 				}
 			}
@@ -984,6 +1929,19 @@ public final class FCPInterface
         return sfs;
     }
     
+    /**
+     * Gets the {@link IdentitySnapshot} of the given identity from the {@link SnapshotStore}.
+     * Does not lock the {@link WebOfTrust}, the snapshot is immutable.
+     */
+    private IdentitySnapshot getIdentitySnapshot(String identityID)
+            throws UnknownIdentityException {
+        
+        final IdentitySnapshot identity = mWoT.getSnapshotStore().getIdentity(identityID);
+        if(identity == null)
+            throw new UnknownIdentityException(identityID);
+        return identity;
+    }
+    
     private SimpleFieldSet handleGetTrustersCount(final SimpleFieldSet params) throws InvalidParameterException, UnknownIdentityException {
     	final String identityID = getMandatoryParameter(params, "Identity");
     	//final String context = getMandatoryParameter(params, "Context"); // TODO: Implement as soon as we have per-context trust
@@ -1000,21 +1958,10 @@ public final class FCPInterface
     		else if (selection.equals("0")) select = 0;
     		else throw new InvalidParameterException("Unhandled selection value (" + selection + ")");
         	
-            // getReceivedTrusts() demands that we synchronize while processing the result.
-            // Also, we query the Identity truster before calling it, i.e. query two datasets
-            // from the database. Thus we must synchronize to ensure that the returned data is
-            // coherent - the truster might be deleted meanwhile.
-    		synchronized(mWoT) {
-        		result = mWoT.getReceivedTrusts(mWoT.getIdentityByID(identityID), select).size();
-        	}
+            // The counter is maintained by the Identity so we don't need to query the Trusts.
+            result = getIdentitySnapshot(identityID).getReceivedTrustCount(select);
         } else {
-            // getReceivedTrusts() demands that we synchronize while processing the result.
-            // Also, we query the Identity truster before calling it, i.e. query two datasets
-            // from the database. Thus we must synchronize to ensure that the returned data is
-            // coherent - the truster might be deleted meanwhile.
-        	synchronized(mWoT) {
-        		result = mWoT.getReceivedTrusts(mWoT.getIdentityByID(identityID)).size();
-        	}
+            result = getIdentitySnapshot(identityID).getReceivedTrustCount();
         }
     	
         final SimpleFieldSet sfs = new SimpleFieldSet(true);
@@ -1024,11 +1971,15 @@ public final class FCPInterface
     }
 
     /**
+     * The optional parameter "Fields" has the same semantics as at
+     * {@link #handleGetTrusters(SimpleFieldSet)}.
+     * 
      * TODO: Unify message layout to be same as in {@link #handleGetIdentities(FCPPluginMessage)}
      */
     private SimpleFieldSet handleGetTrustees(final SimpleFieldSet params) throws InvalidParameterException, UnknownIdentityException {
     	final String identityID = getMandatoryParameter(params, "Identity");
     	final String context = getMandatoryParameter(params, "Context");
+    	final EnumSet<IdentityFields> fields = getIdentityFields(params);
 
     	final SimpleFieldSet sfs = new SimpleFieldSet(true);
         sfs.putOverwrite("Message", "Identities");
@@ -1044,24 +1995,30 @@ public final class FCPInterface
         	for(final Trust trust : mWoT.getGivenTrusts(mWoT.getIdentityByID(identityID))) {
         		final Identity trustee = trust.getTrustee();
 
-				if(getAll || trustee.hasContext(params.get("Context"))) {
+				// Querying the index avoids activating the list of contexts of every trustee.
+				if(getAll || mWoT.hasIdentityContext(trustee.getID(), context)) {
 					sfs.putOverwrite("Identity" + i, trustee.getID());
-					sfs.putOverwrite("Nickname" + i, trustee.getNickname());
-					sfs.putOverwrite("RequestURI" + i, trustee.getRequestURI().toString());
+					if(fields.contains(IdentityFields.Nickname))
+					    sfs.putOverwrite("Nickname" + i, trustee.getNickname());
+					if(fields.contains(IdentityFields.URIs))
+					    sfs.putOverwrite("RequestURI" + i, trustee.getRequestURI().toString());
 					sfs.putOverwrite("Value" + i, Byte.toString(trust.getValue()));
 					sfs.putOverwrite("Comment" + i, trust.getComment());
 
-					int contextCounter = 0;
-					for (String identityContext: trust.getTruster().getContexts()) {
-						sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, identityContext);
+					if(fields.contains(IdentityFields.Contexts)) {
+    					int contextCounter = 0;
+    					for (String identityContext: trust.getTruster().getContexts()) {
+    						sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, identityContext);
+    					}
 					}
 
-					int propertiesCounter = 0;
-					for (Entry<String, String> property : trust.getTruster().getProperties().entrySet()) {
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
+					if(fields.contains(IdentityFields.Properties)) {
+    					int propertiesCounter = 0;
+    					for (Entry<String, String> property : trust.getTruster().getProperties().entrySet()) {
+    						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
+    						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
+    					}
 					}
-					// TODO: Allow the client to select what data he wants
 					++i;
 				}
         	}
@@ -1087,21 +2044,10 @@ public final class FCPInterface
     		else if (selection.equals("0")) select = 0;
     		else throw new InvalidParameterException("Unhandled selection value (" + selection + ")");
         	
-            // WebOfTrust.getGivenTrusts() demands that we synchronize while processing the result.
-            // Also, we query the Identity truster before calling it, i.e. query two datasets
-            // from the database. Thus we must synchronize to ensure that the returned data is
-            // coherent - the truster might be deleted meanwhile.
-    		synchronized(mWoT) {
-        		result = mWoT.getGivenTrusts(mWoT.getIdentityByID(identityID), select).size();
-        	}
+            // The counter is maintained by the Identity so we don't need to query the Trusts.
+            result = getIdentitySnapshot(identityID).getGivenTrustCount(select);
         } else {
-            // WebOfTrust.getGivenTrusts() demands that we synchronize while processing the result.
-            // Also, we query the Identity truster before calling it, i.e. query two datasets
-            // from the database. Thus we must synchronize to ensure that the returned data is
-            // coherent - the truster might be deleted meanwhile.
-        	synchronized(mWoT) {
-        		result = mWoT.getGivenTrusts(mWoT.getIdentityByID(identityID)).size();
-        	}
+            result = getIdentitySnapshot(identityID).getGivenTrustCount();
         }
     	
         final SimpleFieldSet sfs = new SimpleFieldSet(true);
@@ -1231,7 +2177,12 @@ public final class FCPInterface
      * Processes the "Subscribe" FCP message, filing a {@link Subscription} to event-{@link Notification}s via {@link SubscriptionManager}.
      * <br><b>Required fields:</b><br>
      * "To" = "Identities" or "Trusts" or "Scores" - chooses among {@link IdentitiesSubscription} / {@link TrustsSubscription} /
-     * {@link ScoresSubscription}.<br><br>
+     * {@link ScoresSubscription}.<br>
+     * <b>Optional fields:</b><br>
+     * "AcceptsNotificationBatches" = "true" or "false" - whether WOT may pack multiple event
+     * notifications into a single "NotificationBatch" message. See
+     * {@link #sendNotificationBatch(UUID, List)}. Defaults to false. Applies to all subscriptions
+     * of your connection, the value of the latest "Subscribe" message is used.<br><br>
      * 
      * <b>Reply:</b><br>
      * The reply will have the same {@link FCPPluginMessage#identifier} as the
@@ -1301,7 +2252,8 @@ public final class FCPInterface
             final FCPPluginMessage message) throws InvalidParameterException {
         
         final String to = getMandatoryParameter(message.params, "To");
-
+        final boolean acceptsNotificationBatches
+            = message.params.getBoolean("AcceptsNotificationBatches", false);
     	
     	try {
             FCPPluginMessage reply = FCPPluginMessage.constructSuccessReply(message);
@@ -1313,11 +2265,14 @@ public final class FCPInterface
             // which wouldn't make sense to copy to a WOT client plugin. SubscriptionManager for
             // sure does not need to be in a WOT client plugin)
 	    	if(to.equals("Identities")) {
-                subscriptionID = mSubscriptionManager.subscribeToIdentities(connection.getID());
+                subscriptionID = mSubscriptionManager.subscribeToIdentities(
+                    connection.getID(), acceptsNotificationBatches);
 	    	} else if(to.equals("Trusts")) {
-                subscriptionID = mSubscriptionManager.subscribeToTrusts(connection.getID());
+                subscriptionID = mSubscriptionManager.subscribeToTrusts(
+                    connection.getID(), acceptsNotificationBatches);
 	    	} else if(to.equals("Scores")) {
-                subscriptionID = mSubscriptionManager.subscribeToScores(connection.getID());
+                subscriptionID = mSubscriptionManager.subscribeToScores(
+                    connection.getID(), acceptsNotificationBatches);
 	    	} else
 	    		throw new InvalidParameterException("Invalid subscription type specified: " + to);
 	    	
@@ -1440,10 +2395,22 @@ public final class FCPInterface
             final BeginSynchronizationNotification<?> notification)
                 throws FCPCallFailedException, IOException, InterruptedException {
         
-        // Not a reply to an existing message since it is sent due to an event, not a client message
-        final FCPPluginMessage fcpMessage = FCPPluginMessage.construct();
+        sendNotificationSynchronous(clientID,
+            encodeBeginOrEndSynchronizationNotification(notification));
+    }
+
+    /**
+     * Produces the {@link FCPPluginMessage#params} of the "BeginSynchronizationEvent" /
+     * "EndSynchronizationEvent" message which
+     * {@link #sendBeginOrEndSynchronizationNotification(UUID, BeginSynchronizationNotification)}
+     * sends.
+     */
+    private SimpleFieldSet encodeBeginOrEndSynchronizationNotification(
+            final BeginSynchronizationNotification<?> notification) {
         
-        fcpMessage.params.putOverwrite("Message", 
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        
+        sfs.putOverwrite("Message", 
              notification instanceof EndSynchronizationNotification 
                  ? "EndSynchronizationEvent" : "BeginSynchronizationEvent");
         
@@ -1471,15 +2438,9 @@ public final class FCPInterface
         }
         
         // "To" because thats what we also use in handleSubscribe()
-        fcpMessage.params.putOverwrite("To", to);
-        fcpMessage.params.putOverwrite("VersionID", notification.getID());
-        
-        final FCPPluginMessage reply = mPluginRespirator.getPluginConnectionByID(clientID)
-            .sendSynchronous(
-                fcpMessage, TimeUnit.MINUTES.toNanos(SUBSCRIPTION_NOTIFICATION_TIMEOUT_MINUTES));
-        
-        if(reply.success == false)
-            throw new FCPCallFailedException(reply);
+        sfs.putOverwrite("To", to);
+        sfs.putOverwrite("VersionID", notification.getID());
+        return sfs;
     }
 
     /**
@@ -1494,10 +2455,16 @@ public final class FCPInterface
             final IdentityChangedNotification notification)
                 throws FCPCallFailedException, IOException, InterruptedException {
         
+        sendNotificationSynchronous(clientID, encodeIdentityChangedNotification(notification));
+    }
+    
+    private SimpleFieldSet encodeIdentityChangedNotification(
+            final IdentityChangedNotification notification) {
+        
     	final SimpleFieldSet oldIdentity = handleGetIdentity((Identity)notification.getOldObject(), null);
     	final SimpleFieldSet newIdentity = handleGetIdentity((Identity)notification.getNewObject(), null);
     	
-        sendChangeNotification(clientID, SubscriptionType.Identities, oldIdentity, newIdentity);
+        return encodeChangeNotification(SubscriptionType.Identities, oldIdentity, newIdentity);
     }
     
     /**
@@ -1512,10 +2479,16 @@ public final class FCPInterface
             final TrustChangedNotification notification)
                 throws FCPCallFailedException, IOException, InterruptedException {
         
+        sendNotificationSynchronous(clientID, encodeTrustChangedNotification(notification));
+    }
+    
+    private SimpleFieldSet encodeTrustChangedNotification(
+            final TrustChangedNotification notification) {
+        
     	final SimpleFieldSet oldTrust = handleGetTrust(new SimpleFieldSet(true), (Trust)notification.getOldObject(), "0");
     	final SimpleFieldSet newTrust = handleGetTrust(new SimpleFieldSet(true), (Trust)notification.getNewObject(), "0");
 
-        sendChangeNotification(clientID, SubscriptionType.Trusts, oldTrust, newTrust);
+        return encodeChangeNotification(SubscriptionType.Trusts, oldTrust, newTrust);
     }
     
     /**
@@ -1530,30 +2503,177 @@ public final class FCPInterface
             final ScoreChangedNotification notification)
                 throws FCPCallFailedException, IOException, InterruptedException {
         
+        sendNotificationSynchronous(clientID, encodeScoreChangedNotification(notification));
+    }
+    
+    private SimpleFieldSet encodeScoreChangedNotification(
+            final ScoreChangedNotification notification) {
+        
     	final SimpleFieldSet oldScore = handleGetScore(new SimpleFieldSet(true), (Score)notification.getOldObject(), "0");
     	final SimpleFieldSet newScore = handleGetScore(new SimpleFieldSet(true), (Score)notification.getNewObject(), "0");
 
-        sendChangeNotification(clientID, SubscriptionType.Scores, oldScore, newScore);
+        return encodeChangeNotification(SubscriptionType.Scores, oldScore, newScore);
+    }
+    
+    /**
+     * Produces the {@link FCPPluginMessage#params} of an "ObjectChangedEvent" message.
+     */
+    private SimpleFieldSet encodeChangeNotification(final SubscriptionType subscriptionType,
+            final SimpleFieldSet beforeChange, final SimpleFieldSet afterChange) {
+        
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "ObjectChangedEvent");
+        sfs.putOverwrite("SubscriptionType", subscriptionType.name());
+        sfs.put("Before", beforeChange);
+        sfs.put("After", afterChange);
+        return sfs;
     }
     
     /**
+     * Produces the {@link FCPPluginMessage#params} which the matching single-notification
+     * function such as {@link #sendIdentityChangedNotification(UUID,
+     * IdentityChangedNotification)} would send for the given {@link Notification}.<br>
+     * Used for packing multiple Notifications into a single message by
+     * {@link #sendNotificationBatch(UUID, List)}.
+     */
+    private SimpleFieldSet encodeNotification(final Notification notification) {
+        // EndSynchronizationNotification is a child of BeginSynchronizationNotification.
+        if(notification instanceof BeginSynchronizationNotification<?>) {
+            return encodeBeginOrEndSynchronizationNotification(
+                (BeginSynchronizationNotification<?>)notification);
+        } else if(notification instanceof IdentityChangedNotification) {
+            return encodeIdentityChangedNotification((IdentityChangedNotification)notification);
+        } else if(notification instanceof TrustChangedNotification) {
+            return encodeTrustChangedNotification((TrustChangedNotification)notification);
+        } else if(notification instanceof ScoreChangedNotification) {
+            return encodeScoreChangedNotification((ScoreChangedNotification)notification);
+        } else {
+            throw new UnsupportedOperationException("Unknown notification type: "
+                + notification);
+        }
+    }
+    
+    /**
+     * Sends multiple {@link Notification}s to the client in a single message, to which the client
+     * replies with a single success / failure reply: The batch is acknowledged as a whole.<br>
+     * Only used for clients which specified "AcceptsNotificationBatches" = "true" in their
+     * "Subscribe" message, see {@link #handleSubscribe(FCPPluginConnection, FCPPluginMessage)}.
+     * <br><br>
+     * 
+     * The message will be formatted as:<br>
+     * "Message" = "NotificationBatch"<br>
+     * "Amount" = Number of contained notifications<br>
+     * "Notifications.0.*", "Notifications.1.*", ... = For each notification, in the order in
+     * which they must be processed, the same fields which would be sent for it as a single
+     * message, i.e. "Notifications.0.Message" = "BeginSynchronizationEvent" / 
+     * "EndSynchronizationEvent" / "ObjectChangedEvent" and so on.<br><br>
+     * 
+     * If the client replies with {@link FCPPluginMessage#success} = false, the whole batch is
+     * considered as failed and its notifications will be re-sent. Thus, the client must be able to
+     * deal with receiving the notifications again which it had processed successfully before the
+     * one which failed.<br><br>
+     * 
      * ATTENTION: At shutdown of WOT, you have to make sure to use {@link Thread#interrupt()} to
      * interrupt any of your threads which call this function:<br>
      * It uses the blocking {@link FCPPluginConnection#sendSynchronous(FCPPluginMessage, long)},
      * which can take a long time to complete. It can be aborted by interrupt().<br><br>
+     * 
+     * @see SubscriptionManager#MAX_NOTIFICATIONS_PER_BATCH
+     * @see SubscriptionManager#MAX_NOTIFICATION_BATCH_BYTES
      */
-    private void sendChangeNotification(
-            final UUID clientID, final SubscriptionType subscriptionType,
-            final SimpleFieldSet beforeChange, final SimpleFieldSet afterChange)
+    public void sendNotificationBatch(final UUID clientID,
+            final List<? extends Notification> notifications)
                 throws FCPCallFailedException, IOException, InterruptedException {
         
-        // Not a reply to an existing message since it is sent due to an event, not a client message
-        final FCPPluginMessage fcpMessage = FCPPluginMessage.construct();
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "NotificationBatch");
+        sfs.put("Amount", notifications.size());
         
-        fcpMessage.params.putOverwrite("Message", "ObjectChangedEvent");
-        fcpMessage.params.putOverwrite("SubscriptionType", subscriptionType.name());
-        fcpMessage.params.put("Before", beforeChange);
-        fcpMessage.params.put("After", afterChange);
+        final SimpleFieldSet encodedNotifications = new SimpleFieldSet(true);
+        int i = 0;
+        for(Notification notification : notifications)
+            encodedNotifications.put(Integer.toString(i++), encodeNotification(notification));
+        sfs.put("Notifications", encodedNotifications);
+        
+        sendNotificationSynchronous(clientID, sfs);
+    }
+    
+    /**
+     * Sends a page of the synchronization of a {@link Subscription} to the client, see
+     * {@link Subscription#storeSynchronizationWithoutCommit()}.<br>
+     * Each object is encoded as the "ObjectChangedEvent" which would have been sent for it if it
+     * had been queued as an {@link ObjectChangedNotification} with "Before" = null. Thus, this is
+     * transparent to the client.<br>
+     * If asBatch is true, the page is sent as a single "NotificationBatch" message, see
+     * {@link #sendNotificationBatch(UUID, List)}. Otherwise, each object is sent as a single
+     * message.<br><br>
+     * 
+     * ATTENTION: At shutdown of WOT, you have to make sure to use {@link Thread#interrupt()} to
+     * interrupt any of your threads which call this function:<br>
+     * It uses the blocking {@link FCPPluginConnection#sendSynchronous(FCPPluginMessage, long)},
+     * which can take a long time to complete. It can be aborted by interrupt().<br><br>
+     * 
+     * @param page Clones of {@link Identity}, {@link Trust} or {@link Score} objects with
+     *     {@link EventSource#setVersionID(UUID)} set to the ID of the synchronization.
+     */
+    public void sendSynchronizationPage(final UUID clientID,
+            final List<? extends EventSource> page, final boolean asBatch)
+                throws FCPCallFailedException, IOException, InterruptedException {
+        
+        if(page.isEmpty())
+            return;
+        
+        if(!asBatch) {
+            for(EventSource eventSource : page)
+                sendNotificationSynchronous(clientID, encodeSynchronizedObject(eventSource));
+            return;
+        }
+        
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "NotificationBatch");
+        sfs.put("Amount", page.size());
+        
+        final SimpleFieldSet encodedNotifications = new SimpleFieldSet(true);
+        int i = 0;
+        for(EventSource eventSource : page)
+            encodedNotifications.put(Integer.toString(i++), encodeSynchronizedObject(eventSource));
+        sfs.put("Notifications", encodedNotifications);
+        
+        sendNotificationSynchronous(clientID, sfs);
+    }
+    
+    /**
+     * Produces the "ObjectChangedEvent" with "Before" = null for an object which is part of a
+     * page of {@link #sendSynchronizationPage(UUID, List, boolean)}.
+     */
+    private SimpleFieldSet encodeSynchronizedObject(final EventSource eventSource) {
+        if(eventSource instanceof Identity) {
+            return encodeChangeNotification(SubscriptionType.Identities,
+                handleGetIdentity(null, null), handleGetIdentity((Identity)eventSource, null));
+        } else if(eventSource instanceof Trust) {
+            return encodeChangeNotification(SubscriptionType.Trusts,
+                handleGetTrust(new SimpleFieldSet(true), null, "0"),
+                handleGetTrust(new SimpleFieldSet(true), (Trust)eventSource, "0"));
+        } else if(eventSource instanceof Score) {
+            return encodeChangeNotification(SubscriptionType.Scores,
+                handleGetScore(new SimpleFieldSet(true), null, "0"),
+                handleGetScore(new SimpleFieldSet(true), (Score)eventSource, "0"));
+        } else {
+            throw new UnsupportedOperationException("Unknown EventSource type: " + eventSource);
+        }
+    }
+    
+    /**
+     * ATTENTION: At shutdown of WOT, you have to make sure to use {@link Thread#interrupt()} to
+     * interrupt any of your threads which call this function:<br>
+     * It uses the blocking {@link FCPPluginConnection#sendSynchronous(FCPPluginMessage, long)},
+     * which can take a long time to complete. It can be aborted by interrupt().<br><br>
+     */
+    private void sendNotificationSynchronous(final UUID clientID, final SimpleFieldSet params)
+            throws FCPCallFailedException, IOException, InterruptedException {
+        
+        // Not a reply to an existing message since it is sent due to an event, not a client message
+        final FCPPluginMessage fcpMessage = FCPPluginMessage.construct(params, null);
         
         final FCPPluginMessage reply = mPluginRespirator.getPluginConnectionByID(clientID)
             .sendSynchronous(
@@ -1569,6 +2689,50 @@ public final class FCPInterface
     	return sfs;
     }
 
+    /**
+     * Returns the {@link MessageStatistics} of all FCP messages, as a message of type
+     * "FCPStatistics". Times are in milliseconds, sizes in characters of the reply fields. */
+    private SimpleFieldSet handleGetFCPStatistics() {
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "FCPStatistics");
+        sfs.put("LockWaitTimeSupported", isLockWaitTimeMeasured());
+        sfs.put("ResponseSizeMeasured", mDetailedStatistics);
+        
+        int i = 0;
+        for(MessageStatistics stats : getMessageStatistics()) {
+            final String prefix = "Messages." + i + ".";
+            sfs.putOverwrite(prefix + "Message", stats.mMessage);
+            sfs.put(prefix + "Calls", stats.mCalls);
+            sfs.put(prefix + "Errors", stats.mErrors);
+            sfs.put(prefix + "ExecutionTime",
+                TimeUnit.NANOSECONDS.toMillis(stats.mExecutionTimeNanoseconds));
+            sfs.put(prefix + "MaxExecutionTime",
+                TimeUnit.NANOSECONDS.toMillis(stats.mMaxExecutionTimeNanoseconds));
+            sfs.put(prefix + "LockWaitTime", stats.mLockWaitTimeMilliseconds);
+            sfs.put(prefix + "ResponseSize", stats.mResponseSize);
+            sfs.put(prefix + "MaxResponseSize", stats.mMaxResponseSize);
+            sfs.put(prefix + "CacheHits", stats.mCacheHits);
+            
+            int bucket;
+            for(bucket = 0; bucket < stats.mExecutionTimeHistogram.length; ++bucket) {
+                final String bucketPrefix = prefix + "ExecutionTimeHistogram." + bucket + ".";
+                if(bucket < MessageStatistics.EXECUTION_TIME_HISTOGRAM_BOUNDS_MILLISECONDS.length) {
+                    sfs.put(bucketPrefix + "LessThan",
+                        MessageStatistics.EXECUTION_TIME_HISTOGRAM_BOUNDS_MILLISECONDS[bucket]);
+                }
+                sfs.put(bucketPrefix + "Calls", stats.mExecutionTimeHistogram[bucket]);
+            }
+            sfs.put(prefix + "ExecutionTimeHistogram.Amount", bucket);
+            
+            ++i;
+        }
+        sfs.put("Messages.Amount", i);
+        
+        mResponseCache.putStatistics(sfs, "ResponseCache.");
+        
+        return sfs;
+    }
+
     /**
      * ATTENTION: This does cause the {@link FCPPluginMessage#errorCode} field to be "InternalError"
      * which complicates error handling at the client. Therefore, only use this for Exception types
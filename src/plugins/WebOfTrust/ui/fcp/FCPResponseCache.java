@@ -0,0 +1,217 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust.ui.fcp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import plugins.WebOfTrust.SnapshotStore;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Cache of the replies of the read-only FCP messages of the {@link FCPInterface} such as
+ * "GetIdentitiesByScore" and "GetIdentity". Client applications typically send the same requests
+ * periodically, and answering them from the cache avoids running the database queries again.
+ * <br><br>
+ *
+ * The replies are keyed by the parameters of the request, see {@link #getKey(SimpleFieldSet)}.
+ * The total size of the cached replies is limited, the least recently used ones are evicted
+ * first.<br><br>
+ *
+ * Invalidation: Each reply is stored together with the value of
+ * {@link SnapshotStore#getDataVersion(Class...)} of the types of objects which its request
+ * handler depends on, e.g. only {@link plugins.WebOfTrust.Trust} for "GetTrust". The value is
+ * observed before computing the reply, so a reply can at most be newer than its value, never
+ * older. When looking up a reply, the caller passes the current value for the same types, and
+ * the reply is discarded if its value is lower.<br>
+ * Thus a change only discards the replies which depend on the changed type, and only once they
+ * are requested again, while a cached reply is never returned after the data it was computed
+ * from has changed. Discarded replies which are not requested again are evicted as usual.<br><br>
+ *
+ * Thread safety: All functions are synchronized on this object.
+ */
+public final class FCPResponseCache {
+
+	/** Replies whose size as estimated by {@link #getSize(String, SimpleFieldSet)} is larger
+	 *  than this fraction of {@link #mMaxBytes} are not cached to not evict the whole cache. */
+	private static final int MAX_ENTRY_FRACTION = 8;
+
+	private static final class Entry {
+		final SimpleFieldSet mReply;
+
+		/** The data version which was passed to {@link FCPResponseCache#put(String, long,
+		 *  SimpleFieldSet)}. */
+		final long mDataVersion;
+
+		/** {@link FCPResponseCache#getSize(String, SimpleFieldSet)}, computed once at put(). */
+		final long mSize;
+
+		Entry(SimpleFieldSet reply, long dataVersion, long size) {
+			mReply = reply;
+			mDataVersion = dataVersion;
+			mSize = size;
+		}
+	}
+
+	private final long mMaxBytes;
+
+	/** Access-ordered, i.e. the iteration order begins with the least recently used entry. */
+	private final LinkedHashMap<String, Entry> mEntries
+		= new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	/** Sum of {@link Entry#mSize} of all {@link #mEntries}. */
+	private long mBytes = 0;
+
+	private long mHits = 0;
+
+	private long mMisses = 0;
+
+	/** Amount of entries which were discarded because their data version was outdated. */
+	private long mInvalidations = 0;
+
+	private long mEvictions = 0;
+
+
+	FCPResponseCache(long maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns a normalized representation of the given request parameters: Two requests with the
+	 * same parameters yield the same key, regardless of the order in which they were added. */
+	static String getKey(SimpleFieldSet params) {
+		final ArrayList<String> keys = new ArrayList<String>();
+		for(Iterator<String> i = params.keyIterator(); i.hasNext(); )
+			keys.add(i.next());
+		Collections.sort(keys);
+
+		final StringBuilder result = new StringBuilder();
+		for(String key : keys)
+			result.append(key).append('=').append(params.get(key)).append('\n');
+		return result.toString();
+	}
+
+	/**
+	 * Estimates the memory usage of an entry in bytes. Java uses 2 bytes per char.<br>
+	 * Sums up the lengths of the keys and values instead of serializing the reply. */
+	private static long getSize(String key, SimpleFieldSet reply) {
+		long chars = key.length();
+		for(Iterator<String> i = reply.keyIterator(); i.hasNext(); ) {
+			final String name = i.next();
+			// +2 for the '=' and '\n' of the serialized form.
+			chars += name.length() + reply.get(name).length() + 2;
+		}
+		return 2L * chars;
+	}
+
+	private void remove(String key, Entry entry) {
+		mEntries.remove(key);
+		mBytes -= entry.mSize;
+	}
+
+	/**
+	 * @param dataVersion The current value of {@link SnapshotStore#getDataVersion(Class...)} for
+	 *     the types which the reply depends on.
+	 * @return A copy of the cached reply, or null if there is none for the given data version. */
+	synchronized SimpleFieldSet get(String key, long dataVersion) {
+		final Entry entry = mEntries.get(key);
+
+		if(entry != null && entry.mDataVersion < dataVersion) {
+			remove(key, entry);
+			++mInvalidations;
+		} else if(entry != null) {
+			++mHits;
+			// Copy it because the caller will pass it to the client, which may modify it.
+			return new SimpleFieldSet(entry.mReply);
+		}
+
+		++mMisses;
+		return null;
+	}
+
+	/**
+	 * @param dataVersion The value of {@link SnapshotStore#getDataVersion(Class...)} for the types
+	 *     which the reply depends on, which was obtained BEFORE the reply was computed.
+	 * @param reply Is copied, so the caller may pass it to the client afterwards. */
+	synchronized void put(String key, long dataVersion, SimpleFieldSet reply) {
+		final Entry previous = mEntries.get(key);
+		if(previous != null) {
+			// Another thread has computed a reply from newer data meanwhile.
+			if(previous.mDataVersion > dataVersion)
+				return;
+
+			remove(key, previous);
+		}
+
+		final long size = getSize(key, reply);
+		if(size > mMaxBytes / MAX_ENTRY_FRACTION)
+			return;
+
+		mEntries.put(key, new Entry(new SimpleFieldSet(reply), dataVersion, size));
+		mBytes += size;
+
+		final Iterator<Entry> lru = mEntries.values().iterator();
+		while(mBytes > mMaxBytes) {
+			mBytes -= lru.next().mSize;
+			lru.remove();
+			++mEvictions;
+		}
+	}
+
+	/** Adds the statistics of this cache to the given {@link SimpleFieldSet} with the given
+	 *  prefix. */
+	synchronized void putStatistics(SimpleFieldSet sfs, String prefix) {
+		sfs.put(prefix + "Entries", mEntries.size());
+		sfs.put(prefix + "Size", mBytes);
+		sfs.put(prefix + "MaxSize", mMaxBytes);
+		sfs.put(prefix + "Hits", mHits);
+		sfs.put(prefix + "Misses", mMisses);
+		sfs.put(prefix + "Invalidations", mInvalidations);
+		sfs.put(prefix + "Evictions", mEvictions);
+	}
+
+	synchronized ResponseCacheStatistics getStatistics() {
+		return new ResponseCacheStatistics(mEntries.size(), mBytes, mMaxBytes, mHits, mMisses,
+			mInvalidations, mEvictions);
+	}
+
+	/** Snapshot of the statistics of the response cache, see
+	 *  {@link FCPInterface#getResponseCacheStatistics()}. */
+	public static final class ResponseCacheStatistics {
+		public final int mEntries;
+
+		/** Estimated memory usage of the entries in bytes. */
+		public final long mSize;
+
+		public final long mMaxSize;
+
+		public final long mHits;
+
+		public final long mMisses;
+
+		/** Amount of entries which were discarded because the WoT data had changed. */
+		public final long mInvalidations;
+
+		/** Amount of entries which were discarded because of {@link #mMaxSize}. */
+		public final long mEvictions;
+
+		ResponseCacheStatistics(int entries, long size, long maxSize, long hits, long misses,
+				long invalidations, long evictions) {
+			mEntries = entries;
+			mSize = size;
+			mMaxSize = maxSize;
+			mHits = hits;
+			mMisses = misses;
+			mInvalidations = invalidations;
+			mEvictions = evictions;
+		}
+
+		/** Returns the percentage of lookups which were answered from the cache. */
+		public double getHitRatePercent() {
+			return mHits + mMisses == 0 ? 0 : 100d * mHits / (mHits + mMisses);
+		}
+	}
+}
@@ -17,6 +17,7 @@ import java.util.Random;
 import java.util.TreeMap;
 import java.util.UUID;
 
+import plugins.WebOfTrust.DatabaseIntegrityVerifier;
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.Trust;
 import plugins.WebOfTrust.Trust.TrustID;
@@ -24,6 +25,7 @@ import plugins.WebOfTrust.WebOfTrust;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.ui.fcp.FCPInterface;
+import plugins.WebOfTrust.util.LockProfiler;
 import plugins.WebOfTrust.util.StopWatch;
 
 import com.db4o.ObjectSet;
@@ -216,7 +218,7 @@ public final class WOTUtil {
 		int processedTrusters = 0;
 		
 		for(Identity truster : trusters) {
-			Integer trustees = wot.getGivenTrusts(truster).size();
+			Integer trustees = truster.getGivenTrustCount();
 			Integer oldSum = histogram.get(trustees); 
 			histogram.put(trustees, oldSum != null ? oldSum + 1 : 1);
 			
@@ -248,15 +250,26 @@ public final class WOTUtil {
 		err.println("    Push ENTER to exit for pause. Resume by restarting with same parameters.");
 		err.println("    Deterministic execution by SEED is not supported with resume.");
 		err.println("WOTUtil -fcp INPUT_DATABASE Message=WOT_FCP_CALL key1=value1 key2=value2 ...");
-		err.println("WOTUtil -testAndRepair INPUT_DATABASE");
+		err.println("WOTUtil -testAndRepair INPUT_DATABASE [THREADS]");
+		err.println("    Tests the database read-only with THREADS threads first, the default is");
+		err.println("    the amount of processors. Use a copy if WoT is running upon it.");
 		err.println("WOTUtil -trustValueHistogram INPUT_DATABASE");
 		err.println("WOTUtil -trusteeCountHistogram INPUT_DATABASE");
+		err.println("WOTUtil -lockProfile COMMAND INPUT_DATABASE ...");
+		err.println("    Runs any of the above commands with the lock profiler enabled and");
+		err.println("    prints its report afterwards.");
 	}
 	
 	public static int mainWithReturnValue(String[] args) {
 		WebOfTrust wot = null;
+		boolean profileLocks = false;
 		
 		try {
+			if(args.length > 0 && args[0].equalsIgnoreCase("-lockProfile")) {
+				profileLocks = true;
+				args = Arrays.copyOfRange(args, 1, args.length);
+			}
+			
 			if(args.length < 2) {
 				printSyntax();
 				return 1;
@@ -266,8 +279,25 @@ public final class WOTUtil {
 			if(!new File(databaseFile).isFile())
 				throw new FileNotFoundException(databaseFile);
 			
+			if(args[0].equalsIgnoreCase("-testAndRepair")) {
+				// Before the database is opened read-write so the result shows the damage before
+				// it is modified by the repair and upgrade code.
+				int threads = args.length > 2
+					? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+				
+				System.err.println("Testing database read-only...");
+				
+				if(!DatabaseIntegrityVerifier.verifyDatabaseFile(
+						new File(databaseFile), threads, System.err)) {
+					System.err.println("Damaged objects found, see log. Repairing...");
+				}
+			}
+			
 			wot = new WebOfTrust(databaseFile);
 			
+			if(profileLocks)
+				wot.getLockProfiler().start();
+			
 			System.err.println("Checking database for corruption...");
 			
 			if(!wot.verifyDatabaseIntegrity() || !wot.verifyAndCorrectStoredScores()) {
@@ -313,6 +343,14 @@ public final class WOTUtil {
 			return 3;
 		} finally {
 			if(wot != null) {
+				if(profileLocks) {
+					LockProfiler profiler = wot.getLockProfiler();
+					profiler.stop();
+					System.out.println();
+					System.out.println("Lock profile follows ...");
+					System.out.print(profiler.getReport());
+				}
+				
 				wot.terminate();
 				assert(wot.isTerminated());
 			}
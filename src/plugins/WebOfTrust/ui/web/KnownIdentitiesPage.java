@@ -363,13 +363,13 @@ public class KnownIdentitiesPage extends WebPageImpl {
 			// TODO: Do a direct link to the received-trusts part of the linked page
 			HTMLNode trustersCell = row.addChild("td", new String[] { "align" }, new String[] { "center" });
 			trustersCell.addChild(new HTMLNode("a", "href", IdentityPage.getURI(mWebInterface, id.getID()).toString(),
-					Long.toString(mWebOfTrust.getReceivedTrusts(id).size())));
+					Integer.toString(id.getReceivedTrustCount())));
 			
 			// Nb Trustees
 			// TODO: Do a direct link to the given-trusts part of the linked page
 			HTMLNode trusteesCell = row.addChild("td", new String[] { "align" }, new String[] { "center" });
 			trusteesCell.addChild(new HTMLNode("a", "href", IdentityPage.getURI(mWebInterface, id.getID()).toString(),
-					Long.toString(mWebOfTrust.getGivenTrusts(id).size())));
+					Integer.toString(id.getGivenTrustCount())));
 			
 			// TODO: Show in advanced mode only once someone finally fixes the "Switch to advanced mode" link on FProxy to work on ALL pages.
 			
@@ -48,7 +48,7 @@ public class MyIdentityPage extends WebPageImpl {
 		super(toadlet, myRequest, context, true);
 
         // Re-query it instead of using mLoggedInOwnIdentity because mLoggedInOwnIdentity is a
-        // clone() and thus will not work with database queries on the WebOfTrust.
+        // clone() and thus its trust counters are not updated when trust values change.
         // TODO: Performance: The re-querying can be removed once the TODO at
         // WebPageImpl.getLoggedInOwnIdentityFromHTTPSession() of not cloning the
         // OwnIdentity has been been resolved.
@@ -56,8 +56,8 @@ public class MyIdentityPage extends WebPageImpl {
             final OwnIdentity identity
                 = mWebOfTrust.getOwnIdentityByID(mLoggedInOwnIdentity.getID());
             
-            mReceivedTrustCount = mWebOfTrust.getReceivedTrusts(identity).size();
-            mGivenTrustCount = mWebOfTrust.getGivenTrusts(identity).size();
+            mReceivedTrustCount = identity.getReceivedTrustCount();
+            mGivenTrustCount = identity.getGivenTrustCount();
 		}
 
 		editIdentityToadlet = mWebInterface.getToadlet(EditOwnIdentityWebInterfaceToadlet.class);
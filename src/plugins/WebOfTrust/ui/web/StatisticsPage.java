@@ -8,19 +8,35 @@ import static plugins.WebOfTrust.Configuration.DEFAULT_DEFRAG_INTERVAL;
 import static plugins.WebOfTrust.Configuration.DEFAULT_VERIFY_SCORES_INTERVAL;
 import static plugins.WebOfTrust.ui.web.CommonWebUtils.formatTimeDelta;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.concurrent.TimeUnit;
 
 import plugins.WebOfTrust.Configuration;
-import plugins.WebOfTrust.Identity;
+import plugins.WebOfTrust.DatabaseBackup;
 import plugins.WebOfTrust.IdentityFileProcessor;
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileQueueStatistics;
+import plugins.WebOfTrust.GroupCommit;
+import plugins.WebOfTrust.ObjectCache;
+import plugins.WebOfTrust.ObjectCache.CacheStatistics;
+import plugins.WebOfTrust.OnlineDefragmentation;
+import plugins.WebOfTrust.SnapshotStore;
+import plugins.WebOfTrust.SnapshotStore.IdentitySnapshot;
+import plugins.WebOfTrust.StartupTimeline;
 import plugins.WebOfTrust.SubscriptionManager;
+import plugins.WebOfTrust.SubscriptionManager.ClientStatistics;
 import plugins.WebOfTrust.WebOfTrust;
 import plugins.WebOfTrust.introduction.IntroductionPuzzleStore;
+import plugins.WebOfTrust.ui.fcp.FCPInterface.MessageStatistics;
+import plugins.WebOfTrust.ui.fcp.FCPResponseCache.ResponseCacheStatistics;
+import plugins.WebOfTrust.util.LockProfiler;
+import plugins.WebOfTrust.util.LockProfiler.Hold;
+import plugins.WebOfTrust.util.LockProfiler.SiteStatistics;
+import plugins.WebOfTrust.util.LockProfiler.Violation;
 import freenet.clients.http.ToadletContext;
 import freenet.support.CurrentTimeUTC;
 import freenet.support.HTMLNode;
+import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
 
@@ -44,10 +60,16 @@ public class StatisticsPage extends WebPageImpl {
 
 	@Override
 	public void make(final boolean mayWrite) {
+		// First because it does not need the WebOfTrust lock: The profiler is typically used when
+		// the lock is held for too long, which would block the other boxes.
+		makeLockProfilerBox(mayWrite);
 		makeSummary();
 		makeIdentityFileQueueBox();
 		makeIdentityFileProcessorBox();
+		makeSubscriptionClientsBox();
+		makeFCPBox();
 		makeMaintenanceBox();
+		makeStartupTimelineBox();
 	}
 
 	/**
@@ -57,16 +79,45 @@ public class StatisticsPage extends WebPageImpl {
 		HTMLNode box = addContentBox(l10n().getString("StatisticsPage.SummaryBox.Header"));
 		HTMLNode list = new HTMLNode("ul");
 		
+		// The counts are read from the SnapshotStore, which needs no lock. They are not read
+		// with SnapshotStore.read() as the page needn't be coherent, it is only statistics.
+		final SnapshotStore snapshots = mWebOfTrust.getSnapshotStore();
+		final int ownIdentities = snapshots.getOwnIdentityCount();
+		final int identities = snapshots.getIdentityCount();
+		final long editionSum = getEditionSum(snapshots);
+		final int trusts = snapshots.getTrustCount();
+		final int scores = snapshots.getScoreCount();
+		
         // TODO: Performance: All the synchronized() can be removed after this is fixed:
         // https://bugs.freenetproject.org/view.php?id=6247
+		final int unfetchedIdentities;
+		synchronized(mWebOfTrust) {
+			unfetchedIdentities = mWebOfTrust.getNumberOfUnfetchedIdentities();
+		}
+		
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.OwnIdentities") + ": " + ownIdentities));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.KnownIdentities") + ": " + (identities - ownIdentities)));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.UnfetchedIdentities") + " " + unfetchedIdentities));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.FetchProgress", "editionCount", Long.toString(editionSum))));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.TrustRelationships") + ": " + trusts));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.ScoreRelationships") + ": " + scores));
+		
 		synchronized(mWebOfTrust) {
-		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.OwnIdentities") + ": " + mWebOfTrust.getAllOwnIdentities().size()));
-		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.KnownIdentities") + ": " + mWebOfTrust.getAllNonOwnIdentities().size()));
-		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.UnfetchedIdentities") + " " + mWebOfTrust.getNumberOfUnfetchedIdentities()));
-		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.FetchProgress", "editionCount", Long.toString(getEditionSum()))));
-		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.TrustRelationships") + ": " + mWebOfTrust.getAllTrusts().size()));
-		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.ScoreRelationships") + ": " + mWebOfTrust.getAllScores().size()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.FullRecomputations") + ": " + mWebOfTrust.getNumberOfFullScoreRecomputations()));
+		ObjectCache objectCache = mWebOfTrust.getObjectCache();
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.ObjectCache",
+			new String[] { "identities", "trusts", "scores" },
+			new String[] { getHitRate(objectCache.getIdentityStatistics()),
+			               getHitRate(objectCache.getTrustStatistics()),
+			               getHitRate(objectCache.getScoreStatistics()) })));
+		GroupCommit groupCommit = mWebOfTrust.getGroupCommit();
+		if(groupCommit != null) {
+			list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.GroupCommit",
+				new String[] { "deferred", "commits", "rolledBack" },
+				new String[] { Long.toString(groupCommit.getTotalDeferredCommits()),
+				               Long.toString(groupCommit.getGroupCommits()),
+				               Long.toString(groupCommit.getRolledBackCommits()) })));
+		}
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.FullRecomputationTime") + ": " + mWebOfTrust.getAverageFullScoreRecomputationTime()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalTrustRecomputations") + " " + mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToTrust()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalTrustRecomputationTime") + " " + mWebOfTrust.getAverageTimeForIncrementalScoreRecomputationDueToTrust()));
@@ -97,12 +148,16 @@ public class StatisticsPage extends WebPageImpl {
 		box.addChild(list);
 	}
 
+	private static String getHitRate(CacheStatistics statistics) {
+		return String.format("%.1f", statistics.getHitRatePercent());
+	}
+
 	/**
-	 * TODO: Move to class {@link WebOfTrust}
+	 * TODO: Move to class {@link SnapshotStore}
 	 */
-	private long getEditionSum() {
+	private static long getEditionSum(SnapshotStore snapshots) {
 		long editionSum = 0;
-		for(Identity identity : mWebOfTrust.getAllIdentities()) {
+		for(IdentitySnapshot identity : snapshots.getAllIdentities()) {
 			editionSum += identity.getEdition();
 		}
 		return editionSum;
@@ -154,6 +209,116 @@ public class StatisticsPage extends WebPageImpl {
 		box.addChild(list);
 	}
 
+	public void makeSubscriptionClientsBox() {
+		String l10nPrefix = "StatisticsPage.SubscriptionClientsBox.";
+		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
+		HTMLNode list = new HTMLNode("ul");
+		SubscriptionManager sm = mWebOfTrust.getSubscriptionManager();
+		
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "Limits",
+			new String[] { "notifications",
+			               "bytes" },
+			new String[] { Integer.toString(sm.getMaxQueuedNotificationsPerClient()),
+			               SizeUtil.formatSize(sm.getMaxQueuedNotificationBytesPerClient()) })));
+		
+		for(ClientStatistics stats : sm.getClientStatistics()) {
+			String client = l10n().getString(l10nPrefix + "Client",
+				new String[] { "type",
+				               "id",
+				               "queued",
+				               "queuedBytes",
+				               "lag",
+				               "deployed",
+				               "perHour",
+				               "resynchronizations" },
+				new String[] { stats.mType.toString(),
+				               stats.mClientID,
+				               Integer.toString(stats.mQueuedNotifications),
+				               SizeUtil.formatSize(stats.mQueuedBytes),
+				               formatTime(stats.mLag),
+				               Long.toString(stats.mDeployedNotifications),
+				               Long.toString(Math.round(stats.getDeployedNotificationsPerHour())),
+				               Integer.toString(stats.mResynchronizations) });
+			
+			if(stats.mResynchronizationRequired)
+				client += " " + l10n().getString(l10nPrefix + "ResynchronizationRequired");
+			
+			list.addChild(new HTMLNode("li", client));
+		}
+		
+		box.addChild(list);
+	}
+
+	public void makeFCPBox() {
+		String l10nPrefix = "StatisticsPage.FCPBox.";
+		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
+		HTMLNode list = new HTMLNode("ul");
+		boolean anyMessages = false;
+		
+		for(MessageStatistics stats : mWebOfTrust.getFCPInterface().getMessageStatistics()) {
+			// Don't clutter the page with the many message types which no client uses.
+			if(stats.mCalls == 0)
+				continue;
+			
+			anyMessages = true;
+			
+			StringBuilder histogram = new StringBuilder();
+			long[] bounds = MessageStatistics.EXECUTION_TIME_HISTOGRAM_BOUNDS_MILLISECONDS;
+			for(int i = 0; i < stats.mExecutionTimeHistogram.length; ++i) {
+				if(i > 0)
+					histogram.append(", ");
+				histogram.append(i < bounds.length
+					? "< " + formatTime(bounds[i], 2, true)
+					: ">= " + formatTime(bounds[bounds.length - 1], 2, true));
+				histogram.append(": ");
+				histogram.append(stats.mExecutionTimeHistogram[i]);
+			}
+			
+			list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "Message",
+				new String[] { "message",
+				               "calls",
+				               "errors",
+				               "averageTime",
+				               "maxTime",
+				               "lockWaitTime",
+				               "averageSize",
+				               "maxSize",
+				               "cacheHitRate",
+				               "histogram" },
+				new String[] { stats.mMessage,
+				               Long.toString(stats.mCalls),
+				               Long.toString(stats.mErrors),
+				               String.format("%.1f", stats.getAverageExecutionTimeMilliseconds()),
+				               Long.toString(TimeUnit.NANOSECONDS.toMillis(
+				                   stats.mMaxExecutionTimeNanoseconds)),
+				               formatTime(stats.mLockWaitTimeMilliseconds, 2, true),
+				               SizeUtil.formatSize(stats.getAverageResponseSize()),
+				               SizeUtil.formatSize(stats.mMaxResponseSize),
+				               String.format("%.1f", stats.getCacheHitRatePercent()),
+				               histogram.toString() })));
+		}
+		
+		if(!anyMessages)
+			list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "NoMessages")));
+		else if(!mWebOfTrust.getFCPInterface().isDetailedStatisticsEnabled()) {
+			list.addChild(new HTMLNode("li", l10n().getString(
+				l10nPrefix + "DetailedStatisticsDisabled",
+				"option", Configuration.FCP_DETAILED_STATISTICS_ENABLED)));
+		}
+		
+		ResponseCacheStatistics cache = mWebOfTrust.getFCPInterface().getResponseCacheStatistics();
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "ResponseCache",
+			new String[] { "entries", "size", "maxSize", "hitRate", "invalidations", "evictions" },
+			new String[] { Integer.toString(cache.mEntries),
+			               SizeUtil.formatSize(cache.mSize),
+			               SizeUtil.formatSize(cache.mMaxSize),
+			               String.format("%.1f", cache.getHitRatePercent()),
+			               Long.toString(cache.mInvalidations),
+			               Long.toString(cache.mEvictions) })));
+		
+		box.addChild(list);
+	}
+
 	public void makeMaintenanceBox() {
 		String l10nPrefix = "StatisticsPage.MaintenanceBox.";
 		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
@@ -187,7 +352,149 @@ public class StatisticsPage extends WebPageImpl {
 		list.addChild(new HTMLNode("li", defrag));
 		list.addChild(new HTMLNode("li", verification));
 		
+		DatabaseBackup backup = mWebOfTrust.getDatabaseBackup();
+		if(backup == null) {
+			list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "BackupDisabled")));
+		} else {
+			Date lastBackupDate = backup.getLastBackupDate();
+			list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "LastBackup",
+				new String[] { "lastTime",
+				               "interval",
+				               "duration",
+				               "size",
+				               "backups",
+				               "failures" },
+				new String[] {
+				    lastBackupDate != null
+				        ? formatTimeDelta(now.getTime() - lastBackupDate.getTime(), l10n())
+				        : l10n().getString(l10nPrefix + "Never"),
+				    formatTime(backup.getInterval()),
+				    formatTime(backup.getLastDuration(), 2, true),
+				    SizeUtil.formatSize(backup.getLastSize()),
+				    Integer.toString(backup.getBackupCount()),
+				    Integer.toString(backup.getFailureCount()) })));
+		}
+		
+		OnlineDefragmentation onlineDefrag = mWebOfTrust.getOnlineDefragmentation();
+		if(onlineDefrag != null) {
+			String phase = onlineDefrag.getPhase().name();
+			Date phaseStartDate = onlineDefrag.getPhaseStartDate();
+			list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "OnlineDefrag",
+				new String[] { "phase",
+				               "started",
+				               "copySize",
+				               "size",
+				               "pending",
+				               "replayed",
+				               "failures" },
+				new String[] {
+				    l10n().getString(l10nPrefix + "OnlineDefrag." + phase),
+				    formatTimeDelta(now.getTime() - phaseStartDate.getTime(), l10n()),
+				    SizeUtil.formatSize(onlineDefrag.getCopySize()),
+				    SizeUtil.formatSize(onlineDefrag.getDatabaseSize()),
+				    Long.toString(onlineDefrag.getPendingChanges()),
+				    Long.toString(onlineDefrag.getReplayedChanges()),
+				    Integer.toString(onlineDefrag.getFailureCount()) })));
+		}
+		
 		box.addChild(list);
 	}
 
+	/** Shows the duration of the phases of the startup, see {@link StartupTimeline}. */
+	public void makeStartupTimelineBox() {
+		StartupTimeline timeline = mWebOfTrust.getStartupTimeline();
+		if(timeline == null)
+			return;
+		
+		String l10nPrefix = "StatisticsPage.StartupTimelineBox.";
+		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
+		
+		long duration = timeline.getStartupDuration();
+		box.addChild("p", l10n().getString(l10nPrefix + "Duration",
+			"duration", duration >= 0 ? formatTime(duration, 2, true) : "?"));
+		
+		HTMLNode list = box.addChild("ul");
+		for(StartupTimeline.Phase phase : timeline.getPhases()) {
+			list.addChild(new HTMLNode("li", l10n().getString(
+				l10nPrefix + (phase.isBackground() ? "BackgroundPhase" : "Phase"),
+				new String[] { "phase", "start", "duration" },
+				new String[] { phase.getName(),
+				               formatTime(phase.getStart(), 2, true),
+				               formatTime(phase.getDuration(), 2, true) })));
+		}
+	}
+
+	/**
+	 * Shows the report of the {@link LockProfiler} and a button to start or stop it.<br>
+	 * Does not take the {@link WebOfTrust} lock.
+	 * 
+	 * @param mayWrite If true, the button is processed if it was pressed. */
+	public void makeLockProfilerBox(boolean mayWrite) {
+		String l10nPrefix = "StatisticsPage.LockProfilerBox.";
+		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
+		LockProfiler profiler = mWebOfTrust.getLockProfiler();
+		
+		if(mayWrite && mRequest.isPartSet("LockProfilerEnabled")) {
+			mWebOfTrust.setLockProfilerEnabled(
+				mRequest.getPartAsStringFailsafe("LockProfilerEnabled", 5).equals("true"));
+		}
+		
+		boolean running = profiler.isRunning();
+		HTMLNode form = pr.addFormChild(box, uri.toString(), "LockProfiler");
+		form.addChild("p", l10n().getString(l10nPrefix + (running ? "Running" : "NotRunning"),
+			new String[] { "samples", "interval", "samplingTime" },
+			new String[] { Long.toString(profiler.getSampleCount()),
+			               Long.toString(profiler.getSampleInterval()),
+			               Long.toString(TimeUnit.NANOSECONDS.toMillis(
+			                   profiler.getSamplingTime())) }));
+		form.addChild("input", new String[] { "type", "name", "value" },
+			new String[] { "hidden", "LockProfilerEnabled", Boolean.toString(!running) });
+		form.addChild("input", new String[] { "type", "value" },
+			new String[] { "submit", l10n().getString(l10nPrefix + (running ? "Stop" : "Start")) });
+		
+		if(profiler.getSampleCount() == 0)
+			return;
+		
+		box.addChild("p", l10n().getString(l10nPrefix + "Sites"));
+		HTMLNode list = box.addChild("ul");
+		for(SiteStatistics site : profiler.getSiteStatistics()) {
+			list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "Site",
+				new String[] { "site", "holds", "holdTime", "maxHoldTime", "waitTime",
+				               "causedWaitTime" },
+				new String[] { site.mSite,
+				               Long.toString(site.mHolds),
+				               formatNanos(site.mHoldTime),
+				               formatNanos(site.mMaxHoldTime),
+				               formatNanos(site.mWaitTime),
+				               formatNanos(site.mCausedWaitTime) })));
+		}
+		
+		box.addChild("p", l10n().getString(l10nPrefix + "LongestHolds"));
+		list = box.addChild("ul");
+		for(Hold hold : profiler.getLongestHolds()) {
+			HTMLNode item = list.addChild("li", l10n().getString(
+				l10nPrefix + (hold.mInProgress ? "HoldInProgress" : "Hold"),
+				new String[] { "site", "thread", "duration" },
+				new String[] { hold.mSite, hold.mThreadName, formatNanos(hold.getDuration()) }));
+			item.addChild("pre", hold.mStack);
+		}
+		
+		box.addChild("p", l10n().getString(l10nPrefix + "Violations"));
+		list = box.addChild("ul");
+		ArrayList<Violation> violations = profiler.getViolations();
+		if(violations.isEmpty())
+			list.addChild("li", l10n().getString(l10nPrefix + "NoViolations"));
+		for(Violation violation : violations) {
+			HTMLNode item = list.addChild("li", l10n().getString(l10nPrefix + "Violation",
+				new String[] { "description", "thread", "samples" },
+				new String[] { violation.mDescription, violation.mThreadName,
+				               Long.toString(violation.mSamples) }));
+			item.addChild("pre", violation.mStack);
+		}
+	}
+	
+	private static String formatNanos(long nanos) {
+		return formatTime(TimeUnit.NANOSECONDS.toMillis(nanos), 2, true);
+	}
+
 }
@@ -0,0 +1,74 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust.util;
+
+import java.util.Arrays;
+
+/**
+ * Describes the order in which a set of monitors must be acquired to avoid deadlocks, and allows
+ * checking it with the Java assert statement:<br>
+ * <code>assert(lockOrder.mayAcquire(lock)); synchronized(lock) { ... }</code><br><br>
+ *
+ * The check uses {@link Thread#holdsLock(Object)} and thus needs no bookkeeping when locks are
+ * acquired or released. Since it is only executed if assertions are enabled, it costs nothing
+ * in regular operation.<br><br>
+ *
+ * It only checks the existing locking, it does not change it: The subsystems of WoT are still
+ * protected by plain monitors which exclude readers as well as writers. Lock-free reading of
+ * identities, trusts and scores is only available through the {@link
+ * plugins.WebOfTrust.SnapshotStore}.<br>
+ * The monitors are not replaced by read/write locks because all threads share the single
+ * transaction of the db4o database: A reader which does not hold the
+ * {@link plugins.WebOfTrust.WebOfTrust} lock would see the uncommitted changes of a writer, and
+ * objects which it activates would not be rolled back with them. So a read lock would have to
+ * exclude the writers for their whole transaction, which is what the monitor does already.
+ */
+public final class LockOrder {
+
+	/** The locks in the order in which they must be acquired. */
+	private final Object[] mLocks;
+
+	/** @param locks The locks in the order in which they must be acquired. */
+	public LockOrder(Object... locks) {
+		for(Object lock : locks) {
+			if(lock == null)
+				throw new NullPointerException("Lock is null: " + Arrays.toString(locks));
+		}
+
+		mLocks = locks.clone();
+	}
+
+	/**
+	 * Returns true if the current thread may acquire the given lock: Either it holds it already,
+	 * so acquiring it again cannot deadlock, or it holds none of the locks which come after it
+	 * in the order.<br>
+	 * Locks which are not part of the order may always be acquired.
+	 */
+	public boolean mayAcquire(Object lock) {
+		if(Thread.holdsLock(lock))
+			return true;
+
+		int i = 0;
+		while(i < mLocks.length && mLocks[i] != lock)
+			++i;
+
+		for(++i; i < mLocks.length; ++i) {
+			if(Thread.holdsLock(mLocks[i]))
+				return false;
+		}
+
+		return true;
+	}
+
+	/** Returns the amount of locks in the order. */
+	public int size() {
+		return mLocks.length;
+	}
+
+	/** Returns the lock at the given position in the order, starting at 0. */
+	public Object get(int index) {
+		return mLocks[index];
+	}
+
+}
@@ -0,0 +1,566 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust.util;
+
+import java.lang.management.LockInfo;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import freenet.support.Logger;
+
+/**
+ * Sampling profiler for the contention of the locks of a {@link LockOrder}: Tells which code
+ * holds the locks for how long, who waits for them, and whether they are acquired in the wrong
+ * order.<br><br>
+ *
+ * The locks are monitors, i.e. they are acquired by synchronized(), so acquiring and releasing
+ * them cannot be intercepted without replacing every synchronized block. Instead, a thread of this
+ * class takes a {@link ThreadMXBean#dumpAllThreads(boolean, boolean)} every
+ * {@link #getSampleInterval()} milliseconds and derives from it:<br>
+ * - Which thread holds each of the locks, and at which site it was acquired, i.e. the stack frame
+ *   of the synchronized block or method. Consecutive samples with the same holder and site are
+ *   considered as one hold, so the hold times have a resolution of the sample interval, and short
+ *   holds are only noticed by chance - which is fine for finding the long ones.<br>
+ * - Which threads are blocked waiting for the locks, and at which site. The wait time is
+ *   accounted both to the site of the waiter and to the site of the holder.<br>
+ * - Violations of the lock order: A thread holds a lock which comes later in the order, and the
+ *   frame in which it acquired it is outside the frame in which it acquired the earlier one.
+ *   <br><br>
+ *
+ * Overhead: If the profiler is not started there is none, no code of the locking sites is
+ * changed. While it runs, the thread dumps cost a few milliseconds per sample, the cost is
+ * reported by {@link #getSamplingTime()}.<br><br>
+ *
+ * Thread safety: All functions are synchronized on this object, except the thread dump itself.
+ */
+public final class LockProfiler implements Runnable {
+
+	/** Default value of {@link #getSampleInterval()}, in milliseconds. */
+	public static final long DEFAULT_SAMPLE_INTERVAL = 50;
+
+	/** Amount of entries of {@link #getLongestHolds()}. */
+	public static final int MAX_LONGEST_HOLDS = 10;
+
+	/** Amount of stack frames which are kept of the holders of {@link #getLongestHolds()} and of
+	 *  the threads of {@link #getViolations()}. */
+	public static final int MAX_STACK_DEPTH = 32;
+
+	private final LockOrder mOrder;
+
+	/** Human readable names of the locks of {@link #mOrder}, at the same indexes. */
+	private final String[] mNames;
+
+	private final long mSampleInterval;
+
+	private final ThreadMXBean mThreadMXBean = ManagementFactory.getThreadMXBean();
+
+	/** The thread which executes {@link #run()}, null if the profiler is not running. */
+	private Thread mThread = null;
+
+	/** Key = {@link #getSiteKey(int, StackTraceElement)} */
+	private final HashMap<String, SiteStatistics> mSites = new HashMap<String, SiteStatistics>();
+
+	/** The hold of each lock which was observed by the last sample, or null if the lock was not
+	 *  held. Index = index of the lock in {@link #mOrder}. */
+	private final Hold[] mCurrentHolds;
+
+	/** Ordered by {@link Hold#getDuration()}, descending. At most {@link #MAX_LONGEST_HOLDS}. */
+	private final ArrayList<Hold> mLongestHolds = new ArrayList<Hold>(MAX_LONGEST_HOLDS + 1);
+
+	/** Key = {@link Violation#mDescription} */
+	private final LinkedHashMap<String, Violation> mViolations
+		= new LinkedHashMap<String, Violation>();
+
+	private long mSamples = 0;
+
+	/** Total time spent by {@link #sample()}, in nanoseconds. */
+	private long mSamplingTime = 0;
+
+
+	/**
+	 * @param order The locks to profile.
+	 * @param names Human readable names of the locks of the order, in the same order.
+	 * @param sampleInterval Milliseconds between two samples. */
+	public LockProfiler(LockOrder order, String[] names, long sampleInterval) {
+		if(names.length != order.size())
+			throw new IllegalArgumentException("Amount of names does not match amount of locks");
+
+		if(sampleInterval <= 0)
+			throw new IllegalArgumentException("Invalid sample interval: " + sampleInterval);
+
+		mOrder = order;
+		mNames = names.clone();
+		mSampleInterval = sampleInterval;
+		mCurrentHolds = new Hold[order.size()];
+	}
+
+	/** Starts the thread which takes the samples. Does nothing if it is running already. */
+	public synchronized void start() {
+		if(mThread != null)
+			return;
+
+		if(!mThreadMXBean.isObjectMonitorUsageSupported())
+			Logger.warning(this, "JVM does not support monitor usage, no locks will be observed.");
+
+		mThread = new Thread(this, "WoT LockProfiler");
+		mThread.setDaemon(true);
+		mThread.setPriority(Thread.MAX_PRIORITY);
+		mThread.start();
+		Logger.normal(this, "Started.");
+	}
+
+	/**
+	 * Stops the thread which takes the samples and waits for it to exit. The collected statistics
+	 * are kept. Does nothing if it is not running. */
+	public void stop() {
+		final Thread thread;
+		synchronized(this) {
+			thread = mThread;
+			mThread = null;
+		}
+
+		if(thread == null)
+			return;
+
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		synchronized(this) {
+			for(int i = 0; i < mCurrentHolds.length; ++i)
+				endHold(i);
+		}
+
+		Logger.normal(this, "Stopped.");
+	}
+
+	public synchronized boolean isRunning() {
+		return mThread != null;
+	}
+
+	@Override public void run() {
+		while(true) {
+			synchronized(this) {
+				if(mThread != Thread.currentThread())
+					return;
+			}
+
+			try {
+				sample();
+			} catch(RuntimeException e) {
+				Logger.error(this, "Sampling failed", e);
+			}
+
+			try {
+				Thread.sleep(mSampleInterval);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Takes a single sample. Public so callers which do not want to start the thread can
+	 * sample manually, for example unit tests. */
+	public void sample() {
+		final long startTime = System.nanoTime();
+		// Must not be synchronized: The threads which we observe might be waiting for us then.
+		final ThreadInfo[] threads = mThreadMXBean.dumpAllThreads(true, false);
+		final long time = System.nanoTime();
+
+		synchronized(this) {
+			final boolean[] held = new boolean[mCurrentHolds.length];
+
+			for(ThreadInfo thread : threads) {
+				if(thread != null)
+					observeHeldLocks(thread, held, time);
+			}
+
+			for(int i = 0; i < mCurrentHolds.length; ++i) {
+				if(!held[i])
+					endHold(i);
+			}
+
+			for(ThreadInfo thread : threads) {
+				if(thread != null)
+					observeBlockedThread(thread);
+			}
+
+			++mSamples;
+			mSamplingTime += System.nanoTime() - startTime;
+		}
+	}
+
+	/** Returns the index of the given lock in {@link #mOrder}, or -1 if it is not part of it. */
+	private int indexOf(LockInfo lock) {
+		if(lock == null)
+			return -1;
+
+		for(int i = 0; i < mOrder.size(); ++i) {
+			final Object candidate = mOrder.get(i);
+			if(System.identityHashCode(candidate) == lock.getIdentityHashCode()
+					&& candidate.getClass().getName().equals(lock.getClassName()))
+				return i;
+		}
+
+		return -1;
+	}
+
+	private void observeHeldLocks(ThreadInfo thread, boolean[] held, long time) {
+		// The depth and frame at which each lock was acquired, -1 if it is not held.
+		// Reentrant acquisitions are listed multiple times, the outermost one has the highest
+		// depth and is the one which matters.
+		final int[] depths = new int[mCurrentHolds.length];
+		final StackTraceElement[] frames = new StackTraceElement[mCurrentHolds.length];
+		Arrays.fill(depths, -1);
+
+		for(MonitorInfo monitor : thread.getLockedMonitors()) {
+			final int index = indexOf(monitor);
+			if(index >= 0 && monitor.getLockedStackDepth() >= depths[index]) {
+				depths[index] = monitor.getLockedStackDepth();
+				frames[index] = monitor.getLockedStackFrame();
+			}
+		}
+
+		for(int i = 0; i < depths.length; ++i) {
+			if(depths[i] < 0)
+				continue;
+
+			held[i] = true;
+			observeHold(i, thread, frames[i], time);
+
+			for(int later = i + 1; later < depths.length; ++later) {
+				if(depths[later] > depths[i])
+					observeViolation(i, frames[i], later, frames[later], thread);
+			}
+		}
+	}
+
+	private void observeHold(int lock, ThreadInfo thread, StackTraceElement frame, long time) {
+		final String site = getSiteKey(lock, frame);
+		Hold hold = mCurrentHolds[lock];
+
+		if(hold != null && (hold.mThreadID != thread.getThreadId() || !hold.mSite.equals(site))) {
+			endHold(lock);
+			hold = null;
+		}
+
+		if(hold == null) {
+			hold = new Hold(site, thread.getThreadName(), thread.getThreadId(), time);
+			mCurrentHolds[lock] = hold;
+		}
+
+		hold.mLastSeen = time;
+		hold.mStack = getStack(thread);
+	}
+
+	/** Accounts the current hold of the given lock to the statistics and clears it. */
+	private void endHold(int lock) {
+		final Hold hold = mCurrentHolds[lock];
+		if(hold == null)
+			return;
+
+		mCurrentHolds[lock] = null;
+
+		final SiteStatistics site = getSite(hold.mSite);
+		final long duration = hold.getDuration();
+		++site.mHolds;
+		site.mHoldTime += duration;
+		site.mMaxHoldTime = Math.max(site.mMaxHoldTime, duration);
+
+		addLongestHold(mLongestHolds, hold);
+	}
+
+	private void addLongestHold(List<Hold> holds, Hold hold) {
+		int index = 0;
+		while(index < holds.size() && holds.get(index).getDuration() >= hold.getDuration())
+			++index;
+
+		if(index >= MAX_LONGEST_HOLDS)
+			return;
+
+		holds.add(index, hold);
+		if(holds.size() > MAX_LONGEST_HOLDS)
+			holds.remove(holds.size() - 1);
+	}
+
+	private void observeBlockedThread(ThreadInfo thread) {
+		if(thread.getThreadState() != Thread.State.BLOCKED)
+			return;
+
+		final int lock = indexOf(thread.getLockInfo());
+		if(lock < 0)
+			return;
+
+		final StackTraceElement[] stack = thread.getStackTrace();
+		final SiteStatistics waiter
+			= getSite(getSiteKey(lock, stack.length > 0 ? stack[0] : null));
+		waiter.mWaitTime += TimeUnit.MILLISECONDS.toNanos(mSampleInterval);
+
+		final Hold hold = mCurrentHolds[lock];
+		if(hold != null) {
+			getSite(hold.mSite).mCausedWaitTime += TimeUnit.MILLISECONDS.toNanos(mSampleInterval);
+		}
+	}
+
+	private void observeViolation(int earlierLock, StackTraceElement earlierFrame, int laterLock,
+			StackTraceElement laterFrame, ThreadInfo thread) {
+
+		final String description = getSiteKey(earlierLock, earlierFrame) + " while holding "
+			+ getSiteKey(laterLock, laterFrame);
+
+		Violation violation = mViolations.get(description);
+		if(violation == null) {
+			violation = new Violation(description, thread.getThreadName(), getStack(thread));
+			mViolations.put(description, violation);
+			Logger.warning(this, "Lock order violation: " + description);
+		}
+		++violation.mSamples;
+	}
+
+	private String getSiteKey(int lock, StackTraceElement frame) {
+		return mNames[lock] + " @ " + (frame != null ? frame.toString() : "unknown");
+	}
+
+	private SiteStatistics getSite(String key) {
+		SiteStatistics site = mSites.get(key);
+		if(site == null) {
+			site = new SiteStatistics(key);
+			mSites.put(key, site);
+		}
+		return site;
+	}
+
+	private static String getStack(ThreadInfo thread) {
+		final StackTraceElement[] stack = thread.getStackTrace();
+		final StringBuilder result = new StringBuilder();
+		for(int i = 0; i < Math.min(stack.length, MAX_STACK_DEPTH); ++i)
+			result.append("\tat ").append(stack[i]).append('\n');
+		if(stack.length > MAX_STACK_DEPTH)
+			result.append("\t...\n");
+		return result.toString();
+	}
+
+	/** Milliseconds between two samples. */
+	public long getSampleInterval() {
+		return mSampleInterval;
+	}
+
+	public synchronized long getSampleCount() {
+		return mSamples;
+	}
+
+	/** Total time which was spent on taking the samples, in nanoseconds. */
+	public synchronized long getSamplingTime() {
+		return mSamplingTime;
+	}
+
+	/**
+	 * Returns copies of the statistics of all sites at which a lock was held or waited for,
+	 * ordered by the sum of {@link SiteStatistics#mHoldTime} and {@link SiteStatistics#mWaitTime},
+	 * descending. Holds which are in progress are not included yet. */
+	public synchronized ArrayList<SiteStatistics> getSiteStatistics() {
+		final ArrayList<SiteStatistics> result = new ArrayList<SiteStatistics>(mSites.size());
+		for(SiteStatistics site : mSites.values())
+			result.add(new SiteStatistics(site));
+
+		Collections.sort(result, new Comparator<SiteStatistics>() {
+			@Override public int compare(SiteStatistics a, SiteStatistics b) {
+				final long timeA = a.mHoldTime + a.mWaitTime;
+				final long timeB = b.mHoldTime + b.mWaitTime;
+				return timeA < timeB ? 1 : (timeA > timeB ? -1 : 0);
+			}
+		});
+
+		return result;
+	}
+
+	/**
+	 * Returns copies of the {@link #MAX_LONGEST_HOLDS} longest holds, including the ones which
+	 * are still in progress. Ordered by duration, descending. */
+	public synchronized ArrayList<Hold> getLongestHolds() {
+		final ArrayList<Hold> result = new ArrayList<Hold>(MAX_LONGEST_HOLDS + 1);
+		for(Hold hold : mLongestHolds)
+			result.add(new Hold(hold));
+
+		for(Hold hold : mCurrentHolds) {
+			if(hold != null) {
+				final Hold copy = new Hold(hold);
+				copy.mInProgress = true;
+				addLongestHold(result, copy);
+			}
+		}
+
+		return result;
+	}
+
+	/** Returns copies of the observed violations of the lock order, in order of discovery. */
+	public synchronized ArrayList<Violation> getViolations() {
+		final ArrayList<Violation> result = new ArrayList<Violation>(mViolations.size());
+		for(Violation violation : mViolations.values())
+			result.add(new Violation(violation));
+		return result;
+	}
+
+	/** Returns a human readable report of all statistics, for terminal output. */
+	public String getReport() {
+		final StringBuilder report = new StringBuilder();
+
+		report.append("Samples: ").append(getSampleCount())
+			.append(", interval: ").append(mSampleInterval).append("ms")
+			.append(", sampling time: ").append(TimeUnit.NANOSECONDS.toMillis(getSamplingTime()))
+			.append("ms\n\n");
+
+		report.append("Sites (holds, hold time, max hold time, wait time, caused wait time):\n");
+		for(SiteStatistics site : getSiteStatistics()) {
+			report.append(site.mSite).append(": ")
+				.append(site.mHolds).append(", ")
+				.append(TimeUnit.NANOSECONDS.toMillis(site.mHoldTime)).append("ms, ")
+				.append(TimeUnit.NANOSECONDS.toMillis(site.mMaxHoldTime)).append("ms, ")
+				.append(TimeUnit.NANOSECONDS.toMillis(site.mWaitTime)).append("ms, ")
+				.append(TimeUnit.NANOSECONDS.toMillis(site.mCausedWaitTime)).append("ms\n");
+		}
+
+		report.append("\nLongest holds:\n");
+		for(Hold hold : getLongestHolds()) {
+			report.append(hold.mSite).append(" by ").append(hold.mThreadName).append(": ")
+				.append(TimeUnit.NANOSECONDS.toMillis(hold.getDuration())).append("ms")
+				.append(hold.mInProgress ? " (in progress)" : "").append('\n')
+				.append(hold.mStack);
+		}
+
+		report.append("\nLock order violations:\n");
+		for(Violation violation : getViolations()) {
+			report.append(violation.mDescription).append(" by ").append(violation.mThreadName)
+				.append(", seen in ").append(violation.mSamples).append(" samples\n")
+				.append(violation.mStack);
+		}
+
+		return report.toString();
+	}
+
+	/** Statistics of a single site at which a lock was held or waited for. */
+	public static final class SiteStatistics {
+		/** Name of the lock and the stack frame at which it was acquired or waited for. */
+		public final String mSite;
+
+		/** Amount of observed holds. */
+		public long mHolds = 0;
+
+		/** Estimated total time for which the lock was held at this site, in nanoseconds. */
+		public long mHoldTime = 0;
+
+		/** Estimated duration of the longest hold, in nanoseconds. */
+		public long mMaxHoldTime = 0;
+
+		/** Estimated total time which threads spent waiting for the lock at this site, in
+		 *  nanoseconds. */
+		public long mWaitTime = 0;
+
+		/** Estimated total time which other threads spent waiting for the lock while it was held
+		 *  at this site, in nanoseconds. */
+		public long mCausedWaitTime = 0;
+
+		SiteStatistics(String site) {
+			mSite = site;
+		}
+
+		SiteStatistics(SiteStatistics original) {
+			mSite = original.mSite;
+			mHolds = original.mHolds;
+			mHoldTime = original.mHoldTime;
+			mMaxHoldTime = original.mMaxHoldTime;
+			mWaitTime = original.mWaitTime;
+			mCausedWaitTime = original.mCausedWaitTime;
+		}
+	}
+
+	/** A single hold of a lock by a thread, as observed by consecutive samples. */
+	public final class Hold {
+		/** @see SiteStatistics#mSite */
+		public final String mSite;
+
+		public final String mThreadName;
+
+		final long mThreadID;
+
+		/** {@link System#nanoTime()} of the first sample which observed the hold. */
+		final long mFirstSeen;
+
+		/** {@link System#nanoTime()} of the last sample which observed the hold. */
+		long mLastSeen;
+
+		/** The stack of the holder at the last sample, formatted as by
+		 *  {@link Throwable#printStackTrace()}. */
+		public String mStack;
+
+		/** True if the lock was still held at the last sample. */
+		public boolean mInProgress = false;
+
+		Hold(String site, String threadName, long threadID, long firstSeen) {
+			mSite = site;
+			mThreadName = threadName;
+			mThreadID = threadID;
+			mFirstSeen = firstSeen;
+			mLastSeen = firstSeen;
+		}
+
+		Hold(Hold original) {
+			mSite = original.mSite;
+			mThreadName = original.mThreadName;
+			mThreadID = original.mThreadID;
+			mFirstSeen = original.mFirstSeen;
+			mLastSeen = original.mLastSeen;
+			mStack = original.mStack;
+			mInProgress = original.mInProgress;
+		}
+
+		/**
+		 * Estimated duration in nanoseconds: The lock was acquired at most one sample interval
+		 * before the first sample which observed it, so one interval is added. */
+		public long getDuration() {
+			return mLastSeen - mFirstSeen + TimeUnit.MILLISECONDS.toNanos(mSampleInterval);
+		}
+	}
+
+	/** A violation of the lock order which was observed by one or more samples. */
+	public static final class Violation {
+		/** The sites of the two locks, see {@link SiteStatistics#mSite}. */
+		public final String mDescription;
+
+		/** Name of the thread of the first sample which observed it. */
+		public final String mThreadName;
+
+		/** Stack of {@link #mThreadName} at the first sample, formatted as by
+		 *  {@link Throwable#printStackTrace()}. */
+		public final String mStack;
+
+		/** Amount of samples which observed it. */
+		public long mSamples = 0;
+
+		Violation(String description, String threadName, String stack) {
+			mDescription = description;
+			mThreadName = threadName;
+			mStack = stack;
+		}
+
+		Violation(Violation original) {
+			this(original.mDescription, original.mThreadName, original.mStack);
+			mSamples = original.mSamples;
+		}
+	}
+}
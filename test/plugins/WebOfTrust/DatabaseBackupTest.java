@@ -0,0 +1,69 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/** Tests {@link DatabaseBackup}. */
+public final class DatabaseBackupTest extends AbstractJUnit3BaseTest {
+
+	private DatabaseBackup mBackup;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mBackup = new DatabaseBackup(mWoT, new File(getDatabaseFilename()), DAYS.toMillis(1), 2);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		for(int i = 1; i <= 3; ++i)
+			mBackup.getBackupFile(i).delete();
+
+		super.tearDown();
+	}
+
+	/** Checks whether the backup is a usable database with the same contents. */
+	public void testBackup() throws Exception {
+		final ArrayList<Identity> identities = addRandomIdentities(5);
+		identities.addAll(addRandomOwnIdentities(1));
+		addRandomTrustValues(identities, 10);
+
+		final File file = mBackup.backup();
+		assertEquals(mBackup.getBackupFile(1), file);
+		assertEquals(1, mBackup.getBackupCount());
+		assertEquals(0, mBackup.getFailureCount());
+		assertEquals(file.length(), mBackup.getLastSize());
+		assertNotNull(mBackup.getLastBackupDate());
+
+		final WebOfTrust backup = new WebOfTrust(file.getAbsolutePath());
+		try {
+			assertTrue(backup.verifyDatabaseIntegrity());
+			assertTrue(mWoT.equals(backup));
+		} finally {
+			backup.terminate();
+		}
+	}
+
+	/** Checks whether only the configured amount of backups is kept. */
+	public void testRotation() throws Exception {
+		final File first = mBackup.backup();
+		final long firstSize = first.length();
+		addRandomIdentities(50);
+		mBackup.backup();
+		mBackup.backup();
+
+		assertTrue(mBackup.getBackupFile(1).exists());
+		assertTrue(mBackup.getBackupFile(2).exists());
+		assertFalse(mBackup.getBackupFile(3).exists());
+		assertFalse(new File(getDatabaseFilename() + ".backup.old").exists());
+		assertFalse(new File(getDatabaseFilename() + ".backup.tmp").exists());
+		assertTrue(mBackup.getBackupFile(1).length() > firstSize);
+		assertEquals(3, mBackup.getBackupCount());
+	}
+}
@@ -0,0 +1,84 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/** Tests {@link DatabaseIntegrityVerifier}. */
+public final class DatabaseIntegrityVerifierTest extends AbstractJUnit3BaseTest {
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		final ArrayList<Identity> identities = addRandomIdentities(20);
+		identities.addAll(addRandomOwnIdentities(3));
+		addRandomTrustValues(identities, 100);
+	}
+
+	public void testVerify() throws Exception {
+		// A batch size which does not divide the amount of objects so the last batch is smaller
+		final DatabaseIntegrityVerifier verifier = new DatabaseIntegrityVerifier(mWoT, 4, 7, null);
+
+		synchronized(mWoT) {
+			assertTrue(verifier.verify());
+		}
+
+		assertTrue(verifier.getTotalObjects() > 100);
+		assertEquals(verifier.getTotalObjects(), verifier.getCheckedObjects());
+		assertEquals(0, verifier.getFailedObjects());
+		assertTrue(verifier.getObjectsPerSecond() > 0);
+
+		try {
+			verifier.verify();
+			fail("verify() should only be allowed once");
+		} catch(IllegalStateException e) {}
+	}
+
+	/** Checks whether a damaged object is found, and the other objects are checked anyway. */
+	public void testVerifyDamaged() throws Exception {
+		final Identity identity = mWoT.getAllNonOwnIdentities().get(0);
+		IdentityContext damaged;
+
+		synchronized(mWoT) {
+		synchronized(Persistent.transactionLock(mWoT.getDatabase())) {
+			// The Identity does not have the context, so the IdentityContext and the Identity
+			// fail their integrity test.
+			damaged = new IdentityContext(mWoT, identity, "NotAContextOfTheIdentity");
+			damaged.storeWithoutCommit();
+			Persistent.checkedCommit(mWoT.getDatabase(), this);
+		}}
+
+		final DatabaseIntegrityVerifier verifier = new DatabaseIntegrityVerifier(mWoT, 3, 5, null);
+		synchronized(mWoT) {
+			assertFalse(verifier.verify());
+		}
+		assertEquals(2, verifier.getFailedObjects());
+		assertEquals(verifier.getTotalObjects(), verifier.getCheckedObjects());
+
+		// Repair it so tearDown() does not fail
+		synchronized(mWoT) {
+		synchronized(Persistent.transactionLock(mWoT.getDatabase())) {
+			damaged.deleteWithoutCommit();
+			Persistent.checkedCommit(mWoT.getDatabase(), this);
+		}}
+	}
+
+	/** Tests the read-only mode which WOTUtil uses. */
+	public void testVerifyDatabaseFile() throws Exception {
+		final File file = new File(getDatabaseFilename());
+		final long size = file.length();
+		final long lastModified = file.lastModified();
+
+		mWoT.terminate();
+		assertTrue(mWoT.isTerminated());
+
+		assertTrue(DatabaseIntegrityVerifier.verifyDatabaseFile(file, 2, null));
+		assertEquals(size, file.length());
+		assertEquals(lastModified, file.lastModified());
+
+		mWoT = new WebOfTrust(getDatabaseFilename());
+	}
+}
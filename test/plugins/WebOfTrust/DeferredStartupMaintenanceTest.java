@@ -0,0 +1,92 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/** Tests {@link DeferredStartupMaintenance} and {@link StartupTimeline}. */
+public final class DeferredStartupMaintenanceTest extends TestCase {
+
+	private final StartupTimeline mTimeline = new StartupTimeline();
+
+	private final DeferredStartupMaintenance mMaintenance
+		= new DeferredStartupMaintenance(mTimeline);
+
+	private final ArrayList<String> mRunSteps = new ArrayList<String>();
+
+	private Runnable newStep(final String name) {
+		return new Runnable() {
+			@Override public void run() {
+				mRunSteps.add(name);
+			}
+		};
+	}
+
+	public void testTimeline() {
+		assertEquals(-1, mTimeline.getStartupDuration());
+
+		mTimeline.beginPhase("First");
+		mTimeline.beginPhase("Second");
+		assertEquals(1, mTimeline.getPhases().size());
+		mTimeline.finishStartup();
+
+		assertTrue(mTimeline.getStartupDuration() >= 0);
+		List<StartupTimeline.Phase> phases = mTimeline.getPhases();
+		assertEquals(2, phases.size());
+		assertEquals("First", phases.get(0).getName());
+		assertEquals("Second", phases.get(1).getName());
+		assertFalse(phases.get(1).isBackground());
+		assertTrue(phases.get(1).getStart() >= phases.get(0).getStart());
+		assertTrue(phases.get(0).getDuration() >= 0);
+	}
+
+	/** Each step must be run in order and recorded, even if a previous one failed. */
+	public void testRun() {
+		mMaintenance.add("First", newStep("First"));
+		mMaintenance.add("Failing", new Runnable() {
+			@Override public void run() {
+				throw new RuntimeException("Expected");
+			}
+		});
+		mMaintenance.add("Third", newStep("Third"));
+		try {
+			mMaintenance.add("First", newStep("First"));
+			fail("Duplicate step should not be accepted");
+		} catch(IllegalArgumentException e) {}
+
+		mTimeline.finishStartup();
+		mMaintenance.run();
+
+		assertEquals(2, mRunSteps.size());
+		assertEquals("First", mRunSteps.get(0));
+		assertEquals("Third", mRunSteps.get(1));
+		assertEquals(3, mMaintenance.getCompletedStepCount());
+
+		List<StartupTimeline.Phase> phases = mTimeline.getPhases();
+		assertEquals(3, phases.size());
+		for(StartupTimeline.Phase phase : phases)
+			assertTrue(phase.isBackground());
+		assertEquals("Failing", phases.get(1).getName());
+	}
+
+	/** An interrupted run, i.e. a stop() during shutdown, must not run further steps. */
+	public void testInterrupted() {
+		mMaintenance.add("Interrupting", new Runnable() {
+			@Override public void run() {
+				Thread.currentThread().interrupt();
+			}
+		});
+		mMaintenance.add("Second", newStep("Second"));
+
+		mMaintenance.run();
+		Thread.interrupted();
+
+		assertEquals(0, mRunSteps.size());
+		assertEquals(1, mMaintenance.getCompletedStepCount());
+		assertEquals(1, mTimeline.getPhases().size());
+	}
+}
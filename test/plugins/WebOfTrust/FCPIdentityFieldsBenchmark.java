@@ -0,0 +1,78 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.ui.fcp.FCPInterface;
+import plugins.WebOfTrust.ui.fcp.FCPInterface.IdentityFields;
+import freenet.clients.fcp.FCPPluginMessage;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * This is NOT an actual unit test. It is a benchmark which measures the reply size and handler
+ * latency of the FCP message "GetIdentities" for typical selections of its "Fields" parameter,
+ * see {@link IdentityFields}.
+ *
+ * Also, this is NOT run in the default test suite which is run by Ant when building.
+ * To run it, put "test.benchmark=true" into the "override.properties" build confiugration file. If it does not exist, create it in the root of the project.
+ */
+public final class FCPIdentityFieldsBenchmark extends AbstractJUnit3BaseTest {
+
+	public void test_BenchmarkGetIdentitiesFields() throws MalformedURLException,
+			InvalidParameterException {
+
+		// Benchmark parameters...
+
+		int identityCount = 1000;
+		int iterations = 20;
+		String[] projections = {
+			null, // = all fields, the behavior before the "Fields" parameter existed
+			"Nickname,URIs,FetchState,Contexts,Properties",
+			"Nickname,Contexts",
+			"Nickname",
+			""
+		};
+
+		// Random identity setup. Typical identities have some contexts and properties.
+
+		ArrayList<Identity> identities = addRandomIdentities(identityCount);
+		for(Identity identity : identities) {
+			identity.addContext("Introduction");
+			identity.addContext("Freetalk");
+			identity.setProperty("IntroductionPuzzleCount", "10");
+			identity.setProperty("Freetalk.Avatar", "CHK@" + identity.getID() + "/avatar.png");
+			identity.storeAndCommit();
+		}
+
+		FCPInterface fcp = mWoT.getFCPInterface();
+
+		// The actual benchmark
+
+		for(String projection : projections) {
+			SimpleFieldSet params = new SimpleFieldSet(true);
+			params.putOverwrite("Message", "GetIdentities");
+			if(projection != null)
+				params.putOverwrite("Fields", projection);
+
+			long time = 0;
+			long size = 0;
+			for(int i=0; i < iterations; ++i) {
+				FCPPluginMessage request = FCPPluginMessage.construct(params, null);
+				long startTime = System.nanoTime();
+				FCPPluginMessage reply = fcp.handlePluginFCPMessage(null, request);
+				long endTime = System.nanoTime();
+				assertTrue(reply.success);
+				time += endTime - startTime;
+				size += reply.params.toOrderedString().length();
+			}
+
+			System.out.println("GetIdentities, Fields=" + (projection != null ? projection : "<all>")
+				+ ": " + (size / iterations) + " characters/reply, "
+				+ (time / iterations / 1000) + " us/reply");
+		}
+	}
+}
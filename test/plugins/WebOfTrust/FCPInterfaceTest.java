@@ -0,0 +1,180 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import plugins.WebOfTrust.ui.fcp.FCPInterface;
+import plugins.WebOfTrust.ui.fcp.FCPInterface.IdentityFields;
+import freenet.clients.fcp.FCPPluginMessage;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Tests the "Fields" parameter of the {@link FCPInterface} messages "GetIdentities",
+ * "GetIdentitiesByScore" and "GetTrusters", see {@link IdentityFields}.
+ */
+public final class FCPInterfaceTest extends AbstractJUnit3BaseTest {
+
+	/** All {@link IdentityFields}, which must be equal to not specifying the parameter. */
+	private static final String ALL_FIELDS = "ID,Nickname,URIs,FetchState,Contexts,Properties,Legacy";
+
+	private OwnIdentity mTruster;
+
+	private Identity mTrustee;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mTruster = addRandomOwnIdentities(1).get(0);
+		mTrustee = addRandomIdentities(1).get(0);
+
+		// The groups of fields which the tests deselect must not be empty
+		for(Identity identity : new Identity[] { mTruster, mTrustee }) {
+			identity.addContext("Test");
+			identity.setProperty("TestProperty", "TestValue");
+			identity.storeAndCommit();
+		}
+
+		mWoT.setTrust(mTruster.getID(), mTrustee.getID(), (byte)50, "Test");
+	}
+
+	public void testGetIdentitiesFields() throws Exception {
+		final SimpleFieldSet reply = call(getIdentities("ID,Nickname"));
+		assertEquals("Identities", reply.get("Message"));
+		final int amount = reply.getInt("Identities.Amount");
+		assertEquals(mWoT.getAllIdentities().size(), amount);
+
+		for(int i = 0; i < amount; ++i) {
+			final String prefix = "Identities." + i + ".";
+			final Identity identity = mWoT.getIdentityByID(reply.get(prefix + "ID"));
+			assertEquals(identity.getNickname(), reply.get(prefix + "Nickname"));
+			assertNotNull(reply.get(prefix + "Type"));
+			assertEquals(identity.getVersionID().toString(), reply.get(prefix + "VersionID"));
+		}
+
+		for(String key : getKeys(reply)) {
+			assertTrue(key, key.equals("Message") || key.equals("Identities.Amount")
+				|| key.matches("Identities\\.\\d+\\.(ID|Type|VersionID|Nickname)"));
+		}
+	}
+
+	public void testGetIdentitiesByScoreFields() throws Exception {
+		final SimpleFieldSet reply = call(getIdentitiesByScore("ID,Nickname"));
+		final String prefix = "Identities." + getIndex(reply, mTrustee) + ".";
+		final Identity trustee = mWoT.getIdentityByID(mTrustee.getID());
+		assertEquals(trustee.getNickname(), reply.get(prefix + "Nickname"));
+		assertEquals("Identity", reply.get(prefix + "Type"));
+		assertEquals(trustee.getVersionID().toString(), reply.get(prefix + "VersionID"));
+
+		for(String key : getKeys(reply)) {
+			assertFalse(key, key.contains("Contexts") || key.contains("Properties"));
+			// Without IdentityFields.Legacy, only the prefixed fields may be present.
+			assertTrue(key, key.equals("Message") || key.equals("Amount")
+				|| key.startsWith("Identities.") || key.startsWith("Scores."));
+		}
+	}
+
+	public void testGetTrustersFields() throws Exception {
+		final SimpleFieldSet params = new SimpleFieldSet(true);
+		params.putOverwrite("Message", "GetTrusters");
+		params.putOverwrite("Identity", mTrustee.getID());
+		params.putOverwrite("Context", "");
+		params.putOverwrite("Fields", "ID,Nickname");
+
+		final SimpleFieldSet reply = call(params);
+		assertEquals(1, reply.getInt("Amount"));
+		assertEquals(mTruster.getID(), reply.get("Identity0"));
+		assertEquals(mTruster.getNickname(), reply.get("Nickname0"));
+		assertEquals("50", reply.get("Value0"));
+		assertNull(reply.get("RequestURI0"));
+
+		for(String key : getKeys(reply))
+			assertFalse(key, key.startsWith("Contexts") || key.startsWith("Properties"));
+	}
+
+	/** An unknown value in "Fields" must cause an error reply instead of being ignored. */
+	public void testUnknownField() throws Exception {
+		for(SimpleFieldSet params : new SimpleFieldSet[] {
+				getIdentities("ID,NoSuchField"), getIdentitiesByScore("ID,NoSuchField") }) {
+
+			final FCPPluginMessage reply = mWoT.getFCPInterface().handlePluginFCPMessage(null,
+				FCPPluginMessage.construct(params, null));
+			assertFalse(reply.success);
+			assertEquals("Error", reply.params.get("Message"));
+			assertTrue(reply.errorMessage, reply.errorMessage.contains("NoSuchField"));
+		}
+	}
+
+	/** Not specifying "Fields" must return all fields, including the legacy ones. */
+	public void testAllFields() throws Exception {
+		SimpleFieldSet reply = call(getIdentities(null));
+		assertEquals(call(getIdentities(ALL_FIELDS)).toOrderedString(), reply.toOrderedString());
+		String prefix = "Identities." + getIndex(reply, mTrustee) + ".";
+		assertEquals(mTrustee.getID(), reply.get(prefix + "Identity"));
+		assertEquals(mTrustee.getRequestURI().toString(), reply.get(prefix + "RequestURI"));
+		assertEquals("Test", reply.get(prefix + "Contexts.0.Name"));
+		assertEquals("TestValue", reply.get(prefix + "Properties.0.Value"));
+		assertNotNull(reply.get(prefix + "CurrentEditionFetchState"));
+
+		reply = call(getIdentitiesByScore(null));
+		assertEquals(call(getIdentitiesByScore(ALL_FIELDS)).toOrderedString(),
+			reply.toOrderedString());
+		final int index = getIndex(reply, mTrustee);
+		prefix = "Identities." + index + ".";
+		assertEquals("Test", reply.get(prefix + "Contexts.0.Name"));
+		assertEquals("TestValue", reply.get(prefix + "Properties.0.Value"));
+		// Legacy fields
+		assertEquals(mTrustee.getID(), reply.get("Identity" + index));
+		assertEquals(mTrustee.getNickname(), reply.get("Nickname" + index));
+		assertEquals("Test", reply.get("Contexts" + index + ".Context0"));
+		assertEquals("TestValue", reply.get("Properties" + index + ".Property0.Value"));
+	}
+
+	/** @param fields The value of the "Fields" parameter, or null to not specify it. */
+	private SimpleFieldSet getIdentities(String fields) {
+		final SimpleFieldSet params = new SimpleFieldSet(true);
+		params.putOverwrite("Message", "GetIdentities");
+		if(fields != null)
+			params.putOverwrite("Fields", fields);
+		return params;
+	}
+
+	/** @param fields The value of the "Fields" parameter, or null to not specify it. */
+	private SimpleFieldSet getIdentitiesByScore(String fields) {
+		final SimpleFieldSet params = new SimpleFieldSet(true);
+		params.putOverwrite("Message", "GetIdentitiesByScore");
+		params.putOverwrite("Truster", mTruster.getID());
+		params.putOverwrite("Selection", "+");
+		params.putOverwrite("Context", "Test");
+		if(fields != null)
+			params.putOverwrite("Fields", fields);
+		return params;
+	}
+
+	/** Returns the index of the given identity in the "Identities.*" fields of the reply. */
+	private int getIndex(SimpleFieldSet reply, Identity identity) throws Exception {
+		for(int i = 0; i < reply.getInt("Identities.Amount"); ++i) {
+			if(identity.getID().equals(reply.get("Identities." + i + ".ID")))
+				return i;
+		}
+		fail("Identity not found: " + identity);
+		return -1;
+	}
+
+	private static ArrayList<String> getKeys(SimpleFieldSet sfs) {
+		final ArrayList<String> result = new ArrayList<String>();
+		for(Iterator<String> i = sfs.keyIterator(); i.hasNext(); )
+			result.add(i.next());
+		return result;
+	}
+
+	private SimpleFieldSet call(SimpleFieldSet params) {
+		FCPPluginMessage reply = mWoT.getFCPInterface().handlePluginFCPMessage(null,
+			FCPPluginMessage.construct(params, null));
+		assertTrue(reply.success);
+		return reply.params;
+	}
+}
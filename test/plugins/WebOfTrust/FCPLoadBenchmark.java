@@ -0,0 +1,392 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import plugins.WebOfTrust.ui.fcp.DebugFCPClient;
+import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation;
+import plugins.WebOfTrust.ui.fcp.FCPInterface;
+import plugins.WebOfTrust.ui.fcp.FCPInterface.MessageStatistics;
+import plugins.WebOfTrust.ui.terminal.WOTUtil;
+import plugins.WebOfTrust.util.StopWatch;
+import freenet.clients.fcp.FCPPluginConnection;
+import freenet.clients.fcp.FCPPluginMessage;
+import freenet.pluginmanager.FredPluginFCPMessageHandler;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * This is NOT an actual unit test. It is a load generator which measures how many FCP requests
+ * per second WoT can serve, and how the delivery of event-notifications scales with the amount of
+ * subscribed clients.<br>
+ * It simulates N clients, each with its own {@link FCPPluginConnection} to an in-process WoT,
+ * which send a weighted random mix of FCP messages, see {@link #MIXES}. Like
+ * {@link DebugFCPClient}, the clients can subscribe to event-notifications. For each
+ * combination of client count and mix, it prints the throughput, the p50/p99 latency of each
+ * message type and the lock wait time as measured by {@link FCPInterface#getMessageStatistics()}.
+ * <br><br>
+ *
+ * Unlike {@link WOTUtil#fcpCall(WebOfTrust, FCPPluginMessage)}, it uses real connections as
+ * "Subscribe" requires them. The node has no network connections, so it runs offline.<br>
+ * As the WoT threads are terminated by {@link AbstractSingleNodeTest}, the notifications are
+ * delivered by a thread which calls {@link SubscriptionManager#run()} periodically.<br><br>
+ *
+ * Also, this is NOT run in the default test suite which is run by Ant when building.
+ * To run it, put "test.benchmark=true" into the "override.properties" build confiugration file. If it does not exist, create it in the root of the project.
+ */
+public final class FCPLoadBenchmark extends AbstractSingleNodeTest {
+
+	/** A weighted mix of FCP messages which each simulated client sends. */
+	@Ignore
+	static final class LoadMix {
+		final String mName;
+
+		/** The values of the "Message" field, see {@link FCPLoadBenchmark#constructRequest(
+		 *  String, Random)} for the supported ones. */
+		final String[] mMessages;
+
+		/** The relative frequency of the message with the same index in {@link #mMessages}. */
+		final int[] mWeights;
+
+		/** The types which each client subscribes to before sending the messages. Passed as the
+		 *  "To" field of the "Subscribe" message. */
+		final String[] mSubscribeTo;
+
+		LoadMix(String name, String[] messages, int[] weights, String[] subscribeTo) {
+			assert(messages.length == weights.length);
+			mName = name;
+			mMessages = messages;
+			mWeights = weights;
+			mSubscribeTo = subscribeTo;
+		}
+
+		String pickMessage(Random random) {
+			int totalWeight = 0;
+			for(int weight : mWeights)
+				totalWeight += weight;
+
+			int pick = random.nextInt(totalWeight);
+			for(int i = 0; i < mMessages.length; ++i) {
+				pick -= mWeights[i];
+				if(pick < 0)
+					return mMessages[i];
+			}
+			throw new IllegalStateException();
+		}
+	}
+
+	// Benchmark parameters...
+
+	static final int OWN_IDENTITY_COUNT = 10;
+
+	static final int IDENTITY_COUNT = 300;
+
+	static final int TRUST_COUNT = 3000;
+
+	static final int[] CLIENT_COUNTS = { 1, 4, 16 };
+
+	/** The amount of messages each client sends per run. */
+	static final int REQUESTS_PER_CLIENT = 500;
+
+	static final LoadMix[] MIXES = {
+		new LoadMix("Read-mostly",
+			new String[] { "GetScore", "GetIdentity", "GetTrusters", "GetIdentitiesByScore",
+			               "SetTrust" },
+			new int[]    { 40, 30, 20, 5, 5 },
+			new String[] { }),
+		new LoadMix("Write-heavy",
+			new String[] { "GetScore", "GetIdentity", "SetTrust" },
+			new int[]    { 30, 20, 50 },
+			new String[] { }),
+		new LoadMix("Read-mostly, subscribed",
+			new String[] { "GetScore", "GetIdentity", "GetTrusters", "GetIdentitiesByScore",
+			               "SetTrust" },
+			new int[]    { 40, 30, 20, 5, 5 },
+			new String[] { "Identities", "Trusts", "Scores" })
+	};
+
+
+	ArrayList<OwnIdentity> mOwnIdentities;
+
+	ArrayList<Identity> mIdentities;
+
+	@Override public String getDetailedLogLevel() {
+		// Logging of each FCP message would distort the measurements.
+		return "freenet:NONE,plugins.WebOfTrust:ERROR";
+	}
+
+	@Test public void test_BenchmarkFCPLoad() throws Exception {
+		deleteSeedIdentities();
+
+		mOwnIdentities = addRandomOwnIdentities(OWN_IDENTITY_COUNT);
+		mIdentities = addRandomIdentities(IDENTITY_COUNT);
+		mIdentities.addAll(mOwnIdentities);
+		addRandomTrustValues(mIdentities, TRUST_COUNT);
+
+		for(LoadMix mix : MIXES) {
+			for(int clientCount : CLIENT_COUNTS)
+				runLoad(mix, clientCount);
+		}
+	}
+
+	/**
+	 * Counts the event-notifications which a simulated client receives. The notifications are
+	 * acknowledged immediately, so the measurement is not slowed down by the client. */
+	@Ignore
+	static final class NotificationCounter
+			implements FredPluginFCPMessageHandler.ClientSideFCPMessageHandler {
+
+		final AtomicLong mNotifications;
+
+		NotificationCounter(AtomicLong notifications) {
+			mNotifications = notifications;
+		}
+
+		@Override public FCPPluginMessage handlePluginFCPMessage(FCPPluginConnection connection,
+				FCPPluginMessage message) {
+
+			String type = message.params.get("Message");
+			if("NotificationBatch".equals(type))
+				mNotifications.addAndGet(message.params.getInt("Amount", 0));
+			else if("ObjectChangedEvent".equals(type))
+				mNotifications.incrementAndGet();
+
+			return message.isReplyMessage() ? null
+				: FCPPluginMessage.constructSuccessReply(message);
+		}
+	}
+
+	void runLoad(final LoadMix mix, final int clientCount) throws Exception {
+		final AtomicLong notifications = new AtomicLong(0);
+		final ArrayList<FCPPluginConnection> connections
+			= new ArrayList<FCPPluginConnection>(clientCount);
+		final ArrayList<String> subscriptionIDs = new ArrayList<String>();
+
+		for(int i = 0; i < clientCount; ++i) {
+			FCPPluginConnection connection = mWebOfTrust.getPluginRespirator()
+				.connectToOtherPlugin(FCPClientReferenceImplementation.WOT_FCP_NAME,
+					new NotificationCounter(notifications));
+			connections.add(connection);
+
+			for(String type : mix.mSubscribeTo) {
+				SimpleFieldSet params = new SimpleFieldSet(true);
+				params.putOverwrite("Message", "Subscribe");
+				params.putOverwrite("To", type);
+				params.put("AcceptsNotificationBatches", true);
+				FCPPluginMessage reply = send(connection, params);
+				assertTrue(reply.success);
+				subscriptionIDs.add(reply.params.get("SubscriptionID"));
+			}
+		}
+
+		// Deliver the initial synchronizations of the subscriptions before measuring.
+		deliverAllNotifications(notifications);
+		notifications.set(0);
+
+		final HashMap<String, MessageStatistics> statisticsBefore = getMessageStatistics();
+
+		// The notifications are delivered concurrently to the load as WoT would do it.
+		final AtomicLong deliveryNanos = new AtomicLong(0);
+		final Thread deliveryThread = new Thread("FCPLoadBenchmark delivery") {
+			@Override public void run() {
+				try {
+					while(!isInterrupted()) {
+						long start = System.nanoTime();
+						mWebOfTrust.getSubscriptionManager().run();
+						deliveryNanos.addAndGet(System.nanoTime() - start);
+						Thread.sleep(100);
+					}
+				} catch(InterruptedException e) {
+					// Benchmark run finished.
+				}
+			}
+		};
+
+		final long[][] latencies = new long[clientCount][REQUESTS_PER_CLIENT];
+		final String[][] messages = new String[clientCount][REQUESTS_PER_CLIENT];
+		final Throwable[] failure = new Throwable[1];
+		final ArrayList<Thread> clients = new ArrayList<Thread>(clientCount);
+		for(int i = 0; i < clientCount; ++i) {
+			final int client = i;
+			final Random random = new Random(mRandom.nextLong());
+			clients.add(new Thread("FCPLoadBenchmark client " + client) {
+				@Override public void run() {
+					try {
+						for(int request = 0; request < REQUESTS_PER_CLIENT; ++request) {
+							String message = mix.pickMessage(random);
+							SimpleFieldSet params = constructRequest(message, random);
+							long start = System.nanoTime();
+							FCPPluginMessage reply = send(connections.get(client), params);
+							latencies[client][request] = System.nanoTime() - start;
+							messages[client][request] = message;
+							if(!reply.success)
+								throw new RuntimeException("Request failed: " + reply);
+						}
+					} catch(Throwable t) {
+						synchronized(failure) {
+							failure[0] = t;
+						}
+					}
+				}
+			});
+		}
+
+		StopWatch time = new StopWatch();
+		deliveryThread.start();
+		for(Thread client : clients)
+			client.start();
+		for(Thread client : clients)
+			client.join();
+		time.stop();
+
+		deliveryThread.interrupt();
+		deliveryThread.join();
+		StopWatch drainTime = new StopWatch();
+		deliverAllNotifications(notifications);
+		drainTime.stop();
+
+		synchronized(failure) {
+			if(failure[0] != null)
+				throw new RuntimeException(failure[0]);
+		}
+
+		// The Subscriptions belong to the clients, not to the connections, so any connection
+		// can be used to terminate them.
+		for(String id : subscriptionIDs) {
+			SimpleFieldSet params = new SimpleFieldSet(true);
+			params.putOverwrite("Message", "Unsubscribe");
+			params.putOverwrite("SubscriptionID", id);
+			assertTrue(send(connections.get(0), params).success);
+		}
+
+		// Output
+
+		final int requests = clientCount * REQUESTS_PER_CLIENT;
+		System.out.println("FCPLoadBenchmark: Mix: " + mix.mName + "; Clients: " + clientCount
+			+ "; Requests: " + requests + "; Time: " + time
+			+ "; Throughput: " + (long)(requests / ((double)time.getNanos() / SECONDS.toNanos(1)))
+			+ " requests/s");
+
+		final TreeMap<String, ArrayList<Long>> latenciesByMessage
+			= new TreeMap<String, ArrayList<Long>>();
+		for(int client = 0; client < clientCount; ++client) {
+			for(int request = 0; request < REQUESTS_PER_CLIENT; ++request) {
+				ArrayList<Long> list = latenciesByMessage.get(messages[client][request]);
+				if(list == null) {
+					list = new ArrayList<Long>();
+					latenciesByMessage.put(messages[client][request], list);
+				}
+				list.add(latencies[client][request]);
+			}
+		}
+
+		final HashMap<String, MessageStatistics> statisticsAfter = getMessageStatistics();
+		for(String message : latenciesByMessage.keySet()) {
+			List<Long> list = latenciesByMessage.get(message);
+			long[] sorted = new long[list.size()];
+			for(int i = 0; i < sorted.length; ++i)
+				sorted[i] = list.get(i);
+			Arrays.sort(sorted);
+
+			MessageStatistics before = statisticsBefore.get(message);
+			MessageStatistics after = statisticsAfter.get(message);
+			long lockWait = after.mLockWaitTimeMilliseconds
+				- (before != null ? before.mLockWaitTimeMilliseconds : 0);
+
+			System.out.println("    " + message + ": Requests: " + sorted.length
+				+ "; p50: " + NANOSECONDS.toMicros(percentile(sorted, 50)) + " us"
+				+ "; p99: " + NANOSECONDS.toMicros(percentile(sorted, 99)) + " us"
+				+ (!mWebOfTrust.getFCPInterface().isDetailedStatisticsEnabled()
+					? "; Lock wait: not measured, see Configuration.FCP_DETAILED_STATISTICS_ENABLED"
+					: "; Lock wait: " + lockWait + " ms total, "
+						+ (lockWait * MILLISECONDS.toMicros(1) / sorted.length) + " us/request"));
+		}
+
+		if(mix.mSubscribeTo.length > 0) {
+			System.out.println("    Notifications: " + notifications.get()
+				+ " (" + (notifications.get() / clientCount) + " per client)"
+				+ "; Delivery time: " + NANOSECONDS.toMillis(deliveryNanos.get()) + " ms"
+				+ " + " + drainTime + " after the load");
+		}
+	}
+
+	/**
+	 * Returns the FCP message of the given type with random parameters which will succeed.
+	 * Supported types: GetScore, GetIdentity, GetTrusters, GetIdentitiesByScore, SetTrust */
+	SimpleFieldSet constructRequest(String message, Random random) {
+		final OwnIdentity truster = mOwnIdentities.get(random.nextInt(mOwnIdentities.size()));
+		Identity trustee;
+		do {
+			trustee = mIdentities.get(random.nextInt(mIdentities.size()));
+		} while(trustee == truster);
+
+		SimpleFieldSet params = new SimpleFieldSet(true);
+		params.putOverwrite("Message", message);
+
+		if(message.equals("GetScore")) {
+			params.putOverwrite("Truster", truster.getID());
+			params.putOverwrite("Trustee", trustee.getID());
+		} else if(message.equals("GetIdentity")) {
+			params.putOverwrite("Truster", truster.getID());
+			params.putOverwrite("Identity", trustee.getID());
+		} else if(message.equals("GetTrusters")) {
+			params.putOverwrite("Identity", trustee.getID());
+			params.putOverwrite("Context", "");
+		} else if(message.equals("GetIdentitiesByScore")) {
+			params.putOverwrite("Truster", truster.getID());
+			params.putOverwrite("Selection", "+");
+			params.putOverwrite("Context", "");
+		} else if(message.equals("SetTrust")) {
+			params.putOverwrite("Truster", truster.getID());
+			params.putOverwrite("Trustee", trustee.getID());
+			params.put("Value", random.nextInt(201) - 100);
+			params.putOverwrite("Comment", "FCPLoadBenchmark");
+		} else
+			throw new UnsupportedOperationException(message);
+
+		return params;
+	}
+
+	static FCPPluginMessage send(FCPPluginConnection connection, SimpleFieldSet params)
+			throws Exception {
+		// Use a lengthy 60 second timeout because Gradle runs multiple unit tests in parallel.
+		return connection.sendSynchronous(FCPPluginMessage.construct(params, null),
+			SECONDS.toNanos(60));
+	}
+
+	/** Calls {@link SubscriptionManager#run()} until no more notifications arrive. */
+	void deliverAllNotifications(AtomicLong notifications) {
+		long previous;
+		do {
+			previous = notifications.get();
+			mWebOfTrust.getSubscriptionManager().run();
+		} while(notifications.get() != previous);
+	}
+
+	HashMap<String, MessageStatistics> getMessageStatistics() {
+		HashMap<String, MessageStatistics> result = new HashMap<String, MessageStatistics>();
+		for(MessageStatistics statistics : mWebOfTrust.getFCPInterface().getMessageStatistics())
+			result.put(statistics.mMessage, statistics);
+		return result;
+	}
+
+	static long percentile(long[] sorted, int percentile) {
+		int index = (int)Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+}
@@ -0,0 +1,163 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+
+import plugins.WebOfTrust.ui.fcp.FCPInterface;
+import plugins.WebOfTrust.ui.fcp.FCPInterface.MessageStatistics;
+import plugins.WebOfTrust.ui.fcp.FCPResponseCache;
+import freenet.clients.fcp.FCPPluginMessage;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Tests the cache of the replies of read-only messages of the {@link FCPInterface}, see
+ * {@link FCPResponseCache}.
+ */
+public final class FCPResponseCacheTest extends AbstractJUnit3BaseTest {
+
+	private OwnIdentity mTruster;
+
+	private Identity mTrustee;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mTruster = addRandomOwnIdentities(1).get(0);
+		mTrustee = addRandomIdentities(1).get(0);
+		mWoT.setTrust(mTruster.getID(), mTrustee.getID(), (byte)50, "Test");
+	}
+
+	/**
+	 * Sends "GetTrust" twice and checks whether the second one is answered from the cache. Then
+	 * changes the Trust and checks whether the cache returns the new value.
+	 */
+	public void testInvalidation() throws Exception {
+		assertEquals("50", getTrustValue());
+		assertEquals(0, getCacheHits("GetTrust"));
+
+		assertEquals("50", getTrustValue());
+		assertEquals(1, getCacheHits("GetTrust"));
+
+		mWoT.setTrust(mTruster.getID(), mTrustee.getID(), (byte)-10, "Test");
+		assertEquals("-10", getTrustValue());
+		assertEquals(1, getCacheHits("GetTrust"));
+
+		assertEquals("-10", getTrustValue());
+		assertEquals(2, getCacheHits("GetTrust"));
+		assertTrue(mWoT.getFCPInterface().getResponseCacheStatistics().mInvalidations >= 1);
+
+		mWoT.removeTrust(mTruster.getID(), mTrustee.getID());
+		assertEquals("Nonexistent", getTrustValue());
+		assertEquals(2, getCacheHits("GetTrust"));
+	}
+
+	/**
+	 * Checks whether a change only invalidates the replies which depend on the changed type of
+	 * objects: Adding an identity must not invalidate "GetTrust", but must invalidate
+	 * "GetTrustersCount".
+	 */
+	public void testInvalidationByType() throws Exception {
+		assertEquals("50", getTrustValue());
+		assertEquals(1, getTrustersCount());
+
+		addRandomIdentities(1);
+
+		assertEquals("50", getTrustValue());
+		assertEquals(1, getCacheHits("GetTrust"));
+		assertEquals(1, getTrustersCount());
+		assertEquals(0, getCacheHits("GetTrustersCount"));
+	}
+
+	/**
+	 * {@link WebOfTrust#verifyAndCorrectTrustCounts()} changes the counters without handing out a
+	 * change sequence number. The cached replies which contain them must be invalidated anyway.
+	 */
+	public void testInvalidationByTrustCountCorrection() throws Exception {
+		synchronized(mWoT) {
+		synchronized(Persistent.transactionLock(mWoT.getDatabase())) {
+			final Identity trustee = mWoT.getIdentityByID(mTrustee.getID());
+			trustee.setTrustCounts(new int[] { 0, 0, 0, 0, 0, 0 });
+			trustee.storeTrustCountsWithoutCommit();
+			Persistent.checkedCommit(mWoT.getDatabase(), this);
+		}}
+		assertEquals(0, getTrustersCount());
+		assertEquals(0, getTrustersCount());
+		assertEquals(1, getCacheHits("GetTrustersCount"));
+
+		assertFalse(mWoT.verifyAndCorrectTrustCounts());
+		assertEquals(1, getTrustersCount());
+		assertEquals(1, getCacheHits("GetTrustersCount"));
+	}
+
+	/**
+	 * Checks whether the order of the parameters of the request does not matter, and whether
+	 * different parameters are cached separately.
+	 */
+	public void testKey() throws Exception {
+		SimpleFieldSet params = new SimpleFieldSet(true);
+		params.putOverwrite("Message", "GetTrustersCount");
+		params.putOverwrite("Identity", mTrustee.getID());
+		assertEquals(1, call(params).getInt("Value"));
+
+		params = new SimpleFieldSet(true);
+		params.putOverwrite("Identity", mTrustee.getID());
+		params.putOverwrite("Message", "GetTrustersCount");
+		assertEquals(1, call(params).getInt("Value"));
+		assertEquals(1, getCacheHits("GetTrustersCount"));
+
+		params = new SimpleFieldSet(true);
+		params.putOverwrite("Message", "GetTrustersCount");
+		params.putOverwrite("Identity", mTruster.getID());
+		assertEquals(0, call(params).getInt("Value"));
+		assertEquals(1, getCacheHits("GetTrustersCount"));
+	}
+
+	/** Checks whether modifying a reply does not modify the cached reply. */
+	public void testRepliesAreCopied() throws Exception {
+		SimpleFieldSet params = new SimpleFieldSet(true);
+		params.putOverwrite("Message", "GetTrust");
+		params.putOverwrite("Truster", mTruster.getID());
+		params.putOverwrite("Trustee", mTrustee.getID());
+
+		call(params).putOverwrite("Trusts.0.Value", "100");
+		assertEquals("50", call(params).get("Trusts.0.Value"));
+		call(params).putOverwrite("Trusts.0.Value", "100");
+		assertEquals("50", call(params).get("Trusts.0.Value"));
+		assertEquals(3, getCacheHits("GetTrust"));
+	}
+
+	private String getTrustValue() throws Exception {
+		SimpleFieldSet params = new SimpleFieldSet(true);
+		params.putOverwrite("Message", "GetTrust");
+		params.putOverwrite("Truster", mTruster.getID());
+		params.putOverwrite("Trustee", mTrustee.getID());
+		return call(params).get("Trusts.0.Value");
+	}
+
+	private int getTrustersCount() throws Exception {
+		SimpleFieldSet params = new SimpleFieldSet(true);
+		params.putOverwrite("Message", "GetTrustersCount");
+		params.putOverwrite("Identity", mTrustee.getID());
+		return call(params).getInt("Value");
+	}
+
+	private SimpleFieldSet call(SimpleFieldSet params) {
+		FCPPluginMessage reply = mWoT.getFCPInterface().handlePluginFCPMessage(null,
+			FCPPluginMessage.construct(params, null));
+		assertTrue(reply.success);
+		return reply.params;
+	}
+
+	private long getCacheHits(String message) {
+		ArrayList<MessageStatistics> statistics = mWoT.getFCPInterface().getMessageStatistics();
+		for(MessageStatistics s : statistics) {
+			if(s.mMessage.equals(message))
+				return s.mCacheHits;
+		}
+		fail("No statistics for " + message);
+		return -1;
+	}
+}
@@ -0,0 +1,165 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+
+import com.db4o.ext.ExtObjectContainer;
+
+/** Tests {@link GroupCommit} and {@link Persistent.DurabilityCallback}. */
+public final class GroupCommitTest extends AbstractJUnit3BaseTest {
+
+	private ExtObjectContainer mDB;
+
+	private GroupCommit mGroupCommit = null;
+
+	private OwnIdentity mTruster;
+
+	private Identity mTrustee;
+
+	/** Counts the notifications it receives. */
+	private static final class Callback implements Persistent.DurabilityCallback {
+		final CountDownLatch mDurable = new CountDownLatch(1);
+
+		int mRolledBack = 0;
+
+		@Override public void onDurable() {
+			mDurable.countDown();
+		}
+
+		@Override public void onRolledBack() {
+			++mRolledBack;
+		}
+
+		boolean isDurable() {
+			return mDurable.getCount() == 0;
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mDB = mWoT.getDatabase();
+		mTruster = addRandomOwnIdentities(1).get(0);
+		mTrustee = addRandomIdentities(1).get(0);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if(mGroupCommit != null)
+			mGroupCommit.stop();
+
+		super.tearDown();
+	}
+
+	/** Sets a trust value and commits it with the given callback. */
+	private void setTrust(Persistent.DurabilityCallback callback) throws Exception {
+		synchronized(mWoT) {
+		synchronized(Persistent.transactionLock(mDB)) {
+			mWoT.setTrustWithoutCommit(mWoT.getOwnIdentityByID(mTruster.getID()),
+				mWoT.getIdentityByID(mTrustee.getID()), (byte)10, "");
+			Persistent.checkedCommit(mDB, this, callback);
+		}
+		}
+	}
+
+	/** Without a running GroupCommit, the commit must happen immediately. */
+	public void testDisabled() throws Exception {
+		final Callback callback = new Callback();
+		setTrust(callback);
+		assertTrue(callback.isDurable());
+		assertEquals(0, callback.mRolledBack);
+	}
+
+	/** A regular commit must include the deferred commits. */
+	public void testRegularCommit() throws Exception {
+		mGroupCommit = new GroupCommit(mDB, TimeUnit.HOURS.toMillis(1));
+		mGroupCommit.start();
+
+		final Callback first = new Callback();
+		final Callback second = new Callback();
+		setTrust(first);
+		setTrust(second);
+		assertFalse(first.isDurable());
+		assertFalse(second.isDurable());
+
+		synchronized(Persistent.transactionLock(mDB)) {
+			Persistent.checkedCommit(mDB, this);
+		}
+		assertTrue(first.isDurable());
+		assertTrue(second.isDurable());
+		assertEquals(2, mGroupCommit.getTotalDeferredCommits());
+		assertEquals(1, mGroupCommit.getGroupCommits());
+	}
+
+	/** The thread of the GroupCommit must commit after the delay. */
+	public void testDelay() throws Exception {
+		mGroupCommit = new GroupCommit(mDB, 10);
+		mGroupCommit.start();
+
+		final Callback callback = new Callback();
+		setTrust(callback);
+		assertTrue(callback.mDurable.await(1, TimeUnit.MINUTES));
+		assertEquals(1, mGroupCommit.getGroupCommits());
+	}
+
+	/** Stopping the GroupCommit must commit the deferred commits. */
+	public void testStop() throws Exception {
+		mGroupCommit = new GroupCommit(mDB, TimeUnit.HOURS.toMillis(1));
+		mGroupCommit.start();
+
+		final Callback callback = new Callback();
+		setTrust(callback);
+		mGroupCommit.stop();
+		assertTrue(callback.isDurable());
+
+		final Callback afterStop = new Callback();
+		setTrust(afterStop);
+		assertTrue(afterStop.isDurable());
+	}
+
+	/** A rollback must discard the deferred commits and notify their callbacks. */
+	public void testRollback() throws Exception {
+		mGroupCommit = new GroupCommit(mDB, TimeUnit.HOURS.toMillis(1));
+		mGroupCommit.start();
+
+		final Callback callback = new Callback();
+		setTrust(callback);
+		mWoT.getTrust(mTruster.getID(), mTrustee.getID());
+
+		synchronized(Persistent.transactionLock(mDB)) {
+			Persistent.checkedRollback(mDB, this, null);
+		}
+		assertFalse(callback.isDurable());
+		assertEquals(1, callback.mRolledBack);
+		assertEquals(1, mGroupCommit.getRolledBackCommits());
+
+		try {
+			mWoT.getTrust(mTruster.getID(), mTrustee.getID());
+			fail("Rolled back Trust should not be returned");
+		} catch(NotTrustedException e) {}
+	}
+
+	/** Deferred commits must be committed before a rollback by {@link Persistent#commitDeferred(
+	 *  ExtObjectContainer, Object)}. */
+	public void testCommitDeferred() throws Exception {
+		mGroupCommit = new GroupCommit(mDB, TimeUnit.HOURS.toMillis(1));
+		mGroupCommit.start();
+
+		final Callback callback = new Callback();
+		setTrust(callback);
+
+		synchronized(Persistent.transactionLock(mDB)) {
+			Persistent.commitDeferred(mDB, this);
+			Persistent.checkedRollback(mDB, this, null);
+		}
+		assertTrue(callback.isDurable());
+		assertEquals(0, callback.mRolledBack);
+		mWoT.getTrust(mTruster.getID(), mTrustee.getID());
+	}
+}
@@ -3,6 +3,9 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.net.MalformedURLException;
 import java.util.Date;
 
@@ -97,6 +100,39 @@ public final class IdentityTest extends AbstractJUnit3BaseTest {
 		assertEquals(original, deserialized);
 	}
 	
+	/** Tests {@link Persistent#serialize(Persistent, Persistent)} which interns the second blob. */
+	public void testSerializeDeserializePair() throws MalformedURLException, InvalidParameterException {
+		final Identity oldVersion = new Identity(mWoT, getRandomSSKPair()[1], getRandomLatinString(Identity.MAX_NICKNAME_LENGTH), true);
+		oldVersion.addContext(getRandomLatinString(Identity.MAX_CONTEXT_NAME_LENGTH));
+		final Identity newVersion = oldVersion.clone();
+		newVersion.setNewEditionHint(oldVersion.getLatestEditionHint() + 1);
+		
+		final byte[][] serialized = Persistent.serialize(oldVersion, newVersion);
+		// The ID, URI and context are only stored in the first blob
+		assertTrue(serialized[1].length < oldVersion.serialize().length);
+		
+		assertEquals(oldVersion, Persistent.deserialize(mWoT, serialized[0]));
+		assertEquals(newVersion, Persistent.deserialize(mWoT, serialized[1], serialized[0]));
+		
+		try {
+			Persistent.deserialize(mWoT, serialized[1]);
+			fail("Interned blob must not be decodable without its base");
+		} catch(RuntimeException e) {}
+	}
+	
+	/** Blobs of old WoT versions were produced by Java serialization, they must still work. */
+	public void testDeserializeJavaSerialization() throws MalformedURLException, InvalidParameterException, IOException {
+		final Identity original = new Identity(mWoT, getRandomSSKPair()[1], getRandomLatinString(Identity.MAX_NICKNAME_LENGTH), true);
+		final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		final ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(original);
+		oos.close();
+		
+		final Identity deserialized = (Identity)Persistent.deserialize(mWoT, bos.toByteArray());
+		assertNotSame(original, deserialized);
+		assertEquals(original, deserialized);
+	}
+	
 	public void testConstructors() throws MalformedURLException, InvalidParameterException {
 		final Identity identity = new Identity(mWoT, "USK@sdFxM0Z4zx4-gXhGwzXAVYvOUi6NRfdGbyJa797bNAg,ZP4aASnyZax8nYOvCOlUebegsmbGQIXfVzw7iyOsXEc,AQACAAE/WebOfTrust/-1",
 				getRandomLatinString(Identity.MAX_NICKNAME_LENGTH), true);
@@ -0,0 +1,211 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+/**
+ * Tests {@link MemoryStorageEngine} and compares its query results with the ones of
+ * {@link Db4oStorageEngine}.
+ */
+public final class MemoryStorageEngineTest extends AbstractJUnit3BaseTest {
+
+	private File mLogFile;
+
+	private MemoryStorageEngine mEngine;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		final ArrayList<Identity> identities = addRandomIdentities(10);
+		identities.addAll(addRandomOwnIdentities(2));
+		addRandomTrustValues(identities, 30);
+
+		mLogFile = new File(getDatabaseFilename() + ".wal");
+		mLogFile.deleteOnExit();
+		mEngine = new MemoryStorageEngine(mWoT, mLogFile);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mEngine.close();
+		mLogFile.delete();
+
+		super.tearDown();
+	}
+
+	/** Copies the trust graph of {@link #mWoT} into the given engine. */
+	private void copyAll(StorageEngine engine) {
+		synchronized(mWoT) {
+			for(Identity identity : mWoT.getAllIdentities())
+				engine.storeWithoutCommit(identity);
+			for(Trust trust : mWoT.getAllTrusts())
+				engine.storeWithoutCommit(trust);
+			for(Score score : mWoT.getAllScores())
+				engine.storeWithoutCommit(score);
+		}
+		engine.commit();
+	}
+
+	private static <T extends Persistent> HashSet<String> getIDs(List<T> objects) {
+		final HashSet<String> result = new HashSet<String>();
+		for(T object : objects)
+			assertTrue(result.add(object.getID()));
+		return result;
+	}
+
+	/** Checks whether all queries of both engines return the same objects. */
+	private void assertSameContents(StorageEngine expected, StorageEngine actual)
+			throws Exception {
+
+		synchronized(mWoT) {
+		assertEquals(getIDs(expected.getAllIdentities()), getIDs(actual.getAllIdentities()));
+		assertEquals(getIDs(expected.getAllOwnIdentities()), getIDs(actual.getAllOwnIdentities()));
+
+		for(Identity identity : expected.getAllIdentities()) {
+			assertEquals(identity, actual.getIdentityByID(identity.getID()));
+			assertEquals(getIDs(expected.getGivenTrusts(identity)),
+				getIDs(actual.getGivenTrusts(identity)));
+			assertEquals(getIDs(expected.getReceivedTrusts(identity)),
+				getIDs(actual.getReceivedTrusts(identity)));
+			assertEquals(getIDs(expected.getScores(identity)), getIDs(actual.getScores(identity)));
+
+			for(Trust trust : expected.getGivenTrusts(identity))
+				assertEquals(trust, actual.getTrust(trust.getID()));
+			for(Score score : expected.getScores(identity))
+				assertEquals(score, actual.getScore(score.getID()));
+		}
+
+		for(OwnIdentity identity : expected.getAllOwnIdentities()) {
+			assertEquals(identity, actual.getOwnIdentityByID(identity.getID()));
+			assertEquals(getIDs(expected.getGivenScores(identity)),
+				getIDs(actual.getGivenScores(identity)));
+		}
+		}
+	}
+
+	public void testStoreAndReplay() throws Exception {
+		copyAll(mEngine);
+		assertSameContents(mWoT.getStorageEngine(), mEngine);
+
+		mEngine.close();
+		mEngine = new MemoryStorageEngine(mWoT, mLogFile);
+		assertEquals(1, mEngine.getReplayedTransactions());
+		assertSameContents(mWoT.getStorageEngine(), mEngine);
+	}
+
+	/** Modifying a returned object must not change the stored one. */
+	public void testReturnsCopies() throws Exception {
+		copyAll(mEngine);
+
+		final Trust stored = mWoT.getAllTrusts().get(0);
+		final byte value = stored.getValue();
+		final Trust trust = mEngine.getTrust(stored.getID());
+		trust.setValue((byte)(value == 100 ? 99 : 100));
+		assertEquals(value, mEngine.getTrust(stored.getID()).getValue());
+
+		for(Trust given : mEngine.getGivenTrusts(stored.getTruster()))
+			given.setValue((byte)(value == 100 ? 99 : 100));
+		assertEquals(value, mEngine.getTrust(stored.getID()).getValue());
+
+		assertSameContents(mWoT.getStorageEngine(), mEngine);
+	}
+
+	public void testDelete() throws Exception {
+		copyAll(mEngine);
+
+		final Trust trust = mWoT.getAllTrusts().get(0);
+		mEngine.deleteWithoutCommit(trust);
+		mEngine.commit();
+
+		for(int i = 0; i < 2; ++i) {
+			try {
+				mEngine.getTrust(trust.getID());
+				fail("Deleted Trust should not be returned");
+			} catch(NotTrustedException e) {}
+			assertFalse(getIDs(mEngine.getGivenTrusts(trust.getTruster())).contains(trust.getID()));
+			assertFalse(getIDs(mEngine.getReceivedTrusts(trust.getTrustee())).contains(trust.getID()));
+
+			mEngine.close();
+			mEngine = new MemoryStorageEngine(mWoT, mLogFile);
+			assertEquals(2, mEngine.getReplayedTransactions());
+		}
+	}
+
+	public void testRollback() throws Exception {
+		final Identity identity = mWoT.getAllNonOwnIdentities().get(0);
+		mEngine.storeWithoutCommit(identity);
+		mEngine.commit();
+
+		final Trust trust = mWoT.getAllTrusts().get(0);
+		mEngine.storeWithoutCommit(trust);
+		mEngine.deleteWithoutCommit(identity);
+		mEngine.rollback();
+
+		try {
+			mEngine.getTrust(trust.getID());
+			fail("Rolled back Trust should not be returned");
+		} catch(NotTrustedException e) {}
+		assertEquals(identity, mEngine.getIdentityByID(identity.getID()));
+		assertEquals(0, mEngine.getGivenTrusts(trust.getTruster()).size());
+
+		mEngine.close();
+		mEngine = new MemoryStorageEngine(mWoT, mLogFile);
+		assertEquals(1, mEngine.getAllIdentities().size());
+	}
+
+	/** A transaction of which only a part was written before a crash must be discarded. */
+	public void testTornWrite() throws Exception {
+		final List<Identity> identities = mWoT.getAllNonOwnIdentities();
+		mEngine.storeWithoutCommit(identities.get(0));
+		mEngine.commit();
+		final long committedLength = mEngine.getLogSize();
+		mEngine.storeWithoutCommit(identities.get(1));
+		mEngine.commit();
+		mEngine.close();
+
+		final RandomAccessFile file = new RandomAccessFile(mLogFile, "rw");
+		file.setLength(mLogFile.length() - 3);
+		file.close();
+
+		mEngine = new MemoryStorageEngine(mWoT, mLogFile);
+		assertEquals(1, mEngine.getReplayedTransactions());
+		assertEquals(committedLength, mEngine.getLogSize());
+		try {
+			mEngine.getIdentityByID(identities.get(1).getID());
+			fail("Identity of torn transaction should not be returned");
+		} catch(UnknownIdentityException e) {}
+
+		// The log must be appendable after the truncation
+		mEngine.storeWithoutCommit(identities.get(2));
+		mEngine.commit();
+		mEngine.close();
+		mEngine = new MemoryStorageEngine(mWoT, mLogFile);
+		assertEquals(2, mEngine.getReplayedTransactions());
+		assertEquals(2, mEngine.getAllIdentities().size());
+	}
+
+	public void testCheckpoint() throws Exception {
+		copyAll(mEngine);
+		// Overwrite everything so the log contains each object twice
+		copyAll(mEngine);
+		final long logSize = mEngine.getLogSize();
+
+		mEngine.checkpoint();
+		assertTrue(mEngine.getLogSize() < logSize);
+
+		mEngine.close();
+		mEngine = new MemoryStorageEngine(mWoT, mLogFile);
+		assertEquals(1, mEngine.getReplayedTransactions());
+		assertSameContents(mWoT.getStorageEngine(), mEngine);
+	}
+}
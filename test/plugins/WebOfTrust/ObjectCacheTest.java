@@ -0,0 +1,97 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import plugins.WebOfTrust.ObjectCache.CacheStatistics;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+/** Tests {@link ObjectCache}. */
+public final class ObjectCacheTest extends AbstractJUnit3BaseTest {
+
+	private OwnIdentity mTruster;
+
+	private Identity mTrustee;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mTruster = addRandomOwnIdentities(1).get(0);
+		mTrustee = addRandomIdentities(1).get(0);
+		mWoT.setTrust(mTruster.getID(), mTrustee.getID(), (byte)10, "");
+	}
+
+	/** Checks whether repeated lookups are answered from the cache with the same object. */
+	public void testHits() throws Exception {
+		final ObjectCache cache = mWoT.getObjectCache();
+		final long hits = cache.getTrustStatistics().mHits;
+		final long misses = cache.getTrustStatistics().mMisses;
+
+		final Trust trust = mWoT.getTrust(mTruster.getID(), mTrustee.getID());
+		assertSame(trust, mWoT.getTrust(mTruster.getID(), mTrustee.getID()));
+
+		final CacheStatistics statistics = cache.getTrustStatistics();
+		assertTrue(statistics.mEntries >= 1);
+		assertEquals(hits + 1, statistics.mHits);
+		assertTrue(statistics.mMisses <= misses + 1);
+
+		final Identity trustee = mWoT.getIdentityByID(mTrustee.getID());
+		assertSame(trustee, mWoT.getIdentityByID(mTrustee.getID()));
+		final Score score = mWoT.getScore(mTruster, trustee);
+		assertSame(score, mWoT.getScore(score.getID()));
+	}
+
+	/** Checks whether deleted objects are not returned. */
+	public void testDelete() throws Exception {
+		mWoT.getTrust(mTruster.getID(), mTrustee.getID());
+		mWoT.getScore(mTruster, mWoT.getIdentityByID(mTrustee.getID()));
+
+		mWoT.removeTrust(mTruster.getID(), mTrustee.getID());
+
+		try {
+			mWoT.getTrust(mTruster.getID(), mTrustee.getID());
+			fail("Deleted Trust should not be returned");
+		} catch(NotTrustedException e) {}
+
+		try {
+			mWoT.getScore(mTruster, mWoT.getIdentityByID(mTrustee.getID()));
+			fail("Deleted Score should not be returned");
+		} catch(NotInTrustTreeException e) {}
+
+		// Deleting an OwnIdentity replaces it with a non-own Identity of the same ID.
+		mWoT.getOwnIdentityByID(mTruster.getID());
+		mWoT.deleteOwnIdentity(mTruster.getID());
+
+		try {
+			mWoT.getOwnIdentityByID(mTruster.getID());
+			fail("Deleted OwnIdentity should not be returned");
+		} catch(UnknownIdentityException e) {}
+
+		assertFalse(mWoT.getIdentityByID(mTruster.getID()) instanceof OwnIdentity);
+	}
+
+	/** Checks whether objects which were stored by a rolled back transaction are not returned. */
+	public void testRollback() throws Exception {
+		final Identity trustee = addRandomIdentities(1).get(0);
+		final long clears = mWoT.getObjectCache().getClearCount();
+
+		synchronized(mWoT) {
+		synchronized(Persistent.transactionLock(mWoT.getDatabase())) {
+			mWoT.setTrustWithoutCommit(mWoT.getOwnIdentityByID(mTruster.getID()),
+				mWoT.getIdentityByID(trustee.getID()), (byte)10, "");
+			mWoT.getTrust(mTruster.getID(), trustee.getID());
+			Persistent.checkedRollback(mWoT.getDatabase(), this, null);
+		}
+		}
+
+		assertTrue(mWoT.getObjectCache().getClearCount() > clears);
+
+		try {
+			mWoT.getTrust(mTruster.getID(), trustee.getID());
+			fail("Rolled back Trust should not be returned");
+		} catch(NotTrustedException e) {}
+	}
+}
@@ -0,0 +1,143 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+
+import plugins.WebOfTrust.OnlineDefragmentation.Phase;
+import plugins.WebOfTrust.introduction.IntroductionPuzzle;
+import plugins.WebOfTrust.introduction.IntroductionPuzzle.PuzzleType;
+import plugins.WebOfTrust.introduction.IntroductionPuzzleStore;
+import plugins.WebOfTrust.introduction.OwnIntroductionPuzzle;
+import freenet.support.CurrentTimeUTC;
+
+/** Tests {@link OnlineDefragmentation}. */
+public final class OnlineDefragmentationTest extends AbstractJUnit3BaseTest {
+
+	private OnlineDefragmentation mDefrag;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		final ArrayList<Identity> identities = addRandomIdentities(10);
+		identities.addAll(addRandomOwnIdentities(3));
+		addRandomTrustValues(identities, 40);
+
+		mDefrag = new OnlineDefragmentation(mWoT, new File(getDatabaseFilename()));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mDefrag.discard();
+
+		super.tearDown();
+	}
+
+	/**
+	 * Does all kinds of changes which must be replayed: New, changed and deleted
+	 * {@link Identity}s, {@link Trust}s and {@link Score}s, and an {@link OwnIdentity} which is
+	 * replaced by an Identity object. */
+	private void changeDatabase() throws Exception {
+		final ArrayList<Identity> identities = addRandomIdentities(5);
+		identities.addAll(mWoT.getAllOwnIdentities());
+		addRandomTrustValues(identities, 20);
+
+		final OwnIdentity truster = mWoT.getAllOwnIdentities().get(0);
+		mWoT.setTrust(truster.getID(), identities.get(0).getID(), (byte)100, "Changed");
+		mWoT.setTrust(truster.getID(), identities.get(1).getID(), (byte)-50, "Removed");
+		mWoT.removeTrust(truster.getID(), identities.get(1).getID());
+
+		mWoT.deleteOwnIdentity(mWoT.getAllOwnIdentities().get(1).getID());
+
+		synchronized(mWoT) {
+		synchronized(mWoT.getIntroductionPuzzleStore()) {
+		synchronized(mWoT.getIdentityFetcher()) {
+		synchronized(mWoT.getSubscriptionManager()) {
+		synchronized(Persistent.transactionLock(mWoT.getDatabase())) {
+			mWoT.deleteWithoutCommit(mWoT.getIdentityByID(identities.get(2).getID()));
+			Persistent.checkedCommit(mWoT.getDatabase(), this);
+		}}}}}
+	}
+
+	public void testReplay() throws Exception {
+		mDefrag.prepare();
+		assertEquals(Phase.Staged, mDefrag.getPhase());
+		assertTrue(mWoT.equals(mDefrag.getCopy()));
+
+		changeDatabase();
+		assertTrue(mDefrag.getPendingChanges() > 0);
+
+		mDefrag.replay();
+		assertEquals(0, mDefrag.getPendingChanges());
+		assertTrue(mDefrag.getReplayedChanges() > 0);
+		assertEquals(0, mDefrag.getFailureCount());
+		assertTrue(mDefrag.getCopy().verifyDatabaseIntegrity());
+		assertTrue(mWoT.equals(mDefrag.getCopy()));
+	}
+
+	/**
+	 * Creates an {@link OwnIntroductionPuzzle}, which is not replayed while WoT is running, but
+	 * must be contained in the swapped database. */
+	private OwnIntroductionPuzzle addOwnPuzzle() throws Exception {
+		final OwnIdentity inserter = mWoT.getAllOwnIdentities().get(0);
+		mWoT.addContext(inserter.getID(), IntroductionPuzzle.INTRODUCTION_CONTEXT);
+
+		final IntroductionPuzzleStore store = mWoT.getIntroductionPuzzleStore();
+		final Date now = CurrentTimeUTC.get();
+		final OwnIntroductionPuzzle puzzle = new OwnIntroductionPuzzle(mWoT,
+			mWoT.getOwnIdentityByID(inserter.getID()), PuzzleType.Captcha, "image/jpeg",
+			new byte[] { 0 }, "foobar", now, store.getFreeIndex(inserter, now));
+		puzzle.setInserted();
+		store.storeAndCommit(puzzle);
+		return puzzle;
+	}
+
+	/** Checks whether the swapped database is equal to the original one at shutdown. */
+	public void testSwap() throws Exception {
+		mDefrag.prepare();
+		changeDatabase();
+		final OwnIntroductionPuzzle puzzle = addOwnPuzzle();
+
+		final File expectedFile = new File(getDatabaseFilename() + ".expected");
+		expectedFile.delete();
+		mWoT.getDatabase().backup(expectedFile.getAbsolutePath());
+		final String epoch = mWoT.getConfig().getChangeSequenceEpoch();
+
+		assertTrue(mDefrag.prepareSwap());
+		assertNull(mDefrag.getCopy());
+		mWoT.terminate();
+		assertTrue(mWoT.isTerminated());
+		mDefrag.swap();
+		assertFalse(mDefrag.getCopyFile().exists());
+
+		mWoT = new WebOfTrust(getDatabaseFilename());
+		assertTrue(mWoT.verifyDatabaseIntegrity());
+		assertFalse(epoch.equals(mWoT.getConfig().getChangeSequenceEpoch()));
+
+		final IntroductionPuzzle swappedPuzzle
+			= mWoT.getIntroductionPuzzleStore().getByID(puzzle.getID());
+		assertTrue(swappedPuzzle instanceof OwnIntroductionPuzzle);
+		assertEquals(puzzle.getIndex(), swappedPuzzle.getIndex());
+		assertTrue(swappedPuzzle.wasInserted());
+		assertFalse(swappedPuzzle.wasSolved());
+
+		final WebOfTrust expected = new WebOfTrust(expectedFile.getAbsolutePath());
+		try {
+			assertTrue(mWoT.equals(expected));
+		} finally {
+			expected.terminate();
+			expectedFile.delete();
+		}
+	}
+
+	/** A copy which is not up to date must not replace the database. */
+	public void testPrepareSwapWithoutCopy() throws Exception {
+		assertFalse(mDefrag.prepareSwap());
+		assertEquals(Phase.Waiting, mDefrag.getPhase());
+		assertFalse(mDefrag.getCopyFile().exists());
+	}
+}
@@ -0,0 +1,115 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.UUID.randomUUID;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.util.ReallyCloneable;
+
+/**
+ * This is NOT an actual unit test. It is a benchmark which compares {@link PersistentCodec} with
+ * the standard Java serialization which {@link Persistent#serialize()} used before.
+ *
+ * It measures what {@link SubscriptionManager.ObjectChangedNotification} does for each change
+ * of an {@link Identity}, {@link Trust} or {@link Score}: Serializing the "old" and "new" version
+ * of the object, and deserializing both again when deploying the notification.
+ *
+ * Also, this is NOT run in the default test suite which is run by Ant when building.
+ * To run it, put "test.benchmark=true" into the "override.properties" build confiugration file. If it does not exist, create it in the root of the project.
+ */
+public final class PersistentCodecBenchmark extends AbstractJUnit3BaseTest {
+
+	public void test_BenchmarkSerializeNotificationPairs() throws MalformedURLException,
+			InvalidParameterException, IOException {
+
+		// Benchmark parameters...
+
+		int identityCount = 100;
+		int trustCount = (identityCount*identityCount) / 5;
+		int iterations = 10;
+
+		// Random trust graph setup...
+
+		ArrayList<Identity> identities = addRandomIdentities(identityCount);
+		// At least one own identity needs to exist to ensure that scores are computed.
+		identities.add(mWoT.createOwnIdentity(getRandomSSKPair()[0], "Test", true, "Test"));
+		addRandomTrustValues(identities, trustCount);
+
+		ArrayList<Persistent> objects = new ArrayList<Persistent>();
+		objects.addAll(getAllIdentities());
+		objects.addAll(getAllTrusts());
+		objects.addAll(getAllScores());
+
+		// Pairs of clones with different version IDs, as SubscriptionManager produces them
+		ArrayList<Persistent[]> pairs = new ArrayList<Persistent[]>(objects.size());
+		for(Persistent p : objects) {
+			Persistent oldObject = (Persistent)((ReallyCloneable<?>)p).cloneP();
+			Persistent newObject = (Persistent)((ReallyCloneable<?>)p).cloneP();
+			((EventSource)oldObject).setVersionID(randomUUID());
+			((EventSource)newObject).setVersionID(randomUUID());
+			pairs.add(new Persistent[] { oldObject, newObject });
+		}
+
+		// The actual benchmark
+
+		long javaBytes = 0, javaEncodeTime = 0, javaDecodeTime = 0;
+		long codecBytes = 0, codecEncodeTime = 0, codecDecodeTime = 0;
+
+		for(int i=0; i < iterations; ++i) {
+			for(Persistent[] pair : pairs) {
+				long startTime = System.nanoTime();
+				byte[] javaOld = serializeJava(pair[0]);
+				byte[] javaNew = serializeJava(pair[1]);
+				long endTime = System.nanoTime();
+				javaEncodeTime += endTime - startTime;
+				javaBytes += javaOld.length + javaNew.length;
+
+				startTime = System.nanoTime();
+				Persistent.deserialize(mWoT, javaOld);
+				Persistent.deserialize(mWoT, javaNew);
+				endTime = System.nanoTime();
+				javaDecodeTime += endTime - startTime;
+
+				startTime = System.nanoTime();
+				byte[][] codec = Persistent.serialize(pair[0], pair[1]);
+				endTime = System.nanoTime();
+				codecEncodeTime += endTime - startTime;
+				codecBytes += codec[0].length + codec[1].length;
+
+				startTime = System.nanoTime();
+				Persistent.deserialize(mWoT, codec[0]);
+				Persistent.deserialize(mWoT, codec[1], codec[0]);
+				endTime = System.nanoTime();
+				codecDecodeTime += endTime - startTime;
+			}
+		}
+
+		long notifications = (long)iterations * pairs.size();
+
+		System.out.println("Benchmarked " + notifications + " notifications of "
+			+ objects.size() + " objects:");
+		System.out.println("Java serialization: " + (javaBytes / notifications) + " bytes/notification, "
+			+ (javaEncodeTime / notifications) + " ns encode, "
+			+ (javaDecodeTime / notifications) + " ns decode");
+		System.out.println("PersistentCodec: " + (codecBytes / notifications) + " bytes/notification, "
+			+ (codecEncodeTime / notifications) + " ns encode, "
+			+ (codecDecodeTime / notifications) + " ns decode");
+	}
+
+	/** The format {@link Persistent#serialize()} used before {@link PersistentCodec}. */
+	private static byte[] serializeJava(Persistent p) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(p);
+		oos.close();
+		return bos.toByteArray();
+	}
+}
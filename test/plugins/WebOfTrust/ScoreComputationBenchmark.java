@@ -763,6 +763,12 @@ public final class ScoreComputationBenchmark extends AbstractSingleNodeTest {
 		
 		System.out.println("Benchmark result time: " + benchmarkTime);
 		System.out.println("Full Score recomputations: " + fullRecomputationsForRemoval);
+		
+		// Each miss is a database query, each hit is a query which the cache avoided.
+		ObjectCache cache = wot.getObjectCache();
+		System.out.println("Identity lookups: " + cache.getIdentityStatistics());
+		System.out.println("Trust lookups: " + cache.getTrustStatistics());
+		System.out.println("Score lookups: " + cache.getScoreStatistics());
 	}
 
 	private byte getRandomTrustValue(ArrayList<Byte> trustDistribution) {
@@ -768,6 +768,7 @@ public final class ScoreTest extends AbstractJUnit4BaseTest {
 			"private java.lang.String plugins.WebOfTrust.Score.mID",
 			"private java.lang.String plugins.WebOfTrust.Score.mVersionID",
 			"private java.util.Date plugins.WebOfTrust.Score.mLastChangedDate",
+			"private long plugins.WebOfTrust.Score.mChangeSequence",
 			"private static final transient long plugins.WebOfTrust.Score.serialVersionUID",
 			"static final boolean plugins.WebOfTrust.Score.$assertionsDisabled"
 		};
@@ -1093,6 +1094,11 @@ public final class ScoreTest extends AbstractJUnit4BaseTest {
 			invalidScores.add(s);
 		}
 		
+		f = intrudePrivateField("mChangeSequence");
+		s = getValidScore();
+		f.set(s, -1L);
+		invalidScores.add(s);
+		
 		for(Score i : invalidScores) {
 			try {
 				i.startupDatabaseIntegrityTest();
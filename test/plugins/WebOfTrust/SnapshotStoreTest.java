@@ -0,0 +1,137 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+
+import plugins.WebOfTrust.SnapshotStore.IdentitySnapshot;
+import plugins.WebOfTrust.SnapshotStore.ScoreSnapshot;
+import plugins.WebOfTrust.SnapshotStore.TrustSnapshot;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+/** Tests {@link SnapshotStore}. */
+public final class SnapshotStoreTest extends AbstractJUnit3BaseTest {
+
+	/**
+	 * Checks whether the {@link SnapshotStore} matches the database after random modifications
+	 * and after reloading it from the database.
+	 */
+	public void testMatchesDatabase() throws Exception {
+		// Load it before the modifications so they are staged and published.
+		assertEquals(0, mWoT.getSnapshotStore().getIdentityCount());
+
+		final ArrayList<Identity> identities = addRandomIdentities(10);
+		identities.addAll(addRandomOwnIdentities(3));
+		addRandomTrustValues(identities, 40);
+
+		assertMatchesDatabase(mWoT.getSnapshotStore());
+
+		final SnapshotStore reloaded = new SnapshotStore(mWoT);
+		try {
+			assertMatchesDatabase(reloaded);
+		} finally {
+			reloaded.stop();
+		}
+	}
+
+	/** Checks whether changes of transactions which are rolled back are not published. */
+	public void testRollback() throws Exception {
+		final OwnIdentity truster = addRandomOwnIdentities(1).get(0);
+		final Identity trustee = addRandomIdentities(1).get(0);
+		mWoT.setTrust(truster.getID(), trustee.getID(), (byte)10, "");
+
+		synchronized(mWoT) {
+		synchronized(Persistent.transactionLock(mWoT.getDatabase())) {
+			mWoT.setTrustWithoutCommit(truster, trustee, (byte)-10, "");
+			Persistent.checkedRollback(mWoT.getDatabase(), this, null);
+		}
+		}
+
+		final SnapshotStore snapshots = mWoT.getSnapshotStore();
+		assertEquals(10, snapshots.getTrust(truster.getID(), trustee.getID()).getValue());
+		assertEquals(1, snapshots.getIdentity(trustee.getID()).getReceivedTrustCount(1));
+		assertMatchesDatabase(snapshots);
+	}
+
+	/**
+	 * Checks whether deleted objects are removed and whether converting an {@link OwnIdentity} to
+	 * an {@link Identity} is visible.
+	 */
+	public void testDelete() throws Exception {
+		final OwnIdentity truster = addRandomOwnIdentities(1).get(0);
+		final Identity trustee = addRandomIdentities(1).get(0);
+		mWoT.setTrust(truster.getID(), trustee.getID(), (byte)10, "");
+
+		final SnapshotStore snapshots = mWoT.getSnapshotStore();
+		assertNotNull(snapshots.getScore(truster.getID(), trustee.getID()));
+
+		mWoT.removeTrust(truster.getID(), trustee.getID());
+		assertNull(snapshots.getTrust(truster.getID(), trustee.getID()));
+		assertMatchesDatabase(snapshots);
+
+		mWoT.deleteOwnIdentity(truster.getID());
+		assertNull(snapshots.getOwnIdentity(truster.getID()));
+		assertFalse(snapshots.getIdentity(truster.getID()).isOwnIdentity());
+		assertEquals(0, snapshots.getOwnIdentityCount());
+		assertMatchesDatabase(snapshots);
+	}
+
+	/** Checks whether exceptions of {@link SnapshotStore.Reader}s are passed through. */
+	public void testRead() throws Exception {
+		final SnapshotStore snapshots = mWoT.getSnapshotStore();
+		try {
+			snapshots.read(new SnapshotStore.Reader<Void, UnknownIdentityException>() {
+				@Override public Void read() throws UnknownIdentityException {
+					throw new UnknownIdentityException("test");
+				}
+			});
+			fail("Exception should have been thrown");
+		} catch(UnknownIdentityException e) {}
+
+		final OwnIdentity identity = addRandomOwnIdentities(1).get(0);
+		assertEquals(identity.getNickname(), snapshots.read(
+			new SnapshotStore.Reader<String, RuntimeException>() {
+				@Override public String read() {
+					return snapshots.getOwnIdentity(identity.getID()).getNickname();
+				}
+			}));
+	}
+
+	private void assertMatchesDatabase(SnapshotStore snapshots) {
+		synchronized(mWoT) {
+			assertEquals(mWoT.getAllIdentities().size(), snapshots.getIdentityCount());
+			assertEquals(mWoT.getAllOwnIdentities().size(), snapshots.getOwnIdentityCount());
+			assertEquals(mWoT.getAllTrusts().size(), snapshots.getTrustCount());
+			assertEquals(mWoT.getAllScores().size(), snapshots.getScoreCount());
+
+			for(Identity identity : mWoT.getAllIdentities()) {
+				final IdentitySnapshot snapshot = snapshots.getIdentity(identity.getID());
+				assertEquals(identity instanceof OwnIdentity, snapshot.isOwnIdentity());
+				assertEquals(identity.getNickname(), snapshot.getNickname());
+				assertEquals(identity.getRequestURI().toString(), snapshot.getRequestURI());
+				assertEquals(identity.getEdition(), snapshot.getEdition());
+				assertEquals(identity.getContexts(), snapshot.getContexts());
+				assertEquals(identity.getProperties(), snapshot.getProperties());
+				assertEquals(identity.getReceivedTrustCount(), snapshot.getReceivedTrustCount());
+				assertEquals(identity.getGivenTrustCount(-1), snapshot.getGivenTrustCount(-1));
+				assertEquals(identity.getChangeSequence(), snapshot.getChangeSequence());
+			}
+
+			for(Trust trust : mWoT.getAllTrusts()) {
+				final TrustSnapshot snapshot = snapshots.getTrust(
+					trust.getTruster().getID(), trust.getTrustee().getID());
+				assertEquals(trust.getValue(), snapshot.getValue());
+				assertEquals(trust.getComment(), snapshot.getComment());
+			}
+
+			for(Score score : mWoT.getAllScores()) {
+				final ScoreSnapshot snapshot = snapshots.getScore(
+					score.getTruster().getID(), score.getTrustee().getID());
+				assertEquals(score.getValue(), snapshot.getValue());
+				assertEquals(score.getRank(), snapshot.getRank());
+				assertEquals(score.getCapacity(), snapshot.getCapacity());
+			}
+		}
+	}
+}
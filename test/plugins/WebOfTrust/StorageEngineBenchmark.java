@@ -0,0 +1,101 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.File;
+import java.util.ArrayList;
+
+/**
+ * This is NOT an actual unit test. It is a benchmark which compares the {@link StorageEngine}
+ * implementations {@link Db4oStorageEngine} and {@link MemoryStorageEngine}.
+ *
+ * It measures the queries which the {@link Score} computation executes for each
+ * {@link Identity} - its given and received {@link Trust}s, its {@link Score}s and the lookup by
+ * ID - and the cost of small transactions which store a single {@link Trust} and commit.
+ *
+ * Also, this is NOT run in the default test suite which is run by Ant when building.
+ * To run it, put "test.benchmark=true" into the "override.properties" build confiugration file. If it does not exist, create it in the root of the project.
+ */
+public final class StorageEngineBenchmark extends AbstractJUnit3BaseTest {
+
+	public void test_BenchmarkStorageEngines() throws Exception {
+
+		// Benchmark parameters...
+
+		int identityCount = 200;
+		int trustCount = (identityCount*identityCount) / 10;
+		int queryIterations = 10;
+		int commits = 200;
+
+		// Random trust graph setup...
+
+		ArrayList<Identity> identities = addRandomIdentities(identityCount);
+		// At least one own identity needs to exist to ensure that scores are computed.
+		identities.add(mWoT.createOwnIdentity(getRandomSSKPair()[0], "Test", true, "Test"));
+		addRandomTrustValues(identities, trustCount);
+
+		File logFile = new File(getDatabaseFilename() + ".wal");
+		logFile.deleteOnExit();
+		MemoryStorageEngine memory = new MemoryStorageEngine(mWoT, logFile);
+		Db4oStorageEngine db4o = mWoT.getStorageEngine();
+
+		long startTime = System.nanoTime();
+		synchronized(mWoT) {
+			for(Identity identity : mWoT.getAllIdentities())
+				memory.storeWithoutCommit(identity);
+			for(Trust trust : mWoT.getAllTrusts())
+				memory.storeWithoutCommit(trust);
+			for(Score score : mWoT.getAllScores())
+				memory.storeWithoutCommit(score);
+		}
+		memory.commit();
+		System.out.println("MemoryStorageEngine: Copying the database took "
+			+ (System.nanoTime() - startTime) / 1000000 + " ms, log size: "
+			+ memory.getLogSize() + " bytes");
+
+		memory.close();
+		startTime = System.nanoTime();
+		memory = new MemoryStorageEngine(mWoT, logFile);
+		System.out.println("MemoryStorageEngine: Replaying the log took "
+			+ (System.nanoTime() - startTime) / 1000000 + " ms");
+
+		// The actual benchmark
+
+		try {
+			for(StorageEngine engine : new StorageEngine[] { db4o, memory }) {
+				synchronized(mWoT) {
+					long queries = 0;
+					startTime = System.nanoTime();
+					for(int i=0; i < queryIterations; ++i) {
+						for(Identity identity : identities) {
+							engine.getIdentityByID(identity.getID());
+							queries += 1 + engine.getGivenTrusts(identity).size();
+							queries += 1 + engine.getReceivedTrusts(identity).size();
+							queries += 1 + engine.getScores(identity).size();
+						}
+					}
+					long queryTime = System.nanoTime() - startTime;
+
+					ArrayList<Trust> trusts = new ArrayList<Trust>(mWoT.getAllTrusts());
+					startTime = System.nanoTime();
+					synchronized(Persistent.transactionLock(mWoT.getDatabase())) {
+						for(int i=0; i < commits; ++i) {
+							engine.storeWithoutCommit(trusts.get(i % trusts.size()));
+							engine.commit();
+						}
+					}
+					long commitTime = System.nanoTime() - startTime;
+
+					System.out.println(engine.getClass().getSimpleName() + ": "
+						+ (queryTime / (queryIterations * identities.size() * 4)) + " ns/query, "
+						+ (queryTime / queries) + " ns/object, "
+						+ (commitTime / commits / 1000) + " us/commit");
+				}
+			}
+		} finally {
+			memory.close();
+			logFile.delete();
+		}
+	}
+}
@@ -0,0 +1,390 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import plugins.WebOfTrust.SubscriptionManager.ClientStatistics;
+import plugins.WebOfTrust.SubscriptionManager.SubscriptionEvent;
+import plugins.WebOfTrust.SubscriptionManager.SubscriptionListener;
+import plugins.WebOfTrust.SubscriptionManager.UnknownSubscriptionException;
+
+/**
+ * Tests the {@link SubscriptionListener} clients of the {@link SubscriptionManager}.<br>
+ * The unit test WebOfTrust has no node, so its SubscriptionManager never runs its job on its own:
+ * The tests call {@link SubscriptionManager#run()} to deliver the queued events.
+ */
+public final class SubscriptionManagerCallbackTest extends AbstractJUnit3BaseTest {
+
+	/** Records all events it receives. */
+	private static class RecordingListener implements SubscriptionListener {
+		final ArrayList<SubscriptionEvent> mEvents = new ArrayList<SubscriptionEvent>();
+
+		@Override public void handleSubscriptionEvent(SubscriptionEvent event) throws Exception {
+			mEvents.add(event);
+		}
+
+		/** @return The {@link EventSource#getID()}s of the new objects of all ObjectChanged events. */
+		HashSet<String> getChangedIDs() {
+			final HashSet<String> result = new HashSet<String>();
+			for(SubscriptionEvent event : mEvents) {
+				if(event.getType() == SubscriptionEvent.Type.ObjectChanged
+				        && event.getNewObject() != null)
+					result.add(event.getNewObject().getID());
+			}
+			return result;
+		}
+
+		/**
+		 * @return The {@link EventSource#getID()}s of the objects which the client knows after
+		 *     applying all ObjectChanged events in order. */
+		HashSet<String> getKnownIDs() {
+			final HashSet<String> result = new HashSet<String>();
+			for(SubscriptionEvent event : mEvents) {
+				if(event.getType() != SubscriptionEvent.Type.ObjectChanged)
+					continue;
+				if(event.getNewObject() != null)
+					result.add(event.getNewObject().getID());
+				else
+					result.remove(event.getOldObject().getID());
+			}
+			return result;
+		}
+
+		/** @return True if any event concerns the object with the given ID. */
+		boolean hasEventFor(String id) {
+			for(SubscriptionEvent event : mEvents) {
+				if((event.getOldObject() != null && event.getOldObject().getID().equals(id))
+				|| (event.getNewObject() != null && event.getNewObject().getID().equals(id)))
+					return true;
+			}
+			return false;
+		}
+
+		/** @return The ObjectChanged events of the given {@link EventSource} class, in order. */
+		ArrayList<SubscriptionEvent> getChangedEvents(Class<? extends EventSource> clazz) {
+			final ArrayList<SubscriptionEvent> result = new ArrayList<SubscriptionEvent>();
+			for(SubscriptionEvent event : mEvents) {
+				if(event.getType() == SubscriptionEvent.Type.ObjectChanged
+				        && event.getEventSourceClass() == clazz)
+					result.add(event);
+			}
+			return result;
+		}
+
+		int count(SubscriptionEvent.Type type) {
+			int result = 0;
+			for(SubscriptionEvent event : mEvents) {
+				if(event.getType() == type)
+					++result;
+			}
+			return result;
+		}
+	}
+
+	/** Records all events it receives and fails the ObjectChanged ones while {@link #mFail}. */
+	private static final class FailingListener extends RecordingListener {
+		boolean mFail = false;
+
+		@Override public void handleSubscriptionEvent(SubscriptionEvent event) throws Exception {
+			super.handleSubscriptionEvent(event);
+			if(mFail && event.getType() == SubscriptionEvent.Type.ObjectChanged)
+				throw new Exception("Failing always");
+		}
+	}
+
+	private static HashSet<String> getIDs(List<? extends Persistent> objects) {
+		final HashSet<String> result = new HashSet<String>();
+		for(Persistent object : objects)
+			result.add(object.getID());
+		return result;
+	}
+
+	/** Stores the queue limit in the {@link Configuration} and restarts {@link #mWoT} to apply it. */
+	private void setMaxQueuedNotificationsPerClient(int limit) {
+		final Configuration config = mWoT.getConfig();
+		synchronized(mWoT) {
+			config.set(SubscriptionManager.CONFIGURATION_MAX_QUEUED_NOTIFICATIONS_PER_CLIENT, limit);
+			config.storeAndCommit();
+		}
+
+		mWoT.terminate();
+		mWoT = new WebOfTrust(getDatabaseFilename());
+		assertEquals(limit, mWoT.getSubscriptionManager().getMaxQueuedNotificationsPerClient());
+	}
+
+	private void deleteIdentity(String id) throws Exception {
+		synchronized(mWoT) {
+		synchronized(mWoT.getIntroductionPuzzleStore()) {
+		synchronized(mWoT.getIdentityFetcher()) {
+		synchronized(mWoT.getSubscriptionManager()) {
+		synchronized(Persistent.transactionLock(mWoT.getDatabase())) {
+			mWoT.deleteWithoutCommit(mWoT.getIdentityByID(id));
+			Persistent.checkedCommit(mWoT.getDatabase(), this);
+		}}}}}
+	}
+
+	private ClientStatistics getStatistics() {
+		final ArrayList<ClientStatistics> statistics
+			= mWoT.getSubscriptionManager().getClientStatistics();
+		assertEquals(1, statistics.size());
+		return statistics.get(0);
+	}
+
+	/**
+	 * A listener which does not keep up must not let its queue grow beyond
+	 * {@link SubscriptionManager#getMaxQueuedNotificationsPerClient()}: The queue is dropped and
+	 * replaced by a new synchronization which contains the changes. */
+	public void testCallbackQueueLimit() throws Exception {
+		final int limit = 4;
+		setMaxQueuedNotificationsPerClient(limit);
+
+		addRandomIdentities(3);
+		final SubscriptionManager manager = mWoT.getSubscriptionManager();
+		final RecordingListener listener = new RecordingListener();
+		manager.subscribeToIdentities(listener);
+		manager.run();
+
+		assertEquals(1, listener.count(SubscriptionEvent.Type.BeginSynchronization));
+		assertEquals(1, listener.count(SubscriptionEvent.Type.EndSynchronization));
+		assertEquals(getIDs(mWoT.getAllIdentities()), listener.getChangedIDs());
+		assertEquals(0, getStatistics().mQueuedNotifications);
+
+		// Not calling run() simulates a listener which is too slow.
+		addRandomIdentities(limit * 3);
+
+		ClientStatistics statistics = getStatistics();
+		assertTrue(statistics.mResynchronizationRequired);
+		assertTrue(statistics.mQueuedNotifications <= limit + 1);
+
+		listener.mEvents.clear();
+		manager.run();
+
+		statistics = getStatistics();
+		assertFalse(statistics.mResynchronizationRequired);
+		assertEquals(1, statistics.mResynchronizations);
+		assertEquals(0, statistics.mQueuedNotifications);
+
+		// The new synchronization contains all identities, including the ones whose events were
+		// dropped or not queued.
+		assertEquals(1, listener.count(SubscriptionEvent.Type.BeginSynchronization));
+		assertEquals(1, listener.count(SubscriptionEvent.Type.EndSynchronization));
+		assertEquals(getIDs(mWoT.getAllIdentities()), listener.getChangedIDs());
+		assertEquals(3 + limit * 3, listener.getChangedIDs().size());
+
+		// Regular queueing works again afterwards.
+		listener.mEvents.clear();
+		final Identity added = addRandomIdentities(1).get(0);
+		manager.run();
+		assertEquals(1, listener.mEvents.size());
+		assertEquals(added.getID(), listener.mEvents.get(0).getNewObject().getID());
+	}
+
+	/**
+	 * The synchronization is streamed in pages of
+	 * {@link SubscriptionManager#SYNCHRONIZATION_PAGE_SIZE}. Changes which happen between the
+	 * pages must be merged correctly: Objects beyond the cursor are streamed at their current
+	 * state, and changes to objects which were streamed already are delivered after the
+	 * EndSynchronization. */
+	public void testPagedSynchronization() throws Exception {
+		final int pageSize = SubscriptionManager.SYNCHRONIZATION_PAGE_SIZE;
+		addRandomIdentities(pageSize * 2 + 10);
+
+		final ArrayList<String> ids = new ArrayList<String>(getIDs(mWoT.getAllIdentities()));
+		Collections.sort(ids);
+		// The first page is read before the listener receives any of it.
+		final String streamed = ids.get(pageSize / 2);
+		final String notStreamed = ids.get(pageSize * 2);
+
+		final SubscriptionManager manager = mWoT.getSubscriptionManager();
+		final RecordingListener listener = new RecordingListener() {
+			private boolean mModified = false;
+
+			@Override public void handleSubscriptionEvent(SubscriptionEvent event)
+					throws Exception {
+				super.handleSubscriptionEvent(event);
+
+				if(mModified || event.getType() != SubscriptionEvent.Type.ObjectChanged)
+					return;
+
+				mModified = true;
+				deleteIdentity(streamed);
+				deleteIdentity(notStreamed);
+				// Their IDs are random, so some are before the cursor and some after it.
+				addRandomIdentities(20);
+			}
+		};
+		manager.subscribeToIdentities(listener);
+		manager.run();
+
+		assertEquals(1, listener.count(SubscriptionEvent.Type.BeginSynchronization));
+		assertEquals(1, listener.count(SubscriptionEvent.Type.EndSynchronization));
+		assertEquals(0, getStatistics().mQueuedNotifications);
+		assertEquals(0, getStatistics().mResynchronizations);
+
+		// The streamed identity was deleted after the client received it, so it must be told
+		// about the deletion. The other one was deleted before its page was read, so the client
+		// must not hear of it at all.
+		assertTrue(listener.hasEventFor(streamed));
+		assertFalse(listener.hasEventFor(notStreamed));
+
+		final HashSet<String> expected = getIDs(mWoT.getAllIdentities());
+		assertEquals(pageSize * 2 + 10 - 2 + 20, expected.size());
+		assertEquals(expected, listener.getKnownIDs());
+
+		// The synchronization never contains an object twice.
+		int objectsBeforeEnd = 0;
+		final HashSet<String> synchronizedIDs = new HashSet<String>();
+		for(SubscriptionEvent event : listener.mEvents) {
+			if(event.getType() == SubscriptionEvent.Type.EndSynchronization)
+				break;
+			if(event.getType() == SubscriptionEvent.Type.ObjectChanged) {
+				++objectsBeforeEnd;
+				synchronizedIDs.add(event.getNewObject().getID());
+			}
+		}
+		assertEquals(objectsBeforeEnd, synchronizedIDs.size());
+	}
+
+	/**
+	 * Events must be delivered in the order in which they happened, also across the different
+	 * Subscriptions of a listener. If the listener fails, the failed event must be delivered
+	 * again before any later event. */
+	public void testCallbackOrderAndRetry() throws Exception {
+		final OwnIdentity truster = addRandomOwnIdentities(1).get(0);
+		final SubscriptionManager manager = mWoT.getSubscriptionManager();
+		final RecordingListener listener = new RecordingListener() {
+			private boolean mFailed = false;
+
+			/** Fails the first delivery of the first ObjectChanged event of a Trust. */
+			@Override public void handleSubscriptionEvent(SubscriptionEvent event)
+					throws Exception {
+				if(!mFailed && event.getType() == SubscriptionEvent.Type.ObjectChanged
+				        && event.getEventSourceClass() == Trust.class) {
+					mFailed = true;
+					throw new Exception("Failing the first delivery");
+				}
+				super.handleSubscriptionEvent(event);
+			}
+		};
+		final String identitiesID = manager.subscribeToIdentities(listener);
+		manager.subscribeToTrusts(listener);
+		manager.run();
+
+		assertEquals(2, listener.count(SubscriptionEvent.Type.BeginSynchronization));
+		assertEquals(2, listener.count(SubscriptionEvent.Type.EndSynchronization));
+		// The Identities were subscribed to first.
+		assertEquals(identitiesID, listener.mEvents.get(0).getSubscriptionID());
+		assertEquals(getIDs(mWoT.getAllIdentities()), listener.getKnownIDs());
+
+		listener.mEvents.clear();
+		final Identity trustee = addRandomIdentities(1).get(0);
+		mWoT.setTrust(truster.getID(), trustee.getID(), (byte)50, "First");
+		mWoT.setTrust(truster.getID(), trustee.getID(), (byte)-20, "Second");
+		manager.run();
+
+		// Delivery stopped at the failing event, after the creation of the trustee.
+		assertEquals(0, listener.getChangedEvents(Trust.class).size());
+		assertTrue(listener.hasEventFor(trustee.getID()));
+		final int deliveredBeforeFailure = listener.mEvents.size();
+
+		manager.run();
+
+		final ArrayList<SubscriptionEvent> trustEvents = listener.getChangedEvents(Trust.class);
+		assertEquals(2, trustEvents.size());
+		// The failed event is the first one of the retry.
+		assertSame(trustEvents.get(0), listener.mEvents.get(deliveredBeforeFailure));
+		assertNull(trustEvents.get(0).getOldObject());
+		assertEquals(50, ((Trust)trustEvents.get(0).getNewObject()).getValue());
+		assertEquals(50, ((Trust)trustEvents.get(1).getOldObject()).getValue());
+		assertEquals(-20, ((Trust)trustEvents.get(1).getNewObject()).getValue());
+		assertEquals(0, getStatistics().mQueuedNotifications);
+	}
+
+	/**
+	 * A listener which fails {@link SubscriptionManager#DISCONNECT_CLIENT_AFTER_FAILURE_COUNT}
+	 * times must receive an Unsubscribed event for each of its Subscriptions, which are deleted
+	 * along with the Client. */
+	public void testCallbackUnsubscribed() throws Exception {
+		final SubscriptionManager manager = mWoT.getSubscriptionManager();
+		final FailingListener listener = new FailingListener();
+		final String identitiesID = manager.subscribeToIdentities(listener);
+		final String trustsID = manager.subscribeToTrusts(listener);
+		manager.run();
+		assertEquals(2, listener.count(SubscriptionEvent.Type.EndSynchronization));
+
+		// Only fail after the synchronizations so each run() fails exactly once.
+		listener.mEvents.clear();
+		listener.mFail = true;
+		final Identity added = addRandomIdentities(1).get(0);
+		for(int i = 1; i <= SubscriptionManager.DISCONNECT_CLIENT_AFTER_FAILURE_COUNT; ++i) {
+			assertEquals(0, listener.count(SubscriptionEvent.Type.Unsubscribed));
+			manager.run();
+			// The failed event is retried by each run().
+			assertEquals(i, listener.getChangedEvents(Identity.class).size());
+		}
+		assertTrue(listener.hasEventFor(added.getID()));
+
+		final HashSet<String> unsubscribed = new HashSet<String>();
+		for(SubscriptionEvent event : listener.mEvents) {
+			if(event.getType() != SubscriptionEvent.Type.Unsubscribed)
+				continue;
+
+			unsubscribed.add(event.getSubscriptionID());
+			assertEquals(event.getSubscriptionID().equals(identitiesID)
+			    ? Identity.class : Trust.class, event.getEventSourceClass());
+			assertNull(event.getOldObject());
+			assertNull(event.getNewObject());
+		}
+		assertEquals(new HashSet<String>(Arrays.asList(identitiesID, trustsID)), unsubscribed);
+		assertEquals(0, manager.getClientStatistics().size());
+
+		try {
+			manager.unsubscribe(identitiesID);
+			fail("The Subscription should have been deleted");
+		} catch(UnknownSubscriptionException e) {}
+
+		// Nothing is delivered anymore.
+		listener.mEvents.clear();
+		addRandomIdentities(1);
+		manager.run();
+		assertEquals(0, listener.mEvents.size());
+	}
+
+	/**
+	 * {@link SubscriptionManager#unsubscribe(String)} must stop the delivery of the events of the
+	 * Subscription without an Unsubscribed event, and delete the Client with its last
+	 * Subscription. */
+	public void testCallbackUnsubscribe() throws Exception {
+		final OwnIdentity truster = addRandomOwnIdentities(1).get(0);
+		final SubscriptionManager manager = mWoT.getSubscriptionManager();
+		final RecordingListener listener = new RecordingListener();
+		final String identitiesID = manager.subscribeToIdentities(listener);
+		final String trustsID = manager.subscribeToTrusts(listener);
+		manager.run();
+
+		manager.unsubscribe(trustsID);
+		listener.mEvents.clear();
+		final Identity trustee = addRandomIdentities(1).get(0);
+		mWoT.setTrust(truster.getID(), trustee.getID(), (byte)50, "Comment");
+		manager.run();
+
+		assertTrue(listener.hasEventFor(trustee.getID()));
+		assertEquals(0, listener.getChangedEvents(Trust.class).size());
+		assertEquals(0, listener.count(SubscriptionEvent.Type.Unsubscribed));
+		assertEquals(0, getStatistics().mQueuedNotifications);
+
+		manager.unsubscribe(identitiesID);
+		assertEquals(0, manager.getClientStatistics().size());
+
+		listener.mEvents.clear();
+		addRandomIdentities(1);
+		manager.run();
+		assertEquals(0, listener.mEvents.size());
+	}
+}
@@ -9,6 +9,7 @@ import static org.junit.Assert.*;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -21,6 +22,8 @@ import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import plugins.WebOfTrust.SubscriptionManager.Client;
+import plugins.WebOfTrust.SubscriptionManager.ClientStatistics;
 import plugins.WebOfTrust.SubscriptionManager.Notification;
 import plugins.WebOfTrust.exceptions.DuplicateTrustException;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
@@ -34,6 +37,11 @@ import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.IdentityParser
 import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.ScoreParser;
 import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.SubscriptionType;
 import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.TrustParser;
+import plugins.WebOfTrust.ui.fcp.FCPInterface;
+
+import com.db4o.ObjectSet;
+import com.db4o.query.Query;
+
 import freenet.clients.fcp.FCPPluginConnection;
 import freenet.clients.fcp.FCPPluginMessage;
 import freenet.node.FSParseException;
@@ -58,6 +66,9 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
 	static class ReplyReceiver implements FredPluginFCPMessageHandler.ClientSideFCPMessageHandler {
 
 		private final LinkedList<FCPPluginMessage> mResults = new LinkedList<FCPPluginMessage>();
+		
+		/** Amount of the following non-reply messages which shall be replied to with failure. */
+		private int mFailuresToReply = 0;
 
 		/**
 		 * Called by fred to handle messages from WOT's FCP server.
@@ -68,10 +79,25 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
 		    
 		    mResults.addLast(message);
 
+		    if(message.isReplyMessage())
+		        return null;
+		    
+		    synchronized(this) {
+		        if(mFailuresToReply > 0) {
+		            --mFailuresToReply;
+		            return FCPPluginMessage.constructErrorReply(
+		                message, "InternalError", "Failure requested by the unit test");
+		        }
+		    }
+		    
 		    // The fred code which calls this handler expects a reply to be returned to indicate
 		    // success so the sendSynchronous() calls in WOT can return.
-			return message.isReplyMessage() ? null 
-			    : FCPPluginMessage.constructSuccessReply(message);
+			return FCPPluginMessage.constructSuccessReply(message);
+		}
+		
+		/** Makes the given amount of the following messages from WOT fail at our side. */
+		public synchronized void failNextMessages(int amount) {
+		    mFailuresToReply = amount;
 		}
 		
 		/**
@@ -476,4 +502,233 @@ public final class SubscriptionManagerFCPTest extends AbstractSingleNodeTest {
 			target.remove(changeSet.beforeChange.getID());
 	}
 
+	/**
+	 * Tests the delivery of the queue of a client which set "AcceptsNotificationBatches", see
+	 * {@link FCPInterface#sendNotificationBatch(UUID, List)}: The notifications must be sent in
+	 * order, and each batch must be as large as
+	 * {@link SubscriptionManager#MAX_NOTIFICATIONS_PER_BATCH} and
+	 * {@link SubscriptionManager#MAX_NOTIFICATION_BATCH_BYTES} allow.
+	 */
+	@Test public void testNotificationBatches() throws Exception {
+		final ArrayList<Identity> synchronizedIdentities = addRandomIdentities(10);
+		subscribeWithBatches("Identities");
+		mWebOfTrust.getSubscriptionManager().run();
+		
+		final ArrayList<SimpleFieldSet> synchronization = new ArrayList<SimpleFieldSet>();
+		for(int size : receiveBatches(synchronization))
+			assertTrue(size <= SubscriptionManager.MAX_NOTIFICATIONS_PER_BATCH);
+		assertEquals(synchronizedIdentities.size() + 2, synchronization.size());
+		assertEquals("BeginSynchronizationEvent", synchronization.get(0).get("Message"));
+		assertEquals("EndSynchronizationEvent",
+		    synchronization.get(synchronization.size() - 1).get("Message"));
+		
+		// More than fit into a single batch
+		final ArrayList<Identity> added
+		    = addRandomIdentities(SubscriptionManager.MAX_NOTIFICATIONS_PER_BATCH + 10);
+		final ArrayList<Integer> expectedBatchSizes = getExpectedBatchSizes();
+		assertTrue(expectedBatchSizes.size() >= 2);
+		
+		mWebOfTrust.getSubscriptionManager().run();
+		
+		final ArrayList<SimpleFieldSet> notifications = new ArrayList<SimpleFieldSet>();
+		assertEquals(expectedBatchSizes, receiveBatches(notifications));
+		assertEquals(getIDs(added), getChangedIdentityIDs(notifications));
+		assertEquals(0, getClient().getSendNotificationsFailureCount());
+	}
+	
+	/**
+	 * If the client signals failure for a batch, the whole batch must be re-sent, with one
+	 * message per notification. Batching must be resumed once the queue was deployed that way.
+	 */
+	@Test public void testNotificationBatchFailure() throws Exception {
+		subscribeWithBatches("Identities");
+		mWebOfTrust.getSubscriptionManager().run();
+		// The synchronization is empty since the database is.
+		receiveBatches(new ArrayList<SimpleFieldSet>());
+		
+		final ArrayList<Identity> added = addRandomIdentities(10);
+		mReplyReceiver.failNextMessages(1);
+		mWebOfTrust.getSubscriptionManager().run();
+		
+		final ArrayList<SimpleFieldSet> failedBatch = new ArrayList<SimpleFieldSet>();
+		assertEquals(Arrays.asList(added.size()), receiveBatches(failedBatch));
+		assertEquals(getIDs(added), getChangedIdentityIDs(failedBatch));
+		assertEquals(1, getClient().getSendNotificationsFailureCount());
+		
+		// The retry sends each notification as a single message
+		mWebOfTrust.getSubscriptionManager().run();
+		
+		final ArrayList<SimpleFieldSet> retried = new ArrayList<SimpleFieldSet>();
+		while(mReplyReceiver.hasNextResult()) {
+		    final FCPPluginMessage message = mReplyReceiver.getNextResult();
+		    assertFalse(message.isReplyMessage());
+		    assertEquals("ObjectChangedEvent", message.params.get("Message"));
+		    retried.add(message.params);
+		}
+		assertEquals(getIDs(added), getChangedIdentityIDs(retried));
+		assertEquals(1, getClient().getSendNotificationsFailureCount());
+		
+		// Batching is resumed
+		final ArrayList<Identity> addedLater = addRandomIdentities(5);
+		mWebOfTrust.getSubscriptionManager().run();
+		
+		final ArrayList<SimpleFieldSet> resumed = new ArrayList<SimpleFieldSet>();
+		assertEquals(Arrays.asList(addedLater.size()), receiveBatches(resumed));
+		assertEquals(getIDs(addedLater), getChangedIdentityIDs(resumed));
+	}
+	
+	/**
+	 * {@link SubscriptionManager#getClientStatistics()} must report the queue of a client without
+	 * waiting for the lock of the SubscriptionManager, which {@link SubscriptionManager#run()}
+	 * holds while deploying notifications.
+	 */
+	@Test public void testClientStatisticsWithoutLock() throws Exception {
+		final SubscriptionManager manager = mWebOfTrust.getSubscriptionManager();
+		subscribeWithBatches("Identities");
+		manager.run();
+		receiveBatches(new ArrayList<SimpleFieldSet>());
+		
+		addRandomIdentities(3);
+		int queued = 0;
+		for(int size : getExpectedBatchSizes())
+		    queued += size;
+		assertTrue(queued >= 3);
+		Thread.sleep(10);
+		
+		final ArrayList<ClientStatistics> statistics = new ArrayList<ClientStatistics>();
+		final Thread reader = new Thread() {
+		    @Override public void run() {
+		        statistics.addAll(manager.getClientStatistics());
+		    }
+		};
+		synchronized(manager) {
+		    reader.start();
+		    reader.join(SECONDS.toMillis(10));
+		    assertFalse(reader.isAlive());
+		}
+		
+		assertEquals(1, statistics.size());
+		assertEquals(queued, statistics.get(0).mQueuedNotifications);
+		assertTrue(statistics.get(0).mLag > 0);
+		assertFalse(statistics.get(0).mResynchronizationRequired);
+		
+		manager.run();
+		receiveBatches(new ArrayList<SimpleFieldSet>());
+		
+		final ClientStatistics deployed = manager.getClientStatistics().get(0);
+		assertEquals(0, deployed.mQueuedNotifications);
+		assertEquals(0, deployed.mLag);
+		assertTrue(deployed.mDeployedNotifications >= queued);
+	}
+	
+	/**
+	 * Files a subscription with "AcceptsNotificationBatches" = "true".
+	 * @return The ID of the subscription.
+	 */
+	String subscribeWithBatches(final String type) throws IOException, InterruptedException {
+		final SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.putOverwrite("Message", "Subscribe");
+		sfs.putOverwrite("To", type);
+		sfs.put("AcceptsNotificationBatches", true);
+		fcpCall(sfs);
+		
+		final FCPPluginMessage subscription = mReplyReceiver.getNextResult();
+		assertEquals(true, subscription.success);
+		assertEquals("Subscribed", subscription.params.get("Message"));
+		assertFalse(mReplyReceiver.hasNextResult());
+		return subscription.params.get("SubscriptionID");
+	}
+	
+	/**
+	 * Consumes all received messages, which must be "NotificationBatch" messages, and adds their
+	 * contained notifications to the given list in order.
+	 * @return The amount of notifications in each of the batches.
+	 */
+	ArrayList<Integer> receiveBatches(final List<SimpleFieldSet> notifications)
+	        throws FSParseException {
+	    
+		final ArrayList<Integer> sizes = new ArrayList<Integer>();
+		while(mReplyReceiver.hasNextResult()) {
+		    final FCPPluginMessage message = mReplyReceiver.getNextResult();
+		    assertFalse(message.isReplyMessage());
+		    assertEquals("NotificationBatch", message.params.get("Message"));
+		    
+		    final int amount = message.params.getInt("Amount");
+		    final SimpleFieldSet batch = message.params.subset("Notifications");
+		    for(int i = 0; i < amount; ++i)
+		        notifications.add(batch.subset(Integer.toString(i)));
+		    assertNull(batch.subset(Integer.toString(amount)));
+		    sizes.add(amount);
+		}
+		return sizes;
+	}
+	
+	/**
+	 * Computes the sizes of the batches into which the queued {@link Notification}s of the single
+	 * {@link Client} must be split, from their {@link Notification#getPayloadSize()}.
+	 */
+	ArrayList<Integer> getExpectedBatchSizes() {
+		final ArrayList<Integer> result = new ArrayList<Integer>();
+		
+		synchronized(mWebOfTrust) {
+		    final Query query = mWebOfTrust.getDatabase().query();
+		    query.constrain(Notification.class);
+		    query.descend("mIndex").orderAscending();
+		    
+		    int count = 0;
+		    long bytes = 0;
+		    for(Notification notification
+		            : new Persistent.InitializingObjectSet<Notification>(mWebOfTrust, query)) {
+		        
+		        final int size = notification.getPayloadSize();
+		        // A notification which exceeds the byte limit on its own is still sent, alone.
+		        if(count == SubscriptionManager.MAX_NOTIFICATIONS_PER_BATCH
+		                || (count > 0
+		                    && bytes + size > SubscriptionManager.MAX_NOTIFICATION_BATCH_BYTES)) {
+		            result.add(count);
+		            count = 0;
+		            bytes = 0;
+		        }
+		        ++count;
+		        bytes += size;
+		    }
+		    if(count > 0)
+		        result.add(count);
+		}
+		
+		return result;
+	}
+	
+	/** Loads the single {@link Client} of the {@link SubscriptionManager}. */
+	Client getClient() {
+		synchronized(mWebOfTrust) {
+		    final Query query = mWebOfTrust.getDatabase().query();
+		    query.constrain(Client.class);
+		    final ObjectSet<Client> result
+		        = new Persistent.InitializingObjectSet<Client>(mWebOfTrust, query);
+		    assertEquals(1, result.size());
+		    return result.next();
+		}
+	}
+	
+	static ArrayList<String> getIDs(final List<? extends Persistent> objects) {
+		final ArrayList<String> result = new ArrayList<String>(objects.size());
+		for(Persistent object : objects)
+		    result.add(object.getID());
+		return result;
+	}
+	
+	/** @return The IDs of the new objects of the given "ObjectChangedEvent"s, in order. */
+	ArrayList<String> getChangedIdentityIDs(final List<SimpleFieldSet> notifications)
+	        throws MalformedURLException, FSParseException, InvalidParameterException {
+	    
+		final IdentityParser parser = new IdentityParser(mWebOfTrust);
+		final ArrayList<String> result = new ArrayList<String>(notifications.size());
+		for(SimpleFieldSet notification : notifications) {
+		    assertEquals("ObjectChangedEvent", notification.get("Message"));
+		    result.add(parser.parseObjectChangedEvent(notification).afterChange.getID());
+		}
+		return result;
+	}
+
 }
@@ -33,7 +33,12 @@ public class TrustTest extends AbstractJUnit3BaseTest {
 		
 		Trust trust = new Trust(mWoT, a,b,(byte)100,"test"); trust.storeWithoutCommit();
 		Persistent.checkedCommit(mWoT.getDatabase(), this);
-		
+
+		// Since we created the Trust manually instead of using WebOfTrust.setTrust(), the trust
+		// counters of the identities were not updated, which would result in failure of
+		// super.tearDown() because it tests their correctness.
+		mWoT.verifyAndCorrectTrustCounts();
+
 		// TODO: Modify the test to NOT keep a reference to the identities as member variables so the followig also garbage collects them.
 		flushCaches();
 	}
@@ -6,16 +6,26 @@ package plugins.WebOfTrust;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.WebOfTrust.TrustChange;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.util.IdentifierHashSet;
+import freenet.keys.FreenetURI;
 
 /**
  * Tests class {@link WebOfTrust}.
@@ -131,6 +141,482 @@ public class WebOfTrustTest extends AbstractJUnit4BaseTest {
 		
 	}
 
+	/**
+	 * Tests {@link WebOfTrust#getAllIdentitiesAfterID(String)},
+	 * {@link WebOfTrust#getAllTrustsAfterID(String)} and
+	 * {@link WebOfTrust#getAllScoresAfterID(String)} by paging through the database with them. */
+	@Test public void testGetAllAfterID()
+			throws InvalidParameterException, MalformedURLException, NotTrustedException {
+		
+		ArrayList<Identity> identities = addRandomIdentities(5, 20);
+		addRandomTrustValues(identities, 100);
+		
+		int pageSize = 7;
+		
+		ArrayList<Identity> pagedIdentities = new ArrayList<Identity>();
+		String cursor = "";
+		while(true) {
+			int size = 0;
+			for(Identity identity : mWebOfTrust.getAllIdentitiesAfterID(cursor)) {
+				pagedIdentities.add(identity);
+				cursor = identity.getID();
+				if(++size == pageSize)
+					break;
+			}
+			if(size < pageSize)
+				break;
+		}
+		assertEquals(new IdentifierHashSet<Identity>(mWebOfTrust.getAllIdentities()),
+			new IdentifierHashSet<Identity>(pagedIdentities));
+		assertEquals(mWebOfTrust.getAllIdentities().size(), pagedIdentities.size());
+		for(int i = 1; i < pagedIdentities.size(); ++i)
+			assertTrue(pagedIdentities.get(i-1).getID().compareTo(pagedIdentities.get(i).getID()) < 0);
+		
+		ArrayList<Trust> pagedTrusts = new ArrayList<Trust>();
+		cursor = "";
+		while(true) {
+			int size = 0;
+			for(Trust trust : mWebOfTrust.getAllTrustsAfterID(cursor)) {
+				pagedTrusts.add(trust);
+				cursor = trust.getID();
+				if(++size == pageSize)
+					break;
+			}
+			if(size < pageSize)
+				break;
+		}
+		assertEquals(new IdentifierHashSet<Trust>(mWebOfTrust.getAllTrusts()),
+			new IdentifierHashSet<Trust>(pagedTrusts));
+		assertEquals(mWebOfTrust.getAllTrusts().size(), pagedTrusts.size());
+		
+		ArrayList<Score> pagedScores = new ArrayList<Score>();
+		cursor = "";
+		while(true) {
+			int size = 0;
+			for(Score score : mWebOfTrust.getAllScoresAfterID(cursor)) {
+				pagedScores.add(score);
+				cursor = score.getID();
+				if(++size == pageSize)
+					break;
+			}
+			if(size < pageSize)
+				break;
+		}
+		assertEquals(new IdentifierHashSet<Score>(mWebOfTrust.getAllScores()),
+			new IdentifierHashSet<Score>(pagedScores));
+		assertEquals(mWebOfTrust.getAllScores().size(), pagedScores.size());
+	}
+
+	/**
+	 * Tests {@link WebOfTrust#getIdentitiesPage(String, String, int)},
+	 * {@link WebOfTrust#getTrustsPage(String, int)} and {@link WebOfTrust#getScoresPage(String,
+	 * int)}, also with changes between the pages. */
+	@Test public void testGetPage()
+			throws InvalidParameterException, MalformedURLException, UnknownIdentityException {
+		
+		ArrayList<Identity> identities = addRandomIdentities(5, 40);
+		addRandomTrustValues(identities, 200);
+		for(Identity identity : identities) {
+			if(mRandom.nextBoolean()) {
+				identity.addContext("C");
+				identity.storeAndCommit();
+			}
+		}
+		
+		int pageSize = 7;
+		
+		ArrayList<Trust> pagedTrusts = new ArrayList<Trust>();
+		String cursor = "";
+		do {
+			WebOfTrust.Page<Trust> page = mWebOfTrust.getTrustsPage(cursor, pageSize);
+			assertTrue(page.mObjects.size() <= pageSize);
+			pagedTrusts.addAll(page.mObjects);
+			cursor = page.mNextCursor;
+		} while(cursor != null);
+		assertEquals(new IdentifierHashSet<Trust>(mWebOfTrust.getAllTrusts()),
+			new IdentifierHashSet<Trust>(pagedTrusts));
+		assertEquals(mWebOfTrust.getAllTrusts().size(), pagedTrusts.size());
+		
+		ArrayList<Score> pagedScores = new ArrayList<Score>();
+		cursor = "";
+		do {
+			WebOfTrust.Page<Score> page = mWebOfTrust.getScoresPage(cursor, pageSize);
+			pagedScores.addAll(page.mObjects);
+			cursor = page.mNextCursor;
+		} while(cursor != null);
+		assertEquals(new IdentifierHashSet<Score>(mWebOfTrust.getAllScores()),
+			new IdentifierHashSet<Score>(pagedScores));
+		assertEquals(mWebOfTrust.getAllScores().size(), pagedScores.size());
+		for(int i = 1; i < pagedScores.size(); ++i)
+			assertTrue(pagedScores.get(i-1).getID().compareTo(pagedScores.get(i).getID()) < 0);
+		
+		// Identities with changes between the pages
+		
+		ArrayList<String> ids = new ArrayList<String>();
+		for(Identity identity : mWebOfTrust.getAllIdentities())
+			ids.add(identity.getID());
+		Collections.sort(ids);
+		
+		WebOfTrust.Page<Identity> page = mWebOfTrust.getIdentitiesPage(null, "", pageSize);
+		ArrayList<String> pagedIdentities = new ArrayList<String>();
+		for(Identity identity : page.mObjects)
+			pagedIdentities.add(identity.getID());
+		assertEquals(ids.subList(0, pageSize), pagedIdentities);
+		String firstCursor = page.mNextCursor;
+		assertEquals(ids.get(pageSize - 1), firstCursor);
+		
+		// Deleted before its page: Must not be returned.
+		Identity deleted = null;
+		for(int i = pageSize * 3; deleted == null; ++i) {
+			Identity identity = mWebOfTrust.getIdentityByID(ids.get(i));
+			if(!(identity instanceof OwnIdentity))
+				deleted = identity;
+		}
+		mWebOfTrust.deleteWithoutCommit(deleted);
+		Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+		// Changed before its page: Must be returned once, at its new state.
+		Identity changed = mWebOfTrust.getIdentityByID(ids.get(pageSize * 2));
+		changed.addContext("Changed");
+		changed.storeAndCommit();
+		// Added: Returned if its ID is beyond the cursor.
+		addRandomIdentities(10);
+		
+		cursor = firstCursor;
+		do {
+			page = mWebOfTrust.getIdentitiesPage("", cursor, pageSize);
+			for(Identity identity : page.mObjects) {
+				pagedIdentities.add(identity.getID());
+				if(identity.getID().equals(changed.getID()))
+					assertTrue(identity.hasContext("Changed"));
+			}
+			cursor = page.mNextCursor;
+		} while(cursor != null);
+		
+		ArrayList<String> expected = new ArrayList<String>(ids.subList(0, pageSize));
+		ArrayList<String> added = new ArrayList<String>();
+		for(Identity identity : mWebOfTrust.getAllIdentities()) {
+			if(identity.getID().compareTo(firstCursor) > 0)
+				added.add(identity.getID());
+		}
+		Collections.sort(added);
+		expected.addAll(added);
+		assertEquals(expected, pagedIdentities);
+		assertFalse(pagedIdentities.contains(deleted.getID()));
+		
+		// Context: An identity which loses the context between the pages must not be returned.
+		
+		ArrayList<String> contextIDs
+			= new ArrayList<String>(mWebOfTrust.getIdentityIDsByContext("C"));
+		Collections.sort(contextIDs);
+		assertTrue(contextIDs.size() > 4);
+		page = mWebOfTrust.getIdentitiesPage("C", "", 2);
+		ArrayList<String> pagedContextIDs = new ArrayList<String>();
+		for(Identity identity : page.mObjects)
+			pagedContextIDs.add(identity.getID());
+		
+		Identity lost = mWebOfTrust.getIdentityByID(contextIDs.get(3));
+		lost.removeContext("C");
+		lost.storeAndCommit();
+		
+		cursor = page.mNextCursor;
+		do {
+			page = mWebOfTrust.getIdentitiesPage("C", cursor, 2);
+			for(Identity identity : page.mObjects)
+				pagedContextIDs.add(identity.getID());
+			cursor = page.mNextCursor;
+		} while(cursor != null);
+		
+		contextIDs.remove(lost.getID());
+		assertEquals(contextIDs, pagedContextIDs);
+	}
+
+	/**
+	 * Tests {@link WebOfTrust#getAllTrustsChangedSince(long)} and
+	 * {@link WebOfTrust#getTombstonesChangedSince(String, long)}. */
+	@Test public void testGetAllChangedSince()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException,
+			UnknownIdentityException, NotInTrustTreeException {
+		
+		OwnIdentity truster = addRandomOwnIdentities(1).get(0);
+		ArrayList<Identity> identities = addRandomIdentities(5);
+		mWebOfTrust.setTrust(truster, identities.get(0), (byte)10, "Modify");
+		mWebOfTrust.setTrust(truster, identities.get(1), (byte)20, "Remove");
+		mWebOfTrust.setTrust(truster, identities.get(2), (byte)30, "Keep");
+		
+		long since = mWebOfTrust.getCurrentChangeSequence();
+		assertTrue(since > 0);
+		assertEquals(0, mWebOfTrust.getAllIdentitiesChangedSince(since).size());
+		assertEquals(0, mWebOfTrust.getAllTrustsChangedSince(since).size());
+		assertEquals(0, mWebOfTrust.getAllScoresChangedSince(since).size());
+		
+		String removedTrustID
+			= mWebOfTrust.getTrust(truster.getID(), identities.get(1).getID()).getID();
+		String removedScoreID = mWebOfTrust.getScore(truster, identities.get(1)).getID();
+		
+		mWebOfTrust.setTrust(truster, identities.get(0), (byte)15, "Modify");
+		mWebOfTrust.removeTrust(truster.getID(), identities.get(1).getID());
+		
+		List<Trust> changedTrusts = mWebOfTrust.getAllTrustsChangedSince(since);
+		assertEquals(1, changedTrusts.size());
+		Trust changedTrust = changedTrusts.get(0);
+		assertEquals(identities.get(0).getID(), changedTrust.getTrustee().getID());
+		assertTrue(changedTrust.getChangeSequence() > since);
+		
+		List<Tombstone> deletedTrusts
+			= mWebOfTrust.getTombstonesChangedSince(Tombstone.TYPE_TRUST, since);
+		assertEquals(1, deletedTrusts.size());
+		Tombstone deletedTrust = deletedTrusts.get(0);
+		assertEquals(removedTrustID, deletedTrust.getObjectID());
+		assertTrue(deletedTrust.getChangeSequence() > changedTrust.getChangeSequence());
+		assertTrue(deletedTrust.getChangeSequence() <= mWebOfTrust.getCurrentChangeSequence());
+		
+		boolean scoreDeleted = false;
+		for(Tombstone t : mWebOfTrust.getTombstonesChangedSince(Tombstone.TYPE_SCORE, since))
+			scoreDeleted |= t.getObjectID().equals(removedScoreID);
+		assertTrue(scoreDeleted);
+		
+		assertEquals(0, mWebOfTrust.getTombstonesChangedSince(Tombstone.TYPE_IDENTITY, since).size());
+		
+		// The results must be sorted by change sequence number
+		long previous = since;
+		for(Score score : mWebOfTrust.getAllScoresChangedSince(since)) {
+			assertTrue(score.getChangeSequence() > previous);
+			previous = score.getChangeSequence();
+		}
+		
+		since = mWebOfTrust.getCurrentChangeSequence();
+		assertEquals(0, mWebOfTrust.getAllTrustsChangedSince(since).size());
+		assertEquals(0, mWebOfTrust.getTombstonesChangedSince(Tombstone.TYPE_TRUST, since).size());
+	}
+
+	/**
+	 * Tests whether {@link Identity#getReceivedTrustCount(int)} and
+	 * {@link Identity#getGivenTrustCount(int)} stay equal to the amount of Trusts in the database
+	 * when trusts and identities are changed, and tests
+	 * {@link WebOfTrust#verifyAndCorrectTrustCounts()}. */
+	@Test public void testTrustCounts()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException,
+			UnknownIdentityException {
+
+		ArrayList<Identity> identities = addRandomIdentities(3, 17);
+		addRandomTrustValues(identities, 100);
+		assertTrustCountsMatchDatabase();
+
+		OwnIdentity truster = (OwnIdentity)identities.get(0);
+		Identity trustee = identities.get(3);
+		mWebOfTrust.setTrust(truster, trustee, (byte)50, "Positive");
+		assertTrustCountsMatchDatabase();
+		mWebOfTrust.setTrust(truster, trustee, (byte)0, "Zero");
+		assertTrustCountsMatchDatabase();
+		mWebOfTrust.setTrust(truster, trustee, (byte)-50, "Negative");
+		assertTrustCountsMatchDatabase();
+		mWebOfTrust.removeTrust(truster.getID(), trustee.getID());
+		assertTrustCountsMatchDatabase();
+
+		// Both replace the Identity object and copy its Trusts
+		OwnIdentity converted = (OwnIdentity)identities.get(1);
+		FreenetURI insertURI = converted.getInsertURI();
+		mWebOfTrust.deleteOwnIdentity(converted.getID());
+		assertTrustCountsMatchDatabase();
+		mWebOfTrust.restoreOwnIdentity(insertURI);
+		assertTrustCountsMatchDatabase();
+
+		// Also deletes the Trusts of the identity
+		mWebOfTrust.deleteWithoutCommit(mWebOfTrust.getIdentityByID(identities.get(4).getID()));
+		Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+		assertTrustCountsMatchDatabase();
+
+		assertTrue(mWebOfTrust.verifyAndCorrectTrustCounts());
+
+		Identity damaged = mWebOfTrust.getIdentityByID(trustee.getID());
+		damaged.setTrustCounts(new int[] { 1, 2, 3, 4, 5, 6 });
+		damaged.storeTrustCountsWithoutCommit();
+		Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+		assertFalse(mWebOfTrust.verifyAndCorrectTrustCounts());
+		assertTrustCountsMatchDatabase();
+		assertTrue(mWebOfTrust.verifyAndCorrectTrustCounts());
+	}
+
+	private void assertTrustCountsMatchDatabase() {
+		for(Identity i : mWebOfTrust.getAllIdentities()) {
+			assertEquals(mWebOfTrust.getReceivedTrusts(i).size(), i.getReceivedTrustCount());
+			assertEquals(mWebOfTrust.getGivenTrusts(i).size(), i.getGivenTrustCount());
+
+			for(int select = -1; select <= 1; ++select) {
+				assertEquals(mWebOfTrust.getReceivedTrusts(i, select).size(),
+					i.getReceivedTrustCount(select));
+				assertEquals(mWebOfTrust.getGivenTrusts(i, select).size(),
+					i.getGivenTrustCount(select));
+			}
+		}
+	}
+
+	/**
+	 * Tests {@link WebOfTrust#getIdentityContexts(String)},
+	 * {@link WebOfTrust#getIdentityContextsAfterID(String, String)} and
+	 * {@link WebOfTrust#getIdentityIDsByContext(String)} against
+	 * {@link Identity#hasContext(String)}. */
+	@Test public void testGetIdentityContexts()
+			throws MalformedURLException, InvalidParameterException, UnknownIdentityException {
+
+		ArrayList<Identity> identities = addRandomIdentities(2, 20);
+		String[] contexts = { "A", "B", "C" };
+		for(Identity identity : identities) {
+			for(String context : contexts) {
+				if(mRandom.nextBoolean())
+					identity.addContext(context);
+			}
+			identity.storeAndCommit();
+		}
+		assertContextIndexMatchesIdentities(contexts);
+
+		// Modify and delete some identities
+		for(int i = 0; i < 5; ++i) {
+			Identity identity = identities.get(i);
+			identity.setContexts(Arrays.asList("C"));
+			identity.storeAndCommit();
+		}
+		identities.get(5).removeContext("A");
+		identities.get(5).removeContext("B");
+		identities.get(5).storeAndCommit();
+		mWebOfTrust.deleteOwnIdentity(identities.get(0).getID());
+		mWebOfTrust.deleteWithoutCommit(mWebOfTrust.getIdentityByID(identities.get(6).getID()));
+		Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+		assertContextIndexMatchesIdentities(contexts);
+
+		// Pagination
+		ArrayList<String> paged = new ArrayList<String>();
+		String cursor = "";
+		while(true) {
+			int size = 0;
+			for(IdentityContext entry : mWebOfTrust.getIdentityContextsAfterID("C", cursor)) {
+				paged.add(entry.getIdentityID());
+				cursor = entry.getIdentityID();
+				if(++size == 3)
+					break;
+			}
+			if(size < 3)
+				break;
+		}
+		assertEquals(mWebOfTrust.getIdentityIDsByContext("C"), new HashSet<String>(paged));
+		assertEquals(paged.size(), new HashSet<String>(paged).size());
+		for(int i = 1; i < paged.size(); ++i)
+			assertTrue(paged.get(i-1).compareTo(paged.get(i)) < 0);
+	}
+
+	/**
+	 * Tests whether the {@link IdentityContext} objects match the contexts again if the
+	 * transaction which stored them was rolled back, and tests
+	 * {@link WebOfTrust#hasIdentityContext(String, String)}. */
+	@Test public void testContextIndexRollback()
+			throws MalformedURLException, InvalidParameterException {
+
+		Identity identity = addRandomIdentities(1).get(0);
+		assertFalse(mWebOfTrust.hasIdentityContext(identity.getID(), "R"));
+		Set<String> cached = mWebOfTrust.getIdentityIDsByContext("R");
+		assertTrue(cached.isEmpty());
+		assertTrue(cached == mWebOfTrust.getIdentityIDsByContext("R"));
+
+		synchronized(mWebOfTrust) {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			identity.addContext("R");
+			identity.storeWithoutCommit();
+			Persistent.checkedRollback(mWebOfTrust.getDatabase(), this,
+				new RuntimeException("Rollback for testing"));
+		}}
+		assertFalse(mWebOfTrust.hasIdentityContext(identity.getID(), "R"));
+
+		// The rollback did not undo the change of the object in memory, so storing it again must
+		// store the context in the index.
+		assertTrue(identity.hasContext("R"));
+		identity.storeAndCommit();
+		assertTrue(mWebOfTrust.hasIdentityContext(identity.getID(), "R"));
+		assertTrue(mWebOfTrust.hasIdentityContext(identity.getID(), " R "));
+		assertFalse(mWebOfTrust.hasIdentityContext(identity.getID(), "S"));
+		assertEquals(new HashSet<String>(Arrays.asList(identity.getID())),
+			mWebOfTrust.getIdentityIDsByContext("R"));
+		assertContextIndexMatchesIdentities(new String[] { "R" });
+	}
+
+	private void assertContextIndexMatchesIdentities(String[] contexts) {
+		for(String context : contexts) {
+			HashSet<String> expected = new HashSet<String>();
+			for(Identity identity : mWebOfTrust.getAllIdentities()) {
+				if(identity.hasContext(context))
+					expected.add(identity.getID());
+			}
+
+			HashSet<String> actual = new HashSet<String>();
+			for(IdentityContext entry : mWebOfTrust.getIdentityContexts(context)) {
+				assertEquals(context, entry.getContext());
+				assertEquals(entry.getIdentityID(), entry.getIdentity().getID());
+				assertTrue(actual.add(entry.getIdentityID()));
+			}
+
+			assertEquals(expected, actual);
+			assertEquals(expected, mWebOfTrust.getIdentityIDsByContext(context));
+		}
+	}
+
+	/** Tests {@link WebOfTrust#setTrusts(List)}. */
+	@Test public void testSetTrusts()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException {
+		
+		ArrayList<OwnIdentity> ownIdentities = addRandomOwnIdentities(2);
+		ArrayList<Identity> identities = addRandomIdentities(10);
+		OwnIdentity truster = ownIdentities.get(0);
+		// Trusts which will be modified/removed
+		mWebOfTrust.setTrust(truster, identities.get(0), (byte)10, "Modify");
+		mWebOfTrust.setTrust(truster, identities.get(1), (byte)20, "Remove");
+		
+		List<TrustChange> changes = Arrays.asList(
+			new TrustChange(truster.getID(), identities.get(0).getID(), (byte)-50, "Modified"),
+			new TrustChange(truster.getID(), identities.get(1).getID()),
+			new TrustChange(truster.getID(), identities.get(2).getID(), (byte)100, "New"),
+			new TrustChange(ownIdentities.get(1).getID(), identities.get(2).getID(), (byte)0, "New"),
+			// Non-own truster
+			new TrustChange(identities.get(3).getID(), identities.get(2).getID(), (byte)1, ""),
+			// Non-existing trustee
+			new TrustChange(truster.getID(), "Nonexistent", (byte)1, ""),
+			// Invalid value
+			new TrustChange(truster.getID(), identities.get(4).getID(), (byte)101, ""),
+			// Invalid comment for an existing Trust: Must not modify it partly.
+			new TrustChange(truster.getID(), identities.get(0).getID(), (byte)1, "Line\nbreak"),
+			// Removal of non-existing Trust
+			new TrustChange(truster.getID(), identities.get(5).getID())
+		);
+		
+		ArrayList<Exception> results = mWebOfTrust.setTrusts(changes);
+		
+		assertEquals(changes.size(), results.size());
+		for(int i = 0; i < 4; ++i)
+			assertEquals(null, results.get(i));
+		assertTrue(results.get(4) instanceof UnknownIdentityException);
+		assertTrue(results.get(5) instanceof UnknownIdentityException);
+		assertTrue(results.get(6) instanceof InvalidParameterException);
+		assertTrue(results.get(7) instanceof InvalidParameterException);
+		assertTrue(results.get(8) instanceof NotTrustedException);
+		
+		Trust modified = mWebOfTrust.getTrust(truster.getID(), identities.get(0).getID());
+		assertEquals(-50, modified.getValue());
+		assertEquals("Modified", modified.getComment());
+		assertEquals(100, mWebOfTrust.getTrust(truster.getID(), identities.get(2).getID()).getValue());
+		assertEquals(0, mWebOfTrust.getTrust(ownIdentities.get(1).getID(), identities.get(2).getID()).getValue());
+		
+		try {
+			mWebOfTrust.getTrust(truster.getID(), identities.get(1).getID());
+			fail("Trust should have been removed");
+		} catch(NotTrustedException e) {}
+		
+		try {
+			mWebOfTrust.getTrust(truster.getID(), identities.get(4).getID());
+			fail("Trust with invalid value should not have been created");
+		} catch(NotTrustedException e) {}
+		
+		// Whether the Scores were computed properly is checked by
+		// AbstractJUnit4BaseTest.testDatabaseIntegrityAfterTermination()
+	}
+
 	@Override protected WebOfTrust getWebOfTrust() {
 		return mWebOfTrust;
 	}
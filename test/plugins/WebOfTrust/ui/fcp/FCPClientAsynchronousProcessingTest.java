@@ -0,0 +1,368 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust.ui.fcp;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.After;
+import org.junit.Test;
+
+import plugins.WebOfTrust.AbstractSingleNodeTest;
+import plugins.WebOfTrust.Identity;
+import plugins.WebOfTrust.MockWebOfTrust;
+import plugins.WebOfTrust.OwnIdentity;
+import plugins.WebOfTrust.SubscriptionManager;
+import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.AsynchronousProcessingStatistics;
+import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.BeginSubscriptionSynchronizationHandler;
+import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.ChangeSet;
+import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.ConnectionStatusChangedHandler;
+import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.EndSubscriptionSynchronizationHandler;
+import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.IdentityParser;
+import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.NotificationJournal;
+import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.SubscribedObjectChangedHandler;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Tests the asynchronous processing of {@link FCPClientReferenceImplementation}, see
+ * {@link FCPClientReferenceImplementation#enableAsynchronousProcessing(int, int,
+ * NotificationJournal)}.<br>
+ * Our parent class terminates the threads of WOT, so the tests call
+ * {@link SubscriptionManager#run()} to deliver the notifications to the client.
+ */
+public final class FCPClientAsynchronousProcessingTest extends AbstractSingleNodeTest {
+
+	private static final long TIMEOUT = SECONDS.toMillis(60);
+
+	private static final String PROPERTY = "FCPClientAsynchronousProcessingTest";
+
+	/**
+	 * Failures which were detected on the threads of the client. Assertions would only kill
+	 * those threads, so they are collected here and checked by {@link #stopClient()}. */
+	private final List<String> mErrors = Collections.synchronizedList(new ArrayList<String>());
+
+	/**
+	 * The calls of the handlers of {@link #mClient}: "Begin", "End", and the ID of each changed
+	 * identity, followed by "=" and the value of {@link #PROPERTY} if it is set. */
+	private final List<String> mEvents = Collections.synchronizedList(new ArrayList<String>());
+
+	/** The identities which {@link #mClient} received, key = {@link Identity#getID()} */
+	private final Map<String, Identity> mReceived = new ConcurrentHashMap<String, Identity>();
+
+	private FCPClientReferenceImplementation mClient;
+
+
+	/**
+	 * An in-memory {@link NotificationJournal} which records misuse to {@link #mErrors}.<br>
+	 * Not static because it does so. */
+	private final class TestJournal implements NotificationJournal {
+		private final IdentityParser mParser = new IdentityParser(new MockWebOfTrust());
+
+		private int mNextEntry = 0;
+
+		private final LinkedHashMap<Object, SimpleFieldSet> mUnprocessed
+			= new LinkedHashMap<Object, SimpleFieldSet>();
+
+		/** Copies of all notifications passed to {@link #append(SimpleFieldSet)}. */
+		private final ArrayList<SimpleFieldSet> mAppended = new ArrayList<SimpleFieldSet>();
+
+		private int mProcessed = 0;
+
+		@Override public synchronized Object append(SimpleFieldSet notification) {
+			final Integer entry = mNextEntry++;
+			mUnprocessed.put(entry, new SimpleFieldSet(notification));
+			mAppended.add(new SimpleFieldSet(notification));
+			return entry;
+		}
+
+		@Override public synchronized void markProcessed(Object entry) {
+			if(mUnprocessed.remove(entry) == null)
+				mErrors.add("markProcessed() for unknown or processed entry: " + entry);
+			else
+				++mProcessed;
+		}
+
+		@Override public synchronized Map<Object, SimpleFieldSet> getUnprocessed() {
+			return new LinkedHashMap<Object, SimpleFieldSet>(mUnprocessed);
+		}
+
+		synchronized ArrayList<SimpleFieldSet> getAppended() {
+			return new ArrayList<SimpleFieldSet>(mAppended);
+		}
+
+		synchronized int getProcessedCount() {
+			return mProcessed;
+		}
+
+		/** True if a journaled, unprocessed notification is about the given identity. */
+		synchronized boolean isUnprocessed(String identityID) throws Exception {
+			for(SimpleFieldSet notification : mUnprocessed.values()) {
+				if(identityID.equals(getID(mParser.parseObjectChangedEvent(notification))))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Records the changed identities to {@link #mEvents} and {@link #mReceived} after
+	 * {@link #process(ChangeSet)} succeeded. */
+	private class ChangedHandler implements SubscribedObjectChangedHandler<Identity> {
+		@Override public void handleSubscribedObjectChanged(ChangeSet<Identity> changeSet)
+				throws ProcessingFailedException {
+
+			try {
+				process(changeSet);
+			} catch(Exception e) {
+				throw mClient.new ProcessingFailedException(e);
+			}
+
+			final Identity identity = changeSet.afterChange;
+			if(identity == null) {
+				mReceived.remove(changeSet.beforeChange.getID());
+				mEvents.add(changeSet.beforeChange.getID());
+				return;
+			}
+
+			mReceived.put(identity.getID(), identity);
+			final String value = identity.getProperties().get(PROPERTY);
+			mEvents.add(identity.getID() + (value != null ? "=" + value : ""));
+		}
+
+		/** Override to check or fail the processing. */
+		void process(ChangeSet<Identity> changeSet) throws Exception { }
+	}
+
+	private static String getID(ChangeSet<Identity> changeSet) {
+		return (changeSet.afterChange != null ? changeSet.afterChange : changeSet.beforeChange)
+			.getID();
+	}
+
+	/** Starts {@link #mClient} and subscribes it to the identities. */
+	private void startClient(NotificationJournal journal, int workerThreads, int queueCapacity,
+			int queueTimeout, int retryDelay, ChangedHandler handler) {
+
+		mClient = new FCPClientReferenceImplementation(mReceived,
+			mWebOfTrust.getPluginRespirator(), new ConnectionStatusChangedHandler() {
+				@Override public void handleConnectionStatusChanged(boolean connected) { }
+			});
+		mClient.enableAsynchronousProcessing(workerThreads, queueCapacity, journal,
+			queueTimeout, retryDelay);
+		mClient.start();
+
+		mClient.subscribe(Identity.class, new BeginSubscriptionSynchronizationHandler<Identity>() {
+			@Override public void handleBeginSubscriptionSynchronization(UUID versionID) {
+				mEvents.add("Begin");
+			}
+		}, new EndSubscriptionSynchronizationHandler<Identity>() {
+			@Override public void handleEndSubscriptionSynchronization(UUID versionID) {
+				// All changes of the synchronization must have been processed before its end.
+				if(mClient.getAsynchronousProcessingStatistics().mQueueDepth != 0)
+					mErrors.add("Queue is not empty at EndSynchronization");
+				mEvents.add("End");
+			}
+		}, handler);
+	}
+
+	@After public void stopClient() {
+		if(mClient != null)
+			mClient.stop();
+
+		assertEquals(new ArrayList<String>(), new ArrayList<String>(mErrors));
+	}
+
+	private int countEvents(String event) {
+		synchronized(mEvents) {
+			return Collections.frequency(mEvents, event);
+		}
+	}
+
+	/** Delivers notifications until the client has received the given amount of EndSync. */
+	private void deliverUntilSynchronized(int endSynchronizations) throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while(countEvents("End") < endSynchronizations) {
+			assertTrue("Timeout", System.currentTimeMillis() < deadline);
+			mWebOfTrust.getSubscriptionManager().run();
+			Thread.sleep(100);
+		}
+	}
+
+	/** Delivers the pending notifications and waits until the client has processed them. */
+	private void deliverAndWaitUntilProcessed() throws InterruptedException {
+		mWebOfTrust.getSubscriptionManager().run();
+
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while(mClient.getAsynchronousProcessingStatistics().mQueueDepth != 0) {
+			assertTrue("Timeout", System.currentTimeMillis() < deadline);
+			Thread.sleep(100);
+		}
+	}
+
+	private HashSet<String> getIdentityIDs() {
+		final HashSet<String> result = new HashSet<String>();
+		synchronized(mWebOfTrust) {
+			for(Identity identity : mWebOfTrust.getAllIdentities())
+				result.add(identity.getID());
+		}
+		return result;
+	}
+
+	/**
+	 * Each notification must be journaled before it is acknowledged to WOT, and thus before it is
+	 * processed. The changes of a single identity must be processed in order even though there
+	 * are multiple workers, and all of them must be marked as processed in the end. */
+	@Test public void testAcknowledgementAndOrdering() throws Exception {
+		addRandomIdentities(20);
+		final OwnIdentity ownIdentity = addRandomOwnIdentities(1).get(0);
+
+		final TestJournal journal = new TestJournal();
+		startClient(journal, 4, 2, FCPClientReferenceImplementation.ASYNC_QUEUE_TIMEOUT, 100,
+			new ChangedHandler() {
+				@Override void process(ChangeSet<Identity> changeSet) throws Exception {
+					if(!journal.isUnprocessed(getID(changeSet)))
+						mErrors.add("Processing unjournaled notification: " + changeSet);
+				}
+			});
+		deliverUntilSynchronized(1);
+
+		assertEquals("Begin", mEvents.get(0));
+		assertEquals("End", mEvents.get(mEvents.size() - 1));
+		assertEquals(21 + 2, mEvents.size());
+		assertEquals(getIdentityIDs(), mReceived.keySet());
+
+		mEvents.clear();
+		final ArrayList<String> expected = new ArrayList<String>();
+		for(int i = 0; i < 10; ++i) {
+			mWebOfTrust.setProperty(ownIdentity.getID(), PROPERTY, Integer.toString(i));
+			expected.add(ownIdentity.getID() + "=" + i);
+		}
+		deliverAndWaitUntilProcessed();
+		assertEquals(expected, mEvents);
+
+		final AsynchronousProcessingStatistics statistics
+			= mClient.getAsynchronousProcessingStatistics();
+		assertEquals(0, journal.getUnprocessed().size());
+		assertEquals(21 + 10, journal.getAppended().size());
+		assertEquals(21 + 10, statistics.mProcessed);
+		assertEquals(0, statistics.mFailed);
+	}
+
+	/**
+	 * Notifications which were journaled but not processed before the client was stopped must be
+	 * replayed by subscribe() before the new subscription's synchronization, and only to the
+	 * subscription of their type. */
+	@Test public void testJournalReplay() throws Exception {
+		final Identity identity = addRandomIdentities(1).get(0);
+
+		final TestJournal firstJournal = new TestJournal();
+		startClient(firstJournal, 1, 1, FCPClientReferenceImplementation.ASYNC_QUEUE_TIMEOUT, 100,
+			new ChangedHandler());
+		deliverUntilSynchronized(1);
+		mClient.stop();
+		mClient = null;
+
+		// A journal of a client which crashed before processing the notification
+		final SimpleFieldSet notification = firstJournal.getAppended().get(0);
+		final TestJournal journal = new TestJournal();
+		final Object entry = journal.append(notification);
+		final SimpleFieldSet otherType = new SimpleFieldSet(notification);
+		otherType.putOverwrite("SubscriptionType", "Trusts");
+		final Object otherEntry = journal.append(otherType);
+
+		mEvents.clear();
+		mReceived.clear();
+		startClient(journal, 1, 1, FCPClientReferenceImplementation.ASYNC_QUEUE_TIMEOUT, 100,
+			new ChangedHandler());
+
+		// Replayed on the thread of subscribe(), before WOT even knows about the subscription.
+		assertEquals(Arrays.asList(identity.getID()), mEvents);
+		assertFalse(journal.getUnprocessed().containsKey(entry));
+		// There is no subscription to Trusts yet, so it must be kept for it.
+		assertEquals(Arrays.asList(otherEntry),
+			new ArrayList<Object>(journal.getUnprocessed().keySet()));
+
+		deliverUntilSynchronized(1);
+		assertEquals(Arrays.asList(identity.getID(), "Begin", identity.getID(), "End"), mEvents);
+		assertEquals(Arrays.asList(otherEntry),
+			new ArrayList<Object>(journal.getUnprocessed().keySet()));
+	}
+
+	/** A failing handler must be retried, and the notification only marked processed then. */
+	@Test public void testRetry() throws Exception {
+		addRandomIdentities(5);
+
+		final TestJournal journal = new TestJournal();
+		startClient(journal, 2, 2, FCPClientReferenceImplementation.ASYNC_QUEUE_TIMEOUT, 100,
+			new ChangedHandler() {
+				private final HashSet<String> mFailed = new HashSet<String>();
+
+				@Override void process(ChangeSet<Identity> changeSet) throws Exception {
+					synchronized(mFailed) {
+						if(mFailed.add(getID(changeSet)))
+							throw new Exception("Failing the first attempt");
+					}
+					if(!journal.isUnprocessed(getID(changeSet)))
+						mErrors.add("Retrying processed notification: " + changeSet);
+				}
+			});
+		deliverUntilSynchronized(1);
+
+		assertEquals(5 + 2, mEvents.size());
+		assertEquals(getIdentityIDs(), mReceived.keySet());
+
+		final AsynchronousProcessingStatistics statistics
+			= mClient.getAsynchronousProcessingStatistics();
+		assertEquals(5, statistics.mProcessed);
+		assertEquals(0, statistics.mFailed);
+		assertEquals(0, journal.getUnprocessed().size());
+		assertEquals(5, journal.getProcessedCount());
+	}
+
+	/**
+	 * If the queue stays full for the queue timeout, an error must be replied to WOT, which then
+	 * re-sends the notifications. The one which could not be queued must be removed from the
+	 * journal, and the client must end up with all identities nevertheless. */
+	@Test public void testQueueTimeout() throws Exception {
+		addRandomIdentities(10);
+
+		final CountDownLatch release = new CountDownLatch(1);
+		final TestJournal journal = new TestJournal();
+		// A single worker with a queue of 1 which is blocked by the first notification
+		startClient(journal, 1, 1, 500, 100, new ChangedHandler() {
+			@Override void process(ChangeSet<Identity> changeSet) throws Exception {
+				release.await();
+			}
+		});
+
+		// Before the release, the only way an entry is marked as processed is the timeout.
+		final long deadline = System.currentTimeMillis() + TIMEOUT;
+		while(journal.getProcessedCount() == 0) {
+			assertTrue("Timeout", System.currentTimeMillis() < deadline);
+			mWebOfTrust.getSubscriptionManager().run();
+			Thread.sleep(100);
+		}
+		assertEquals(0, countEvents("End"));
+		assertEquals(1, journal.getProcessedCount());
+		assertEquals(0, mClient.getAsynchronousProcessingStatistics().mProcessed);
+
+		release.countDown();
+		deliverUntilSynchronized(1);
+
+		assertEquals(1, countEvents("End"));
+		assertEquals(getIdentityIDs(), mReceived.keySet());
+		assertEquals(0, journal.getUnprocessed().size());
+		assertEquals(0, mClient.getAsynchronousProcessingStatistics().mFailed);
+	}
+}
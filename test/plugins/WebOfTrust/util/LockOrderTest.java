@@ -0,0 +1,61 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust.util;
+
+import junit.framework.TestCase;
+
+/** Tests {@link LockOrder}. */
+public final class LockOrderTest extends TestCase {
+
+	private final Object mFirst = new Object();
+
+	private final Object mSecond = new Object();
+
+	private final Object mThird = new Object();
+
+	private final LockOrder mOrder = new LockOrder(mFirst, mSecond, mThird);
+
+	public void testMayAcquire() {
+		assertTrue(mOrder.mayAcquire(mFirst));
+		assertTrue(mOrder.mayAcquire(mSecond));
+		assertTrue(mOrder.mayAcquire(mThird));
+
+		synchronized(mSecond) {
+			assertFalse(mOrder.mayAcquire(mFirst));
+			assertTrue(mOrder.mayAcquire(mSecond)); // Reentrant
+			assertTrue(mOrder.mayAcquire(mThird));
+
+			synchronized(mThird) {
+				assertFalse(mOrder.mayAcquire(mFirst));
+				assertTrue(mOrder.mayAcquire(mSecond));
+			}
+		}
+
+		synchronized(mFirst) {
+			assertTrue(mOrder.mayAcquire(mSecond));
+			assertTrue(mOrder.mayAcquire(mThird));
+		}
+	}
+
+	/** Locks which are not part of the order may always be acquired. */
+	public void testUnknownLock() {
+		final Object unknown = new Object();
+
+		synchronized(mThird) {
+			assertTrue(mOrder.mayAcquire(unknown));
+
+			synchronized(unknown) {
+				assertTrue(mOrder.mayAcquire(mThird));
+				assertFalse(mOrder.mayAcquire(mFirst));
+			}
+		}
+	}
+
+	public void testNullLock() {
+		try {
+			new LockOrder(mFirst, null);
+			fail("NullPointerException should have been thrown");
+		} catch(NullPointerException e) {}
+	}
+}
@@ -0,0 +1,111 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust.util;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import junit.framework.TestCase;
+import plugins.WebOfTrust.util.LockProfiler.Hold;
+import plugins.WebOfTrust.util.LockProfiler.SiteStatistics;
+
+/** Tests {@link LockProfiler} by sampling manually with {@link LockProfiler#sample()}. */
+public final class LockProfilerTest extends TestCase {
+
+	private final Object mFirst = new Object();
+
+	private final Object mSecond = new Object();
+
+	private final LockProfiler mProfiler = new LockProfiler(new LockOrder(mFirst, mSecond),
+		new String[] { "First", "Second" }, LockProfiler.DEFAULT_SAMPLE_INTERVAL);
+
+	/** Checks whether holds and waits are observed and accounted to the right sites. */
+	public void testHoldAndWait() throws InterruptedException {
+		final CountDownLatch acquired = new CountDownLatch(1);
+		final Thread waiter;
+
+		synchronized(mFirst) {
+			waiter = new Thread(new Runnable() { @Override public void run() {
+				acquired.countDown();
+				synchronized(mFirst) { }
+			}});
+			waiter.start();
+			acquired.await();
+
+			while(waiter.getState() != Thread.State.BLOCKED)
+				Thread.sleep(1);
+
+			mProfiler.sample();
+			mProfiler.sample();
+
+			final ArrayList<Hold> holds = mProfiler.getLongestHolds();
+			assertEquals(1, holds.size());
+			assertTrue(holds.get(0).mInProgress);
+			assertEquals(Thread.currentThread().getName(), holds.get(0).mThreadName);
+			assertTrue(holds.get(0).mSite.startsWith("First @ "));
+		}
+
+		waiter.join();
+		mProfiler.sample();
+
+		assertEquals(3, mProfiler.getSampleCount());
+		assertEquals(1, mProfiler.getLongestHolds().size());
+		assertFalse(mProfiler.getLongestHolds().get(0).mInProgress);
+
+		long holds = 0;
+		long waitTime = 0;
+		long causedWaitTime = 0;
+		for(SiteStatistics site : mProfiler.getSiteStatistics()) {
+			holds += site.mHolds;
+			waitTime += site.mWaitTime;
+			causedWaitTime += site.mCausedWaitTime;
+		}
+		// Both samples saw the same hold, and both saw the waiter.
+		assertEquals(1, holds);
+		assertTrue(waitTime > 0);
+		assertEquals(waitTime, causedWaitTime);
+		assertEquals(0, mProfiler.getViolations().size());
+	}
+
+	/** Checks whether acquiring the locks in the wrong order is detected. */
+	public void testViolation() {
+		synchronized(mFirst) {
+			acquireSecond();
+		}
+		assertEquals(0, mProfiler.getViolations().size());
+
+		synchronized(mSecond) {
+			acquireFirst();
+		}
+		assertEquals(1, mProfiler.getViolations().size());
+		assertEquals(1, mProfiler.getViolations().get(0).mSamples);
+	}
+
+	private void acquireFirst() {
+		synchronized(mFirst) {
+			mProfiler.sample();
+		}
+	}
+
+	private void acquireSecond() {
+		synchronized(mSecond) {
+			mProfiler.sample();
+		}
+	}
+
+	public void testStartStop() throws InterruptedException {
+		assertFalse(mProfiler.isRunning());
+		mProfiler.start();
+		assertTrue(mProfiler.isRunning());
+
+		while(mProfiler.getSampleCount() == 0)
+			Thread.sleep(10);
+
+		mProfiler.stop();
+		assertFalse(mProfiler.isRunning());
+		final long samples = mProfiler.getSampleCount();
+		Thread.sleep(3 * mProfiler.getSampleInterval());
+		assertEquals(samples, mProfiler.getSampleCount());
+	}
+}